@@ -83,6 +83,8 @@ public interface ActivityConstants {
   public static final String ACTIVITY_SOURCE_ITEM_RESOURCE_TYPE = "sakai/activity-post";
   /** resource type for resources that are updated */
   String RESOURCE_UPDATE = "sakai/resource-update";
+  /** number of events a coalesced resource update stands for, 1 when absent */
+  String RESOURCE_UPDATE_EVENT_COUNT = "eventcount";
 
   // Events
 
@@ -0,0 +1,93 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the delivery of activities, shared by the delivery threads.
+ */
+public class ActivityDeliveryStats implements ActivityDeliveryStatsMBean {
+
+  private final ThreadPoolExecutor executor;
+  private final AtomicLong activityCount = new AtomicLong();
+  private final AtomicLong deliveredCount = new AtomicLong();
+  private final AtomicLong failedCount = new AtomicLong();
+  private final AtomicLong pendingDeliveries = new AtomicLong();
+  private final AtomicLong lastDeliveryLag = new AtomicLong();
+  private final AtomicLong maxDeliveryLag = new AtomicLong();
+
+  /**
+   * @param executor
+   *          the executor running the deliveries, its queue is the backlog.
+   */
+  public ActivityDeliveryStats(ThreadPoolExecutor executor) {
+    this.executor = executor;
+  }
+
+  void activityReceived() {
+    activityCount.incrementAndGet();
+  }
+
+  void routed(int routes) {
+    pendingDeliveries.addAndGet(routes);
+  }
+
+  void delivered(int delivered, int failed) {
+    deliveredCount.addAndGet(delivered);
+    failedCount.addAndGet(failed);
+    pendingDeliveries.addAndGet(-(delivered + failed));
+  }
+
+  void completed(long lag) {
+    lastDeliveryLag.set(lag);
+    long max = maxDeliveryLag.get();
+    while (lag > max && !maxDeliveryLag.compareAndSet(max, lag)) {
+      max = maxDeliveryLag.get();
+    }
+  }
+
+  public long getActivityCount() {
+    return activityCount.get();
+  }
+
+  public long getDeliveredCount() {
+    return deliveredCount.get();
+  }
+
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  public long getPendingDeliveries() {
+    return pendingDeliveries.get();
+  }
+
+  public int getQueuedTasks() {
+    return executor.getQueue().size();
+  }
+
+  public long getLastDeliveryLag() {
+    return lastDeliveryLag.get();
+  }
+
+  public long getMaxDeliveryLag() {
+    return maxDeliveryLag.get();
+  }
+}
@@ -0,0 +1,60 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+/**
+ * Management view of the delivery of activities to the activity feeds.
+ */
+public interface ActivityDeliveryStatsMBean {
+
+  /**
+   * @return the number of activity messages received.
+   */
+  long getActivityCount();
+
+  /**
+   * @return the number of feed items written.
+   */
+  long getDeliveredCount();
+
+  /**
+   * @return the number of feed items that could not be written.
+   */
+  long getFailedCount();
+
+  /**
+   * @return the number of feed items routed but not yet written.
+   */
+  long getPendingDeliveries();
+
+  /**
+   * @return the number of delivery tasks waiting for a thread.
+   */
+  int getQueuedTasks();
+
+  /**
+   * @return the time in ms between the activity message being sent and the last of its
+   *         feed items being written, for the most recently completed activity.
+   */
+  long getLastDeliveryLag();
+
+  /**
+   * @return the longest delivery lag in ms seen.
+   */
+  long getMaxDeliveryLag();
+}
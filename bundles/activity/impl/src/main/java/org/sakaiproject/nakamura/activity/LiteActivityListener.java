@@ -23,7 +23,10 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
 
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
@@ -40,8 +43,17 @@ import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Dictionary;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jcr.RepositoryException;
 import javax.jms.Connection;
@@ -50,10 +62,43 @@ import javax.jms.Message;
 import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
 import javax.jms.Topic;
+import javax.management.ObjectName;
 
-@Component(immediate = true)
+/**
+ * Delivers activities to the feeds of their audience. Messages are taken off the activity
+ * topic by a single consumer and handed to a pool of delivery threads, so one activity
+ * with a large audience doesn't hold up the others. The routes of an activity are written
+ * in chunks, each chunk with its own session on a delivery thread.
+ */
+@Component(immediate = true, metatype = true)
+@Properties(value = {
+    @Property(name = LiteActivityListener.DELIVERY_THREADS, intValue = LiteActivityListener.DEFAULT_DELIVERY_THREADS),
+    @Property(name = LiteActivityListener.DELIVERY_BATCH_SIZE, intValue = LiteActivityListener.DEFAULT_DELIVERY_BATCH_SIZE),
+    @Property(name = LiteActivityListener.DELIVERY_QUEUE_SIZE, intValue = LiteActivityListener.DEFAULT_DELIVERY_QUEUE_SIZE)
+})
 public class LiteActivityListener implements MessageListener {
 
+  /**
+   * The number of threads delivering activities concurrently.
+   */
+  static final String DELIVERY_THREADS = "sakai.activity.delivery.threads";
+  static final int DEFAULT_DELIVERY_THREADS = 4;
+
+  /**
+   * The number of feed items written by one delivery task.
+   */
+  static final String DELIVERY_BATCH_SIZE = "sakai.activity.delivery.batchsize";
+  static final int DEFAULT_DELIVERY_BATCH_SIZE = 100;
+
+  /**
+   * The number of delivery tasks that may wait for a thread, once full the JMS consumer
+   * delivers the activity itself, which slows the intake down.
+   */
+  static final String DELIVERY_QUEUE_SIZE = "sakai.activity.delivery.queuesize";
+  static final int DEFAULT_DELIVERY_QUEUE_SIZE = 1000;
+
+  static final String STATS_MBEAN_NAME = "org.sakaiproject.nakamura.activity:type=ActivityDelivery";
+
   // References/properties need for JMS
   @Reference
   protected ConnectionFactoryService connFactoryService;
@@ -69,10 +114,36 @@ public class LiteActivityListener implements MessageListener {
 
   private Connection connection = null;
 
+  private ThreadPoolExecutor executor;
+
+  private ActivityDeliveryStats stats;
+
+  private int batchSize = DEFAULT_DELIVERY_BATCH_SIZE;
+
   /**
-   * Start a JMS connection.
+   * Start the delivery threads and a JMS connection.
    */
   public void activate(ComponentContext componentContext) {
+    Dictionary<?, ?> props = componentContext.getProperties();
+    int threads = PropertiesUtil.toInteger(props.get(DELIVERY_THREADS),
+        DEFAULT_DELIVERY_THREADS);
+    batchSize = Math.max(1, PropertiesUtil.toInteger(props.get(DELIVERY_BATCH_SIZE),
+        DEFAULT_DELIVERY_BATCH_SIZE));
+    int queueSize = PropertiesUtil.toInteger(props.get(DELIVERY_QUEUE_SIZE),
+        DEFAULT_DELIVERY_QUEUE_SIZE);
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "activity-delivery-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    stats = new ActivityDeliveryStats(executor);
+    registerStats();
+
     try {
       connection = connFactoryService.getDefaultConnectionFactory().createConnection();
       javax.jms.Session session = connection.createSession(false,
@@ -93,7 +164,7 @@ public class LiteActivityListener implements MessageListener {
   }
 
   /**
-   * Close the JMS connection
+   * Close the JMS connection and finish the deliveries in progress.
    */
   protected void deactivate(ComponentContext ctx) {
     if (connection != null) {
@@ -103,6 +174,20 @@ public class LiteActivityListener implements MessageListener {
         LOG.error("Cannot close the activity JMS connection.", e);
       }
     }
+    if (executor != null) {
+      executor.shutdown();
+      try {
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+          LOG.warn("Activity deliveries still running at shutdown, {} pending feed items",
+              stats.getPendingDeliveries());
+          executor.shutdownNow();
+        }
+      } catch (InterruptedException e) {
+        executor.shutdownNow();
+        Thread.currentThread().interrupt();
+      }
+    }
+    unregisterStats();
   }
 
   /**
@@ -112,41 +197,157 @@ public class LiteActivityListener implements MessageListener {
    */
   public void onMessage(Message message) {
     try {
+      // the JMS session belongs to the consumer thread, read the message here.
       final String activityItemPath = message
           .getStringProperty(ActivityConstants.EVENT_PROP_PATH);
-      Session session = sparseRepository.loginAdministrative(); 
-      ContentManager contentManager = session.getContentManager();
+      long sent = message.getJMSTimestamp();
+      final long timestamp = sent > 0 ? sent : System.currentTimeMillis();
+      stats.activityReceived();
+      executor.execute(new Runnable() {
+        public void run() {
+          deliverActivity(activityItemPath, timestamp);
+        }
+      });
+    } catch (JMSException e) {
+      LOG.error("Got a JMS exception in the activity listener.", e);
+    }
+  }
+
+  /**
+   * Routes an activity and delivers it to the feeds, the first chunk of routes on this
+   * thread and the rest as separate tasks.
+   *
+   * @param activityItemPath
+   *          the path of the activity.
+   * @param timestamp
+   *          when the activity was sent, to measure the delivery lag.
+   */
+  protected void deliverActivity(String activityItemPath, final long timestamp) {
+    List<ActivityRoute> routes;
+    final String activityName;
+    final Map<String, Object> properties;
+    try {
+      Session session = sparseRepository.loginAdministrative();
       try {
+        ContentManager contentManager = session.getContentManager();
         Content activity = contentManager.get(activityItemPath);
         if (activity == null || !activity.hasProperty(PARAM_ACTOR_ID)) {
           // we must know the actor
           throw new IllegalStateException(
               "Could not determine actor of activity: " + activity);
         }
-  
+
         // Get all the routes for this activity.
-        List<ActivityRoute> routes = activityRouterManager
-            .getActivityRoutes(activity, session);
-  
-        // Copy the activity items to each endpoint.
-        for (ActivityRoute route : routes) {
-          deliverActivityToFeed(session, activity, route.getDestination());
-        }
+        routes = activityRouterManager.getActivityRoutes(activity, session);
+        activityName = StorageClientUtils.getObjectName(activity.getPath());
+        properties = getDeliveryProperties(activity);
       } finally {
-        try { 
-          session.logout(); 
+        try {
+          session.logout();
         } catch ( Exception e) {
           LOG.warn("Failed to logout of administrative session {} ",e.getMessage());
         }
       }
+    } catch (AccessDeniedException e) {
+      LOG.error("Got a repository exception in the activity listener.", e);
+      return;
+    } catch (StorageClientException e) {
+      LOG.error("Got a repository exception in the activity listener.", e);
+      return;
+    } catch (IllegalStateException e) {
+      LOG.error(e.getMessage());
+      return;
+    }
 
-    } catch (JMSException e) {
-      LOG.error("Got a JMS exception in the activity listener.", e);
+    if (routes.isEmpty()) {
+      stats.completed(System.currentTimeMillis() - timestamp);
+      return;
+    }
+    stats.routed(routes.size());
+
+    // Copy the activity items to each endpoint, a chunk of routes at a time.
+    List<List<String>> chunks = new ArrayList<List<String>>();
+    List<String> chunk = null;
+    for (ActivityRoute route : routes) {
+      if (chunk == null || chunk.size() == batchSize) {
+        chunk = new ArrayList<String>(batchSize);
+        chunks.add(chunk);
+      }
+      chunk.add(route.getDestination());
+    }
+    final AtomicInteger remaining = new AtomicInteger(chunks.size());
+    for (int i = 1; i < chunks.size(); i++) {
+      final List<String> feeds = chunks.get(i);
+      executor.execute(new Runnable() {
+        public void run() {
+          deliverChunk(activityName, properties, feeds);
+          if (remaining.decrementAndGet() == 0) {
+            stats.completed(System.currentTimeMillis() - timestamp);
+          }
+        }
+      });
+    }
+    deliverChunk(activityName, properties, chunks.get(0));
+    if (remaining.decrementAndGet() == 0) {
+      stats.completed(System.currentTimeMillis() - timestamp);
+    }
+  }
+
+  /**
+   * Writes the activity to a chunk of feeds with a single session.
+   */
+  private void deliverChunk(String activityName, Map<String, Object> properties,
+      List<String> activityFeedPaths) {
+    int delivered = 0;
+    int failed = 0;
+    Session session = null;
+    try {
+      session = sparseRepository.loginAdministrative();
+      ContentManager contentManager = session.getContentManager();
+      for (String activityFeedPath : activityFeedPaths) {
+        try {
+          deliverActivityToFeed(contentManager, activityName, properties,
+              activityFeedPath);
+          delivered++;
+        } catch (AccessDeniedException e) {
+          failed++;
+          LOG.warn("Unable to deliver activity {} to {}: {}", new Object[] {
+              activityName, activityFeedPath, e.getMessage() });
+        } catch (StorageClientException e) {
+          failed++;
+          LOG.warn("Unable to deliver activity {} to {}: {}", new Object[] {
+              activityName, activityFeedPath, e.getMessage() });
+        }
+      }
     } catch (AccessDeniedException e) {
       LOG.error("Got a repository exception in the activity listener.", e);
     } catch (StorageClientException e) {
       LOG.error("Got a repository exception in the activity listener.", e);
+    } finally {
+      if (session != null) {
+        try {
+          session.logout();
+        } catch ( Exception e) {
+          LOG.warn("Failed to logout of administrative session {} ",e.getMessage());
+        }
+      }
+      stats.delivered(delivered, activityFeedPaths.size() - delivered);
+    }
+  }
+
+  /**
+   * @return the properties of a delivered copy of the activity.
+   */
+  private Map<String, Object> getDeliveryProperties(Content activity) {
+    Builder<String, Object> contentProperties = ImmutableMap.builder();
+    for ( Entry<String, Object> e : activity.getProperties().entrySet()) {
+      if (!JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY.equals(e.getKey())) {
+        contentProperties.put(e.getKey(), e.getValue());
+      }
     }
+    contentProperties.put(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+        ActivityConstants.ACTIVITY_ITEM_RESOURCE_TYPE);
+    return contentProperties.build();
   }
 
   /**
@@ -164,20 +365,38 @@ public class LiteActivityListener implements MessageListener {
    */
   protected void deliverActivityToFeed(Session session, Content activity,
       String activityFeedPath) throws AccessDeniedException, StorageClientException {
-    // ensure the activityFeed node with the proper type
-    ContentManager contentManager = session.getContentManager();
-    String deliveryPath = StorageClientUtils
-        .newPath(activityFeedPath, StorageClientUtils.getObjectName(activity.getPath()));
-    Builder<String, Object> contentProperties = ImmutableMap.builder();
-    for ( Entry<String, Object> e : activity.getProperties().entrySet()) {
-      if (!JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY.equals(e.getKey())) {
-        contentProperties.put(e.getKey(), e.getValue());
-      }
+    deliverActivityToFeed(session.getContentManager(),
+        StorageClientUtils.getObjectName(activity.getPath()),
+        getDeliveryProperties(activity), activityFeedPath);
+  }
+
+  private void deliverActivityToFeed(ContentManager contentManager, String activityName,
+      Map<String, Object> properties, String activityFeedPath)
+      throws AccessDeniedException, StorageClientException {
+    String deliveryPath = StorageClientUtils.newPath(activityFeedPath, activityName);
+    contentManager.update(new Content(deliveryPath, properties));
+  }
+
+  ActivityDeliveryStats getStats() {
+    return stats;
+  }
+
+  private void registerStats() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(stats,
+          new ObjectName(STATS_MBEAN_NAME));
+    } catch (Exception e) {
+      LOG.warn("Unable to register activity delivery statistics: {} ", e.getMessage());
+    }
+  }
+
+  private void unregisterStats() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+          new ObjectName(STATS_MBEAN_NAME));
+    } catch (Exception e) {
+      LOG.debug("Unable to unregister activity delivery statistics: {} ", e.getMessage());
     }
-    contentProperties.put(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
-        ActivityConstants.ACTIVITY_ITEM_RESOURCE_TYPE);
-    Content content = new Content(deliveryPath, contentProperties.build());
-    contentManager.update(content);
   }
 
 }
@@ -26,6 +26,7 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.solr.client.solrj.response.FacetField;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
 import org.sakaiproject.nakamura.api.lite.Session;
@@ -33,6 +34,7 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.personal.PersonalTrackingStore;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
@@ -44,11 +46,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 
 @Component(immediate = true, label = "MostActiveContentSearchBatchResultProcessor", description = "Formatter for most active content")
 @Service(value = SolrSearchBatchResultProcessor.class)
@@ -63,9 +66,28 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
   private static final Logger LOG = LoggerFactory
       .getLogger(LiteMostActiveContentSearchBatchResultProcessor.class);
 
+  static final String RESOURCE_TYPE = "content";
+
+  static final SolrSearchResultSet EMPTY_RESULT_SET = new SolrSearchResultSet() {
+    public Iterator<Result> getResultSetIterator() {
+      return Collections.<Result> emptyList().iterator();
+    }
+
+    public long getSize() {
+      return 0;
+    }
+
+    public List<FacetField> getFacetFields() {
+      return null;
+    }
+  };
+
   @Reference
   private SolrSearchServiceFactory searchServiceFactory;
 
+  @Reference
+  private PersonalTrackingStore trackingStore;
+
   /**
    * 
    * {@inheritDoc}
@@ -75,44 +97,15 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
    */
   public void writeResults(SlingHttpServletRequest request, JSONWriter write,
       Iterator<Result> iterator) throws JSONException {
-    final Map<String, ResourceActivity> resources = new HashMap<String, ResourceActivity>();
     final Session session = StorageClientUtils.adaptToSession(request
         .getResourceResolver().adaptTo(javax.jcr.Session.class));
 
-    // count all the activity
-    LOG.debug("Computing the most active content feed.");
-    while (iterator.hasNext()) {
-      try {
-        final Result result = iterator.next();
-        final String path = result.getPath();
-        final Content node = session.getContentManager().get(path);
-        if (node != null) {
-          final String resourceId = (String) node.getProperty("resourceId");
-          if (!resources.containsKey(resourceId)) {
-            final Content resourceNode = session.getContentManager().get(resourceId);
-            if (resourceNode == null) {
-              // this can happen if this content is no longer public
-              continue;
-            }
-            final String resourceName = (String) resourceNode
-                .getProperty(FilesConstants.POOLED_CONTENT_FILENAME);
-            resources.put(resourceId, new ResourceActivity(resourceId, 0, resourceName,
-                (Long) resourceNode.getProperty(FilesConstants.LAST_MODIFIED)));
-          }
-          // increment the count for this particular resource.
-          resources.get(resourceId).activityScore++;
-        }
-      } catch (StorageClientException e) {
-        // if something is wrong with this particular resourceNode,
-        // we don't let it wreck the whole feed
-        continue;
-      } catch (AccessDeniedException e) {
-        // if something is wrong with this particular resourceNode,
-        // we don't let it wreck the whole feed
-        continue;
-      }
-    }
-    
+    // the ranking is kept up to date by the tracking store, so there is no activity to count
+    LOG.debug("Reading the most active content feed.");
+    final Calendar then = Calendar.getInstance();
+    then.setTimeInMillis(MostActiveContentPropertyProvider.deriveThen(request));
+    final Map<String, Long> ranking = trackingStore.getMostActive(RESOURCE_TYPE, then, 0);
+
     // KERN-1724 determine how many content items the current user can read
     long totalCanRead = 0L;
     try {
@@ -128,15 +121,11 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
       LOG.error(e.getLocalizedMessage(), e);
     }
 
-    // write the most-used content to the JSONWriter
-    final List<ResourceActivity> resourceActivities = new ArrayList<ResourceActivity>(
-        resources.values());
-    Collections.sort(resourceActivities, Collections.reverseOrder());
     write.object();
     write.key("totalCanRead");
     write.value(totalCanRead);
     write.key(SolrSearchConstants.TOTAL);
-    write.value(resources.size());
+    write.value(ranking.size());
     final RequestParameter startpageP = request.getRequestParameter(STARTPAGE_PARAM);
     int startpage = (startpageP != null) ? Integer.valueOf(startpageP.getString()) : 1;
     startpage = (startpage < 1) ? 1 : startpage;
@@ -149,22 +138,54 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
     write.key(NUMITEMS_PARAM);
     write.value(numitems);
     final int beginPosition = (startpage * numitems) - numitems;
+
+    // only the content up to the end of the requested page has to be looked at, skipping
+    // whatever this user can't read
+    final List<ResourceActivity> resourceActivities = new ArrayList<ResourceActivity>();
+    int position = 0;
+    for (Entry<String, Long> ranked : ranking.entrySet()) {
+      if (resourceActivities.size() >= numitems) {
+        break;
+      }
+      final String resourceId = ranked.getKey();
+      try {
+        final Content resourceNode = session.getContentManager().get(resourceId);
+        if (resourceNode == null) {
+          // this can happen if this content is no longer public
+          continue;
+        }
+        if (position++ < beginPosition) {
+          continue;
+        }
+        final String resourceName = (String) resourceNode
+            .getProperty(FilesConstants.POOLED_CONTENT_FILENAME);
+        final Object lastModified = resourceNode.getProperty(FilesConstants.LAST_MODIFIED);
+        resourceActivities.add(new ResourceActivity(resourceId, ranked.getValue()
+            .intValue(), resourceName, (lastModified instanceof Long) ? (Long) lastModified
+            : 0L));
+      } catch (StorageClientException e) {
+        // if something is wrong with this particular resourceNode,
+        // we don't let it wreck the whole feed
+        continue;
+      } catch (AccessDeniedException e) {
+        // if something is wrong with this particular resourceNode,
+        // we don't let it wreck the whole feed
+        continue;
+      }
+    }
+
+    // write the most-used content to the JSONWriter
     write.key("content");
     write.array();
-    if (beginPosition < resourceActivities.size()) {
-      int count = 0;
-      for (int i = beginPosition; i < resourceActivities.size() && count < numitems; i++) {
-        final ResourceActivity resourceActivity = resourceActivities.get(i);
-        write.object();
-        write.key("id");
-        write.value(resourceActivity.id);
-        write.key("name");
-        write.value(resourceActivity.name);
-        write.key("count");
-        write.value(Long.valueOf(resourceActivity.activityScore));
-        write.endObject();
-        count++;
-      }
+    for (ResourceActivity resourceActivity : resourceActivities) {
+      write.object();
+      write.key("id");
+      write.value(resourceActivity.id);
+      write.key("name");
+      write.value(resourceActivity.name);
+      write.key("count");
+      write.value(Long.valueOf(resourceActivity.activityScore));
+      write.endObject();
     }
     write.endArray();
     write.endObject();
@@ -244,8 +265,8 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
    */
   public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request,
       Query query) throws SolrSearchException {
-
-    return searchServiceFactory.getSearchResultSet(request, query);
+    // the feed is written from the tracking store's ranking, not from activity hits
+    return EMPTY_RESULT_SET;
   }
 
 }
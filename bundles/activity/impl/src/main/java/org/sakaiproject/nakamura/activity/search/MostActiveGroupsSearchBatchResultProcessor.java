@@ -24,8 +24,6 @@ import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.request.RequestParameter;
-import org.apache.sling.api.resource.Resource;
-import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
@@ -33,6 +31,7 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.personal.PersonalTrackingStore;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
@@ -46,11 +45,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Calendar;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 
 @Component(immediate = true, label = "MostActiveGroupSearchBatchResultProcessor", description = "Formatter for most active groups")
 @Service
@@ -65,9 +64,14 @@ public class MostActiveGroupsSearchBatchResultProcessor implements
   private static final Logger LOG = LoggerFactory
       .getLogger(MostActiveGroupsSearchBatchResultProcessor.class);
 
+  static final String RESOURCE_TYPE = "group";
+
   @Reference
   private SolrSearchServiceFactory searchServiceFactory;
 
+  @Reference
+  private PersonalTrackingStore trackingStore;
+
   /**
    * {@inheritDoc}
    * 
@@ -76,61 +80,13 @@ public class MostActiveGroupsSearchBatchResultProcessor implements
    */
   public void writeResults(SlingHttpServletRequest request, JSONWriter write,
       Iterator<Result> results) throws JSONException {
-    final Map<String, ResourceActivity> resources = new HashMap<String, ResourceActivity>();
-    final ResourceResolver resolver = request.getResourceResolver();
     final Session session = StorageClientUtils.adaptToSession(request
         .getResourceResolver().adaptTo(javax.jcr.Session.class));
-    while (results.hasNext()) {
-      final Result result = results.next();
-      final String path = result.getPath();
-      final Resource resource = resolver.getResource(path);
-      final Content content = resource.adaptTo(Content.class);
-      if (content != null) {
-        final String resourceId = (String) content.getProperty("resourceId");
-        if (!resources.containsKey(resourceId)) {
-          final String resourcePath = LitePersonalUtils.getProfilePath(resourceId);
-          Content resourceContent = null;
-          try {
-            resourceContent = session.getContentManager().get(resourcePath);
-          } catch (Exception e) {
-            // this happens if the group is not public
-            // or if the group path simply doesn't exist
-            continue;
-          }
 
-          // KERN-2125 determine if group should be excluded from search results
-          Authorizable authorizable = null;
-          try {
-            authorizable = session.getAuthorizableManager().findAuthorizable(resourceId);
-            // allow for not being able to find the authorizable for the group
-            if (authorizable == null) {
-              LOG.info("null authorizable found for group " + resourceId + ", group has been exclude from search results");
-              continue;
-            }
-          } catch (Exception e) {
-            // allow for not being able to find the authorizable for the group
-            LOG.info("no authorizable found for group " + resourceId + ", group has been exclude from search results",e);
-            continue;
-          }
-          if (authorizable != null) {
-            if (authorizable.hasProperty(UserConstants.SAKAI_EXCLUDE)) {
-              if (Boolean.parseBoolean(String.valueOf(authorizable.getProperty(UserConstants.SAKAI_EXCLUDE)))) {
-                // don't include groups in search results where property sakai:excludeSearch=true
-                LOG.debug("group {} has been excluded from search results because sakai:excludeSearch=true",resourceId);
-                continue;
-              }
-            }
-          }
-
-          final String resourceName = (String) resourceContent
-              .getProperty("sakai:group-title");
-          resources.put(resourceId, new ResourceActivity(resourceId, 0, resourceName,
-              (Long) resourceContent.getProperty(FilesConstants.LAST_MODIFIED)));
-        }
-        // increment the count for this particular resource.
-        resources.get(resourceId).activityScore++;
-      }
-    }
+    // the ranking is kept up to date by the tracking store, so there is no activity to count
+    final Calendar then = Calendar.getInstance();
+    then.setTimeInMillis(MostActiveContentPropertyProvider.deriveThen(request));
+    final Map<String, Long> ranking = trackingStore.getMostActive(RESOURCE_TYPE, then, 0);
 
     // KERN-1724 determine how many content items the current user can read
     long totalCanRead = 0L;
@@ -146,15 +102,11 @@ public class MostActiveGroupsSearchBatchResultProcessor implements
       LOG.error(e.getLocalizedMessage(), e);
     }
 
-    // write the most-used content to the JSONWriter
-    final List<ResourceActivity> resourceActivities = new ArrayList<ResourceActivity>(
-        resources.values());
-    Collections.sort(resourceActivities, Collections.reverseOrder());
     write.object();
     write.key("totalCanRead");
     write.value(totalCanRead);
     write.key(SolrSearchConstants.TOTAL);
-    write.value(resourceActivities.size());
+    write.value(ranking.size());
     final RequestParameter startpageP = request.getRequestParameter(STARTPAGE_PARAM);
     int startpage = (startpageP != null) ? Integer.valueOf(startpageP.getString()) : 1;
     startpage = (startpage < 1) ? 1 : startpage;
@@ -167,22 +119,73 @@ public class MostActiveGroupsSearchBatchResultProcessor implements
     write.key(NUMITEMS_PARAM);
     write.value(numitems);
     final int beginPosition = (startpage * numitems) - numitems;
+
+    // only the groups up to the end of the requested page have to be looked at, skipping
+    // whatever this user can't see
+    final List<ResourceActivity> resourceActivities = new ArrayList<ResourceActivity>();
+    int position = 0;
+    for (Entry<String, Long> ranked : ranking.entrySet()) {
+      if (resourceActivities.size() >= numitems) {
+        break;
+      }
+      final String resourceId = ranked.getKey();
+      final String resourcePath = LitePersonalUtils.getProfilePath(resourceId);
+      Content resourceContent = null;
+      try {
+        resourceContent = session.getContentManager().get(resourcePath);
+      } catch (Exception e) {
+        // this happens if the group is not public
+        continue;
+      }
+      if (resourceContent == null) {
+        // or if the group path simply doesn't exist
+        continue;
+      }
+
+      // KERN-2125 determine if group should be excluded from search results
+      Authorizable authorizable = null;
+      try {
+        authorizable = session.getAuthorizableManager().findAuthorizable(resourceId);
+        // allow for not being able to find the authorizable for the group
+        if (authorizable == null) {
+          LOG.info("null authorizable found for group " + resourceId + ", group has been exclude from search results");
+          continue;
+        }
+      } catch (Exception e) {
+        // allow for not being able to find the authorizable for the group
+        LOG.info("no authorizable found for group " + resourceId + ", group has been exclude from search results",e);
+        continue;
+      }
+      if (authorizable.hasProperty(UserConstants.SAKAI_EXCLUDE)) {
+        if (Boolean.parseBoolean(String.valueOf(authorizable.getProperty(UserConstants.SAKAI_EXCLUDE)))) {
+          // don't include groups in search results where property sakai:excludeSearch=true
+          LOG.debug("group {} has been excluded from search results because sakai:excludeSearch=true",resourceId);
+          continue;
+        }
+      }
+      if (position++ < beginPosition) {
+        continue;
+      }
+
+      final String resourceName = (String) resourceContent
+          .getProperty("sakai:group-title");
+      final Object lastModified = resourceContent.getProperty(FilesConstants.LAST_MODIFIED);
+      resourceActivities.add(new ResourceActivity(resourceId, ranked.getValue().intValue(),
+          resourceName, (lastModified instanceof Long) ? (Long) lastModified : 0L));
+    }
+
+    // write the most active groups to the JSONWriter
     write.key("groups");
     write.array();
-    if (beginPosition < resourceActivities.size()) {
-      int count = 0;
-      for (int i = beginPosition; i < resourceActivities.size() && count < numitems; i++) {
-        final ResourceActivity resourceActivity = resourceActivities.get(i);
-        write.object();
-        write.key("id");
-        write.value(resourceActivity.id);
-        write.key("name");
-        write.value(resourceActivity.name);
-        write.key("count");
-        write.value(Long.valueOf(resourceActivity.activityScore));
-        write.endObject();
-        count++;
-      }
+    for (ResourceActivity resourceActivity : resourceActivities) {
+      write.object();
+      write.key("id");
+      write.value(resourceActivity.id);
+      write.key("name");
+      write.value(resourceActivity.name);
+      write.key("count");
+      write.value(Long.valueOf(resourceActivity.activityScore));
+      write.endObject();
     }
     write.endArray();
     write.endObject();
@@ -196,8 +199,8 @@ public class MostActiveGroupsSearchBatchResultProcessor implements
    */
   public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request,
       Query query) throws SolrSearchException {
-    // Return the result set.
-    return searchServiceFactory.getSearchResultSet(request, query);
+    // the feed is written from the tracking store's ranking, not from activity hits
+    return LiteMostActiveContentSearchBatchResultProcessor.EMPTY_RESULT_SET;
   }
 
   public class ResourceActivity implements Comparable<ResourceActivity> {
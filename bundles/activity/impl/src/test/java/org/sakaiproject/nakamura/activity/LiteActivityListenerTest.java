@@ -0,0 +1,122 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityRoute;
+import org.sakaiproject.nakamura.api.activity.ActivityRouterManager;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+public class LiteActivityListenerTest {
+
+  private Repository repository;
+  private LiteActivityListener listener;
+  private ActivityRouterManager activityRouterManager;
+
+  @Before
+  public void setup() throws Exception {
+    repository = new BaseMemoryRepository().getRepository();
+    activityRouterManager = mock(ActivityRouterManager.class);
+
+    listener = new LiteActivityListener();
+    listener.sparseRepository = repository;
+    listener.activityRouterManager = activityRouterManager;
+    listener.connFactoryService = mock(ConnectionFactoryService.class, RETURNS_DEEP_STUBS);
+
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(LiteActivityListener.DELIVERY_THREADS, 2);
+    props.put(LiteActivityListener.DELIVERY_BATCH_SIZE, 10);
+    ComponentContext componentContext = mock(ComponentContext.class);
+    when(componentContext.getProperties()).thenReturn(props);
+    listener.activate(componentContext);
+  }
+
+  @Test
+  public void deliversToEveryRouteInChunks() throws Exception {
+    Session session = repository.loginAdministrative();
+    ContentManager contentManager = session.getContentManager();
+    contentManager.update(new Content("/activities/a1", ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/activity",
+        ActivityConstants.PARAM_ACTOR_ID, "alice")));
+    List<ActivityRoute> routes = new ArrayList<ActivityRoute>();
+    for (int i = 0; i < 25; i++) {
+      routes.add(route("/feeds/user" + i));
+    }
+    when(activityRouterManager.getActivityRoutes(Matchers.any(Content.class),
+        Matchers.any(Session.class))).thenReturn(routes);
+
+    listener.deliverActivity("/activities/a1", System.currentTimeMillis());
+    // waits for the remaining chunks to be written.
+    listener.deactivate(null);
+
+    for (int i = 0; i < 25; i++) {
+      Content delivered = contentManager.get("/feeds/user" + i + "/a1");
+      assertEquals(ActivityConstants.ACTIVITY_ITEM_RESOURCE_TYPE,
+          delivered.getProperty("sling:resourceType"));
+      assertEquals("alice", delivered.getProperty(ActivityConstants.PARAM_ACTOR_ID));
+    }
+    ActivityDeliveryStats stats = listener.getStats();
+    assertEquals(25, stats.getDeliveredCount());
+    assertEquals(0, stats.getFailedCount());
+    assertEquals(0, stats.getPendingDeliveries());
+    assertTrue(stats.getLastDeliveryLag() >= 0);
+    session.logout();
+  }
+
+  @Test
+  public void skipsActivityWithoutActor() throws Exception {
+    Session session = repository.loginAdministrative();
+    session.getContentManager().update(new Content("/activities/a2",
+        ImmutableMap.of("sling:resourceType", (Object) "sakai/activity")));
+    session.logout();
+
+    listener.deliverActivity("/activities/a2", System.currentTimeMillis());
+    listener.deactivate(null);
+
+    assertEquals(0, listener.getStats().getDeliveredCount());
+  }
+
+  private ActivityRoute route(final String destination) {
+    return new ActivityRoute() {
+      public String getDestination() {
+        return destination;
+      }
+    };
+  }
+}
@@ -25,6 +25,8 @@ import org.sakaiproject.nakamura.api.lite.content.Content;
 
 import java.io.InputStream;
 import java.io.Reader;
+import java.io.Writer;
+import java.util.Date;
 
 /**
  * A service that allows one to fetch and store calendars.
@@ -63,6 +65,30 @@ public interface LiteCalendarService {
    */
   Calendar export(Session session, Content node, String[] types) throws CalendarException;
 
+  /**
+   * Writes the iCalendar representation of a {@link Content node} straight to a
+   * {@link Writer writer}. Unlike {@link #export(Session, Content, String[])} no
+   * {@link Calendar calendar} object graph is built; each matching subnode is written as
+   * soon as it is visited, so memory use does not grow with the size of the calendar.
+   *
+   * @param session
+   * @param node
+   *          The content that is a parent of all the underlying event nodes.
+   * @param types
+   *          An array of Strings that should be used to match the subnodes. eg: valarm,
+   *          vavailability, vevent, .. {@see Component Component}
+   * @param rangeStart
+   *          If not null, components that end before this date are skipped.
+   * @param rangeEnd
+   *          If not null, components that start on or after this date are skipped.
+   * @param writer
+   *          The writer the iCalendar data should be written to.
+   * @throws CalendarException
+   *           Failed to export a Sparse representation to a valid Calendar representation.
+   */
+  void export(Session session, Content node, String[] types, Date rangeStart,
+      Date rangeEnd, Writer writer) throws CalendarException;
+
   /**
    * Creates a Sparse based representation of a {@link Calendar calendar}.
    *
@@ -117,7 +143,8 @@ public interface LiteCalendarService {
 
   /**
    * Creates a Sparse based representation from the specified {@link InputStream input
-   * stream}.
+   * stream}. The stream is parsed incrementally and components are stored in batches as
+   * they are read, the full calendar is never held in memory.
    *
    * @param calendar
    *          The calendar to create in Sparse {@link Content nodes}.
@@ -144,7 +171,8 @@ public interface LiteCalendarService {
   Content store(InputStream calendar, Session session, String path) throws CalendarException;
 
   /**
-   * Creates a JCR based representation from the specified {@link Reader reader}.
+   * Creates a JCR based representation from the specified {@link Reader reader}. The
+   * reader is parsed incrementally and components are stored in batches as they are read.
    *
    * @param calendar
    *          The calendar to create in storage {@link Content nodes}.
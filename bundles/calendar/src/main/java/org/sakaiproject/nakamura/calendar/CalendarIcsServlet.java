@@ -17,10 +17,7 @@
  */
 package org.sakaiproject.nakamura.calendar;
 
-import net.fortuna.ical4j.data.CalendarOutputter;
-import net.fortuna.ical4j.model.Calendar;
 import net.fortuna.ical4j.model.Component;
-import net.fortuna.ical4j.model.ValidationException;
 
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
@@ -28,6 +25,7 @@ import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.sakaiproject.nakamura.api.calendar.CalendarException;
@@ -37,12 +35,16 @@ import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceExtension;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
+import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 
 import javax.servlet.ServletException;
 
@@ -63,10 +65,16 @@ import javax.servlet.ServletException;
                 "This servlet will generate the underlying JCR node structure into a valid iCal format.",
                 "If no selector is specified it will output components of type VEvent.",
                 "More components can be looked for by adding in the type as a selector.",
-                "eg: http://localhost:8080/path/to/calendar.vevent.vtodo.vjournal.ics"
+                "eg: http://localhost:8080/path/to/calendar.vevent.vtodo.vjournal.ics",
+                "Components are written as they are read from the content tree, so large calendars are streamed."
+            },
+            parameters = {
+                @ServiceParameter(name = "start", description = "Optional. Only output components that end after this day. Format: yyyyMMdd"),
+                @ServiceParameter(name = "end", description = "Optional. Only output components that start before this day. Format: yyyyMMdd")
             },
             response = {
                 @ServiceResponse(code = 200, description = "Generates a calendar feed of the underlying JCR node structure."),
+                @ServiceResponse(code = 400, description = "The start or end parameter could not be parsed."),
                 @ServiceResponse(code = 500, description = "Something went wrong trying the serialize the underlying node structure, the failure is placed in the HTML.")
             }
         ) 
@@ -87,6 +95,8 @@ public class CalendarIcsServlet extends SlingSafeMethodsServlet {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CalendarIcsServlet.class);
 
+  protected static final String START_DAY_PARAM = "start";
+  protected static final String END_DAY_PARAM = "end";
 
   @Reference
   protected transient LiteCalendarService liteCalendarService;
@@ -101,32 +111,51 @@ public class CalendarIcsServlet extends SlingSafeMethodsServlet {
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
     
-    response.setContentType("text/calendar");
-    response.setCharacterEncoding("UTF-8");
+    Date rangeStart;
+    Date rangeEnd;
+    try {
+      rangeStart = getDay(request, START_DAY_PARAM);
+      rangeEnd = getDay(request, END_DAY_PARAM);
+    } catch (ParseException e) {
+      response.sendError(400, "The start and end parameters should be formatted as yyyyMMdd");
+      return;
+    }
 
     String[] types = getSelectors(request);
     Resource resource = request.getResource();
     try {
       Content content = resource.adaptTo(Content.class);
       if (content != null) {
-        // Construct the Calendar from the content tree.
-        Calendar iCal = liteCalendarService.export(null, content, types);
-        // Output the calendar, we don't do any validation.
-        CalendarOutputter outputter = new CalendarOutputter(false);
-        outputter.output(iCal, response.getOutputStream());
+        response.setContentType("text/calendar");
+        response.setCharacterEncoding("UTF-8");
+        // Stream the calendar from the content tree, we don't do any validation.
+        liteCalendarService.export(null, content, types, rangeStart, rangeEnd,
+            response.getWriter());
       } else {
         response.sendError(404);
       }
     } catch (CalendarException e) {
       LOGGER.warn(e.getMessage(),e);
       response.sendError(e.getCode(), e.getMessage());
-    } catch (ValidationException e) {
-      LOGGER.warn(e.getMessage(),e);
-      response.sendError(500, "Failed to output proper ical.");
     }
 
   }
 
+  /**
+   * @param request
+   * @param name
+   * @return The day in the named request parameter or null if it was not supplied.
+   * @throws ParseException
+   */
+  protected Date getDay(SlingHttpServletRequest request, String name)
+      throws ParseException {
+    RequestParameter param = request.getRequestParameter(name);
+    if (param == null || param.getString().length() == 0) {
+      return null;
+    }
+    return new SimpleDateFormat("yyyyMMdd").parse(param.getString());
+  }
+
   /**
    * @param request
    * @return
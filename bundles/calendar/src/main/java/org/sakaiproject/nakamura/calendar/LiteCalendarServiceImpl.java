@@ -26,10 +26,18 @@ import static org.sakaiproject.nakamura.api.calendar.CalendarConstants.SIGNUP_NO
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Sets;
 
-import net.fortuna.ical4j.data.CalendarBuilder;
+import net.fortuna.ical4j.data.CalendarParserImpl;
+import net.fortuna.ical4j.data.ContentHandler;
+import net.fortuna.ical4j.data.FoldingWriter;
 import net.fortuna.ical4j.data.ParserException;
+import net.fortuna.ical4j.data.UnfoldingReader;
 import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.ComponentFactory;
 import net.fortuna.ical4j.model.Date;
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Escapable;
+import net.fortuna.ical4j.model.ParameterFactoryImpl;
 import net.fortuna.ical4j.model.Property;
 import net.fortuna.ical4j.model.PropertyFactory;
 import net.fortuna.ical4j.model.PropertyFactoryImpl;
@@ -38,6 +46,8 @@ import net.fortuna.ical4j.model.component.CalendarComponent;
 import net.fortuna.ical4j.model.component.VEvent;
 import net.fortuna.ical4j.model.property.Clazz;
 import net.fortuna.ical4j.model.property.DateProperty;
+import net.fortuna.ical4j.util.Constants;
+import net.fortuna.ical4j.util.Strings;
 
 import org.apache.felix.scr.annotations.Service;
 import org.sakaiproject.nakamura.api.calendar.CalendarException;
@@ -61,7 +71,9 @@ import org.slf4j.LoggerFactory;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.Writer;
 import java.net.URISyntaxException;
 import java.text.ParseException;
 import java.util.ArrayList;
@@ -81,6 +93,12 @@ import java.util.Set;
 public class LiteCalendarServiceImpl implements LiteCalendarService {
   public static final Logger LOGGER = LoggerFactory.getLogger(LiteCalendarServiceImpl.class);
 
+  /**
+   * The number of parsed components that are held in memory before they are written to
+   * storage when streaming a calendar in.
+   */
+  static final int STORE_BATCH_SIZE = 100;
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.calendar.LiteCalendarService#export(Session, org.sakaiproject.nakamura.api.lite.content.Content)
@@ -94,24 +112,24 @@ public class LiteCalendarServiceImpl implements LiteCalendarService {
    * @see org.sakaiproject.nakamura.api.calendar.LiteCalendarService#export(Session, org.sakaiproject.nakamura.api.lite.content.Content, java.lang.String[])
    */
   public Calendar export(Session session, Content node, String[] types) throws CalendarException {
-    // Translate input type strings (e.g., "VEVENT") into Sling resource types
-    // (e.g., "sakai/calendar-vevent").
-    Set<String> wantedResourceTypes = Sets.newHashSetWithExpectedSize(types.length);
-    for (String type : types) {
-      wantedResourceTypes.add(SAKAI_CALENDAR_RT + "-" + type.toLowerCase());
-    }
-
     // Start constructing the iCal Calendar.
-    Calendar calendar = new Calendar();
+    final Calendar calendar = new Calendar();
     PropertyFactory propFactory = PropertyFactoryImpl.getInstance();
     try {
       // Add any Calendar properties.
       addNodePropertiesToCal(node, calendar.getProperties(), propFactory);
 
       // Traverse the tree.
+      Set<String> wantedResourceTypes = getWantedResourceTypes(types);
       Iterable<Content> children = node.listChildren();
       for (Content childContent : children) {
-        recurseForEvents(childContent, calendar, propFactory, wantedResourceTypes);
+        recurseForEvents(childContent, propFactory, wantedResourceTypes, null, null,
+            new EventHandler() {
+              @SuppressWarnings("unchecked")
+              public void handle(VEvent event) {
+                calendar.getComponents().add(event);
+              }
+            });
       }
     } catch (IOException e) {
       LOGGER.error("Caught an IOException when trying to export a calendar", e);
@@ -127,6 +145,49 @@ public class LiteCalendarServiceImpl implements LiteCalendarService {
     return calendar;
   }
 
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.calendar.LiteCalendarService#export(org.sakaiproject.nakamura.api.lite.Session, org.sakaiproject.nakamura.api.lite.content.Content, java.lang.String[], java.util.Date, java.util.Date, java.io.Writer)
+   */
+  public void export(Session session, Content node, String[] types,
+      java.util.Date rangeStart, java.util.Date rangeEnd, Writer writer)
+      throws CalendarException {
+    // This mirrors what Calendar.toString() produces, but components are written one at
+    // a time instead of being collected in a ComponentList first.
+    final FoldingWriter out = new FoldingWriter(writer);
+    PropertyFactory propFactory = PropertyFactoryImpl.getInstance();
+    try {
+      out.write(Calendar.BEGIN + ":" + Calendar.VCALENDAR + Strings.LINE_SEPARATOR);
+
+      PropertyList calendarProperties = new PropertyList();
+      addNodePropertiesToCal(node, calendarProperties, propFactory);
+      out.write(calendarProperties.toString());
+
+      Set<String> wantedResourceTypes = getWantedResourceTypes(types);
+      Iterable<Content> children = node.listChildren();
+      for (Content childContent : children) {
+        recurseForEvents(childContent, propFactory, wantedResourceTypes, rangeStart,
+            rangeEnd, new EventHandler() {
+              public void handle(VEvent event) throws IOException {
+                out.write(event.toString());
+              }
+            });
+      }
+
+      out.write(Calendar.END + ":" + Calendar.VCALENDAR + Strings.LINE_SEPARATOR);
+      out.flush();
+    } catch (IOException e) {
+      LOGGER.error("Caught an IOException when trying to export a calendar", e);
+      throw new CalendarException(500, e.getMessage());
+    } catch (URISyntaxException e) {
+      LOGGER.error("Caught a URISyntaxException when trying to export a calendar", e);
+      throw new CalendarException(500, e.getMessage());
+    } catch (ParseException e) {
+      LOGGER.error("Caught a ParseException when trying to export a calendar", e);
+      throw new CalendarException(500, e.getMessage());
+    }
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.calendar.LiteCalendarService#store(net.fortuna.ical4j.model.Calendar, org.sakaiproject.nakamura.api.lite.Session, java.lang.String)
@@ -182,18 +243,12 @@ public class LiteCalendarServiceImpl implements LiteCalendarService {
    */
   public Content store(InputStream calendar, Session session, String path)
       throws CalendarException {
-    CalendarBuilder builder = new CalendarBuilder();
     try {
-      Calendar inputCalendar = builder.build(calendar);
-      return store(inputCalendar, session, path);
+      return store(new InputStreamReader(calendar, "UTF-8"), session, path);
     } catch (IOException e) {
       LOGGER.error(
           "Caught an IOException when trying to store a Calendar (InputStream).", e);
       throw new CalendarException(500, e.getMessage());
-    } catch (ParserException e) {
-      LOGGER.error(
-          "Caught a ParserException when trying to store a Calendar (InputStream).", e);
-      throw new CalendarException(500, e.getMessage());
     }
   }
 
@@ -203,21 +258,38 @@ public class LiteCalendarServiceImpl implements LiteCalendarService {
    */
   public Content store(Reader calendar, Session session, String path)
       throws CalendarException {
-    CalendarBuilder builder = new CalendarBuilder();
+    StreamingStoreHandler handler = new StreamingStoreHandler(session, path);
     try {
-      Calendar inputCalendar = builder.build(calendar);
-      return store(inputCalendar, session, path);
+      new CalendarParserImpl().parse(new UnfoldingReader(calendar), handler);
+      return session.getContentManager().get(path);
     } catch (IOException e) {
       LOGGER.error(
-          "Caught an IOException when trying to store a Calendar (InputStream).", e);
+          "Caught an IOException when trying to store a Calendar (Reader).", e);
       throw new CalendarException(500, e.getMessage());
     } catch (ParserException e) {
+      if (e.getCause() instanceof StoreFailure) {
+        throw unwrapStoreFailure((StoreFailure) e.getCause());
+      }
       LOGGER.error(
-          "Caught a ParserException when trying to store a Calendar (InputStream).", e);
+          "Caught a ParserException when trying to store a Calendar (Reader).", e);
+      throw new CalendarException(500, e.getMessage());
+    } catch (StoreFailure e) {
+      throw unwrapStoreFailure(e);
+    } catch (StorageClientException e) {
+      LOGGER.error("Caught StorageClientException when trying to store a calendar", e);
+      throw new CalendarException(500, e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.error("Caught AccessDeniedException when trying to store a calendar", e);
       throw new CalendarException(500, e.getMessage());
     }
   }
 
+  private CalendarException unwrapStoreFailure(StoreFailure e) {
+    LOGGER.error("Caught " + e.getCause().getClass().getSimpleName()
+        + " when trying to store a calendar", e.getCause());
+    return new CalendarException(500, e.getCause().getMessage());
+  }
+
   private void storeEvent(Content calendarNode, CalendarComponent component, Session session)
       throws AccessDeniedException, StorageClientException {
     // Get the start date.
@@ -253,7 +325,7 @@ public class LiteCalendarServiceImpl implements LiteCalendarService {
       throws StorageClientException, AccessDeniedException {
     if (component.getProperty(Clazz.CLASS) != null) {
       Clazz c = (Clazz) component.getProperty(Clazz.CLASS);
-      if (c == Clazz.PRIVATE) {
+      if (Clazz.PRIVATE.equals(c)) {
         List<AclModification> aclModifications = new ArrayList<AclModification>();
 
         // Grant access to the current user.
@@ -270,25 +342,85 @@ public class LiteCalendarServiceImpl implements LiteCalendarService {
     }
   }
 
-  private void recurseForEvents(Content node, Calendar calendar, PropertyFactory propFactory,
-      Set<String> wantedResourceTypes) throws IOException, URISyntaxException, ParseException {
+  private Set<String> getWantedResourceTypes(String[] types) {
+    // Translate input type strings (e.g., "VEVENT") into Sling resource types
+    // (e.g., "sakai/calendar-vevent").
+    Set<String> wantedResourceTypes = Sets.newHashSetWithExpectedSize(types.length);
+    for (String type : types) {
+      wantedResourceTypes.add(SAKAI_CALENDAR_RT + "-" + type.toLowerCase());
+    }
+    return wantedResourceTypes;
+  }
+
+  private void recurseForEvents(Content node, PropertyFactory propFactory,
+      Set<String> wantedResourceTypes, java.util.Date rangeStart, java.util.Date rangeEnd,
+      EventHandler handler) throws IOException, URISyntaxException, ParseException {
     final String resourceType = (String) node.getProperty(SLING_RESOURCE_TYPE_PROPERTY);
     if (resourceType != null && wantedResourceTypes.contains(resourceType)) {
-      // Treat the content as event storage.
-      PropertyList eventProperties = new PropertyList();
-      addNodePropertiesToCal(node, eventProperties, propFactory);
-      VEvent event = new VEvent(eventProperties);
-
-      // Add the event to the calendar.
-      calendar.getComponents().add(event);
+      if (isInRange(node, rangeStart, rangeEnd)) {
+        // Treat the content as event storage.
+        PropertyList eventProperties = new PropertyList();
+        addNodePropertiesToCal(node, eventProperties, propFactory);
+        handler.handle(new VEvent(eventProperties));
+      }
     } else {
       Iterable<Content> children = node.listChildren();
       for (Content childContent : children) {
-        recurseForEvents(childContent, calendar, propFactory, wantedResourceTypes);
+        recurseForEvents(childContent, propFactory, wantedResourceTypes, rangeStart,
+            rangeEnd, handler);
       }
     }
   }
 
+  /**
+   * Checks whether the event stored in a node overlaps the requested range. Events
+   * without a readable start date are always included.
+   */
+  private boolean isInRange(Content node, java.util.Date rangeStart,
+      java.util.Date rangeEnd) {
+    if (rangeStart == null && rangeEnd == null) {
+      return true;
+    }
+    java.util.Date start = getDateProperty(node, Property.DTSTART);
+    if (start == null) {
+      return true;
+    }
+    java.util.Date end = getDateProperty(node, Property.DTEND);
+    if (end == null || end.before(start)) {
+      end = start;
+    }
+    if (rangeEnd != null && !start.before(rangeEnd)) {
+      return false;
+    }
+    if (rangeStart != null) {
+      // An event with a duration that ends exactly at the start of the range does not
+      // overlap it.
+      if (end.before(rangeStart) || (end.equals(rangeStart) && start.before(end))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private java.util.Date getDateProperty(Content node, String name) {
+    Object value = node.getProperty(SAKAI_CALENDAR_PROPERTY_PREFIX + name);
+    if (value instanceof java.util.Calendar) {
+      return ((java.util.Calendar) value).getTime();
+    } else if (value instanceof String) {
+      String stringValue = (String) value;
+      try {
+        return new DateTime(stringValue);
+      } catch (ParseException e) {
+        try {
+          return new Date(stringValue);
+        } catch (ParseException e1) {
+          LOGGER.debug("Unable to parse {} on {} ", name, node.getPath());
+        }
+      }
+    }
+    return null;
+  }
+
   private void addCalPropertiesToNode(PropertyList propertyList, Content node) {
     @SuppressWarnings("unchecked")
     Iterator<Property> propIter = (Iterator<Property>) propertyList.iterator();
@@ -338,4 +470,142 @@ public class LiteCalendarServiceImpl implements LiteCalendarService {
     }
   }
 
+  /**
+   * Receives each event that is exported from the content tree.
+   */
+  private interface EventHandler {
+    void handle(VEvent event) throws IOException;
+  }
+
+  /**
+   * Used to carry storage failures out of the ical4j {@link ContentHandler} callbacks,
+   * which do not allow checked exceptions.
+   */
+  private static class StoreFailure extends RuntimeException {
+    private static final long serialVersionUID = -3861457386349651452L;
+
+    StoreFailure(Exception cause) {
+      super(cause);
+    }
+  }
+
+  /**
+   * A {@link ContentHandler} that stores top level components while the calendar is being
+   * parsed. Components are kept in a small buffer which is written out every
+   * {@link LiteCalendarServiceImpl#STORE_BATCH_SIZE} components. Nested components (eg:
+   * a VALARM inside a VEVENT) are skipped, the same as when a {@link Calendar} is stored.
+   */
+  private class StreamingStoreHandler implements ContentHandler {
+    private final Session session;
+    private final String path;
+    private final PropertyFactory propertyFactory = PropertyFactoryImpl.getInstance();
+    private final ParameterFactoryImpl parameterFactory = ParameterFactoryImpl.getInstance();
+    private final List<CalendarComponent> pending = new ArrayList<CalendarComponent>(
+        STORE_BATCH_SIZE);
+    private PropertyList calendarProperties;
+    private PropertyList componentProperties;
+    private Property property;
+    private Content calendarNode;
+    private int depth;
+
+    StreamingStoreHandler(Session session, String path) {
+      this.session = session;
+      this.path = path;
+    }
+
+    public void startCalendar() {
+      calendarProperties = new PropertyList();
+      calendarNode = null;
+      depth = 0;
+    }
+
+    public void endCalendar() {
+      storeCalendarNode();
+      flush();
+    }
+
+    public void startComponent(String name) {
+      if (depth == 0) {
+        // Calendar properties precede the components, so the calendar node is complete.
+        storeCalendarNode();
+        componentProperties = new PropertyList();
+      }
+      depth++;
+    }
+
+    public void endComponent(String name) {
+      depth--;
+      if (depth == 0) {
+        Component component = ComponentFactory.getInstance().createComponent(name,
+            componentProperties);
+        componentProperties = null;
+        if (component instanceof CalendarComponent) {
+          pending.add((CalendarComponent) component);
+          if (pending.size() >= STORE_BATCH_SIZE) {
+            flush();
+          }
+        }
+      }
+    }
+
+    public void startProperty(String name) {
+      property = propertyFactory.createProperty(name.toUpperCase());
+    }
+
+    public void parameter(String name, String value) throws URISyntaxException {
+      property.getParameters().add(parameterFactory.createParameter(name.toUpperCase(),
+          value));
+    }
+
+    public void propertyValue(String value) throws URISyntaxException, ParseException,
+        IOException {
+      if (property instanceof Escapable) {
+        property.setValue(Strings.unescape(value));
+      } else {
+        property.setValue(value);
+      }
+    }
+
+    public void endProperty(String name) {
+      // as CalendarBuilder does, so well known values such as CLASS:PRIVATE are the
+      // constants the rest of the service compares against
+      property = Constants.forProperty(property);
+      if (depth == 0) {
+        calendarProperties.add(property);
+      } else if (depth == 1) {
+        componentProperties.add(property);
+      }
+      property = null;
+    }
+
+    private void storeCalendarNode() {
+      if (calendarNode != null) {
+        return;
+      }
+      calendarNode = new Content(path, ImmutableMap.of(SLING_RESOURCE_TYPE_PROPERTY,
+          (Object) SAKAI_CALENDAR_RT));
+      addCalPropertiesToNode(calendarProperties, calendarNode);
+      try {
+        session.getContentManager().update(calendarNode);
+      } catch (StorageClientException e) {
+        throw new StoreFailure(e);
+      } catch (AccessDeniedException e) {
+        throw new StoreFailure(e);
+      }
+    }
+
+    private void flush() {
+      try {
+        for (CalendarComponent component : pending) {
+          storeEvent(calendarNode, component, session);
+        }
+      } catch (StorageClientException e) {
+        throw new StoreFailure(e);
+      } catch (AccessDeniedException e) {
+        throw new StoreFailure(e);
+      }
+      pending.clear();
+    }
+  }
+
 }
@@ -18,7 +18,9 @@
 package org.sakaiproject.nakamura.calendar;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
@@ -31,6 +33,7 @@ import net.fortuna.ical4j.model.Component;
 import net.fortuna.ical4j.model.ComponentList;
 import net.fortuna.ical4j.model.Property;
 import net.fortuna.ical4j.model.PropertyList;
+import net.fortuna.ical4j.model.component.CalendarComponent;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -41,20 +44,29 @@ import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.util.IOUtils;
+import org.sakaiproject.nakamura.util.PathUtils;
 
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Collections;
+import java.text.SimpleDateFormat;
 import java.util.List;
+import java.util.Map;
 
 public class LiteCalendarServiceImplTest {
   Repository repository;
@@ -122,6 +134,104 @@ public class LiteCalendarServiceImplTest {
     assertEquals(veventUid, prop.getValue());
   }
 
+  @Test
+  public void testExportToWriterWithRange() throws Exception {
+    ContentManager contentManager = session.getContentManager();
+    String calendarPath = testKey + "/export-range-calendar";
+    contentManager.update(new Content(calendarPath, ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/calendar",
+        "sakai:vcal-VERSION", "2.0"
+    )));
+    String januaryUid = testKey + "-january";
+    contentManager.update(new Content(calendarPath + "/2011/01/january", ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/calendar-vevent",
+        "sakai:vcal-DTSTART", "20110107T172000Z",
+        "sakai:vcal-DTEND", "20110107T180000Z",
+        "sakai:vcal-UID", januaryUid
+    )));
+    String februaryUid = testKey + "-february";
+    contentManager.update(new Content(calendarPath + "/2011/02/february", ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/calendar-vevent",
+        "sakai:vcal-DTSTART", "20110207T172000Z",
+        "sakai:vcal-DTEND", "20110207T180000Z",
+        "sakai:vcal-UID", februaryUid
+    )));
+    Content calendarContent = contentManager.get(calendarPath);
+
+    // Without a range both events are written.
+    StringWriter writer = new StringWriter();
+    liteCalendarService.export(session, calendarContent, new String[] { "vevent" }, null,
+        null, writer);
+    Calendar calendar = new CalendarBuilder().build(new StringReader(writer.toString()));
+    assertEquals(2, calendar.getComponents().size());
+    assertEquals("2.0", calendar.getProperty(Property.VERSION).getValue());
+
+    // Only the february event falls in the range.
+    SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+    writer = new StringWriter();
+    liteCalendarService.export(session, calendarContent, new String[] { "vevent" },
+        format.parse("20110201"), format.parse("20110301"), writer);
+    String ics = writer.toString();
+    assertTrue(ics.contains(februaryUid));
+    assertFalse(ics.contains(januaryUid));
+  }
+
+  @Test
+  public void testStoreLargeCalendarInBatches() throws Exception {
+    int eventCount = LiteCalendarServiceImpl.STORE_BATCH_SIZE * 2 + 7;
+    StringBuilder sb = new StringBuilder();
+    sb.append("BEGIN:VCALENDAR\r\nVERSION:2.0\r\nX-WR-CALNAME:Large\r\n");
+    for (int i = 0; i < eventCount; i++) {
+      sb.append("BEGIN:VEVENT\r\n");
+      sb.append("UID:").append(testKey).append("-").append(i).append("\r\n");
+      sb.append("DTSTART:20110107T172000Z\r\n");
+      sb.append("SUMMARY:Event ").append(i).append("\r\n");
+      sb.append("END:VEVENT\r\n");
+    }
+    sb.append("END:VCALENDAR\r\n");
+
+    String calendarPath = testKey + "/store-large-calendar";
+    Content createdContent = liteCalendarService.store(new StringReader(sb.toString()),
+        session, calendarPath);
+    assertNotNull(createdContent);
+    assertEquals("Large", createdContent.getProperty("sakai:vcal-X-WR-CALNAME"));
+
+    Calendar exported = liteCalendarService.export(session, createdContent);
+    assertEquals(eventCount, exported.getComponents().size());
+  }
+
+  @Test
+  public void testImportedPrivateEventIsOwnerOnly() throws Exception {
+    String ics = "BEGIN:VCALENDAR\r\nVERSION:2.0\r\n"
+        + "BEGIN:VEVENT\r\nUID:" + testKey + "-private\r\nDTSTART:20110107T172000Z\r\n"
+        + "SUMMARY:Private\r\nCLASS:PRIVATE\r\nEND:VEVENT\r\n"
+        + "BEGIN:VEVENT\r\nUID:" + testKey + "-public\r\nDTSTART:20110108T172000Z\r\n"
+        + "SUMMARY:Public\r\nCLASS:PUBLIC\r\nEND:VEVENT\r\n"
+        + "END:VCALENDAR\r\n";
+    String calendarPath = testKey + "/store-private";
+    Content createdContent = liteCalendarService.store(new StringReader(ics), session,
+        calendarPath);
+    assertNotNull(createdContent);
+
+    Calendar parsed = new CalendarBuilder().build(new StringReader(ics));
+    CalendarComponent privateEvent = (CalendarComponent) parsed.getComponents().get(0);
+    CalendarComponent publicEvent = (CalendarComponent) parsed.getComponents().get(1);
+
+    Map<String, Object> privateAcl = session.getAccessControlManager().getAcl(
+        Security.ZONE_CONTENT, eventPath(calendarPath, privateEvent));
+    assertTrue(privateAcl.containsKey(AclModification.denyKey(User.ANON_USER)));
+    assertTrue(privateAcl.containsKey(AclModification.denyKey(Group.EVERYONE)));
+    assertTrue(privateAcl.containsKey(AclModification.grantKey(session.getUserId())));
+
+    Map<String, Object> publicAcl = session.getAccessControlManager().getAcl(
+        Security.ZONE_CONTENT, eventPath(calendarPath, publicEvent));
+    assertFalse(publicAcl.containsKey(AclModification.denyKey(Group.EVERYONE)));
+  }
+
+  private String eventPath(String calendarPath, CalendarComponent component) {
+    return calendarPath + PathUtils.getSubPath(new CalendarSubPathProducer(component));
+  }
+
   @Test
   public void testStoreAsCalendar() throws CalendarException, IOException, ParserException {
     Calendar inputCalendar = loadTestCalendar();
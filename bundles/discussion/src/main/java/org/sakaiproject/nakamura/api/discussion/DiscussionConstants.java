@@ -80,6 +80,18 @@ public interface DiscussionConstants {
 
   public static final String PROP_NOTIFY_ADDRESS = "sakai:notificationaddress";
 
+  /**
+   * Request parameter for the number of top level posts to show in a threaded view. All
+   * top level posts are shown when it is missing.
+   */
+  public static final String PARAM_TOPLEVEL_ITEMS = "toplevelitems";
+
+  /**
+   * Request parameter for the zero based page of top level posts to show in a threaded
+   * view.
+   */
+  public static final String PARAM_TOPLEVEL_PAGE = "toplevelpage";
+
   public static final String TOPIC_DISCUSSION_MESSAGE = "org/sakaiproject/nakamura/message/discussion";
 
 }
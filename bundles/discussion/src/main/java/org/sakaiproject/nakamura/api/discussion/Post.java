@@ -32,14 +32,22 @@ import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.presence.PresenceUtils;
+import org.sakaiproject.nakamura.api.user.AuthorizableUtil;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.jcr.RepositoryException;
 
@@ -47,6 +55,11 @@ public class Post {
 
   public static final Logger LOG = LoggerFactory.getLogger(Post.class);
 
+  /**
+   * Marks the point in the render stack where the replies of a post end.
+   */
+  private static final Object END_OF_REPLIES = new Object();
+
   private Content content;
   private List<Post> children;
   private String postId;
@@ -130,92 +143,184 @@ public class Post {
     return retval;
   }
 
+  /**
+   * @return the ids of the senders and editors of this post, the people whose profiles are
+   *         shown alongside it.
+   */
+  public Set<String> getProfileIds() {
+    Set<String> ids = new LinkedHashSet<String>();
+    if (content.hasProperty(DiscussionConstants.PROP_EDITEDBY)) {
+      for (String editor : StringUtils.split(
+          (String) content.getProperty(DiscussionConstants.PROP_EDITEDBY), ',')) {
+        ids.add(editor);
+      }
+    }
+    for (String sender : StringUtils.split(
+        (String) content.getProperty(MessageConstants.PROP_SAKAI_FROM), ',')) {
+      ids.add(sender);
+    }
+    return ids;
+  }
+
   public void outputPostAsJSON(ExtendedJSONWriter writer,
       PresenceService presenceService, BasicUserInfoService basicUserInfoService, Session session)
       throws JSONException, StorageClientException, AccessDeniedException,
       RepositoryException {
-    boolean canEdit = checkEdit();
-    boolean canDelete = checkDelete();
-
-    // If this post has been marked as deleted, we dont show it.
-    // we do however show the children of it.
-    boolean isDeleted = false;
-    if (content.hasProperty(DiscussionConstants.PROP_DELETED)) {
-      isDeleted = Boolean.parseBoolean(content.getProperty(
-          DiscussionConstants.PROP_DELETED).toString());
+    outputPostAsJSON(writer, presenceService, basicUserInfoService, session,
+        new HashMap<String, Map<String, Object>>());
+  }
+
+  /**
+   * Output this post and all its replies. The tree is walked with an explicit stack so
+   * that deeply nested threads do not grow the call stack.
+   *
+   * @param profiles
+   *          basic info of the people already looked up, keyed by id. Everyone else shown
+   *          in this post and its replies is looked up in one batch and added, so the same
+   *          map can be passed for every post in a thread.
+   */
+  public void outputPostAsJSON(ExtendedJSONWriter writer,
+      PresenceService presenceService, BasicUserInfoService basicUserInfoService,
+      Session session, Map<String, Map<String, Object>> profiles) throws JSONException,
+      StorageClientException, AccessDeniedException, RepositoryException {
+    loadMissingProfiles(basicUserInfoService, session, profiles);
+    Deque<Object> stack = new ArrayDeque<Object>();
+    stack.push(this);
+    while (!stack.isEmpty()) {
+      Object next = stack.pop();
+      if (next == END_OF_REPLIES) {
+        writer.endArray();
+        writer.endObject();
+        continue;
+      }
+      Post post = (Post) next;
+      // If the post has been deleted and we don't have the rights to delete it we only
+      // show its replies.
+      if (!post.isDeleted() || post.checkDelete()) {
+        post.writePost(writer, presenceService, basicUserInfoService, session, profiles);
+        // All the replies on this post.
+        writer.key("replies");
+        writer.array();
+        stack.push(END_OF_REPLIES);
+      }
+      List<Post> replies = post.getChildren();
+      for (int i = replies.size() - 1; i >= 0; i--) {
+        stack.push(replies.get(i));
+      }
     }
+  }
 
-    if (isDeleted && !canDelete) {
-      // This post has been deleted and we dont have sufficient rights to edit, so we just
-      // show the replies.
-      outputChildrenAsJSON(writer, presenceService, basicUserInfoService, session);
-    } else {
-      writer.object();
+  private void loadMissingProfiles(BasicUserInfoService basicUserInfoService,
+      Session session, Map<String, Map<String, Object>> profiles)
+      throws StorageClientException {
+    Set<String> missing = new LinkedHashSet<String>();
+    Deque<Post> posts = new ArrayDeque<Post>();
+    posts.push(this);
+    while (!posts.isEmpty()) {
+      Post post = posts.pop();
+      for (String id : post.getProfileIds()) {
+        if (!profiles.containsKey(id)) {
+          missing.add(id);
+        }
+      }
+      for (Post reply : post.getChildren()) {
+        posts.push(reply);
+      }
+    }
+    if (missing.isEmpty()) {
+      return;
+    }
+    Collection<Authorizable> authorizables = AuthorizableUtil.findAuthorizables(
+        session.getAuthorizableManager(), missing).values();
+    profiles.putAll(basicUserInfoService.getProperties(authorizables));
+    for (String id : missing) {
+      if (!profiles.containsKey(id)) {
+        // shown as anonymous, as they would be when looked up one by one
+        profiles.put(id, basicUserInfoService.getProperties((Authorizable) null));
+      }
+    }
+  }
 
-      writer.key("post");
-      writer.object();
-      ExtendedJSONWriter.writeNodeContentsToWriter(writer, content);
+  public void outputChildrenAsJSON(ExtendedJSONWriter writer,
+      PresenceService presenceService, BasicUserInfoService basicUserInfoService, Session session)
+      throws JSONException, StorageClientException, AccessDeniedException,
+      RepositoryException {
+    Map<String, Map<String, Object>> profiles = new HashMap<String, Map<String, Object>>();
+    loadMissingProfiles(basicUserInfoService, session, profiles);
+    for (Post p : children) {
+      p.outputPostAsJSON(writer, presenceService, basicUserInfoService, session, profiles);
+    }
+  }
 
-      writer.key("canEdit");
-      writer.value(canEdit);
-      writer.key("canDelete");
-      writer.value(canDelete);
+  private boolean isDeleted() {
+    return content.hasProperty(DiscussionConstants.PROP_DELETED)
+        && Boolean.parseBoolean(content.getProperty(DiscussionConstants.PROP_DELETED)
+            .toString());
+  }
 
-      AuthorizableManager authMgr = session.getAuthorizableManager();
-      // Show profile of editters.
-      if (content.hasProperty(DiscussionConstants.PROP_EDITEDBY)) {
+  /**
+   * Opens the object for this post and writes the post itself. The caller writes the
+   * replies and closes the object.
+   */
+  private void writePost(ExtendedJSONWriter writer, PresenceService presenceService,
+      BasicUserInfoService basicUserInfoService, Session session,
+      Map<String, Map<String, Object>> profiles) throws JSONException,
+      StorageClientException, AccessDeniedException {
+    writer.object();
 
-        String editedByProp = (String) content.getProperty(
-            DiscussionConstants.PROP_EDITEDBY);
-        String[] edittedBy = StringUtils.split(editedByProp, ',');
+    writer.key("post");
+    writer.object();
+    ExtendedJSONWriter.writeNodeContentsToWriter(writer, content);
 
-        writer.key(DiscussionConstants.PROP_EDITEDBYPROFILES);
-        writer.array();
-        for (int i = 0; i < edittedBy.length; i++) {
-          writer.object();
-          Authorizable au = authMgr.findAuthorizable(edittedBy[i]);
-          ValueMap profile = new ValueMapDecorator(basicUserInfoService.getProperties(au));
-          writer.valueMapInternals(profile);
-          PresenceUtils.makePresenceJSON(writer, edittedBy[i], presenceService, true);
-          writer.endObject();
-        }
-        writer.endArray();
-      }
+    writer.key("canEdit");
+    writer.value(checkEdit());
+    writer.key("canDelete");
+    writer.value(checkDelete());
 
-      // Show some profile info.
-      writer.key("profile");
-      String fromVal = (String) content.getProperty(MessageConstants.PROP_SAKAI_FROM);
-      String[] senders = StringUtils.split(fromVal, ',');
-      writer.array();
-      for (String sender : senders) {
-        writer.object();
-        Authorizable au = authMgr.findAuthorizable(sender);
-        ValueMap profile = new ValueMapDecorator(basicUserInfoService.getProperties(au));
-        writer.valueMapInternals(profile);
-        PresenceUtils.makePresenceJSON(writer, sender, presenceService, true);
-        writer.endObject();
-      }
-      writer.endArray();
-      writer.endObject();
+    // Show profile of editters.
+    if (content.hasProperty(DiscussionConstants.PROP_EDITEDBY)) {
+
+      String editedByProp = (String) content.getProperty(
+          DiscussionConstants.PROP_EDITEDBY);
+      String[] edittedBy = StringUtils.split(editedByProp, ',');
 
-      // All the replies on this post.
-      writer.key("replies");
+      writer.key(DiscussionConstants.PROP_EDITEDBYPROFILES);
       writer.array();
-      outputChildrenAsJSON(writer, presenceService, basicUserInfoService, session);
+      for (String editor : edittedBy) {
+        writeProfile(writer, editor, presenceService, basicUserInfoService, session,
+            profiles);
+      }
       writer.endArray();
+    }
 
-      writer.endObject();
+    // Show some profile info.
+    writer.key("profile");
+    String fromVal = (String) content.getProperty(MessageConstants.PROP_SAKAI_FROM);
+    String[] senders = StringUtils.split(fromVal, ',');
+    writer.array();
+    for (String sender : senders) {
+      writeProfile(writer, sender, presenceService, basicUserInfoService, session, profiles);
     }
+    writer.endArray();
+    writer.endObject();
   }
 
-  public void outputChildrenAsJSON(ExtendedJSONWriter writer,
-      PresenceService presenceService, BasicUserInfoService basicUserInfoService, Session session)
-      throws JSONException, StorageClientException, AccessDeniedException,
-      RepositoryException {
-    LOG.info("this post {} has {} children", getPostId(), getChildren().size());
-    for (Post p : children) {
-      p.outputPostAsJSON(writer, presenceService, basicUserInfoService, session);
+  private void writeProfile(ExtendedJSONWriter writer, String userId,
+      PresenceService presenceService, BasicUserInfoService basicUserInfoService,
+      Session session, Map<String, Map<String, Object>> profiles) throws JSONException,
+      StorageClientException, AccessDeniedException {
+    Map<String, Object> basicInfo = profiles.get(userId);
+    if (basicInfo == null) {
+      AuthorizableManager authMgr = session.getAuthorizableManager();
+      Authorizable au = authMgr.findAuthorizable(userId);
+      basicInfo = basicUserInfoService.getProperties(au);
+      profiles.put(userId, basicInfo);
     }
+    writer.object();
+    ValueMap profile = new ValueMapDecorator(basicInfo);
+    writer.valueMapInternals(profile);
+    PresenceUtils.makePresenceJSON(writer, userId, presenceService, true);
+    writer.endObject();
   }
 
   public boolean addPost(Content c, String postid, String replyon) {
@@ -17,6 +17,9 @@
  */
 package org.sakaiproject.nakamura.discussion.searchresults;
 
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_PAGE;
+
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -24,12 +27,14 @@ import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.solr.client.solrj.response.FacetField;
 import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
 import org.sakaiproject.nakamura.api.discussion.Post;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
@@ -40,17 +45,23 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
+import org.sakaiproject.nakamura.api.user.AuthorizableUtil;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import javax.jcr.RepositoryException;
 
@@ -71,6 +82,12 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
   @Property(value = "DiscussionThreaded")
   static final String SEARCH_BATCHPROCESSOR = "sakai.search.batchprocessor";
 
+  /**
+   * The number of posts fetched per query when a whole conversation is fetched, the
+   * largest page the search service hands out by default.
+   */
+  static final int FETCH_SIZE = 100;
+
   @Reference
   PresenceService presenceService;
 
@@ -91,12 +108,19 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
       Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
           .adaptTo(javax.jcr.Session.class));
       ContentManager cm = session.getContentManager();
+
+      // Collect the hits first so that every post is loaded once, even if the search
+      // returns it more than once.
+      Set<String> paths = new LinkedHashSet<String>();
+      while (iterator.hasNext()) {
+        paths.add(iterator.next().getPath());
+      }
+
       List<String> basePosts = new ArrayList<String>();
       Map<String,List<Post>> postChildren = new HashMap<String, List<Post>>();
       Map<String,Post> allPosts = new HashMap<String, Post>();
-      while (iterator.hasNext()) {
-        Result result = iterator.next();
-        Content content = cm.get(result.getPath());
+      for (String path : paths) {
+        Content content = cm.get(path);
         if (content == null) {
           continue;
         }
@@ -130,10 +154,23 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
         }
       }
 
+      if (iterator instanceof ConversationResultSet.PostIterator) {
+        ((ConversationResultSet.PostIterator) iterator).setTopLevelCount(basePosts.size());
+      }
+      List<Post> threads = new ArrayList<Post>();
+      for (String basePostId : getPage(request, basePosts)) {
+        threads.add(allPosts.get(basePostId));
+      }
+
+      // A thread usually has far fewer authors than posts, so look each of the authors of
+      // the threads on this page up once.
+      Map<String, Map<String, Object>> profiles = loadProfiles(getProfileIds(threads),
+          session);
+
       // The posts are sorted, now return them as json.
-      for (String basePostId : basePosts) {
-        allPosts.get(basePostId).outputPostAsJSON((ExtendedJSONWriter) writer,
-            presenceService, basicUserInfoService, session);
+      for (Post thread : threads) {
+        thread.outputPostAsJSON((ExtendedJSONWriter) writer, presenceService,
+            basicUserInfoService, session, profiles);
       }
     } catch (StorageClientException e) {
       throw new RuntimeException(e.getMessage(), e);
@@ -144,15 +181,157 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
     }
   }
 
+  /**
+   * @return the ids of everyone shown in the given threads, replies included.
+   */
+  private Set<String> getProfileIds(List<Post> threads) {
+    Set<String> ids = new LinkedHashSet<String>();
+    Deque<Post> posts = new ArrayDeque<Post>(threads);
+    while (!posts.isEmpty()) {
+      Post post = posts.pop();
+      ids.addAll(post.getProfileIds());
+      posts.addAll(post.getChildren());
+    }
+    return ids;
+  }
+
+  /**
+   * Get the basic info for all the given users in one go. Users that do not exist are
+   * shown as anonymous, as they would be when looked up one by one.
+   */
+  private Map<String, Map<String, Object>> loadProfiles(Set<String> userIds,
+      Session session) throws StorageClientException {
+    Collection<Authorizable> authorizables = AuthorizableUtil.findAuthorizables(
+        session.getAuthorizableManager(), userIds).values();
+    Map<String, Map<String, Object>> profiles = new HashMap<String, Map<String, Object>>(
+        basicUserInfoService.getProperties(authorizables));
+    for (String userId : userIds) {
+      if (!profiles.containsKey(userId)) {
+        profiles.put(userId, basicUserInfoService.getProperties((Authorizable) null));
+      }
+    }
+    return profiles;
+  }
+
+  /**
+   * Pick the requested page of top level posts. Without a page size all of them are
+   * returned.
+   */
+  private List<String> getPage(SlingHttpServletRequest request, List<String> basePosts) {
+    int items = getIntParameter(request, DiscussionConstants.PARAM_TOPLEVEL_ITEMS, 0);
+    if (items <= 0) {
+      return basePosts;
+    }
+    int page = getIntParameter(request, DiscussionConstants.PARAM_TOPLEVEL_PAGE, 0);
+    long start = Math.max(page, 0) * (long) items;
+    if (start >= basePosts.size()) {
+      return new ArrayList<String>();
+    }
+    int end = (int) Math.min(start + items, basePosts.size());
+    return basePosts.subList((int) start, end);
+  }
+
+  private int getIntParameter(SlingHttpServletRequest request, String name, int defaultValue) {
+    String value = request.getParameter(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
   /**
    * {@inheritDoc}
+   * <p>
+   * When top level posts are paged every post of the conversation is fetched, a page of
+   * search hits would cut threads apart, and the size of the result set is the number of
+   * top level posts.
    *
    * @see org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor#getSearchResultSet(org.apache.sling.api.SlingHttpServletRequest,
    *      java.lang.String)
    */
   public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request, Query query)
       throws SolrSearchException {
+    if (getIntParameter(request, DiscussionConstants.PARAM_TOPLEVEL_ITEMS, 0) <= 0) {
       // Return the result set.
       return searchServiceFactory.getSearchResultSet(request, query);
+    }
+    List<Result> posts = new ArrayList<Result>();
+    List<FacetField> facetFields = null;
+    query.getOptions().put(PARAMS_ITEMS_PER_PAGE, Integer.toString(FETCH_SIZE));
+    for (long page = 0;; page++) {
+      query.getOptions().put(PARAMS_PAGE, Long.toString(page));
+      SolrSearchResultSet rs = searchServiceFactory.getSearchResultSet(request, query);
+      if (facetFields == null) {
+        facetFields = rs.getFacetFields();
+      }
+      int fetched = 0;
+      for (Iterator<Result> i = rs.getResultSetIterator(); i.hasNext(); fetched++) {
+        posts.add(i.next());
+      }
+      if (fetched < FETCH_SIZE || posts.size() >= rs.getSize()) {
+        if (posts.size() < rs.getSize()) {
+          LOG.warn("Only {} of the {} posts of the conversation could be fetched",
+              posts.size(), rs.getSize());
+        }
+        break;
+      }
+    }
+    return new ConversationResultSet(posts, facetFields);
+  }
+
+  /**
+   * All the posts of a conversation. Its size is the number of top level posts, which is
+   * known once the posts have been sorted into threads.
+   */
+  static class ConversationResultSet implements SolrSearchResultSet {
+    private final List<Result> posts;
+    private final List<FacetField> facetFields;
+    private long topLevelCount;
+
+    ConversationResultSet(List<Result> posts, List<FacetField> facetFields) {
+      this.posts = posts;
+      this.facetFields = facetFields;
+      this.topLevelCount = posts.size();
+    }
+
+    public Iterator<Result> getResultSetIterator() {
+      return new PostIterator(posts.iterator());
+    }
+
+    public long getSize() {
+      return topLevelCount;
+    }
+
+    public List<FacetField> getFacetFields() {
+      return facetFields;
+    }
+
+    class PostIterator implements Iterator<Result> {
+      private final Iterator<Result> delegate;
+
+      PostIterator(Iterator<Result> delegate) {
+        this.delegate = delegate;
+      }
+
+      public boolean hasNext() {
+        return delegate.hasNext();
+      }
+
+      public Result next() {
+        return delegate.next();
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+
+      void setTopLevelCount(long count) {
+        topLevelCount = count;
+      }
+    }
   }
 }
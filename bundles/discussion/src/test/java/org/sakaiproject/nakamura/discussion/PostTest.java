@@ -0,0 +1,184 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.discussion;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
+import org.sakaiproject.nakamura.api.discussion.Post;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.presence.PresenceService;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.sakaiproject.nakamura.user.BasicUserInfoServiceImpl;
+import org.sakaiproject.nakamura.user.counts.CountProvider;
+import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+
+import java.io.StringWriter;
+
+/**
+ *
+ */
+public class PostTest {
+
+  private Session session;
+  private AuthorizableManager authMgr;
+  private AccessControlManager accessControlManager;
+  private PresenceService presenceService;
+  private BasicUserInfoService basicUserInfoService;
+
+  @Before
+  public void setUp() throws Exception {
+    session = mock(Session.class);
+    authMgr = mock(AuthorizableManager.class);
+    when(session.getAuthorizableManager()).thenReturn(authMgr);
+    accessControlManager = mock(AccessControlManager.class);
+    when(session.getAccessControlManager()).thenReturn(accessControlManager);
+    presenceService = mock(PresenceService.class);
+    basicUserInfoService = new BasicUserInfoServiceImpl() {
+
+      public BasicUserInfoService setup() {
+        countProvider = mock(CountProvider.class);
+        return this;
+      }
+    }.setup();
+  }
+
+  @Test
+  public void testDeeplyNestedThread() throws Exception {
+    // far deeper than a recursive walk could go without overflowing the stack.
+    int depth = 50000;
+    Post root = new Post(createContent("0", null), session);
+    Post parent = root;
+    for (int i = 1; i < depth; i++) {
+      Post reply = new Post(createContent(String.valueOf(i), String.valueOf(i - 1)),
+          session);
+      parent.getChildren().add(reply);
+      parent = reply;
+    }
+
+    ExtendedJSONWriter writer = mock(ExtendedJSONWriter.class);
+    root.outputPostAsJSON(writer, presenceService, basicUserInfoService, session);
+
+    // every post opens its wrapper, the post itself and its one profile; the profile and
+    // replies lists are the arrays. Each must be closed again.
+    verify(writer, times(3 * depth)).object();
+    verify(writer, times(3 * depth)).endObject();
+    verify(writer, times(2 * depth)).array();
+    verify(writer, times(2 * depth)).endArray();
+    // the author is looked up once for the whole thread.
+    verify(authMgr, times(1)).findAuthorizable("admin");
+  }
+
+  @Test
+  public void testNestedReplies() throws Exception {
+    // a
+    // - b
+    // - - c
+    // - d
+    Post root = new Post(createContent("a", null), session);
+    Post b = new Post(createContent("b", "a"), session);
+    root.getChildren().add(b);
+    b.getChildren().add(new Post(createContent("c", "b"), session));
+    root.getChildren().add(new Post(createContent("d", "a"), session));
+
+    JSONObject json = render(root);
+    assertEquals("a", json.getJSONObject("post").get("sakai:id"));
+    JSONArray replies = json.getJSONArray("replies");
+    assertEquals(2, replies.length());
+    assertEquals("b", replies.getJSONObject(0).getJSONObject("post").get("sakai:id"));
+    assertEquals("c", replies.getJSONObject(0).getJSONArray("replies").getJSONObject(0)
+        .getJSONObject("post").get("sakai:id"));
+    assertEquals("d", replies.getJSONObject(1).getJSONObject("post").get("sakai:id"));
+    assertEquals(0, replies.getJSONObject(1).getJSONArray("replies").length());
+  }
+
+  @Test
+  public void testDeletedPostOnlyShowsReplies() throws Exception {
+    Post root = new Post(createContent("a", null), session);
+    Content deleted = createContent("b", "a");
+    deleted.setProperty(DiscussionConstants.PROP_DELETED, true);
+    Post b = new Post(deleted, session);
+    root.getChildren().add(b);
+    b.getChildren().add(new Post(createContent("c", "b"), session));
+    doThrow(new AccessDeniedException(Security.ZONE_CONTENT, "/msg/b", "delete", "user"))
+        .when(accessControlManager).check(Security.ZONE_CONTENT, "/msg/b",
+            Permissions.CAN_DELETE);
+
+    JSONObject json = render(root);
+    JSONArray replies = json.getJSONArray("replies");
+    assertEquals(1, replies.length());
+    assertEquals("c", replies.getJSONObject(0).getJSONObject("post").get("sakai:id"));
+  }
+
+  @Test
+  public void testProfilesAreLookedUpOncePerThread() throws Exception {
+    Post root = new Post(createContent("a", null), session);
+    Content edited = createContent("b", "a");
+    edited.setProperty(DiscussionConstants.PROP_EDITEDBY, "anonymous,admin");
+    root.getChildren().add(new Post(edited, session));
+    root.getChildren().add(new Post(createContent("c", "a"), session));
+
+    StringWriter out = new StringWriter();
+    ExtendedJSONWriter writer = new ExtendedJSONWriter(out);
+    writer.array();
+    root.outputChildrenAsJSON(writer, presenceService, basicUserInfoService, session);
+    writer.endArray();
+
+    JSONArray json = new JSONArray(out.toString());
+    assertEquals(2, json.length());
+    assertEquals(2, json.getJSONObject(0).getJSONObject("post")
+        .getJSONArray(DiscussionConstants.PROP_EDITEDBYPROFILES).length());
+    verify(authMgr, times(1)).findAuthorizable("admin");
+    verify(authMgr, times(1)).findAuthorizable("anonymous");
+    verify(authMgr, times(2)).findAuthorizable(anyString());
+  }
+
+  private JSONObject render(Post post) throws Exception {
+    StringWriter out = new StringWriter();
+    post.outputPostAsJSON(new ExtendedJSONWriter(out), presenceService,
+        basicUserInfoService, session);
+    return new JSONObject(out.toString());
+  }
+
+  private Content createContent(String id, String replyOn) {
+    Content content = new Content("/msg/" + id, null);
+    content.setProperty(MessageConstants.PROP_SAKAI_ID, id);
+    content.setProperty(MessageConstants.PROP_SAKAI_FROM, "admin");
+    if (replyOn != null) {
+      content.setProperty(DiscussionConstants.PROP_REPLY_ON, replyOn);
+    }
+    return content;
+  }
+}
@@ -27,12 +27,15 @@ import com.google.common.collect.Lists;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
@@ -43,7 +46,9 @@ import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
+import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.user.BasicUserInfoServiceImpl;
@@ -53,7 +58,9 @@ import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  *
@@ -63,6 +70,9 @@ public class DiscussionThreadedProcessorTest {
 
   private DiscussionThreadedSearchBatchResultProcessor processor;
   private PresenceService presenceService;
+  private SlingHttpServletRequest request;
+  private AuthorizableManager authMgr;
+  private ContentManager cm;
 
   /**
    * {@inheritDoc}
@@ -82,11 +92,8 @@ public class DiscussionThreadedProcessorTest {
         return this;
       }
     }.setup();
-  }
 
-  @Test
-  public void testProcess() throws Exception {
-    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    request = mock(SlingHttpServletRequest.class);
 
     Session session = mock(Session.class);
 
@@ -97,7 +104,7 @@ public class DiscussionThreadedProcessorTest {
     @SuppressWarnings("unused")
     User anonUser = new User(ImmutableMap.of(User.ID_FIELD, (Object) "anonymous"));
     
-    AuthorizableManager authMgr = mock(AuthorizableManager.class);
+    authMgr = mock(AuthorizableManager.class);
     when(session.getAuthorizableManager()).thenReturn(authMgr);
 
     ResourceResolver resolver = mock(ResourceResolver.class);
@@ -108,9 +115,12 @@ public class DiscussionThreadedProcessorTest {
         (javax.jcr.Session) hybridSession);
     when(((SessionAdaptable) hybridSession).getSession()).thenReturn(session);
     
-    ContentManager cm = mock(ContentManager.class);
+    cm = mock(ContentManager.class);
     when(session.getContentManager()).thenReturn(cm);
+  }
 
+  @Test
+  public void testProcess() throws Exception {
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     Writer w = new PrintWriter(baos);
     ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
@@ -164,6 +174,133 @@ public class DiscussionThreadedProcessorTest {
     assertEquals("a", json.getJSONObject("post").get("sakai:id"));
     assertEquals("b", json.getJSONArray("replies").getJSONObject(0).getJSONObject("post")
         .get("sakai:id"));
+
+    // every author is looked up once, however many posts they wrote or edited.
+    Mockito.verify(authMgr, Mockito.times(1)).findAuthorizable("admin");
+    Mockito.verify(authMgr, Mockito.times(1)).findAuthorizable("anonymous");
+  }
+
+  @Test
+  public void testTopLevelPaging() throws Exception {
+    when(request.getParameter(DiscussionConstants.PARAM_TOPLEVEL_ITEMS)).thenReturn("2");
+    when(request.getParameter(DiscussionConstants.PARAM_TOPLEVEL_PAGE)).thenReturn("1");
+
+    JSONArray json = writeTopLevelPosts();
+    assertEquals(1, json.length());
+    assertEquals("c", json.getJSONObject(0).getJSONObject("post").get("sakai:id"));
+    assertEquals("c1", json.getJSONObject(0).getJSONArray("replies").getJSONObject(0)
+        .getJSONObject("post").get("sakai:id"));
+  }
+
+  @Test
+  public void testAllTopLevelPostsWithoutPaging() throws Exception {
+    JSONArray json = writeTopLevelPosts();
+    assertEquals(3, json.length());
+    assertEquals("a", json.getJSONObject(0).getJSONObject("post").get("sakai:id"));
+    assertEquals("c", json.getJSONObject(2).getJSONObject("post").get("sakai:id"));
+  }
+
+  @Test
+  public void testTopLevelPageOutOfRange() throws Exception {
+    when(request.getParameter(DiscussionConstants.PARAM_TOPLEVEL_ITEMS)).thenReturn("2");
+    when(request.getParameter(DiscussionConstants.PARAM_TOPLEVEL_PAGE)).thenReturn("5");
+
+    assertEquals(0, writeTopLevelPosts().length());
+  }
+
+  @Test
+  public void testTopLevelPagingCoversTheWholeConversation() throws Exception {
+    when(request.getParameter(DiscussionConstants.PARAM_TOPLEVEL_ITEMS)).thenReturn("50");
+    when(request.getParameter(DiscussionConstants.PARAM_TOPLEVEL_PAGE)).thenReturn("2");
+
+    // more top level posts than one search page holds, the last one with a reply
+    final List<Result> hits = Lists.newArrayList();
+    int topLevel = DiscussionThreadedSearchBatchResultProcessor.FETCH_SIZE + 1;
+    for (int i = 0; i < topLevel; i++) {
+      Content content = new Content("/msg/p" + i, null);
+      content.setProperty(MessageConstants.PROP_SAKAI_ID, "p" + i);
+      content.setProperty(MessageConstants.PROP_SAKAI_FROM, "u" + i);
+      when(cm.get(content.getPath())).thenReturn(content);
+      hits.add(mockResult(content));
+    }
+    Content reply = new Content("/msg/r", null);
+    reply.setProperty(MessageConstants.PROP_SAKAI_ID, "r");
+    reply.setProperty(DiscussionConstants.PROP_REPLY_ON, "p" + (topLevel - 1));
+    reply.setProperty(MessageConstants.PROP_SAKAI_FROM, "replier");
+    when(cm.get("/msg/r")).thenReturn(reply);
+    hits.add(mockResult(reply));
+
+    when(processor.searchServiceFactory.getSearchResultSet(Mockito.eq(request),
+        Mockito.any(Query.class))).thenAnswer(new Answer<SolrSearchResultSet>() {
+      public SolrSearchResultSet answer(InvocationOnMock invocation) throws Throwable {
+        Map<String, Object> options = ((Query) invocation.getArguments()[1]).getOptions();
+        int items = Integer.parseInt(String.valueOf(options.get("items")));
+        int page = Integer.parseInt(String.valueOf(options.get("page")));
+        int from = Math.min(page * items, hits.size());
+        SolrSearchResultSet rs = mock(SolrSearchResultSet.class);
+        when(rs.getResultSetIterator()).thenReturn(
+            hits.subList(from, Math.min(from + items, hits.size())).iterator());
+        when(rs.getSize()).thenReturn((long) hits.size());
+        return rs;
+      }
+    });
+
+    // the search servlet asks for its default page of hits
+    Query query = new Query("marker:x", new HashMap<String, Object>(ImmutableMap.of(
+        "items", (Object) "25", "page", "0")));
+    SolrSearchResultSet rs = processor.getSearchResultSet(request, query);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    Writer w = new PrintWriter(baos);
+    ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
+    writer.array();
+    processor.writeResults(request, writer, rs.getResultSetIterator());
+    writer.endArray();
+    w.flush();
+    JSONArray json = new JSONArray(baos.toString("UTF-8"));
+
+    // the third page of 50 threads holds only the last thread, found on the second
+    // page of hits
+    assertEquals(1, json.length());
+    assertEquals("p" + (topLevel - 1), json.getJSONObject(0).getJSONObject("post").get(
+        "sakai:id"));
+    assertEquals("r", json.getJSONObject(0).getJSONArray("replies").getJSONObject(0)
+        .getJSONObject("post").get("sakai:id"));
+    assertEquals(topLevel, rs.getSize());
+
+    // only the people shown on this page are looked up
+    Mockito.verify(authMgr).findAuthorizable("u" + (topLevel - 1));
+    Mockito.verify(authMgr).findAuthorizable("replier");
+    Mockito.verify(authMgr, Mockito.never()).findAuthorizable("u0");
+    Mockito.verify(authMgr, Mockito.times(2)).findAuthorizable(Mockito.anyString());
+  }
+
+  /**
+   * Writes three top level posts, a, b and c, where c has one reply.
+   */
+  private JSONArray writeTopLevelPosts() throws Exception {
+    List<Result> results = Lists.newArrayList();
+    for (String id : new String[] { "a", "b", "c" }) {
+      Content content = new Content("/msg/" + id, null);
+      content.setProperty(MessageConstants.PROP_SAKAI_ID, id);
+      content.setProperty(MessageConstants.PROP_SAKAI_FROM, "admin");
+      when(cm.get(content.getPath())).thenReturn(content);
+      results.add(mockResult(content));
+    }
+    Content reply = new Content("/msg/c1", null);
+    reply.setProperty(MessageConstants.PROP_SAKAI_ID, "c1");
+    reply.setProperty(DiscussionConstants.PROP_REPLY_ON, "c");
+    reply.setProperty(MessageConstants.PROP_SAKAI_FROM, "admin");
+    when(cm.get("/msg/c1")).thenReturn(reply);
+    results.add(mockResult(reply));
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    Writer w = new PrintWriter(baos);
+    ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
+    writer.array();
+    processor.writeResults(request, writer, results.iterator());
+    writer.endArray();
+    w.flush();
+    return new JSONArray(baos.toString("UTF-8"));
   }
 
   private Result mockResult(Content content) {
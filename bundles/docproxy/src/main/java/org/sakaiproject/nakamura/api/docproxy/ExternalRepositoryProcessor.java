@@ -117,6 +117,33 @@ public interface ExternalRepositoryProcessor {
   public ExternalSearchResultSet search(Node node,
       Map<String, Object> searchProperties) throws DocProxyException;
 
+  /**
+   * Searches for results matching the search properties, for a caller that will only
+   * read one window of them. The result iterator of the returned set starts at the
+   * result at <code>offset</code>, so implementations can push the paging down to the
+   * external repository or stop reading results once the window has been read. The size
+   * of the set is still the number of matching results, or an estimate if the
+   * implementation does not read far enough to know it.
+   * 
+   * @param node
+   *          The node containing the repository information.
+   * @param searchProperties
+   *          a key value map of search fields and search values, as for
+   *          {@link #search(Node, Map)}.
+   * @param offset
+   *          the index of the first result the caller wants.
+   * @param limit
+   *          the number of results the caller will read from the offset, or -1 if it is
+   *          not known. This is a hint, implementations may return more.
+   * @throws DocProxyException
+   *           The search failed for some reason, this should contain an appropriate HTTP
+   *           status code and message.
+   * @return an ExternalSearchResultSet whose iterator starts at the offset.
+   */
+  public ExternalSearchResultSet search(Node node,
+      Map<String, Object> searchProperties, long offset, long limit)
+      throws DocProxyException;
+
    /**
     * Removes the specified document from the external repository.
     * 
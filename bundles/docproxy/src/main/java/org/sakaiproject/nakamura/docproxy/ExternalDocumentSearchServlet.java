@@ -48,7 +48,6 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.NoSuchElementException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -118,21 +117,13 @@ public class ExternalDocumentSearchServlet extends SlingSafeMethodsServlet {
       Map<String, Object> searchProperties = new HashMap<String, Object>();
       handleProperties(searchProperties, node, request);
 
-      // Process search
-      resultSet = processor.search(proxyNode, searchProperties);
+      // Process search, letting the processor skip to the page.
+      long nitems = SearchUtil.longRequestParameter(request,
+          SearchConstants.PARAMS_ITEMS_PER_PAGE, SearchConstants.DEFAULT_PAGED_ITEMS);
+      long offset = SearchUtil.getPaging(request);
+      resultSet = processor.search(proxyNode, searchProperties, offset, nitems);
       Iterator<ExternalDocumentResult> results = resultSet.getResultIterator();
 
-      // Do the default search paging.
-      long toSkip = SearchUtil.getPaging(request);
-      while (toSkip > 0) {
-        if (results.hasNext()) {
-          results.next();
-          toSkip--;
-        } else {
-          throw new NoSuchElementException();
-        }
-      }
-
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
 
@@ -141,8 +132,6 @@ public class ExternalDocumentSearchServlet extends SlingSafeMethodsServlet {
       write.object();
       write.key(SearchConstants.JSON_RESULTS);
       write.array();
-      long nitems = SearchUtil.longRequestParameter(request,
-          SearchConstants.PARAMS_ITEMS_PER_PAGE, SearchConstants.DEFAULT_PAGED_ITEMS);
       for (long i = 0; i < nitems && results.hasNext(); i++) {
         ExternalDocumentResult result = results.next();
         DocProxyUtils.writeMetaData(write, result);
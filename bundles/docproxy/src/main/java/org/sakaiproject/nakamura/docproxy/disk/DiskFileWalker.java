@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.docproxy.disk;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Walks a directory tree depth first, listing a directory only when the walk reaches it.
+ * Each directory is returned before its children, children in name order, so a caller
+ * that stops after a page of files has only listed the directories leading to it.
+ */
+class DiskFileWalker implements Iterator<File> {
+
+  /**
+   * The directories being listed, innermost first.
+   */
+  private final Deque<Listing> listings = new ArrayDeque<Listing>();
+  private File next;
+
+  /**
+   * @param root
+   *          the directory to walk, it is not returned itself.
+   */
+  DiskFileWalker(File root) {
+    push(root);
+  }
+
+  public boolean hasNext() {
+    while (next == null && !listings.isEmpty()) {
+      Listing listing = listings.peek();
+      if (listing.position == listing.names.length) {
+        listings.pop();
+        continue;
+      }
+      next = new File(listing.directory, listing.names[listing.position++]);
+      if (next.isDirectory()) {
+        push(next);
+      }
+    }
+    return next != null;
+  }
+
+  public File next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    File file = next;
+    next = null;
+    return file;
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  private void push(File directory) {
+    String[] names = directory.list();
+    if (names != null && names.length > 0) {
+      Arrays.sort(names);
+      listings.push(new Listing(directory, names));
+    }
+  }
+
+  private static final class Listing {
+    private final File directory;
+    private final String[] names;
+    private int position;
+
+    private Listing(File directory, String[] names) {
+      this.directory = directory;
+      this.names = names;
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.docproxy.disk;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A snapshot of all the files under a directory, in walk order, so repeated searches of
+ * a large tree filter names in memory instead of listing every directory again. The
+ * snapshot is rebuilt when it is older than the refresh interval or has been
+ * invalidated.
+ */
+class DiskNameIndex {
+
+  private final File root;
+  private final long refreshInterval;
+  private List<File> files;
+  private long builtAt;
+
+  /**
+   * @param refreshInterval
+   *          the age in ms after which the snapshot is rebuilt.
+   */
+  DiskNameIndex(File root, long refreshInterval) {
+    this.root = root;
+    this.refreshInterval = refreshInterval;
+  }
+
+  /**
+   * @return the files under the root, never modified once returned.
+   */
+  synchronized List<File> getFiles() {
+    if (files == null || System.currentTimeMillis() - builtAt > refreshInterval) {
+      builtAt = System.currentTimeMillis();
+      List<File> snapshot = new ArrayList<File>();
+      DiskFileWalker walker = new DiskFileWalker(root);
+      while (walker.hasNext()) {
+        snapshot.add(walker.next());
+      }
+      files = Collections.unmodifiableList(snapshot);
+    }
+    return files;
+  }
+
+  /**
+   * Rebuild the snapshot on the next search.
+   */
+  synchronized void invalidate() {
+    files = null;
+  }
+}
@@ -55,10 +55,14 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -86,10 +90,25 @@ public class DiskProcessor implements ExternalRepositoryProcessor {
   @Property(name = "createJCRNodes", description = "Wether or not nodes should be created in JCR for newly uploaded files.", boolValue = false)
   protected boolean createJCRNodes = false;
 
+  @Property(name = "index.enabled", description = "Whether to keep the file names of a repository in memory between searches, giving exact totals.", boolValue = false)
+  protected boolean indexEnabled = false;
+
+  @Property(name = "index.refreshSeconds", description = "Seconds after which the in memory file names are read again.", intValue = 60)
+  protected long indexRefreshInterval = 60000L;
+
+  /**
+   * The file name indexes by repository location, when indexing is enabled.
+   */
+  private final ConcurrentMap<String, DiskNameIndex> indexes = new ConcurrentHashMap<String, DiskNameIndex>();
+
   protected void activate(ComponentContext context) {
     @SuppressWarnings("rawtypes")
     Dictionary properties = context.getProperties();
     createJCRNodes = PropertiesUtil.toBoolean(properties.get("createJCRNodes"), false);
+    indexEnabled = PropertiesUtil.toBoolean(properties.get("index.enabled"), false);
+    indexRefreshInterval = PropertiesUtil.toInteger(properties.get("index.refreshSeconds"),
+        60) * 1000L;
+    indexes.clear();
   }
 
   /**
@@ -130,6 +149,18 @@ public class DiskProcessor implements ExternalRepositoryProcessor {
 
   public ExternalSearchResultSet search(Node node,
       Map<String, Object> searchProperties) throws DocProxyException {
+    return search(node, searchProperties, 0, -1);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.docproxy.ExternalRepositoryProcessor#search(javax.jcr.Node,
+   *      java.util.Map, long, long)
+   */
+  public ExternalSearchResultSet search(Node node,
+      Map<String, Object> searchProperties, long offset, long limit)
+      throws DocProxyException {
     // We will search in the same directory (and subs) as the README dir.
     File defaultFile = getRootFile(node);
 
@@ -181,33 +212,94 @@ public class DiskProcessor implements ExternalRepositoryProcessor {
       }
     };
 
-    List<ExternalDocumentResult> results = new ArrayList<ExternalDocumentResult>();
-    // Get children.
-    getChildren(defaultFile, results, filter);
-    ExternalSearchResultSet resultSet = new ExternalSearchResultSetImpl(results.iterator(), results.size());
-    return resultSet;
+    if (indexEnabled) {
+      // filter the names in memory, which makes an exact total cheap.
+      List<File> matches = new ArrayList<File>();
+      for (File f : getIndex(defaultFile).getFiles()) {
+        if (filter.accept(f.getParentFile(), f.getName())) {
+          matches.add(f);
+        }
+      }
+      int from = (int) Math.min(Math.max(offset, 0), matches.size());
+      return new ExternalSearchResultSetImpl(new MatchingResults(matches.subList(from,
+          matches.size()).iterator(), null), matches.size());
+    }
+
+    // Walk the tree only as far as the caller reads the results.
+    final MatchingResults results = new MatchingResults(new DiskFileWalker(defaultFile),
+        filter);
+    for (long i = 0; i < offset && results.hasNext(); i++) {
+      results.next();
+    }
+    return new ExternalSearchResultSetImpl(results, 0) {
+      /**
+       * The tree is not walked to the end to count the matches, the size is the number
+       * read so far plus one if there are more.
+       */
+      @Override
+      public long getSize() {
+        return results.getCount() + (results.hasNext() ? 1 : 0);
+      }
+    };
+  }
+
+  private DiskNameIndex getIndex(File root) {
+    String key = root.getAbsolutePath();
+    DiskNameIndex index = indexes.get(key);
+    if (index == null) {
+      DiskNameIndex newIndex = new DiskNameIndex(root, indexRefreshInterval);
+      index = indexes.putIfAbsent(key, newIndex);
+      if (index == null) {
+        index = newIndex;
+      }
+    }
+    return index;
   }
 
   /**
-   * Iterate over all the children of a "file".
-   * 
-   * @param parentFile
-   *          The file to list the children for.
-   * @param results
-   *          The list to add the results in
-   * @param filter
-   *          The filter to match the files against.
+   * The files of a walk or index that pass the filter, as results.
    */
-  private void getChildren(File file, List<ExternalDocumentResult> results,
-      FilenameFilter filter) {
-    File[] files = file.listFiles();
-    for (File f : files) {
-      if (f.isDirectory()) {
-        getChildren(f, results, filter);
+  private static class MatchingResults implements Iterator<ExternalDocumentResult> {
+    private final Iterator<File> files;
+    private final FilenameFilter filter;
+    private File next;
+    private long count;
+
+    /**
+     * @param filter
+     *          the filter the files must pass, or null if they all match.
+     */
+    private MatchingResults(Iterator<File> files, FilenameFilter filter) {
+      this.files = files;
+      this.filter = filter;
+    }
+
+    public boolean hasNext() {
+      while (next == null && files.hasNext()) {
+        File f = files.next();
+        if (filter == null || filter.accept(f.getParentFile(), f.getName())) {
+          next = f;
+        }
       }
-      if (filter.accept(f.getParentFile(), f.getName())) {
-        results.add(new DiskDocumentResult(f));
+      return next != null;
+    }
+
+    public ExternalDocumentResult next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
       }
+      File f = next;
+      next = null;
+      count++;
+      return new DiskDocumentResult(f);
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private long getCount() {
+      return count;
     }
   }
 
@@ -277,6 +369,13 @@ public class DiskProcessor implements ExternalRepositoryProcessor {
       }
     }
 
+    if (indexEnabled) {
+      // the next search should see the new file.
+      DiskNameIndex index = indexes.get(getRootFile(node).getAbsolutePath());
+      if (index != null) {
+        index.invalidate();
+      }
+    }
     return properties;
   }
 
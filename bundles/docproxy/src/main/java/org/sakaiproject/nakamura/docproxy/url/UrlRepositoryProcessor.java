@@ -19,15 +19,17 @@ package org.sakaiproject.nakamura.docproxy.url;
 
 import com.ctc.wstx.stax.WstxInputFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.SignatureException;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Iterator;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -99,6 +101,32 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
   protected static final String REMOVE_URL = "remove.url";
   private String removeUrl;
 
+  public static final boolean DEFAULT_SEARCH_PAGING = false;
+  @Property(boolValue = DEFAULT_SEARCH_PAGING)
+  static final String SEARCH_PAGING = "search.paging";
+  private boolean searchPaging;
+
+  /**
+   * The parameters sent to the search URL when it pages the results itself.
+   */
+  public static final String SEARCH_OFFSET_PARAM = "offset";
+  public static final String SEARCH_LIMIT_PARAM = "limit";
+
+  public static final int DEFAULT_SEARCH_CACHE_TTL = 30;
+  @Property(intValue = DEFAULT_SEARCH_CACHE_TTL)
+  static final String SEARCH_CACHE_TTL = "search.cache.ttl";
+  private long searchCacheTtl;
+
+  public static final int DEFAULT_SEARCH_CACHE_SIZE = 100;
+  @Property(intValue = DEFAULT_SEARCH_CACHE_SIZE)
+  static final String SEARCH_CACHE_SIZE = "search.cache.size";
+
+  /**
+   * Recent search results by user and query, so that turning the page does not search
+   * the remote repository again.
+   */
+  private Map<String, UrlSearchResults> searchCache;
+
   private XMLInputFactory xmlInputFactory;
 
   private HttpClient client;
@@ -129,6 +157,22 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
 
     hmacHeader = PropertiesUtil.toString(props.get(HMAC_HEADER), DEFAULT_HMAC_HEADER);
     sharedKey = PropertiesUtil.toString(props.get(SHARED_KEY), null);
+
+    searchPaging = PropertiesUtil.toBoolean(props.get(SEARCH_PAGING),
+        DEFAULT_SEARCH_PAGING);
+    searchCacheTtl = PropertiesUtil.toInteger(props.get(SEARCH_CACHE_TTL),
+        DEFAULT_SEARCH_CACHE_TTL) * 1000L;
+    final int searchCacheSize = PropertiesUtil.toInteger(props.get(SEARCH_CACHE_SIZE),
+        DEFAULT_SEARCH_CACHE_SIZE);
+    searchCache = Collections.synchronizedMap(new LinkedHashMap<String, UrlSearchResults>(
+        16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, UrlSearchResults> eldest) {
+        return size() > searchCacheSize;
+      }
+    });
   }
 
   /*
@@ -211,19 +255,75 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
    */
   public ExternalSearchResultSet search(Node node,
       Map<String, Object> searchProperties) throws DocProxyException {
+    return search(node, searchProperties, 0, -1);
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see
+   * org.sakaiproject.nakamura.api.docproxy.ExternalRepositoryProcessor#search(javax.jcr
+   * .Node, java.util.Map, long, long)
+   */
+  public ExternalSearchResultSet search(Node node,
+      Map<String, Object> searchProperties, long offset, long limit)
+      throws DocProxyException {
     try {
-      PostMethod method = new PostMethod(searchUrl);
-      for (Entry<String, Object> entry : searchProperties.entrySet()) {
-        method.addParameter(entry.getKey(), entry.getValue().toString());
+      // a remote search that pages for us returns a different response for every window
+      String key = node.getSession().getUserID() + ";"
+          + new TreeMap<String, Object>(searchProperties)
+          + (searchPaging ? ";" + offset + ";" + limit : "");
+      long now = System.currentTimeMillis();
+      UrlSearchResults results = searchCache.get(key);
+      if (results == null || results.isExpired(now)) {
+        PostMethod method = new PostMethod(searchUrl);
+        for (Entry<String, Object> entry : searchProperties.entrySet()) {
+          method.addParameter(entry.getKey(), entry.getValue().toString());
+        }
+        long first = 0;
+        if (searchPaging) {
+          method.addParameter(SEARCH_OFFSET_PARAM, Long.toString(offset));
+          if (limit >= 0) {
+            method.addParameter(SEARCH_LIMIT_PARAM, Long.toString(limit));
+          }
+          first = offset;
+        }
+        byte[] body;
+        try {
+          executeMethod(method, node);
+          body = method.getResponseBody();
+        } finally {
+          method.releaseConnection();
+        }
+        results = parseSearch(new ByteArrayInputStream(body), first, now
+            + searchCacheTtl);
+        // a response that isn't a list of documents fails here rather than reading as an
+        // empty result
+        results.parseFirst();
+        if (searchCacheTtl > 0) {
+          searchCache.put(key, results);
+        } else {
+          searchCache.remove(key);
+        }
       }
-      executeMethod(method, node);
-      List<ExternalDocumentResult> results = parseSearch(method.getResponseBodyAsStream());
-      ExternalSearchResultSet resultSet = new ExternalSearchResultSetImpl(results.iterator(), (long)results.size());
-      return resultSet;
+      final UrlSearchResults searchResults = results;
+      return new ExternalSearchResultSetImpl(searchResults.iterator(offset), 0) {
+        /**
+         * The response is not parsed to the end to count the documents, unless the
+         * remote search gives a total the size is the number read so far plus one if
+         * there are more.
+         */
+        @Override
+        public long getSize() {
+          return searchResults.getSize();
+        }
+      };
     } catch (XMLStreamException e) {
       throw new DocProxyException(500, e.getMessage());
     } catch (IOException e) {
       throw new DocProxyException(500, e.getMessage());
+    } catch (RepositoryException e) {
+      throw new DocProxyException(500, e.getMessage());
     }
   }
 
@@ -266,11 +366,12 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
   }
 
   /**
-   * Parse search results information into documents.
+   * Parse search results information into documents. The documents are parsed as the
+   * results are read, rather than all at once.
    * <p>
    * The expected format of the returned information is:<br/>
    * <code>
-   * <documents>
+   * <documents total="%s">
    *   <document contentLength="%s" contentType="%s" uri="%s">
    *     <properties>
    *       <key1>value1</key1>
@@ -279,36 +380,21 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
    *   </document>
    * </documents>
    * </code>
+   * where the total is optional.
    * </p>
    * 
    * @param body
+   * @param offset
+   *          the index of the first document in the body.
+   * @param expires
+   *          the time in ms after which the results should not be reused.
    * @return
-   * @throws JSONException
+   * @throws XMLStreamException
    */
-  protected List<ExternalDocumentResult> parseSearch(InputStream body)
+  protected UrlSearchResults parseSearch(InputStream body, long offset, long expires)
       throws XMLStreamException {
-    ArrayList<ExternalDocumentResult> results = new ArrayList<ExternalDocumentResult>();
-
     XMLEventReader eventReader = xmlInputFactory.createXMLEventReader(body);
-    while (eventReader.hasNext()) {
-      XMLEvent event = eventReader.nextEvent();
-      // process the event if we're starting an element
-      if (event.isStartElement()) {
-
-        StartElement startEl = event.asStartElement();
-        QName startElName = startEl.getName();
-        String startElLocalName = startElName.getLocalPart();
-
-        // process the href element
-        if ("document".equalsIgnoreCase(startElLocalName)) {
-          results.add(parseDocument(startEl, null));
-          event = eventReader.nextEvent();
-          continue;
-        }
-      }
-    }
-
-    return results;
+    return new UrlSearchResults(this, eventReader, offset, expires);
   }
 
   /**
@@ -371,7 +457,7 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
    * @throws XMLStreamException
    *           If there is a problem processing the element.
    */
-  private UrlDocumentResult parseDocument(StartElement startEl, UrlDocumentResult doc)
+  UrlDocumentResult parseDocument(StartElement startEl, UrlDocumentResult doc)
       throws XMLStreamException {
 
     UrlDocumentResult _doc = null;
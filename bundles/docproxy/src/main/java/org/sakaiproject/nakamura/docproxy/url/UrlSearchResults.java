@@ -0,0 +1,188 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.docproxy.url;
+
+import org.sakaiproject.nakamura.api.docproxy.ExternalDocumentResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * The documents of a search response, parsed from the response only as far as they are
+ * read. The parsed documents are kept, so the results can be cached and read again from
+ * another offset without going back to the remote search.
+ * <p>
+ * A response that can't be parsed up to its first document fails the search. One that
+ * breaks off later ends the results where it broke, and is not reused.
+ */
+class UrlSearchResults {
+  private static final Logger LOGGER = LoggerFactory.getLogger(UrlSearchResults.class);
+
+  private final UrlRepositoryProcessor processor;
+  private final XMLEventReader eventReader;
+  private final long offset;
+  private final long expires;
+  private final List<ExternalDocumentResult> documents = new ArrayList<ExternalDocumentResult>();
+  private long total = -1;
+  private boolean complete;
+  private boolean failed;
+
+  /**
+   * @param offset
+   *          the index of the first document in the response, non zero when the remote
+   *          search paged the results itself.
+   * @param expires
+   *          the time in ms after which these results should not be reused.
+   */
+  UrlSearchResults(UrlRepositoryProcessor processor, XMLEventReader eventReader,
+      long offset, long expires) {
+    this.processor = processor;
+    this.eventReader = eventReader;
+    this.offset = offset;
+    this.expires = expires;
+  }
+
+  synchronized boolean isExpired(long now) {
+    return failed || now > expires;
+  }
+
+  /**
+   * Parse up to the first document, or the end of a response without any.
+   *
+   * @throws XMLStreamException
+   *           if the response could not be parsed that far.
+   */
+  synchronized void parseFirst() throws XMLStreamException {
+    while (documents.isEmpty() && !complete) {
+      try {
+        parseNext();
+      } catch (XMLStreamException e) {
+        failed = true;
+        finish();
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * @return the total given by the remote search, or otherwise the number of documents
+   *         parsed so far plus one if there are more.
+   */
+  synchronized long getSize() {
+    if (total >= 0) {
+      return total;
+    }
+    return offset + documents.size() + (parseTo(documents.size()) ? 1 : 0);
+  }
+
+  /**
+   * @return the documents from the given index, parsed as the iterator is read.
+   */
+  Iterator<ExternalDocumentResult> iterator(long from) {
+    final long start = Math.max(from - offset, 0);
+    return new Iterator<ExternalDocumentResult>() {
+      private long index = start;
+
+      public boolean hasNext() {
+        synchronized (UrlSearchResults.this) {
+          return parseTo(index);
+        }
+      }
+
+      public ExternalDocumentResult next() {
+        synchronized (UrlSearchResults.this) {
+          if (!parseTo(index)) {
+            throw new NoSuchElementException();
+          }
+          return documents.get((int) index++);
+        }
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Parse documents until the one at the index, relative to the offset, has been read.
+   *
+   * @return true if there is a document at the index.
+   */
+  private boolean parseTo(long index) {
+    while (documents.size() <= index && !complete) {
+      try {
+        parseNext();
+      } catch (XMLStreamException e) {
+        LOGGER.warn("Unable to parse search results after {} documents: {}",
+            documents.size(), e.getMessage());
+        failed = true;
+        finish();
+      }
+    }
+    return documents.size() > index;
+  }
+
+  private void parseNext() throws XMLStreamException {
+    if (!eventReader.hasNext()) {
+      finish();
+      return;
+    }
+    XMLEvent event = eventReader.nextEvent();
+    if (event.isStartElement()) {
+      StartElement startEl = event.asStartElement();
+      String startElLocalName = startEl.getName().getLocalPart();
+      if ("documents".equalsIgnoreCase(startElLocalName)) {
+        readTotal(startEl);
+      } else if ("document".equalsIgnoreCase(startElLocalName)) {
+        documents.add(processor.parseDocument(startEl, null));
+      }
+    }
+  }
+
+  private void finish() {
+    complete = true;
+    try {
+      eventReader.close();
+    } catch (XMLStreamException e) {
+      LOGGER.debug(e.getMessage(), e);
+    }
+  }
+
+  private void readTotal(StartElement startEl) {
+    Attribute attr = startEl.getAttributeByName(new QName("total"));
+    if (attr != null) {
+      try {
+        total = Long.parseLong(attr.getValue());
+      } catch (NumberFormatException e) {
+        LOGGER.debug("Ignoring search total {}", attr.getValue());
+      }
+    }
+  }
+}
@@ -244,6 +244,73 @@ public class DiskProcessorTest {
         RT_EXTERNAL_REPOSITORY_DOCUMENT);
   }
 
+  @Test
+  public void testSearchOnlyWalksWhatIsRead() throws Exception {
+    File root = createTree(3, 50);
+    try {
+      MockNode treeNode = new MockNode("/docproxy/tree");
+      treeNode.setProperty(REPOSITORY_LOCATION, root.getAbsolutePath());
+      Map<String, Object> searchProperties = new HashMap<String, Object>();
+      searchProperties.put("ends-with", ".txt");
+
+      ExternalSearchResultSet resultSet = diskProcessor.search(treeNode, searchProperties);
+      Iterator<ExternalDocumentResult> results = resultSet.getResultIterator();
+      for (int i = 0; i < 10; i++) {
+        // directories and files come in name order.
+        String uri = results.next().getUri();
+        assertEquals(String.format("/dir-0/file-%03d.txt", i),
+            uri.substring(uri.lastIndexOf("/dir-")));
+      }
+      // the rest of the tree has not been walked to count it.
+      assertEquals(11, resultSet.getSize());
+    } finally {
+      delete(root);
+    }
+  }
+
+  @Test
+  public void testIndexedSearch() throws Exception {
+    File root = createTree(3, 50);
+    try {
+      MockComponentContext context = new MockComponentContext(new MockBundle(111));
+      context.setProperty("index.enabled", true);
+      diskProcessor.activate(context);
+      MockNode treeNode = new MockNode("/docproxy/tree");
+      treeNode.setProperty(REPOSITORY_LOCATION, root.getAbsolutePath());
+      Map<String, Object> searchProperties = new HashMap<String, Object>();
+      searchProperties.put("starts-with", "file-");
+
+      assertEquals(150, diskProcessor.search(treeNode, searchProperties).getSize());
+      createFile(diskProcessor, treeNode, "dir-0/file-999.txt", "new");
+      assertEquals(151, diskProcessor.search(treeNode, searchProperties).getSize());
+    } finally {
+      delete(root);
+    }
+  }
+
+  private File createTree(int directories, int files) throws IOException {
+    File root = File.createTempFile("diskprocessor", "");
+    root.delete();
+    for (int d = 0; d < directories; d++) {
+      File directory = new File(root, "dir-" + d);
+      directory.mkdirs();
+      for (int f = 0; f < files; f++) {
+        new File(directory, String.format("file-%03d.txt", f)).createNewFile();
+      }
+    }
+    return root;
+  }
+
+  private void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
   public static Node createFile(DiskProcessor processor, Node proxyNode, String path,
       String content) throws PathNotFoundException, RepositoryException,
       UnsupportedEncodingException, DocProxyException {
@@ -18,11 +18,14 @@
 package org.sakaiproject.nakamura.docproxy.url;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Properties;
 
 import javax.jcr.Node;
@@ -36,8 +39,10 @@ import org.mockito.Answers;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.docproxy.DocProxyException;
 import org.sakaiproject.nakamura.api.docproxy.ExternalDocumentResult;
 import org.sakaiproject.nakamura.api.docproxy.ExternalDocumentResultMetadata;
+import org.sakaiproject.nakamura.api.docproxy.ExternalSearchResultSet;
 import org.sakaiproject.nakamura.docproxy.url.requestHandlers.DocumentRequestHandler;
 import org.sakaiproject.nakamura.docproxy.url.requestHandlers.MetadataRequestHandler;
 import org.sakaiproject.nakamura.docproxy.url.requestHandlers.RemoveRequestHandler;
@@ -155,6 +160,51 @@ public class UrlRepositoryProcessorTest {
     processor.search(node, props);
   }
 
+  @Test
+  public void testSearchWindow() throws Exception {
+    HashMap<String, Object> props = new HashMap<String, Object>();
+    props.put("key1", "value1");
+    ExternalSearchResultSet resultSet = processor.search(node, props, 2, 2);
+    Iterator<ExternalDocumentResult> results = resultSet.getResultIterator();
+    assertEquals(docResult3, results.next());
+    assertEquals(docResult4, results.next());
+    assertEquals(5, resultSet.getSize());
+  }
+
+  @Test
+  public void testSearchPageTurnUsesCache() throws Exception {
+    HashMap<String, Object> props = new HashMap<String, Object>();
+    props.put("key1", "value1");
+    processor.search(node, props, 0, 2).getResultIterator().next();
+    ExternalSearchResultSet resultSet = processor.search(node, props, 4, 2);
+    assertEquals(docResult5, resultSet.getResultIterator().next());
+    assertFalse(resultSet.getResultIterator().hasNext());
+    assertEquals(1, searchHandler.getRequestCount());
+
+    // a different query goes to the remote search
+    props.put("key1", "value2");
+    processor.search(node, props, 0, 2);
+    assertEquals(2, searchHandler.getRequestCount());
+  }
+
+  @Test
+  public void testMalformedSearchResponseFailsTheSearch() throws Exception {
+    HashMap<String, Object> props = new HashMap<String, Object>();
+    props.put("key1", "value1");
+    searchHandler.setMalformed(true);
+    try {
+      processor.search(node, props, 0, 2);
+      fail("A response that can't be parsed should fail the search");
+    } catch (DocProxyException e) {
+      assertEquals(500, e.getCode());
+    }
+
+    // the failed response is not cached
+    searchHandler.setMalformed(false);
+    assertEquals(docResult1, processor.search(node, props, 0, 2).getResultIterator().next());
+    assertEquals(2, searchHandler.getRequestCount());
+  }
+
   @Test
   public void testUpdateDocument() throws Exception {
     HashMap<String, Object> props = new HashMap<String, Object>();
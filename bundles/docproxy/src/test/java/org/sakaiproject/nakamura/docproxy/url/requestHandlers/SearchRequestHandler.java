@@ -36,6 +36,8 @@ public class SearchRequestHandler implements HttpRequestHandler {
   private static final String DOCUMENT_ELEMENT_PATTERN = "<document contentLength=\"%s\" contentType=\"%s\" uri=\"%s\" />\n";
 
   private UrlDocumentResult[] docs;
+  private int requestCount;
+  private boolean malformed;
 
   public SearchRequestHandler(UrlDocumentResult... docs) {
     this.docs = docs;
@@ -49,9 +51,15 @@ public class SearchRequestHandler implements HttpRequestHandler {
    */
   public void handle(HttpRequest request, HttpResponse response, HttpContext context)
       throws HttpException, IOException {
+    requestCount++;
     response.setStatusCode(200);
     response.setHeader("Content-type", "text/xml");
 
+    if (malformed) {
+      response.setEntity(new StringEntity("<search>\n<documents>\n<document uri=\n"));
+      return;
+    }
+
     StringBuilder output = new StringBuilder("<search>\n");
     output.append("<documents>\n");
     for (UrlDocumentResult doc : docs) {
@@ -83,4 +91,15 @@ public class SearchRequestHandler implements HttpRequestHandler {
     response.setEntity(entity);
   }
 
+  /**
+   * @param malformed
+   *          true to answer with a response that breaks off before its first document.
+   */
+  public void setMalformed(boolean malformed) {
+    this.malformed = malformed;
+  }
+
+  public int getRequestCount() {
+    return requestCount;
+  }
 }
@@ -56,11 +56,14 @@ import java.io.ByteArrayOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -77,11 +80,19 @@ import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
 import javax.jms.Queue;
 import javax.jms.Session;
+import javax.mail.Address;
 import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.management.ObjectName;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
+/**
+ * Sends the email messages put on the outgoing email queue. Several consumers take
+ * messages off the queue concurrently and share a pool of open SMTP connections. A
+ * message to many recipients is built once and sent in batches of envelope recipients.
+ */
 @Component(immediate = true, metatype = true)
 public class LiteOutgoingEmailMessageListener implements MessageListener {
   private static final Logger LOGGER = LoggerFactory
@@ -108,6 +119,18 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   private static final String REPLY_AS_ADDRESS = "sakai.email.replyAsAddress";
   @Property(value = "Sakai OAE")
   private static final String REPLY_AS_NAME = "sakai.email.replyAsName";
+  @Property(intValue = 4)
+  private static final String CONSUMERS = "sakai.email.consumers";
+  @Property(intValue = 4)
+  private static final String SMTP_MAX_CONNECTIONS = "sakai.smtp.maxConnections";
+  @Property(intValue = 50)
+  private static final String SMTP_MAX_RECIPIENTS = "sakai.smtp.maxRecipientsPerMessage";
+  @Property(intValue = 60)
+  private static final String SMTP_MAX_IDLE = "sakai.smtp.maxIdleSeconds";
+  @Property(intValue = 60)
+  private static final String SMTP_TIMEOUT = "sakai.smtp.timeoutSeconds";
+
+  static final String STATS_MBEAN_NAME = "org.sakaiproject.nakamura.email.outgoing:type=OutgoingEmail";
 
   protected static final String QUEUE_NAME = "org/sakaiproject/nakamura/message/email/outgoing";
 
@@ -148,6 +171,9 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   private Integer retryInterval;
   private String replyAsAddress;
   private String replyAsName;
+  private volatile SmtpTransportPool transportPool;
+  private final OutgoingEmailStats stats = new OutgoingEmailStats();
+  private boolean statsRegistered;
 
 
   public LiteOutgoingEmailMessageListener() {
@@ -161,6 +187,7 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   public void onMessage(Message message) {
     try {
       LOGGER.debug("Started handling email jms message.");
+      stats.messageReceived();
 
       String nodePath = message.getStringProperty(NODE_PATH_PROPERTY);
       String contentPath = message.getStringProperty(CONTENT_PATH_PROPERTY);
@@ -207,52 +234,22 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
                         sparseSession);
 
                     setOptions(email);
+                    email.buildMimeMessage();
                     if (LOGGER.isDebugEnabled()) {
-                      // build wrapped meesage in order to log it
-                      email.buildMimeMessage();
                       logEmail(email);
                     }
-                    email.send();
-                  } catch (EmailException e) {
-                    String exMessage = e.getMessage();
-                    Throwable cause = e.getCause();
-
-                    setError(messageContent, exMessage);
-                    LOGGER.warn("Unable to send email: " + exMessage);
-
-                    // Get the SMTP error code
-                    // There has to be a better way to do this
-                    boolean rescheduled = false;
-                    if (cause != null && cause.getMessage() != null) {
-                      String smtpError = cause.getMessage().trim();
-                      try {
-                        int errorCode = Integer.parseInt(smtpError.substring(0, 3));
-                        // All retry-able SMTP errors should have codes starting
-                        // with 4
-                        scheduleRetry(errorCode, messageContent);
-                        rescheduled = true;
-                      } catch (NumberFormatException nfe) {
-                        // smtpError didn't start with an error code, let's dig for
-                        // it
-                        String searchFor = "response:";
-                        int rindex = smtpError.indexOf(searchFor);
-                        if (rindex > -1
-                            && (rindex + searchFor.length()) < smtpError.length()) {
-                          int errorCode = Integer.parseInt(smtpError.substring(
-                              searchFor.length(), searchFor.length() + 3));
-                          scheduleRetry(errorCode, messageContent);
-                          rescheduled = true;
-                        }
-                      }
-                    }
-                    if (rescheduled) {
-                      LOGGER.info("Email {} rescheduled for redelivery. ", nodePath);
-                    } else {
-                      LOGGER
-                          .error(
-                              "Unable to reschedule email for delivery: "
-                                  + e.getMessage(), e);
+                    transportPool.send(email.getMimeMessage(), getUndeliveredRecipients(
+                        getEnvelopeRecipients(email), messageContent));
+                    if (messageContent.hasProperty(MessageConstants.PROP_SAKAI_DELIVERED_TO)) {
+                      messageContent.removeProperty(MessageConstants.PROP_SAKAI_DELIVERED_TO);
                     }
+                  } catch (EmailException e) {
+                    sendFailed(messageContent, nodePath, e);
+                  } catch (SendFailedException e) {
+                    addDelivered(messageContent, e.getValidSentAddresses());
+                    sendFailed(messageContent, nodePath, e);
+                  } catch (MessagingException e) {
+                    sendFailed(messageContent, nodePath, e);
                   }
                 } else {
                   setError(messageContent, "Message must have a to and from set");
@@ -264,6 +261,7 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
                 messageContent.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX,
                     MessageConstants.BOX_SENT);
               }
+              contentManager.update(messageContent);
             }
           } else {
             String retval = "null";
@@ -293,6 +291,123 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     }
   }
 
+  private void sendFailed(Content messageContent, String nodePath, Exception e) {
+    stats.failed();
+    setError(messageContent, e.getMessage());
+    LOGGER.warn("Unable to send email: " + e.getMessage());
+
+    int errorCode = getSmtpReplyCode(e);
+    if (errorCode >= 0) {
+      scheduleRetry(errorCode, messageContent);
+      LOGGER.info("Email {} rescheduled for redelivery. ", nodePath);
+    } else {
+      LOGGER.error("Unable to reschedule email for delivery: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Find the SMTP reply code in an exception or its causes, the code is either at the
+   * start of the message or follows "response:".
+   *
+   * @return the reply code, or -1 if there is none.
+   */
+  static int getSmtpReplyCode(Throwable e) {
+    String searchFor = "response:";
+    for (int depth = 0; e != null && depth < 10; depth++) {
+      String message = e.getMessage();
+      if (message != null) {
+        message = message.trim();
+        int errorCode = parseReplyCode(message);
+        int rindex = message.indexOf(searchFor);
+        if (errorCode < 0 && rindex > -1) {
+          errorCode = parseReplyCode(message.substring(rindex + searchFor.length()).trim());
+        }
+        if (errorCode >= 0) {
+          return errorCode;
+        }
+      }
+      Throwable next = e.getCause();
+      if (next == null && e instanceof MessagingException) {
+        next = ((MessagingException) e).getNextException();
+      }
+      e = next;
+    }
+    return -1;
+  }
+
+  private static int parseReplyCode(String message) {
+    if (message.length() < 3
+        || (message.length() > 3 && Character.isLetterOrDigit(message.charAt(3)))) {
+      return -1;
+    }
+    try {
+      int errorCode = Integer.parseInt(message.substring(0, 3));
+      return errorCode >= 200 && errorCode < 600 ? errorCode : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return the addresses the email is delivered to, including the Bcc addresses.
+   */
+  @SuppressWarnings("unchecked")
+  private List<InternetAddress> getEnvelopeRecipients(MultiPartEmail email) {
+    List<InternetAddress> addresses = new ArrayList<InternetAddress>();
+    addresses.addAll(email.getToAddresses());
+    addresses.addAll(email.getCcAddresses());
+    addresses.addAll(email.getBccAddresses());
+    return addresses;
+  }
+
+  /**
+   * @return the recipients the message has not been sent to by an earlier attempt.
+   */
+  private List<InternetAddress> getUndeliveredRecipients(List<InternetAddress> recipients,
+      Content messageContent) {
+    Set<String> delivered = getDelivered(messageContent);
+    if (delivered.isEmpty()) {
+      return recipients;
+    }
+    List<InternetAddress> undelivered = new ArrayList<InternetAddress>();
+    for (InternetAddress recipient : recipients) {
+      if (!delivered.contains(recipient.getAddress().toLowerCase())) {
+        undelivered.add(recipient);
+      }
+    }
+    LOGGER.info("Message {} was already sent to {} of {} recipients ", new Object[] {
+        messageContent.getPath(), recipients.size() - undelivered.size(),
+        recipients.size() });
+    return undelivered;
+  }
+
+  /**
+   * Remember who the message went to before a send failed, so a retry leaves them out.
+   */
+  private void addDelivered(Content messageContent, Address[] sent) {
+    if (sent == null || sent.length == 0) {
+      return;
+    }
+    Set<String> delivered = getDelivered(messageContent);
+    for (Address address : sent) {
+      if (address instanceof InternetAddress) {
+        delivered.add(((InternetAddress) address).getAddress().toLowerCase());
+      }
+    }
+    messageContent.setProperty(MessageConstants.PROP_SAKAI_DELIVERED_TO,
+        delivered.toArray(new String[delivered.size()]));
+  }
+
+  private Set<String> getDelivered(Content messageContent) {
+    Set<String> delivered = new LinkedHashSet<String>();
+    if (messageContent.hasProperty(MessageConstants.PROP_SAKAI_DELIVERED_TO)) {
+      delivered.addAll(Arrays.asList(PropertiesUtil.toStringArray(
+          messageContent.getProperty(MessageConstants.PROP_SAKAI_DELIVERED_TO),
+          new String[0])));
+    }
+    return delivered;
+  }
+
   /**
    * Set transfer options on the email based on configuration of this service.
    *
@@ -495,6 +610,8 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
       }
 
       if (retryCount < maxRetries) {
+        contentNode.setProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT, retryCount + 1);
+        stats.retryScheduled();
         Job job = new Job() {
 
           public void execute(JobContext jc) {
@@ -597,12 +714,29 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     authUser = PropertiesUtil.toString(props.get(SMTP_AUTH_USER), "");
     authPass = PropertiesUtil.toString(props.get(SMTP_AUTH_PASS), "");
 
+    int maxConnections = PropertiesUtil.toInteger(props.get(SMTP_MAX_CONNECTIONS), 4);
+    int maxRecipients = PropertiesUtil.toInteger(props.get(SMTP_MAX_RECIPIENTS), 50);
+    long maxIdle = PropertiesUtil.toInteger(props.get(SMTP_MAX_IDLE), 60) * 1000L;
+    int timeout = PropertiesUtil.toInteger(props.get(SMTP_TIMEOUT), 60) * 1000;
+    SmtpTransportPool oldPool = transportPool;
+    transportPool = new SmtpTransportPool(createMailSession(timeout), smtpServer,
+        smtpPort, authUser, authPass, maxConnections, maxRecipients, maxIdle, stats);
+    if (oldPool != null) {
+      oldPool.close();
+    }
+    registerStats();
+
+    closeConnection();
+    int consumers = Math.max(1, PropertiesUtil.toInteger(props.get(CONSUMERS), 4));
     try {
       connection = connFactoryService.getDefaultConnectionFactory().createConnection();
-      Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-      Queue dest = session.createQueue(QUEUE_NAME);
-      MessageConsumer consumer = session.createConsumer(dest);
-      consumer.setMessageListener(this);
+      // a JMS session delivers to one listener at a time, one per consumer.
+      for (int i = 0; i < consumers; i++) {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        Queue dest = session.createQueue(QUEUE_NAME);
+        MessageConsumer consumer = session.createConsumer(dest);
+        consumer.setMessageListener(this);
+      }
       connection.start();
     } catch (JMSException e) {
       LOGGER.error(e.getMessage(), e);
@@ -617,12 +751,72 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
 
   @Deactivate
   protected void deactivate(ComponentContext ctx) {
+    closeConnection();
+    if (transportPool != null) {
+      transportPool.close();
+    }
+    unregisterStats();
+  }
+
+  private void closeConnection() {
     if (connection != null) {
       try {
         connection.close();
       } catch (JMSException e) {
       }
+      connection = null;
+    }
+  }
+
+  /**
+   * @return a mail session for the configured server, with connect and read timeouts so a
+   *         stalled server does not hold a consumer forever.
+   */
+  private javax.mail.Session createMailSession(int timeout) {
+    String protocol = useSsl ? "smtps" : "smtp";
+    Properties mailProps = new Properties();
+    mailProps.put("mail.transport.protocol", protocol);
+    mailProps.put("mail." + protocol + ".host", smtpServer);
+    mailProps.put("mail." + protocol + ".port", String.valueOf(smtpPort));
+    mailProps.put("mail." + protocol + ".connectiontimeout", String.valueOf(timeout));
+    mailProps.put("mail." + protocol + ".timeout", String.valueOf(timeout));
+    if (useTls) {
+      mailProps.put("mail." + protocol + ".starttls.enable", "true");
+    }
+    if (!StringUtils.isBlank(authUser) && !StringUtils.isBlank(authPass)) {
+      mailProps.put("mail." + protocol + ".auth", "true");
+    }
+    return javax.mail.Session.getInstance(mailProps);
+  }
+
+  OutgoingEmailStats getStats() {
+    return stats;
+  }
+
+  private void registerStats() {
+    if (statsRegistered) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(stats,
+          new ObjectName(STATS_MBEAN_NAME));
+      statsRegistered = true;
+    } catch (Exception e) {
+      LOGGER.warn("Unable to register outgoing email statistics: {} ", e.getMessage());
+    }
+  }
+
+  private void unregisterStats() {
+    if (!statsRegistered) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+          new ObjectName(STATS_MBEAN_NAME));
+    } catch (Exception e) {
+      LOGGER.debug("Unable to unregister outgoing email statistics: {} ", e.getMessage());
     }
+    statsRegistered = false;
   }
 
   private void setError(Content node, String error) {
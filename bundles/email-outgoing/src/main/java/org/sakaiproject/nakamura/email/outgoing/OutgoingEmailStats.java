@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for outgoing email, shared by the consumers and the transport pool.
+ */
+public class OutgoingEmailStats implements OutgoingEmailStatsMBean {
+
+  private final AtomicLong messageCount = new AtomicLong();
+  private final AtomicLong sentCount = new AtomicLong();
+  private final AtomicLong recipientCount = new AtomicLong();
+  private final AtomicLong failedCount = new AtomicLong();
+  private final AtomicLong retryCount = new AtomicLong();
+  private final AtomicLong connectionsOpened = new AtomicLong();
+  private final AtomicInteger activeConnections = new AtomicInteger();
+  private final AtomicInteger waitingForConnection = new AtomicInteger();
+
+  void messageReceived() {
+    messageCount.incrementAndGet();
+  }
+
+  void sent(int recipients) {
+    sentCount.incrementAndGet();
+    recipientCount.addAndGet(recipients);
+  }
+
+  void failed() {
+    failedCount.incrementAndGet();
+  }
+
+  void retryScheduled() {
+    retryCount.incrementAndGet();
+  }
+
+  void connectionOpened() {
+    connectionsOpened.incrementAndGet();
+  }
+
+  void waiting(int delta) {
+    waitingForConnection.addAndGet(delta);
+  }
+
+  void active(int delta) {
+    activeConnections.addAndGet(delta);
+  }
+
+  public long getMessageCount() {
+    return messageCount.get();
+  }
+
+  public long getSentCount() {
+    return sentCount.get();
+  }
+
+  public long getRecipientCount() {
+    return recipientCount.get();
+  }
+
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  public long getRetryCount() {
+    return retryCount.get();
+  }
+
+  public long getConnectionsOpened() {
+    return connectionsOpened.get();
+  }
+
+  public int getActiveConnections() {
+    return activeConnections.get();
+  }
+
+  public int getWaitingForConnection() {
+    return waitingForConnection.get();
+  }
+}
@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+/**
+ * Management view of outgoing email delivery.
+ */
+public interface OutgoingEmailStatsMBean {
+
+  /**
+   * @return the number of email messages taken off the queue.
+   */
+  long getMessageCount();
+
+  /**
+   * @return the number of messages handed to the SMTP server, one per recipient batch.
+   */
+  long getSentCount();
+
+  /**
+   * @return the number of recipients the SMTP server accepted.
+   */
+  long getRecipientCount();
+
+  /**
+   * @return the number of messages that could not be sent.
+   */
+  long getFailedCount();
+
+  /**
+   * @return the number of messages scheduled to be retried.
+   */
+  long getRetryCount();
+
+  /**
+   * @return the number of SMTP connections opened.
+   */
+  long getConnectionsOpened();
+
+  /**
+   * @return the number of SMTP connections in use.
+   */
+  int getActiveConnections();
+
+  /**
+   * @return the number of senders waiting for an SMTP connection.
+   */
+  int getWaitingForConnection();
+}
@@ -0,0 +1,260 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Keeps SMTP connections open between messages so a burst of email does not pay for a
+ * connect, greeting and authentication per message. At most <code>maxConnections</code>
+ * connections are in use at a time; further senders wait for one to come back, which
+ * leaves the backlog on the JMS queue rather than on the SMTP server. Connections idle
+ * for longer than <code>maxIdle</code> ms are closed rather than reused, as servers drop
+ * idle clients.
+ */
+class SmtpTransportPool {
+  private static final Logger LOGGER = LoggerFactory.getLogger(SmtpTransportPool.class);
+
+  private final Session mailSession;
+  private final String host;
+  private final int port;
+  private final String user;
+  private final String password;
+  private final int maxRecipientsPerMessage;
+  private final long maxIdle;
+  private final OutgoingEmailStats stats;
+  private final Semaphore permits;
+  private final LinkedBlockingDeque<PooledTransport> idle = new LinkedBlockingDeque<PooledTransport>();
+  private volatile boolean closed;
+
+  /**
+   * @param mailSession
+   *          the session the connections are created from.
+   * @param maxConnections
+   *          the number of connections that may be in use at a time.
+   * @param maxRecipientsPerMessage
+   *          the number of envelope recipients sent with one copy of a message.
+   * @param maxIdle
+   *          the time in ms after which an idle connection is closed.
+   */
+  SmtpTransportPool(Session mailSession, String host, int port, String user,
+      String password, int maxConnections, int maxRecipientsPerMessage, long maxIdle,
+      OutgoingEmailStats stats) {
+    this.mailSession = mailSession;
+    this.host = host;
+    this.port = port;
+    this.user = StringUtils.isBlank(user) ? null : user;
+    this.password = StringUtils.isBlank(password) ? null : password;
+    this.maxRecipientsPerMessage = Math.max(1, maxRecipientsPerMessage);
+    this.maxIdle = maxIdle;
+    this.stats = stats;
+    this.permits = new Semaphore(Math.max(1, maxConnections), true);
+  }
+
+  Session getMailSession() {
+    return mailSession;
+  }
+
+  /**
+   * Send a message to the recipients, in batches of at most
+   * <code>maxRecipientsPerMessage</code> envelope recipients over one connection. The
+   * message is only built once, Bcc headers are never transmitted.
+   *
+   * @throws MessagingException
+   *           if a batch could not be sent. When earlier batches have been sent this is a
+   *           {@link SendFailedException} listing the addresses the message went to, so
+   *           a retry can leave them out.
+   */
+  void send(MimeMessage message, List<? extends Address> recipients)
+      throws MessagingException {
+    if (recipients.isEmpty()) {
+      return;
+    }
+    List<Address> sent = new ArrayList<Address>();
+    PooledTransport pooled = acquire();
+    try {
+      for (int i = 0; i < recipients.size(); i += maxRecipientsPerMessage) {
+        List<? extends Address> batch = recipients.subList(i,
+            Math.min(recipients.size(), i + maxRecipientsPerMessage));
+        Address[] addresses = batch.toArray(new Address[batch.size()]);
+        try {
+          pooled.transport.sendMessage(message, addresses);
+        } catch (MessagingException e) {
+          if (!pooled.reused || LiteOutgoingEmailMessageListener.getSmtpReplyCode(e) >= 0) {
+            throw e;
+          }
+          // the server dropped the connection while it was idle, try once on a new one.
+          LOGGER.debug("Pooled SMTP connection failed, reconnecting: {} ", e.getMessage());
+          discard(pooled);
+          pooled = null;
+          pooled = connect();
+          pooled.transport.sendMessage(message, addresses);
+        }
+        pooled.reused = true;
+        stats.sent(addresses.length);
+        sent.addAll(batch);
+      }
+    } catch (MessagingException e) {
+      discard(pooled);
+      pooled = null;
+      throw partialFailure(e, recipients, sent);
+    } catch (RuntimeException e) {
+      discard(pooled);
+      pooled = null;
+      throw e;
+    } finally {
+      release(pooled);
+    }
+  }
+
+  /**
+   * @return e, or if some recipients already got the message a
+   *         {@link SendFailedException} that says which did and which did not.
+   */
+  private MessagingException partialFailure(MessagingException e,
+      List<? extends Address> recipients, List<Address> sent) {
+    if (sent.isEmpty()) {
+      return e;
+    }
+    List<Address> delivered = new ArrayList<Address>(sent);
+    List<Address> invalid = new ArrayList<Address>();
+    if (e instanceof SendFailedException) {
+      // the failed batch may have gone to some of its recipients.
+      SendFailedException failed = (SendFailedException) e;
+      if (failed.getValidSentAddresses() != null) {
+        delivered.addAll(Arrays.asList(failed.getValidSentAddresses()));
+      }
+      if (failed.getInvalidAddresses() != null) {
+        invalid.addAll(Arrays.asList(failed.getInvalidAddresses()));
+      }
+    }
+    List<Address> unsent = new ArrayList<Address>();
+    for (Address recipient : recipients) {
+      if (!delivered.contains(recipient) && !invalid.contains(recipient)) {
+        unsent.add(recipient);
+      }
+    }
+    return new SendFailedException(e.getMessage(), e,
+        delivered.toArray(new Address[delivered.size()]),
+        unsent.toArray(new Address[unsent.size()]),
+        invalid.toArray(new Address[invalid.size()]));
+  }
+
+  /**
+   * Close the idle connections, connections in use are closed as they are released.
+   */
+  void close() {
+    closed = true;
+    PooledTransport pooled;
+    while ((pooled = idle.poll()) != null) {
+      close(pooled.transport);
+    }
+  }
+
+  private PooledTransport acquire() throws MessagingException {
+    stats.waiting(1);
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MessagingException("Interrupted waiting for an SMTP connection");
+    } finally {
+      stats.waiting(-1);
+    }
+    stats.active(1);
+    try {
+      long now = System.currentTimeMillis();
+      PooledTransport pooled;
+      // the most recently used connection is the most likely to still be open.
+      while ((pooled = idle.pollFirst()) != null) {
+        if (now - pooled.lastUsed < maxIdle && pooled.transport.isConnected()) {
+          return pooled;
+        }
+        close(pooled.transport);
+      }
+      return connect();
+    } catch (MessagingException e) {
+      stats.active(-1);
+      permits.release();
+      throw e;
+    } catch (RuntimeException e) {
+      stats.active(-1);
+      permits.release();
+      throw e;
+    }
+  }
+
+  private PooledTransport connect() throws MessagingException {
+    Transport transport = mailSession.getTransport();
+    transport.connect(host, port, user, password);
+    stats.connectionOpened();
+    return new PooledTransport(transport);
+  }
+
+  private void release(PooledTransport pooled) {
+    if (pooled != null) {
+      if (closed) {
+        close(pooled.transport);
+      } else {
+        pooled.lastUsed = System.currentTimeMillis();
+        idle.offerFirst(pooled);
+      }
+    }
+    stats.active(-1);
+    permits.release();
+  }
+
+  private void discard(PooledTransport pooled) {
+    if (pooled != null) {
+      close(pooled.transport);
+    }
+  }
+
+  private void close(Transport transport) {
+    try {
+      transport.close();
+    } catch (MessagingException e) {
+      LOGGER.debug("Failed to close SMTP connection: {} ", e.getMessage());
+    }
+  }
+
+  private static class PooledTransport {
+    private final Transport transport;
+    private long lastUsed;
+    private boolean reused;
+
+    private PooledTransport(Transport transport) {
+      this.transport = transport;
+    }
+  }
+}
@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+public class SmtpTransportPoolTest {
+
+  private Wiser wiser;
+  private int port;
+  private Session mailSession;
+  private OutgoingEmailStats stats;
+
+  @Before
+  public void setUp() throws Exception {
+    ServerSocket socket = new ServerSocket(0);
+    port = socket.getLocalPort();
+    socket.close();
+    wiser = new Wiser();
+    wiser.setPort(port);
+    wiser.start();
+    mailSession = Session.getInstance(new Properties());
+    stats = new OutgoingEmailStats();
+  }
+
+  @After
+  public void tearDown() {
+    wiser.stop();
+  }
+
+  @Test
+  public void testConnectionIsReusedAcrossMessages() throws Exception {
+    SmtpTransportPool pool = createPool(2, 50);
+    pool.send(createMessage("first"), addresses("alice@example.com"));
+    pool.send(createMessage("second"), addresses("bob@example.com"));
+    pool.close();
+
+    assertEquals(2, wiser.getMessages().size());
+    assertEquals(1, stats.getConnectionsOpened());
+    assertEquals(2, stats.getSentCount());
+    assertEquals(0, stats.getActiveConnections());
+  }
+
+  @Test
+  public void testRecipientsAreSentInBatches() throws Exception {
+    SmtpTransportPool pool = createPool(1, 2);
+    MimeMessage message = createMessage("announcement");
+    List<InternetAddress> recipients = addresses("a@example.com", "b@example.com",
+        "c@example.com", "d@example.com", "e@example.com");
+    for (InternetAddress recipient : recipients) {
+      message.addRecipient(RecipientType.BCC, recipient);
+    }
+    pool.send(message, recipients);
+    pool.close();
+
+    Set<String> received = new HashSet<String>();
+    for (WiserMessage delivered : wiser.getMessages()) {
+      received.add(delivered.getEnvelopeReceiver());
+      assertEquals("announcement", delivered.getMimeMessage().getSubject());
+      // the recipients must not see each other.
+      assertNull(delivered.getMimeMessage().getHeader("Bcc"));
+    }
+    assertEquals(5, received.size());
+    assertEquals(3, stats.getSentCount());
+    assertEquals(5, stats.getRecipientCount());
+    assertEquals(1, stats.getConnectionsOpened());
+  }
+
+  @Test
+  public void testStaleConnectionIsReplaced() throws Exception {
+    SmtpTransportPool pool = createPool(1, 50);
+    pool.send(createMessage("first"), addresses("alice@example.com"));
+    // the server goes away and comes back, dropping the pooled connection.
+    wiser.stop();
+    wiser = new Wiser();
+    wiser.setPort(port);
+    wiser.start();
+    pool.send(createMessage("second"), addresses("bob@example.com"));
+    pool.close();
+
+    assertEquals(1, wiser.getMessages().size());
+    assertEquals(2, stats.getConnectionsOpened());
+  }
+
+  @Test
+  public void testPartialFailureReportsDeliveredRecipients() throws Exception {
+    wiser.stop();
+    wiser = new Wiser() {
+      @Override
+      public boolean accept(String from, String recipient) {
+        return !recipient.startsWith("c@") && !recipient.startsWith("d@");
+      }
+    };
+    wiser.setPort(port);
+    wiser.start();
+
+    SmtpTransportPool pool = createPool(1, 2);
+    List<InternetAddress> recipients = addresses("a@example.com", "b@example.com",
+        "c@example.com", "d@example.com", "e@example.com");
+    try {
+      pool.send(createMessage("announcement"), recipients);
+      fail("The second batch should have been refused");
+    } catch (SendFailedException e) {
+      assertEquals(recipients.subList(0, 2), Arrays.asList(e.getValidSentAddresses()));
+      assertEquals(recipients.subList(4, 5), Arrays.asList(e.getValidUnsentAddresses()));
+      assertEquals(recipients.subList(2, 4), Arrays.asList(e.getInvalidAddresses()));
+      assertEquals(553, LiteOutgoingEmailMessageListener.getSmtpReplyCode(e));
+    }
+    pool.close();
+
+    assertEquals(2, wiser.getMessages().size());
+  }
+
+  @Test
+  public void testSmtpReplyCode() {
+    assertEquals(452, LiteOutgoingEmailMessageListener.getSmtpReplyCode(
+        new MessagingException("452 4.5.3 Too many recipients")));
+    assertEquals(421, LiteOutgoingEmailMessageListener.getSmtpReplyCode(
+        new MessagingException("Sending failed", new MessagingException(
+            "Can't send command to SMTP host; response: 421 closing"))));
+    assertEquals(-1, LiteOutgoingEmailMessageListener.getSmtpReplyCode(
+        new MessagingException("Could not connect to SMTP host: localhost, port: 25")));
+  }
+
+  private SmtpTransportPool createPool(int maxConnections, int maxRecipients) {
+    return new SmtpTransportPool(mailSession, "localhost", port, null, null,
+        maxConnections, maxRecipients, 60000, stats);
+  }
+
+  private MimeMessage createMessage(String subject) throws MessagingException {
+    MimeMessage message = new MimeMessage(mailSession);
+    message.setFrom(new InternetAddress("no-reply@example.com"));
+    message.setSubject(subject);
+    message.setText("Hello");
+    return message;
+  }
+
+  private List<InternetAddress> addresses(String... addresses) throws Exception {
+    List<InternetAddress> list = new ArrayList<InternetAddress>();
+    for (String address : addresses) {
+      list.add(new InternetAddress(address));
+    }
+    return list;
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+package org.sakaiproject.nakamura.api.files;
+
+import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_USER_EDITOR;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_USER_MANAGER;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_USER_VIEWER;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permission;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.user.AuthorizableCountChanger;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Changes the managers, editors and viewers of a pooled content item.
+ */
+public class ContentMemberUtils {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ContentMemberUtils.class);
+
+  private static final Permission PERMISSION_EDITOR = Permissions.CAN_READ
+      .combine(Permissions.CAN_WRITE);
+
+  /**
+   * Add and remove members of a pooled content item. The member lists on the content and
+   * its ACL are updated together, and the content counts of everyone added or removed are
+   * marked as changed. No permission checks are made here, the session has to be allowed
+   * to write the content and its ACL.
+   *
+   * @param session
+   *          The session to update the content with.
+   * @param content
+   *          The pooled content item.
+   * @param addManagers
+   *          Ids to add as managers, blank ids are ignored.
+   * @param removeManagers
+   *          Ids to remove as managers, blank ids are ignored.
+   * @param addEditors
+   *          Ids to add as editors, blank ids are ignored.
+   * @param removeEditors
+   *          Ids to remove as editors, blank ids are ignored.
+   * @param addViewers
+   *          Ids to add as viewers, blank ids are ignored.
+   * @param removeViewers
+   *          Ids to remove as viewers, blank ids are ignored. A viewer that is also a
+   *          manager keeps read access.
+   * @param authorizableCountChanger
+   *          Told about everyone whose content count may have changed.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  @SuppressWarnings("unchecked")
+  public static void updateMembers(Session session, Content content,
+      Collection<String> addManagers, Collection<String> removeManagers,
+      Collection<String> addEditors, Collection<String> removeEditors,
+      Collection<String> addViewers, Collection<String> removeViewers,
+      AuthorizableCountChanger authorizableCountChanger) throws StorageClientException,
+      AccessDeniedException {
+    Set<String> managerSet = getMembers(content, POOLED_CONTENT_USER_MANAGER);
+    Set<String> editorSet = getMembers(content, POOLED_CONTENT_USER_EDITOR);
+    Set<String> viewerSet = getMembers(content, POOLED_CONTENT_USER_VIEWER);
+    List<AclModification> aclModifications = Lists.newArrayList();
+
+    for (String addManager : addManagers) {
+      if ((addManager.length() > 0) && managerSet.add(addManager)) {
+        AclModification.addAcl(true, Permissions.CAN_MANAGE, addManager, aclModifications);
+      }
+    }
+    for (String removeManager : removeManagers) {
+      if ((removeManager.length() > 0) && managerSet.remove(removeManager)) {
+        AclModification.removeAcl(true, Permissions.CAN_MANAGE, removeManager,
+            aclModifications);
+      }
+    }
+    for (String addEditor : addEditors) {
+      if ((addEditor.length() > 0) && editorSet.add(addEditor)) {
+        AclModification.addAcl(true, PERMISSION_EDITOR, addEditor, aclModifications);
+      }
+    }
+    for (String removeEditor : removeEditors) {
+      if ((removeEditor.length() > 0) && editorSet.remove(removeEditor)) {
+        AclModification.removeAcl(true, PERMISSION_EDITOR, removeEditor, aclModifications);
+      }
+    }
+    for (String addViewer : addViewers) {
+      if ((addViewer.length() > 0) && viewerSet.add(addViewer)) {
+        AclModification.addAcl(true, Permissions.CAN_READ, addViewer, aclModifications);
+      }
+    }
+    for (String removeViewer : removeViewers) {
+      removeViewer = removeViewer.trim();
+      if ((removeViewer.length() > 0) && viewerSet.remove(removeViewer)
+          && !managerSet.contains(removeViewer)) {
+        AclModification.removeAcl(true, Permissions.CAN_READ, removeViewer,
+            aclModifications);
+      }
+    }
+
+    content.setProperty(POOLED_CONTENT_USER_VIEWER,
+        viewerSet.toArray(new String[viewerSet.size()]));
+    content.setProperty(POOLED_CONTENT_USER_MANAGER,
+        managerSet.toArray(new String[managerSet.size()]));
+    content.setProperty(POOLED_CONTENT_USER_EDITOR,
+        editorSet.toArray(new String[editorSet.size()]));
+    LOGGER.debug("Set Managers to {}", managerSet);
+    LOGGER.debug("Set Editors to {}", editorSet);
+    LOGGER.debug("Set Viewers to {}", viewerSet);
+    session.getContentManager().update(content);
+
+    LOGGER.debug("ACL Modifications {}", aclModifications);
+    session.getAccessControlManager().setAcl(Security.ZONE_CONTENT, content.getPath(),
+        aclModifications.toArray(new AclModification[aclModifications.size()]));
+
+    authorizableCountChanger.notify(UserConstants.CONTENT_ITEMS_PROP, addViewers,
+        addEditors, addManagers, removeViewers, removeEditors, removeManagers);
+  }
+
+  private static Set<String> getMembers(Content content, String property) {
+    return Sets.newHashSet(StorageClientUtils.nonNullStringArray((String[]) content
+        .getProperty(property)));
+  }
+}
@@ -24,7 +24,6 @@ import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_
 import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_USER_MANAGER;
 import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_USER_VIEWER;
 
-import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
@@ -44,14 +43,13 @@ import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.doc.ServiceSelector;
+import org.sakaiproject.nakamura.api.files.ContentMemberUtils;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
-import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
-import org.sakaiproject.nakamura.api.lite.accesscontrol.Permission;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
@@ -62,7 +60,6 @@ import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.user.AuthorizableCountChanger;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
-import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -212,8 +209,6 @@ import javax.servlet.http.HttpServletResponse;
   private static final Logger LOGGER = LoggerFactory
       .getLogger(ManageMembersContentPoolServlet.class);
 
-  private static final Permission PERMISSION_EDITOR = Permissions.CAN_READ.combine(Permissions.CAN_WRITE);
-
   @Reference
   protected transient ProfileService profileService;
   @Reference
@@ -348,7 +343,6 @@ import javax.servlet.http.HttpServletResponse;
    * @see org.apache.sling.api.servlets.SlingAllMethodsServlet#doPost(org.apache.sling.api.SlingHttpServletRequest,
    *      org.apache.sling.api.SlingHttpServletResponse)
    */
-  @SuppressWarnings("unchecked")
   @Override
   protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
@@ -374,14 +368,8 @@ import javax.servlet.http.HttpServletResponse;
       Map<String, Object> properties = pooledContent.getProperties();
       String[] managers = StorageClientUtils.nonNullStringArray((String[]) properties
           .get(POOLED_CONTENT_USER_MANAGER));
-      String[] editors = StorageClientUtils.nonNullStringArray((String[]) properties
-          .get(POOLED_CONTENT_USER_EDITOR));
-      String[] viewers = StorageClientUtils.nonNullStringArray((String[]) properties
-          .get(POOLED_CONTENT_USER_VIEWER));
 
       Set<String> managerSet = Sets.newHashSet(managers);
-      Set<String> editorSet = Sets.newHashSet(editors);
-      Set<String> viewerSet = Sets.newHashSet(viewers);
 
       List<String> removeViewers = Arrays.asList(StorageClientUtils.nonNullStringArray(request.getParameterValues(":viewer@Delete")));
       List<String> removeManagers = Arrays.asList(StorageClientUtils.nonNullStringArray(request.getParameterValues(":manager@Delete")));
@@ -428,63 +416,8 @@ import javax.servlet.http.HttpServletResponse;
         session = session.getRepository().loginAdministrative();
         releaseSession = true;
       }
-      List<AclModification> aclModifications = Lists.newArrayList();
-
-      for (String addManager : addManagers) {
-        if ((addManager.length() > 0) && !managerSet.contains(addManager)) {
-          managerSet.add(addManager);
-          AclModification.addAcl(true, Permissions.CAN_MANAGE, addManager,
-              aclModifications);
-        }
-      }
-
-      for (String removeManager : removeManagers) {
-        if ((removeManager.length() > 0) && managerSet.contains(removeManager)) {
-          managerSet.remove(removeManager);
-          AclModification.removeAcl(true, Permissions.CAN_MANAGE, removeManager,
-              aclModifications);
-        }
-      }
-
-      for (String addEditor : addEditors) {
-        if ((addEditor.length() > 0) && !editorSet.contains(addEditor)) {
-          editorSet.add(addEditor);
-          AclModification.addAcl(true, PERMISSION_EDITOR, addEditor,
-              aclModifications);
-        }
-      }
-
-      for (String removeEditor : removeEditors) {
-        if ((removeEditor.length() > 0) && editorSet.contains(removeEditor)) {
-          editorSet.remove(removeEditor);
-          AclModification.removeAcl(true, PERMISSION_EDITOR, removeEditor,
-              aclModifications);
-        }
-      }
-
-      for (String addViewer : addViewers) {
-        if ((addViewer.length() > 0) && !viewerSet.contains(addViewer)) {
-          viewerSet.add(addViewer);
-          AclModification.addAcl(true, Permissions.CAN_READ, addViewer, aclModifications);
-        }
-      }
-
-      for (String removeViewer : removeViewers) {
-        removeViewer = removeViewer.trim();
-        if ((removeViewer.length() > 0) && viewerSet.contains(removeViewer)) {
-          viewerSet.remove(removeViewer);
-          if (!managerSet.contains(removeViewer)) {
-            AclModification.removeAcl(true, Permissions.CAN_READ, removeViewer,
-                aclModifications);
-          }
-        }
-      }
-
-      updateContentMembers(session, pooledContent, viewerSet,  managerSet, editorSet);
-      updateContentAccess(session, pooledContent, aclModifications);
-
-      this.authorizableCountChanger.notify(UserConstants.CONTENT_ITEMS_PROP, addViewers, addEditors, addManagers,
-          removeViewers, removeEditors, removeManagers);
+      ContentMemberUtils.updateMembers(session, pooledContent, addManagers, removeManagers,
+          addEditors, removeEditors, addViewers, removeViewers, authorizableCountChanger);
 
       response.setStatus(SC_OK);
 
@@ -504,24 +437,4 @@ import javax.servlet.http.HttpServletResponse;
     }
   }
 
-  private void updateContentMembers(Session session, Content content, Set<String> viewerSet, Set<String> managerSet, Set<String> editorSet)
-          throws StorageClientException, AccessDeniedException {
-    content.setProperty(POOLED_CONTENT_USER_VIEWER,
-        viewerSet.toArray(new String[viewerSet.size()]));
-    content.setProperty(POOLED_CONTENT_USER_MANAGER,
-        managerSet.toArray(new String[managerSet.size()]));
-    content.setProperty(POOLED_CONTENT_USER_EDITOR,
-        editorSet.toArray(new String[editorSet.size()]));
-    LOGGER.debug("Set Managers to {}",Arrays.toString(managerSet.toArray(new String[managerSet.size()])));
-    LOGGER.debug("Set Editors to {}",Arrays.toString(editorSet.toArray(new String[editorSet.size()])));
-    LOGGER.debug("Set Viewers to {}",Arrays.toString(viewerSet.toArray(new String[managerSet.size()])));
-    session.getContentManager().update(content);
-  }
-
-  private void updateContentAccess(Session session, Content content, List<AclModification> aclModifications) throws StorageClientException, AccessDeniedException {
-    LOGGER.debug("ACL Modifications {}",Arrays.toString(aclModifications.toArray(new AclModification[aclModifications.size()])));
-    session.getAccessControlManager().setAcl(Security.ZONE_CONTENT, content.getPath(),
-      aclModifications.toArray(new AclModification[aclModifications.size()]));
-  }
-
 }
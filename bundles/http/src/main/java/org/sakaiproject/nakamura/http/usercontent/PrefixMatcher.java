@@ -0,0 +1,87 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.usercontent;
+
+import java.util.Arrays;
+
+/**
+ * Matches strings against a fixed set of prefixes with a character trie, so a match costs
+ * one step per character of the longest matching prefix rather than a
+ * <code>startsWith</code> per prefix.
+ */
+final class PrefixMatcher {
+
+  private final Node root = new Node();
+  private final String[] prefixes;
+
+  PrefixMatcher(String... prefixes) {
+    this.prefixes = prefixes.clone();
+    for (String prefix : prefixes) {
+      Node node = root;
+      for (int i = 0; i < prefix.length(); i++) {
+        node = node.child(prefix.charAt(i), true);
+      }
+      node.terminal = true;
+    }
+  }
+
+  /**
+   * @return true if the value starts with one of the prefixes.
+   */
+  boolean matches(String value) {
+    Node node = root;
+    for (int i = 0; !node.terminal; i++) {
+      if (i == value.length()) {
+        return false;
+      }
+      node = node.child(value.charAt(i), false);
+      if (node == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(prefixes);
+  }
+
+  private static final class Node {
+    private char[] keys = new char[0];
+    private Node[] children = new Node[0];
+    private boolean terminal;
+
+    private Node child(char c, boolean create) {
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] == c) {
+          return children[i];
+        }
+      }
+      if (!create) {
+        return null;
+      }
+      Node child = new Node();
+      keys = Arrays.copyOf(keys, keys.length + 1);
+      children = Arrays.copyOf(children, children.length + 1);
+      keys[keys.length - 1] = c;
+      children[children.length - 1] = child;
+      return child;
+    }
+  }
+}
@@ -56,7 +56,6 @@ import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.Map;
@@ -141,24 +140,24 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
   /**
    * List of path stems its safe to stream content bodies from using a trusted host
    */
-  private String[] safeToStreamPaths;
+  private PrefixMatcher safeToStreamPaths;
   /**
    * List of path stems its safe to stream content bodies from using a trusted host
    */
   private Set<String> safeToStreamExactPaths;
   /**
-   * Array of keys created from the secret, indexed by the second digit of the timestamp
+   * Ring of keys created from the secret, indexed by the last digit of the timestamp
    */
-  private Key[] transferKeys;
+  private TransferKeyRing transferKeys;
   /**
    * List of url stems that are always Ok to accept posts from on any URL (eg
    * /system/console). You will want to add additional protection on these.
    */
-  private String[] postWhiteList;
+  private PrefixMatcher postWhiteList;
   /**
    * list of paths where its safe for anon to post to.
    */
-  private String[] safeForAnonToPostPaths;
+  private PrefixMatcher safeForAnonToPostPaths;
 
   @Reference(cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, policy = ReferencePolicy.DYNAMIC, strategy = ReferenceStrategy.EVENT, bind = "bindServerProtectionValidator", unbind = "unbindServerProtectionValidator")
   private ServerProtectionValidator[] serverProtectionValidators = new ServerProtectionValidator[0];
@@ -248,14 +247,14 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
 		}
 		applicationContentRedirects = redirects.build();
 		applicationReferrerHeaders = referrers.build();
-    safeToStreamPaths = PropertiesUtil.toStringArray(properties.get(TRUSTED_PATHS_CONF),
-        DEFAULT_TRUSTED_PATHS);
+    safeToStreamPaths = new PrefixMatcher(PropertiesUtil.toStringArray(
+        properties.get(TRUSTED_PATHS_CONF), DEFAULT_TRUSTED_PATHS));
     safeToStreamExactPaths = ImmutableSet.copyOf(PropertiesUtil.toStringArray(
         properties.get(TRUSTED_EXACT_PATHS_CONF), DEFAULT_TRUSTED_EXACT_PATHS));
-    postWhiteList = PropertiesUtil.toStringArray(
-        properties.get(WHITELIST_POST_PATHS_CONF), DEFAULT_WHITELIST_POST_PATHS);
-    safeForAnonToPostPaths = PropertiesUtil.toStringArray(
-        properties.get(ANON_WHITELIST_POST_PATHS_CONF), DEFAULT_ANON_WHITELIST_POST_PATHS);
+    postWhiteList = new PrefixMatcher(PropertiesUtil.toStringArray(
+        properties.get(WHITELIST_POST_PATHS_CONF), DEFAULT_WHITELIST_POST_PATHS));
+    safeForAnonToPostPaths = new PrefixMatcher(PropertiesUtil.toStringArray(
+        properties.get(ANON_WHITELIST_POST_PATHS_CONF), DEFAULT_ANON_WHITELIST_POST_PATHS));
     String transferSharedSecret = PropertiesUtil.toString(properties.get(TRUSTED_SECRET_CONF),
         DEFAULT_TRUSTED_SECRET_VALUE);
     if (DEFAULT_TRUSTED_SECRET_VALUE.equals(transferSharedSecret)) {
@@ -266,23 +265,25 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
     }
 
     LOGGER.info("Trusted Hosts {}", applicationContentRedirects);
-    LOGGER.info("Trusted Stream Paths {} ",Arrays.toString(safeToStreamPaths));
+    LOGGER.info("Trusted Stream Paths {} ",safeToStreamPaths);
     LOGGER.info("Trusted Stream Resources {} ",safeToStreamExactPaths);
     LOGGER.info("POST Whitelist {} ",postWhiteList);
     LOGGER.info("Content Shared Secret [{}] ",transferSharedSecret);
 
-    transferKeys = new Key[10];
+    Key[] keys = new Key[10];
     MessageDigest md = MessageDigest.getInstance("SHA-512");
     Base64 encoder = new Base64(true);
     byte[] input = transferSharedSecret.getBytes("UTF-8");
     // create a static ring of 10 keys by repeatedly hashing the last key seed
     // starting with the transferSharedSecret
-    for (int i = 0; i < transferKeys.length; i++) {
+    for (int i = 0; i < keys.length; i++) {
       md.reset();
       byte[] data = md.digest(input);
-      transferKeys[i] = new SecretKeySpec(data, HMAC_SHA512);
+      keys[i] = new SecretKeySpec(data, HMAC_SHA512);
       input = encoder.encode(data);
     }
+    // a new ring, so Macs initialised with the old keys are never used again.
+    transferKeys = new TransferKeyRing(keys);
 
     bundleContext = componentContext.getBundleContext();
     ServiceReference[] srs = bundleContext.getAllServiceReferences(
@@ -346,14 +347,7 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
       String userId = srequest.getRemoteUser();
       if ( User.ANON_USER.equals(userId) ) {
         String path = srequest.getRequestURI();
-        boolean safeForAnonToPost = false;
-        for (String safePath : safeForAnonToPostPaths) {
-          if (path.startsWith(safePath)) {
-            safeForAnonToPost = true;
-            break;
-          }
-        }
-        if ( ! safeForAnonToPost ) {
+        if ( ! safeForAnonToPostPaths.matches(path) ) {
           sresponse.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Anon users may not perform POST operations");
           return false;
         }
@@ -422,12 +416,9 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
     boolean safeToStream = safeToStreamExactPaths.contains(path);
     if (!safeToStream) {
       LOGGER.debug("Checking [{}] looks like not safe to stream ", path );
-      for (String safePath : safeToStreamPaths) {
-        if (path.startsWith(safePath)) {
-          safeToStream = true;
-          LOGGER.debug("Safe To stream becuase starts with {} ",safePath);
-          break;
-        }
+      safeToStream = safeToStreamPaths.matches(path);
+      if (safeToStream) {
+        LOGGER.debug("Safe To stream becuase starts with one of {} ",safeToStreamPaths);
       }
     }
     return safeToStream;
@@ -472,8 +463,7 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
         try {
           long ts = System.currentTimeMillis();
           int keyIndex = (int) (ts - ((ts / 10) * 10));
-          Mac m = Mac.getInstance(HMAC_SHA512);
-          m.init(transferKeys[keyIndex]);
+          Mac m = transferKeys.getMac(keyIndex);
 
           String message = createMessage(redirectUrl, userId, String.valueOf(ts));
           
@@ -487,7 +477,7 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
           }
           redirectUrl = redirectUrl + spacer + HMAC_PARAM + "=" + hmac;
           LOGGER.debug("Message was [{}] ", message);
-          LOGGER.debug("Key was [{}] [{}] ", keyIndex, transferKeys[keyIndex]);
+          LOGGER.debug("Key was [{}] [{}] ", keyIndex, transferKeys.getKey(keyIndex));
           LOGGER.debug("Transfer URL created as [{}] ",redirectUrl);
         } catch (Exception e) {
           LOGGER.warn(e.getMessage(), e);
@@ -553,8 +543,7 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
           long requestTsL = Long.parseLong(requestTs);
           if (Math.abs(System.currentTimeMillis() - requestTsL) < 60000L) {
             int keyIndex = (int) (requestTsL - ((requestTsL / 10) * 10));
-            Mac m = Mac.getInstance(HMAC_SHA512);
-            m.init(transferKeys[keyIndex]);
+            Mac m = transferKeys.getMac(keyIndex);
             m.update(message.getBytes("UTF-8"));
             String testHmac = Base64.encodeBase64URLSafeString(m.doFinal());
             if (testHmac.equals(requestHmac)) {
@@ -562,7 +551,7 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
               return requestUserId;
             } else {
               LOGGER.debug("Message was [{}] ", message);
-              LOGGER.debug("Key was [{}] [{}] ", keyIndex, transferKeys[keyIndex]);
+              LOGGER.debug("Key was [{}] [{}] ", keyIndex, transferKeys.getKey(keyIndex));
               LOGGER.debug("Hmac did not validate testHmac was [{}], requestHmac [{}] ", testHmac, requestHmac); 
             }
           } else {
@@ -602,10 +591,8 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
     // and no flash bug.
     if (!("GET".equals(method) || "HEAD".equals(method))) {
       String path = hrequest.getRequestURI();
-      for (String okPostStem : postWhiteList) {
-        if (path.startsWith(okPostStem)) {
-          return true;
-        }
+      if (postWhiteList.matches(path)) {
+        return true;
       }
       // check the Referer
       @SuppressWarnings("unchecked")
@@ -708,4 +695,42 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
     }
   }
 
+  /**
+   * The transfer keys with a Mac per key for each thread, initialised on first use.
+   * Creating and initialising a Mac costs far more than the HMAC of a URL.
+   */
+  private static final class TransferKeyRing {
+    private final Key[] keys;
+    private final ThreadLocal<Mac[]> macs = new ThreadLocal<Mac[]>();
+
+    private TransferKeyRing(Key[] keys) {
+      this.keys = keys;
+    }
+
+    private Key getKey(int keyIndex) {
+      return keys[keyIndex];
+    }
+
+    /**
+     * @return a Mac for the key, ready for use by the calling thread.
+     */
+    private Mac getMac(int keyIndex) throws NoSuchAlgorithmException, InvalidKeyException {
+      Mac[] threadMacs = macs.get();
+      if (threadMacs == null) {
+        threadMacs = new Mac[keys.length];
+        macs.set(threadMacs);
+      }
+      Mac m = threadMacs[keyIndex];
+      if (m == null) {
+        m = Mac.getInstance(HMAC_SHA512);
+        m.init(keys[keyIndex]);
+        threadMacs[keyIndex] = m;
+      } else {
+        // discard anything left by a use that failed part way.
+        m.reset();
+      }
+      return m;
+    }
+  }
+
 }
@@ -0,0 +1,42 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.usercontent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PrefixMatcherTest {
+
+  @Test
+  public void testMatches() {
+    PrefixMatcher matcher = new PrefixMatcher("/dev", "/devwidgets", "/system/console");
+    Assert.assertTrue(matcher.matches("/dev"));
+    Assert.assertTrue(matcher.matches("/devwidgets/x.html"));
+    Assert.assertTrue(matcher.matches("/developer"));
+    Assert.assertTrue(matcher.matches("/system/console/bundles"));
+    Assert.assertFalse(matcher.matches("/de"));
+    Assert.assertFalse(matcher.matches("/system/me"));
+    Assert.assertFalse(matcher.matches(""));
+  }
+
+  @Test
+  public void testEmptyPrefixes() {
+    Assert.assertFalse(new PrefixMatcher().matches("/dev"));
+    Assert.assertTrue(new PrefixMatcher("").matches("/anything"));
+  }
+}
@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.jetty;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * A bounded pool of raw (nowrap) {@link Deflater}s. Each Deflater holds native zlib
+ * memory that is otherwise only released by a finalizer, so Deflaters that do not fit
+ * back in the pool, or are left when the pool is closed, are ended explicitly.
+ */
+class DeflaterPool {
+
+  private final BlockingQueue<Deflater> idle;
+  private final int level;
+  private volatile boolean closed;
+
+  /**
+   * @param size
+   *          the most idle Deflaters kept.
+   * @param level
+   *          the compression level, 0-9 or {@link Deflater#DEFAULT_COMPRESSION}.
+   */
+  DeflaterPool(int size, int level) {
+    this.idle = new ArrayBlockingQueue<Deflater>(Math.max(1, size));
+    this.level = level;
+  }
+
+  Deflater acquire() {
+    Deflater deflater = idle.poll();
+    if (deflater == null) {
+      deflater = new Deflater(level, true);
+    }
+    return deflater;
+  }
+
+  void release(Deflater deflater) {
+    if (closed) {
+      deflater.end();
+      return;
+    }
+    deflater.reset();
+    if (!idle.offer(deflater)) {
+      deflater.end();
+    }
+  }
+
+  int getLevel() {
+    return level;
+  }
+
+  int getIdleCount() {
+    return idle.size();
+  }
+
+  void close() {
+    closed = true;
+    Deflater deflater;
+    while ((deflater = idle.poll()) != null) {
+      deflater.end();
+    }
+  }
+}
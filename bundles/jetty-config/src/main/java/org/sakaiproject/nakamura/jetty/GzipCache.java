@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.jetty;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Gzipped bodies of static resources, so identical responses are compressed once. Entries
+ * are keyed by path and only returned while the validator (the ETag or Last-Modified date
+ * of the response) still matches; a new validator for a path replaces the old entry. The
+ * least recently used entries are dropped to stay under the byte limit.
+ */
+class GzipCache {
+
+  private static class Entry {
+    final String validator;
+    final byte[] gzipped;
+
+    Entry(String validator, byte[] gzipped) {
+      this.validator = validator;
+      this.gzipped = gzipped;
+    }
+  }
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16,
+      0.75f, true);
+  private final long maxSize;
+  private final int maxEntrySize;
+  private long size;
+
+  /**
+   * @param maxSize
+   *          the most bytes held across all entries.
+   * @param maxEntrySize
+   *          the largest gzipped body that will be held.
+   */
+  GzipCache(long maxSize, int maxEntrySize) {
+    this.maxSize = maxSize;
+    this.maxEntrySize = (int) Math.min(maxEntrySize, maxSize);
+  }
+
+  int getMaxEntrySize() {
+    return maxEntrySize;
+  }
+
+  synchronized byte[] get(String path, String validator) {
+    Entry entry = entries.get(path);
+    if (entry != null && entry.validator.equals(validator)) {
+      return entry.gzipped;
+    }
+    return null;
+  }
+
+  synchronized void put(String path, String validator, byte[] gzipped) {
+    if (gzipped.length > maxEntrySize) {
+      return;
+    }
+    Entry old = entries.put(path, new Entry(validator, gzipped));
+    if (old != null) {
+      size -= old.gzipped.length;
+    }
+    size += gzipped.length;
+    for (Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator(); size > maxSize
+        && i.hasNext();) {
+      size -= i.next().getValue().gzipped.length;
+      i.remove();
+    }
+  }
+
+  synchronized long getSize() {
+    return size;
+  }
+
+  synchronized void clear() {
+    entries.clear();
+    size = 0;
+  }
+}
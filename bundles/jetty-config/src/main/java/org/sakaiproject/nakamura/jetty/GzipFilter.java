@@ -36,6 +36,7 @@ import org.mortbay.util.StringUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
@@ -44,6 +45,8 @@ import java.io.UnsupportedEncodingException;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.FilterChain;
@@ -81,6 +84,16 @@ import javax.servlet.http.HttpServletResponseWrapper;
  * <code>excludedAgents</code> is set to a comma separated list of user agents, then these
  * agents will be excluded from gzip content.
  * </p>
+ * <p>
+ * Deflaters are pooled, up to <code>deflaterPoolSize</code>, and compress at
+ * <code>compressionLevel</code>. Responses to GET requests under one of the comma
+ * separated <code>staticCachePaths</code> that carry an ETag or a Last-Modified date are
+ * kept gzipped, up to <code>staticCacheSize</code> bytes in total and
+ * <code>staticCacheMaxEntrySize</code> bytes each, and later responses with the same path
+ * and ETag, or Last-Modified date when there is no ETag, are served from there without
+ * being compressed again. Static files served by Sling only carry a Last-Modified date. Compressible responses are sent with
+ * <code>Vary: Accept-Encoding</code>.
+ * </p>
  * 
  * @author gregw
  * 
@@ -91,6 +104,13 @@ public class GzipFilter extends UserAgentFilter {
   protected int _bufferSize = 8192;
   protected int _minGzipSize = 0;
   protected Set<String> _excluded;
+  protected int _compressionLevel = Deflater.DEFAULT_COMPRESSION;
+  protected int _deflaterPoolSize = 32;
+  protected String[] _staticPaths = new String[0];
+  protected long _staticCacheSize = 0;
+  protected int _staticCacheMaxEntrySize = 512 * 1024;
+  protected DeflaterPool _deflaters;
+  protected GzipCache _staticCache;
 
   @Override
   public void init(FilterConfig filterConfig) throws ServletException {
@@ -121,10 +141,50 @@ public class GzipFilter extends UserAgentFilter {
         _excluded.add(tok.nextToken());
       }
     }
+
+    tmp = filterConfig.getInitParameter("compressionLevel");
+    if (tmp != null) {
+      _compressionLevel = Integer.parseInt(tmp);
+    }
+    tmp = filterConfig.getInitParameter("deflaterPoolSize");
+    if (tmp != null) {
+      _deflaterPoolSize = Integer.parseInt(tmp);
+    }
+    _deflaters = new DeflaterPool(_deflaterPoolSize, _compressionLevel);
+
+    tmp = filterConfig.getInitParameter("staticCachePaths");
+    if (tmp != null) {
+      Set<String> paths = new HashSet<String>();
+      StringTokenizer tok = new StringTokenizer(tmp, ",", false);
+      while (tok.hasMoreTokens()) {
+        String path = tok.nextToken().trim();
+        if (path.length() > 0) {
+          paths.add(path);
+        }
+      }
+      _staticPaths = paths.toArray(new String[paths.size()]);
+    }
+    tmp = filterConfig.getInitParameter("staticCacheSize");
+    if (tmp != null) {
+      _staticCacheSize = Long.parseLong(tmp);
+    }
+    tmp = filterConfig.getInitParameter("staticCacheMaxEntrySize");
+    if (tmp != null) {
+      _staticCacheMaxEntrySize = Integer.parseInt(tmp);
+    }
+    if (_staticCacheSize > 0 && _staticPaths.length > 0) {
+      _staticCache = new GzipCache(_staticCacheSize, _staticCacheMaxEntrySize);
+    }
   }
 
   @Override
   public void destroy() {
+    if (_deflaters != null) {
+      _deflaters.close();
+    }
+    if (_staticCache != null) {
+      _staticCache.clear();
+    }
   }
 
   @Override
@@ -177,6 +237,27 @@ public class GzipFilter extends UserAgentFilter {
     return new GZIPResponseWrapper(request, response);
   }
 
+  /**
+   * @return true if the gzipped response to this request may be kept in the static cache.
+   *         Partial and parameterised requests never are.
+   */
+  protected boolean isStaticCacheable(HttpServletRequest request) {
+    if (_staticCache == null || !"GET".equals(request.getMethod())
+        || request.getQueryString() != null || request.getHeader("Range") != null) {
+      return false;
+    }
+    String path = request.getRequestURI();
+    if (path == null) {
+      return false;
+    }
+    for (String prefix : _staticPaths) {
+      if (path.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /*
    * Allows derived implementations to replace PrintWriter implementation
    */
@@ -193,10 +274,15 @@ public class GzipFilter extends UserAgentFilter {
     PrintWriter _writer;
     GzipStream _gzStream;
     long _contentLength = -1;
+    String _etag;
+    String _lastModified;
+    boolean _varied;
+    boolean _cacheable;
 
     public GZIPResponseWrapper(HttpServletRequest request, HttpServletResponse response) {
       super(response);
       _request = request;
+      _cacheable = isStaticCacheable(request);
     }
 
     @Override
@@ -220,6 +306,7 @@ public class GzipFilter extends UserAgentFilter {
     @Override
     public void setStatus(int sc, String sm) {
       super.setStatus(sc, sm);
+      statusChanged(sc);
       if (sc < 200 || sc >= 300) {
         noGzip(false, "Status Code " + sc);
       } else if (!isCommitted()) {
@@ -230,6 +317,7 @@ public class GzipFilter extends UserAgentFilter {
     @Override
     public void setStatus(int sc) {
       super.setStatus(sc);
+      statusChanged(sc);
       if (sc < 200 || sc >= 300) {
         noGzip(false, "Status Code " + sc);
       } else {
@@ -259,6 +347,17 @@ public class GzipFilter extends UserAgentFilter {
         if (!isCommitted()) {
           noGzip(true, "Header " + name + " " + value);
         }
+      } else if ("etag".equalsIgnoreCase(name)) {
+        super.addHeader(name, value);
+        _etag = value;
+        if (_gzStream != null) {
+          _gzStream._etag = value;
+        }
+      } else if ("last-modified".equalsIgnoreCase(name)) {
+        super.addHeader(name, value);
+        lastModifiedChanged(value);
+      } else if ("vary".equalsIgnoreCase(name)) {
+        addVary(value);
       } else {
         super.addHeader(name, value);
       }
@@ -278,6 +377,17 @@ public class GzipFilter extends UserAgentFilter {
         if (!isCommitted()) {
           noGzip(true, "Header " + name + " " + value);
         }
+      } else if ("etag".equalsIgnoreCase(name)) {
+        super.setHeader(name, value);
+        _etag = value;
+        if (_gzStream != null) {
+          _gzStream._etag = value;
+        }
+      } else if ("last-modified".equalsIgnoreCase(name)) {
+        super.setHeader(name, value);
+        lastModifiedChanged(value);
+      } else if ("vary".equalsIgnoreCase(name)) {
+        setVary(value);
       } else {
         super.setHeader(name, value);
       }
@@ -295,6 +405,62 @@ public class GzipFilter extends UserAgentFilter {
       }
     }
 
+    @Override
+    public void setDateHeader(String name, long date) {
+      super.setDateHeader(name, date);
+      if ("last-modified".equalsIgnoreCase(name)) {
+        lastModifiedChanged(Long.toString(date));
+      }
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+      super.addDateHeader(name, date);
+      if ("last-modified".equalsIgnoreCase(name)) {
+        lastModifiedChanged(Long.toString(date));
+      }
+    }
+
+    private void lastModifiedChanged(String value) {
+      _lastModified = value;
+      if (_gzStream != null) {
+        _gzStream._lastModified = value;
+      }
+    }
+
+    private void statusChanged(int sc) {
+      if (sc != 200) {
+        _cacheable = false;
+        if (_gzStream != null) {
+          _gzStream._cache = null;
+        }
+      }
+    }
+
+    private void addVary(String value) {
+      super.addHeader("Vary", value);
+      if (value != null && StringUtil.asciiToLowerCase(value).indexOf("accept-encoding") >= 0) {
+        _varied = true;
+        if (_gzStream != null) {
+          _gzStream._varied = true;
+        }
+      }
+    }
+
+    private void setVary(String value) {
+      super.setHeader("Vary", value);
+      _varied = value != null
+          && StringUtil.asciiToLowerCase(value).indexOf("accept-encoding") >= 0;
+      if (_gzStream != null) {
+        // the new value replaced an Accept-Encoding the stream may already have added.
+        if (!_varied && _gzStream._varied) {
+          super.addHeader("Vary", "Accept-Encoding");
+          _varied = true;
+        }
+        _gzStream._varied = _varied;
+      }
+    }
+
     @Override
     public void flushBuffer() throws IOException {
       if (_writer != null) {
@@ -355,8 +521,7 @@ public class GzipFilter extends UserAgentFilter {
           return getResponse().getOutputStream();
         }
 
-        _gzStream = newGzipStream(_request, (HttpServletResponse) getResponse(),
-            _contentLength, _bufferSize, _minGzipSize);
+        _gzStream = createGzipStream();
       } else if (_writer != null) {
         throw new IllegalStateException("getWriter() called");
       }
@@ -375,8 +540,7 @@ public class GzipFilter extends UserAgentFilter {
           return getResponse().getWriter();
         }
 
-        _gzStream = newGzipStream(_request, (HttpServletResponse) getResponse(),
-            _contentLength, _bufferSize, _minGzipSize);
+        _gzStream = createGzipStream();
         _writer = newWriter(_gzStream, getCharacterEncoding());
       }
       return _writer;
@@ -420,6 +584,20 @@ public class GzipFilter extends UserAgentFilter {
       }
     }
 
+    private GzipStream createGzipStream() throws IOException {
+      GzipStream gzStream = newGzipStream(_request, (HttpServletResponse) getResponse(),
+          _contentLength, _bufferSize, _minGzipSize);
+      gzStream._deflaters = _deflaters;
+      gzStream._etag = _etag;
+      gzStream._lastModified = _lastModified;
+      gzStream._varied = _varied;
+      if (_cacheable) {
+        gzStream._cache = _staticCache;
+        gzStream._cachePath = _request.getRequestURI();
+      }
+      return gzStream;
+    }
+
     protected GzipStream newGzipStream(HttpServletRequest request,
         HttpServletResponse response, long contentLength, int bufferSize, int minGzipSize)
         throws IOException {
@@ -432,11 +610,19 @@ public class GzipFilter extends UserAgentFilter {
     protected HttpServletResponse _response;
     protected OutputStream _out;
     protected ByteArrayOutputStream2 _bOut;
-    protected GZIPOutputStream _gzOut;
+    protected DeflaterOutputStream _gzOut;
     protected boolean _closed;
     protected int _bufferSize;
     protected int _minGzipSize;
     protected long _contentLength;
+    protected DeflaterPool _deflaters;
+    protected boolean _varied;
+    protected String _etag;
+    protected String _lastModified;
+    protected GzipCache _cache;
+    protected String _cachePath;
+    protected ByteArrayOutputStream2 _capture;
+    protected boolean _fromCache;
 
     public GzipStream(HttpServletRequest request, HttpServletResponse response,
         long contentLength, int bufferSize, int minGzipSize) throws IOException {
@@ -454,10 +640,15 @@ public class GzipFilter extends UserAgentFilter {
       _closed = false;
       _out = null;
       _bOut = null;
-      if (_gzOut != null && !_response.isCommitted()) {
+      if ((_gzOut != null || _fromCache) && !_response.isCommitted()) {
         _response.setHeader("Content-Encoding", null);
       }
+      if (_gzOut instanceof PooledGzipOutputStream) {
+        ((PooledGzipOutputStream) _gzOut).release();
+      }
       _gzOut = null;
+      _capture = null;
+      _fromCache = false;
     }
 
     public void setContentLength(long length) {
@@ -468,7 +659,7 @@ public class GzipFilter extends UserAgentFilter {
     public void flush() throws IOException {
       if (_out == null || _bOut != null) {
         if (_contentLength > 0 && _contentLength < _minGzipSize) {
-          doNotGzip();
+          doNotGzipSmall();
         } else {
           doGzip();
         }
@@ -487,7 +678,7 @@ public class GzipFilter extends UserAgentFilter {
             _contentLength = _bOut.getCount();
           }
           if (_contentLength < _minGzipSize) {
-            doNotGzip();
+            doNotGzipSmall();
           } else {
             doGzip();
           }
@@ -497,6 +688,7 @@ public class GzipFilter extends UserAgentFilter {
 
         if (_gzOut != null) {
           _gzOut.close();
+          cacheCaptured();
         } else {
           _out.close();
         }
@@ -508,7 +700,7 @@ public class GzipFilter extends UserAgentFilter {
       if (!_closed) {
         if (_out == null || _bOut != null) {
           if (_contentLength > 0 && _contentLength < _minGzipSize) {
-            doNotGzip();
+            doNotGzipSmall();
           } else {
             doGzip();
           }
@@ -517,6 +709,7 @@ public class GzipFilter extends UserAgentFilter {
         if (_gzOut != null && !_closed) {
           _closed = true;
           _gzOut.close();
+          cacheCaptured();
         }
       }
     }
@@ -545,14 +738,37 @@ public class GzipFilter extends UserAgentFilter {
       return _response.containsHeader("Content-Encoding");
     }
 
+    /**
+     * Responses that are compressed, or could have been, differ by Accept-Encoding.
+     */
+    protected void setVary() {
+      if (!_varied && !_response.isCommitted()) {
+        _response.addHeader("Vary", "Accept-Encoding");
+        _varied = true;
+      }
+    }
+
     public void doGzip() throws IOException {
-      if (_gzOut == null) {
+      if (_gzOut == null && !_fromCache) {
         if (_response.isCommitted()) {
           throw new IllegalStateException();
         }
 
+        if (writeCached()) {
+          return;
+        }
         if (setContentEncodingGzip()) {
-          _out = _gzOut = new GZIPOutputStream(_response.getOutputStream(), _bufferSize);
+          setVary();
+          OutputStream out = _response.getOutputStream();
+          if (_cache != null && getCacheValidator() != null) {
+            _capture = new ByteArrayOutputStream2(_bufferSize);
+            out = new CapturingOutputStream(out);
+          }
+          if (_deflaters != null) {
+            _out = _gzOut = new PooledGzipOutputStream(out, _deflaters, _bufferSize);
+          } else {
+            _out = _gzOut = new GZIPOutputStream(out, _bufferSize);
+          }
 
           if (_bOut != null) {
             _out.write(_bOut.getBuf(), 0, _bOut.getCount());
@@ -564,6 +780,67 @@ public class GzipFilter extends UserAgentFilter {
       }
     }
 
+    /**
+     * @return the ETag, or else the Last-Modified date, that a cached body for this path
+     *         must have been stored with; null if the response carries neither.
+     */
+    protected String getCacheValidator() {
+      if (_etag != null) {
+        return _etag;
+      }
+      return _lastModified == null ? null : "Last-Modified " + _lastModified;
+    }
+
+    /**
+     * Send the gzipped body held for this path and validator, if there is one, and discard
+     * whatever is written from here on.
+     */
+    protected boolean writeCached() throws IOException {
+      String validator = getCacheValidator();
+      if (_cache == null || validator == null) {
+        return false;
+      }
+      byte[] gzipped = _cache.get(_cachePath, validator);
+      if (gzipped == null || !setContentEncodingGzip()) {
+        return false;
+      }
+      LOGGER.debug("Sending cached gzip content for {} ", _cachePath);
+      setVary();
+      _response.setContentLength(gzipped.length);
+      _response.getOutputStream().write(gzipped);
+      _fromCache = true;
+      _cache = null;
+      _bOut = null;
+      _out = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+      };
+      return true;
+    }
+
+    /**
+     * Keep the compressed body once it is complete.
+     */
+    protected void cacheCaptured() {
+      if (_capture != null && _cache != null) {
+        _cache.put(_cachePath, getCacheValidator(), _capture.toByteArray());
+      }
+      _capture = null;
+    }
+
+    /**
+     * Too small to be worth compressing this time, but still a compressible response.
+     */
+    protected void doNotGzipSmall() throws IOException {
+      setVary();
+      doNotGzip();
+    }
+
     public void doNotGzip() throws IOException {
       if (_gzOut != null) {
         throw new IllegalStateException("_gzOut != null");
@@ -591,22 +868,59 @@ public class GzipFilter extends UserAgentFilter {
       }
 
       if (_out == null) {
-        if (_response.isCommitted()
-            || (_contentLength >= 0 && _contentLength < _minGzipSize)) {
+        if (_response.isCommitted()) {
           doNotGzip();
+        } else if (_contentLength >= 0 && _contentLength < _minGzipSize) {
+          doNotGzipSmall();
         } else if (length > _minGzipSize) {
           doGzip();
         } else {
           _out = _bOut = new ByteArrayOutputStream2(_bufferSize);
         }
       } else if (_bOut != null) {
-        if (_response.isCommitted()
-            || (_contentLength >= 0 && _contentLength < _minGzipSize)) {
+        if (_response.isCommitted()) {
           doNotGzip();
+        } else if (_contentLength >= 0 && _contentLength < _minGzipSize) {
+          doNotGzipSmall();
         } else if (length >= (_bOut.getBuf().length - _bOut.getCount())) {
           doGzip();
         }
       }
     }
+
+    /**
+     * Copies the compressed bytes aside for the static cache, giving up once they no
+     * longer fit in a cache entry.
+     */
+    private class CapturingOutputStream extends FilterOutputStream {
+
+      CapturingOutputStream(OutputStream out) {
+        super(out);
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        if (capture(1)) {
+          _capture.write(b);
+        }
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        if (capture(len)) {
+          _capture.write(b, off, len);
+        }
+      }
+
+      private boolean capture(int len) {
+        if (_capture != null
+            && (_cache == null || _capture.getCount() + len > _cache.getMaxEntrySize())) {
+          _capture = null;
+        }
+        return _capture != null;
+      }
+    }
   }
 }
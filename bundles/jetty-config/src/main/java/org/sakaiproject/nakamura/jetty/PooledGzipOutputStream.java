@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.jetty;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes the gzip format, as {@link java.util.zip.GZIPOutputStream} does, but with a
+ * Deflater taken from a {@link DeflaterPool} and handed back once the stream is finished
+ * or released.
+ */
+class PooledGzipOutputStream extends DeflaterOutputStream {
+
+  private static final byte[] HEADER = new byte[] { (byte) 0x1f, (byte) 0x8b,
+      Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+  private final DeflaterPool pool;
+  private final CRC32 crc = new CRC32();
+  private boolean finished;
+  private boolean released;
+
+  PooledGzipOutputStream(OutputStream out, DeflaterPool pool, int size) throws IOException {
+    super(out, pool.acquire(), size);
+    this.pool = pool;
+    out.write(HEADER);
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len) throws IOException {
+    if (released) {
+      throw new IOException("Stream released");
+    }
+    super.write(b, off, len);
+    crc.update(b, off, len);
+  }
+
+  @Override
+  public synchronized void finish() throws IOException {
+    if (finished || released) {
+      return;
+    }
+    super.finish();
+    writeInt((int) crc.getValue());
+    writeInt(def.getTotalIn());
+    finished = true;
+    release();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      release();
+    }
+  }
+
+  /**
+   * Give the Deflater back to the pool. Safe to call more than once; the stream can not
+   * be written to afterwards.
+   */
+  synchronized void release() {
+    if (!released) {
+      released = true;
+      pool.release(def);
+    }
+  }
+
+  private void writeInt(int i) throws IOException {
+    out.write(i & 0xff);
+    out.write((i >> 8) & 0xff);
+    out.write((i >> 16) & 0xff);
+    out.write((i >> 24) & 0xff);
+  }
+}
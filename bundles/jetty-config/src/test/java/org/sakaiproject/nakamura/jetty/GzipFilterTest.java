@@ -0,0 +1,309 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.jetty;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+public class GzipFilterTest {
+
+  private static final String STATIC_PATH = "/devwidgets/chat/javascript/chat.js";
+
+  private GzipFilter filter;
+
+  @Before
+  public void before() throws Exception {
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("minGzipSize", "100");
+    params.put("staticCachePaths", "/dev/,/devwidgets/");
+    params.put("staticCacheSize", "100000");
+    filter = new GzipFilter();
+    filter.init(filterConfig(params));
+  }
+
+  @Test
+  public void testStaticResponseIsCachedByLastModified() throws Exception {
+    TestResponse first = get(STATIC_PATH, new StaticServlet(body('a'), 1000L, null));
+    assertEquals("gzip", first.getHeader("Content-Encoding"));
+    assertArrayEquals(body('a'), gunzip(first.getBody()));
+    assertTrue(filter._staticCache.getSize() > 0);
+
+    // same path and Last-Modified, so the body written this time is not compressed, the
+    // cached one is sent.
+    TestResponse second = get(STATIC_PATH, new StaticServlet(body('b'), 1000L, null));
+    assertEquals("gzip", second.getHeader("Content-Encoding"));
+    assertArrayEquals(first.getBody(), second.getBody());
+    assertEquals(Integer.valueOf(first.getBody().length), second.contentLength);
+    assertEquals("Accept-Encoding", second.getHeader("Vary"));
+  }
+
+  @Test
+  public void testModifiedResponseReplacesCachedOne() throws Exception {
+    get(STATIC_PATH, new StaticServlet(body('a'), 1000L, null));
+    TestResponse modified = get(STATIC_PATH, new StaticServlet(body('b'), 2000L, null));
+    assertArrayEquals(body('b'), gunzip(modified.getBody()));
+    TestResponse again = get(STATIC_PATH, new StaticServlet(body('c'), 2000L, null));
+    assertArrayEquals(body('b'), gunzip(again.getBody()));
+  }
+
+  @Test
+  public void testEtagIsPreferredToLastModified() throws Exception {
+    get(STATIC_PATH, new StaticServlet(body('a'), 1000L, "\"1\""));
+    TestResponse changed = get(STATIC_PATH, new StaticServlet(body('b'), 1000L, "\"2\""));
+    assertArrayEquals(body('b'), gunzip(changed.getBody()));
+  }
+
+  @Test
+  public void testResponsesWithoutValidatorAreNotCached() throws Exception {
+    TestResponse response = get(STATIC_PATH, new StaticServlet(body('a'), -1, null));
+    assertArrayEquals(body('a'), gunzip(response.getBody()));
+    assertEquals(0, filter._staticCache.getSize());
+  }
+
+  @Test
+  public void testOtherPathsAreNotCached() throws Exception {
+    TestResponse response = get("/var/search/pool/me", new StaticServlet(body('a'), 1000L,
+        null));
+    assertArrayEquals(body('a'), gunzip(response.getBody()));
+    assertEquals(0, filter._staticCache.getSize());
+  }
+
+  @Test
+  public void testSmallResponseVariesButIsNotCompressed() throws Exception {
+    TestResponse response = get(STATIC_PATH, new StaticServlet("small".getBytes("UTF-8"),
+        1000L, null));
+    assertNull(response.getHeader("Content-Encoding"));
+    assertEquals("small", new String(response.getBody(), "UTF-8"));
+    assertEquals("Accept-Encoding", response.getHeader("Vary"));
+    assertEquals(0, filter._staticCache.getSize());
+  }
+
+  @Test
+  public void testVaryIsNotRepeated() throws Exception {
+    StaticServlet servlet = new StaticServlet(body('a'), 1000L, null);
+    servlet.vary = "Accept-Encoding";
+    TestResponse response = get(STATIC_PATH, servlet);
+    assertEquals("gzip", response.getHeader("Content-Encoding"));
+    assertEquals(1, response.headers.get("Vary").size());
+  }
+
+  @Test
+  public void testErrorsAreNotCompressedOrCached() throws Exception {
+    StaticServlet servlet = new StaticServlet(body('a'), 1000L, null);
+    servlet.status = HttpServletResponse.SC_NOT_FOUND;
+    TestResponse response = get(STATIC_PATH, servlet);
+    assertNull(response.getHeader("Content-Encoding"));
+    assertArrayEquals(body('a'), response.getBody());
+    assertEquals(0, filter._staticCache.getSize());
+  }
+
+  @Test
+  public void testClientsWithoutGzipAreNotCompressed() throws Exception {
+    HttpServletRequest request = request(STATIC_PATH);
+    when(request.getHeader("accept-encoding")).thenReturn(null);
+    TestResponse response = new TestResponse();
+    filter.doFilter(request, response, new StaticServlet(body('a'), 1000L, null));
+    assertNull(response.getHeader("Content-Encoding"));
+    assertArrayEquals(body('a'), response.getBody());
+    assertFalse(response.headers.containsKey("Vary"));
+  }
+
+  private TestResponse get(String path, FilterChain chain) throws IOException,
+      ServletException {
+    TestResponse response = new TestResponse();
+    filter.doFilter(request(path), response, chain);
+    return response;
+  }
+
+  private HttpServletRequest request(String path) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getRequestURI()).thenReturn(path);
+    when(request.getHeader("accept-encoding")).thenReturn("gzip, deflate");
+    return request;
+  }
+
+  private FilterConfig filterConfig(Map<String, String> params) {
+    FilterConfig config = mock(FilterConfig.class);
+    for (Map.Entry<String, String> e : params.entrySet()) {
+      when(config.getInitParameter(e.getKey())).thenReturn(e.getValue());
+    }
+    return config;
+  }
+
+  private byte[] body(char c) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 500; i++) {
+      sb.append("var ").append(c).append(i).append(" = ").append(i).append(";\n");
+    }
+    try {
+      return sb.toString().getBytes("UTF-8");
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private byte[] gunzip(byte[] gzipped) throws IOException {
+    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Writes a static file the way Sling does, with a Last-Modified date and optionally an
+   * ETag.
+   */
+  private static class StaticServlet implements FilterChain {
+    private final byte[] body;
+    private final long lastModified;
+    private final String etag;
+    int status = HttpServletResponse.SC_OK;
+    String vary;
+
+    StaticServlet(byte[] body, long lastModified, String etag) {
+      this.body = body;
+      this.lastModified = lastModified;
+      this.etag = etag;
+    }
+
+    public void doFilter(ServletRequest req, ServletResponse res) throws IOException,
+        ServletException {
+      HttpServletResponse response = (HttpServletResponse) res;
+      response.setStatus(status);
+      response.setContentType("text/javascript");
+      if (lastModified > 0) {
+        response.setDateHeader("Last-Modified", lastModified);
+      }
+      if (etag != null) {
+        response.setHeader("ETag", etag);
+      }
+      if (vary != null) {
+        response.addHeader("Vary", vary);
+      }
+      response.setContentLength(body.length);
+      ServletOutputStream out = response.getOutputStream();
+      out.write(body);
+      out.close();
+    }
+  }
+
+  /**
+   * Keeps the headers and body that reach the container.
+   */
+  private static class TestResponse extends HttpServletResponseWrapper {
+    final Map<String, List<String>> headers = new HashMap<String, List<String>>();
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    Integer contentLength;
+    private ServletOutputStream out;
+
+    TestResponse() {
+      super(mock(HttpServletResponse.class));
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+      headers.remove(name);
+      if (value != null) {
+        addHeader(name, value);
+      }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+      List<String> values = headers.get(name);
+      if (values == null) {
+        values = new ArrayList<String>();
+        headers.put(name, values);
+      }
+      values.add(value);
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+      setHeader(name, Long.toString(date));
+    }
+
+    @Override
+    public boolean containsHeader(String name) {
+      return headers.containsKey(name);
+    }
+
+    public String getHeader(String name) {
+      List<String> values = headers.get(name);
+      return values == null ? null : values.get(0);
+    }
+
+    @Override
+    public void setContentLength(int len) {
+      contentLength = len;
+    }
+
+    @Override
+    public boolean isCommitted() {
+      return false;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+      if (out == null) {
+        out = new ServletOutputStream() {
+          @Override
+          public void write(int b) {
+            body.write(b);
+          }
+        };
+      }
+      return out;
+    }
+
+    byte[] getBody() {
+      return body.toByteArray();
+    }
+  }
+}
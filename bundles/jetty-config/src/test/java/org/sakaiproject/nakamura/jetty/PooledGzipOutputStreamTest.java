@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.jetty;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+public class PooledGzipOutputStreamTest {
+
+  @Test
+  public void testOutputIsGzip() throws IOException {
+    DeflaterPool pool = new DeflaterPool(2, Deflater.BEST_SPEED);
+    byte[] data = body();
+
+    ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+    PooledGzipOutputStream out = new PooledGzipOutputStream(gzipped, pool, 512);
+    out.write(data, 0, 100);
+    out.write(data[100]);
+    out.write(data, 101, data.length - 101);
+    out.close();
+
+    assertArrayEquals(data, gunzip(gzipped.toByteArray()));
+    assertEquals(1, pool.getIdleCount());
+  }
+
+  @Test
+  public void testDeflatersAreReused() throws IOException {
+    DeflaterPool pool = new DeflaterPool(1, Deflater.DEFAULT_COMPRESSION);
+    Deflater deflater = pool.acquire();
+    pool.release(deflater);
+
+    // the reset Deflater produces a correct second stream.
+    ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+    PooledGzipOutputStream out = new PooledGzipOutputStream(gzipped, pool, 512);
+    out.write(body());
+    out.finish();
+    assertSame(deflater, pool.acquire());
+    out.close();
+    assertArrayEquals(body(), gunzip(gzipped.toByteArray()));
+
+    // only one fits back in the pool, the other is ended.
+    pool.release(deflater);
+    pool.release(new Deflater());
+    assertEquals(1, pool.getIdleCount());
+
+    pool.close();
+    assertEquals(0, pool.getIdleCount());
+  }
+
+  @Test
+  public void testCacheMatchesEtag() {
+    GzipCache cache = new GzipCache(10, 6);
+    cache.put("/dev/a.js", "\"1\"", new byte[4]);
+    assertEquals(4, cache.get("/dev/a.js", "\"1\"").length);
+    assertNull(cache.get("/dev/a.js", "\"2\""));
+
+    // a new version replaces the old one.
+    cache.put("/dev/a.js", "\"2\"", new byte[5]);
+    assertNull(cache.get("/dev/a.js", "\"1\""));
+    assertEquals(5, cache.getSize());
+
+    // too big for an entry.
+    cache.put("/dev/b.js", "\"1\"", new byte[7]);
+    assertNull(cache.get("/dev/b.js", "\"1\""));
+
+    // least recently used goes first.
+    cache.put("/dev/c.js", "\"1\"", new byte[5]);
+    cache.get("/dev/a.js", "\"2\"");
+    cache.put("/dev/d.js", "\"1\"", new byte[3]);
+    assertNull(cache.get("/dev/c.js", "\"1\""));
+    assertEquals(5, cache.get("/dev/a.js", "\"2\"").length);
+    assertEquals(8, cache.getSize());
+  }
+
+  private byte[] body() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 500; i++) {
+      sb.append("var x").append(i).append(" = ").append(i * 7).append(";\n");
+    }
+    return sb.toString().getBytes();
+  }
+
+  private byte[] gunzip(byte[] gzipped) throws IOException {
+    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int n;
+    while ((n = in.read(buffer)) > 0) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+}
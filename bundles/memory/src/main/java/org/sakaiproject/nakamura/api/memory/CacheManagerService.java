@@ -43,4 +43,22 @@ public interface CacheManagerService {
    * @param scope
    */
   void unbind(CacheScope scope);
+
+  /**
+   * Bind the context specified in scope to the current thread. The REQUEST context is
+   * bound when a request starts and unbound when it ends.
+   *
+   * @param scope
+   */
+  void bind(CacheScope scope);
+
+  /**
+   * Check if the context specified in scope is bound to the current thread. Only a bound
+   * REQUEST context is ever unbound, so REQUEST scoped caches used on threads that are not
+   * serving a request (JMS, scheduler, background threads) are never cleared.
+   *
+   * @param scope
+   * @return true if the context is bound, always true for scopes other than REQUEST.
+   */
+  boolean isBound(CacheScope scope);
 }
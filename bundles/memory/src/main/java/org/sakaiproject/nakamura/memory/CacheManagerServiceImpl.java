@@ -80,6 +80,7 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   private Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
   private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap();
   private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap();
+  private ThreadLocal<Boolean> requestBound = new ThreadLocal<Boolean>();
 
   public CacheManagerServiceImpl() throws IOException {
     create();
@@ -277,6 +278,29 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheManagerService#bind(org.sakaiproject.nakamura.api.memory.CacheScope)
+   */
+  public void bind(CacheScope scope) {
+    if (scope == CacheScope.REQUEST) {
+      requestBound.set(Boolean.TRUE);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheManagerService#isBound(org.sakaiproject.nakamura.api.memory.CacheScope)
+   */
+  public boolean isBound(CacheScope scope) {
+    if (scope == CacheScope.REQUEST) {
+      return requestBound.get() != null;
+    }
+    return true;
+  }
+
   /**
    *
    */
@@ -297,6 +321,7 @@ public class CacheManagerServiceImpl implements CacheManagerService {
       cache.clear();
     }
     requestCacheMapHolder.remove();
+    requestBound.remove();
   }
 
 }
@@ -1,6 +1,8 @@
 package org.sakaiproject.nakamura.memory;
 
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
@@ -10,6 +12,9 @@ import java.util.HashMap;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class CacheManagerServiceImplTest {
 
@@ -23,4 +28,20 @@ public class CacheManagerServiceImplTest {
     BufferedReader reader = new BufferedReader(new InputStreamReader(finishedConfig));
     assertEquals(reader.readLine(), "Howdy, kind Globe!");
   }
+
+  @Test
+  public void requestScopeIsOnlyBoundDuringARequest() throws Exception {
+    CacheManagerServiceImpl cacheManagerService = new CacheManagerServiceImpl();
+    assertFalse(cacheManagerService.isBound(CacheScope.REQUEST));
+    assertTrue(cacheManagerService.isBound(CacheScope.THREAD));
+
+    cacheManagerService.bind(CacheScope.REQUEST);
+    assertTrue(cacheManagerService.isBound(CacheScope.REQUEST));
+    Cache<String> cache = cacheManagerService.getCache("test", CacheScope.REQUEST);
+    cache.put("key", "value");
+
+    cacheManagerService.unbind(CacheScope.REQUEST);
+    assertFalse(cacheManagerService.isBound(CacheScope.REQUEST));
+    assertNull(cacheManagerService.<String> getCache("test", CacheScope.REQUEST).get("key"));
+  }
 }
@@ -68,10 +68,12 @@ import com.google.common.base.Joiner;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -253,6 +255,8 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
     AuthorizableManager authorizableManager = session.getAuthorizableManager();
     writer.array();
     if (!UserConstants.ANON_USERID.equals(au.getId())) {
+      List<Authorizable> groups = new ArrayList<Authorizable>();
+      List<String> managedGroupIds = new ArrayList<String>();
       // KERN-1831 changed from getPrincipals to memberOf to drill down list
       for (Iterator<Group> memberOf = au.memberOf(authorizableManager); memberOf.hasNext(); ) {
 //      this is the old code for outputting only direct memberships. might be needed later if such a flag is added.
@@ -265,9 +269,17 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
           // we don't want the "everyone" group or contact groups in this feed
           continue;
         }
+        groups.add(group);
         if (group.hasProperty(UserConstants.PROP_MANAGED_GROUP)) {
-          // fetch the group that the manager group manages
-          group = authorizableManager.findAuthorizable((String) group.getProperty(UserConstants.PROP_MANAGED_GROUP));
+          managedGroupIds.add((String) group.getProperty(UserConstants.PROP_MANAGED_GROUP));
+        }
+      }
+      // fetch the groups that the manager groups manage all at once
+      Map<String, Authorizable> managedGroups = AuthorizableUtil.findAuthorizables(
+          authorizableManager, managedGroupIds);
+      for (Authorizable group : groups) {
+        if (group.hasProperty(UserConstants.PROP_MANAGED_GROUP)) {
+          group = managedGroups.get((String) group.getProperty(UserConstants.PROP_MANAGED_GROUP));
           if (group == null || !(group instanceof Group)) {
             continue;
           }
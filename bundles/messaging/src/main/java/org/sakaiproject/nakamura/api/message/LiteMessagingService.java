@@ -95,7 +95,7 @@ public interface LiteMessagingService {
   public String getFullPathToStore(String rcpt, Session session) throws MessagingException;
 
   /**
-   * Copies a message with id <em>messageId</em> from <em>source</em> to <em>target</em>
+   * Copies a message, with its body and parts, into the same box of another message store.
    * @param sourceMessage
    * @param targetMessageStore
    * @param session
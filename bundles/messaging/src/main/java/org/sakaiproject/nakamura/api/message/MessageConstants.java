@@ -83,10 +83,24 @@ public interface MessageConstants {
    * This property will hold the number of times message delivery has been retried
    */
   public static final String PROP_SAKAI_RETRY_COUNT = "sakai:retrycount";
+  /**
+   * The email addresses an outgoing message has already been sent to, so that a retry
+   * after a partial failure only goes to the others.
+   */
+  public static final String PROP_SAKAI_DELIVERED_TO = "sakai:deliveredto";
   /**
    * Property of the message store container for a message. Used primarily in discussions.
    */
   public static final String PROP_SAKAI_MESSAGE_STORE = "sakai:messagestore";
+  /**
+   * The number of internal recipients a sent message is being delivered to, set on the
+   * sent message when delivery happens in the background.
+   */
+  public static final String PROP_SAKAI_DELIVERY_TOTAL = "sakai:deliverytotal";
+  /**
+   * How many of {@link #PROP_SAKAI_DELIVERY_TOTAL} recipients have been handled so far.
+   */
+  public static final String PROP_SAKAI_DELIVERY_DONE = "sakai:deliverydone";
 
   /**
    * Value for a date.
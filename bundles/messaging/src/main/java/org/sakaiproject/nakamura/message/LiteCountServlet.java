@@ -17,8 +17,6 @@
  */
 package org.sakaiproject.nakamura.message;
 
-import com.google.common.collect.ImmutableMap;
-
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
 
 import org.apache.felix.scr.annotations.Properties;
@@ -30,8 +28,10 @@ import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.solr.client.solrj.response.FacetField;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.FacetParams;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -43,17 +43,16 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
-import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -68,6 +67,10 @@ import javax.servlet.http.HttpServletResponse;
  *  - filters: only nodes with the properties in filters and the values in values
  *    get traversed
  *  - groupedby: group the results by the values of this parameter.
+ *
+ * Counting, grouped or not, is left to Solr: no documents are fetched and grouped counts
+ * come from a facet on the groupedby property, so they are exact however many messages
+ * there are. Results are cached per user by {@link MessageCountCache}.
  */
 @SlingServlet(methods = {"GET"}, resourceTypes = {"sakai/messagestore"}, selectors = {"count"}, generateComponent = true, generateService = true)
 @Properties(value = {
@@ -102,14 +105,15 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
   private static final long serialVersionUID = -5714446506015596037L;
   private static final Logger LOGGER = LoggerFactory.getLogger(LiteCountServlet.class);
 
-  private static long MAX_RESULTS_COUNTED = 500;
-
   @Reference
   protected transient LiteMessagingService messagingService;
   
   @Reference
   SolrSearchServiceFactory searchServiceFactory;
 
+  @Reference
+  protected transient MessageCountCache countCache;
+
   @Override
   protected void doGet(SlingHttpServletRequest request,
       SlingHttpServletResponse response) throws ServletException, IOException {
@@ -118,112 +122,94 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
     Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
 
     try {
-      // Do the query
-      // We do the query on the user his messageStore's path.
-      String messageStorePath = ClientUtils.escapeQueryChars(messagingService.getFullPathToStore(request.getRemoteUser(), session));
-      //path:a\:zach/contacts AND resourceType:sakai/contact AND state:("ACCEPTED" -NONE) (name:"*" OR firstName:"*" OR lastName:"*" OR email:"*")) AND readers:(zach OR everyone)&start=0&rows=25&sort=score desc
-      StringBuilder queryString = new StringBuilder("(path:"
-          + messageStorePath + "* AND resourceType:sakai/message"
-          + " AND type:internal");
-
-      // Get the filters
-      if (request.getRequestParameter("filters") != null
-          && request.getRequestParameter("values") != null) {
-        // The user wants to filter some things.
-        String[] filters = request.getRequestParameter("filters").getString()
-            .split(",");
-        String[] values = request.getRequestParameter("values").getString()
-            .split(",");
-        if (filters.length != values.length) {
-          response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-              "The amount of values doesn't match the amount of keys.");
-        }
-
-        for (int i = 0; i < filters.length; i++) {
-          String filterName = filters[i].replaceFirst("sakai:", "");
-          queryString.append(" AND " + filterName + ":\"" + values[i] + "\"");
-        }
+      String user = request.getRemoteUser();
+      String filtersParam = getParameter(request, "filters");
+      String valuesParam = getParameter(request, "values");
+      String groupedby = getParameter(request, "groupedby");
+      if (groupedby != null && groupedby.startsWith("sakai:")) {
+        groupedby = groupedby.substring(6);
       }
 
-      queryString.append(")");
+      String cacheKey = filtersParam + "|" + valuesParam + "|" + groupedby;
+      String json = countCache == null ? null : countCache.get(user, cacheKey);
+      if (json == null) {
+        // Do the query
+        // We do the query on the user his messageStore's path.
+        String messageStorePath = ClientUtils.escapeQueryChars(messagingService.getFullPathToStore(user, session));
+        //path:a\:zach/contacts AND resourceType:sakai/contact AND state:("ACCEPTED" -NONE) (name:"*" OR firstName:"*" OR lastName:"*" OR email:"*")) AND readers:(zach OR everyone)&start=0&rows=25&sort=score desc
+        StringBuilder queryString = new StringBuilder("(path:"
+            + messageStorePath + "* AND resourceType:sakai/message"
+            + " AND type:internal");
+
+        // Get the filters
+        if (filtersParam != null && valuesParam != null) {
+          // The user wants to filter some things.
+          String[] filters = filtersParam.split(",");
+          String[] values = valuesParam.split(",");
+          if (filters.length != values.length) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                "The amount of values doesn't match the amount of keys.");
+            return;
+          }
 
-      // The "groupedby" clause forces us to inspect every message. If not
-      // specified, all we need is the count.
-      final long itemCount;
-      if (request.getRequestParameter("groupedby") == null) {
-        itemCount = 0;
-      } else {
-        itemCount = MAX_RESULTS_COUNTED;
-      }
-      Map<String, Object> queryOptions = ImmutableMap.of(
-          PARAMS_ITEMS_PER_PAGE, (Object) Long.toString(itemCount),
-          CommonParams.START, "0",
-          CommonParams.SORT, "_created desc"
-      );
-
-      Query query = new Query(queryString.toString(), queryOptions);
-      LOGGER.info("Submitting Query {} ", query);
-      SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
-          request, query, false);
-      Iterator<Result> resultIterator = resultSet.getResultSetIterator();
+          for (int i = 0; i < filters.length; i++) {
+            String filterName = filters[i].replaceFirst("sakai:", "");
+            queryString.append(" AND " + filterName + ":\"" + values[i] + "\"");
+          }
+        }
 
-      response.setContentType("application/json");
-      response.setCharacterEncoding("UTF-8");
+        queryString.append(")");
+
+        // No documents are needed either way, only the number found or, when grouping,
+        // the facet counts.
+        Map<String, Object> queryOptions = new HashMap<String, Object>();
+        queryOptions.put(PARAMS_ITEMS_PER_PAGE, "0");
+        queryOptions.put(CommonParams.START, "0");
+        if (groupedby != null) {
+          queryOptions.put(FacetParams.FACET, "true");
+          queryOptions.put(FacetParams.FACET_FIELD, groupedby);
+          queryOptions.put(FacetParams.FACET_LIMIT, "-1");
+          queryOptions.put(FacetParams.FACET_MINCOUNT, "1");
+        }
 
-      JSONWriter write = new JSONWriter(response.getWriter());
+        Query query = new Query(queryString.toString(), queryOptions);
+        LOGGER.debug("Submitting Query {} ", query);
+        SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
+            request, query, false);
 
-      if (request.getRequestParameter("groupedby") == null) {
+        StringWriter buffer = new StringWriter();
+        JSONWriter write = new JSONWriter(buffer);
         write.object();
         write.key("count");
-        write.value(resultSet.getSize());
-        write.endObject();
-      } else {
-        // The user want to group the count by a specified set.
-        // We will have to traverse each node, get that property and count each
-        // value for it.
-        String groupedby = request.getRequestParameter("groupedby").getString();
-        if (groupedby.startsWith("sakai:")) {
-          groupedby = groupedby.substring(6);
-        }
-
-        long count = 0;
-        Map<String, Integer> mapCount = new HashMap<String, Integer>();
-        while (resultIterator.hasNext()) {
-          Result n = resultIterator.next();
-
-          if (count >= MAX_RESULTS_COUNTED) {
-            break;
-          }
-          count++;
-
-          if (n.getProperties().containsKey(groupedby)) {
-            String key = (String) n.getFirstValue(groupedby);
-            int val = 1;
-            if (mapCount.containsKey(key)) {
-              val = mapCount.get(key) + 1;
+        if (groupedby == null) {
+          write.value(resultSet.getSize());
+        } else {
+          // The user want to group the count by a specified set.
+          write.array();
+          FacetField field = getFacetField(resultSet, groupedby);
+          if (field != null && field.getValues() != null) {
+            for (FacetField.Count count : field.getValues()) {
+              write.object();
+              write.key("group");
+              write.value(count.getName());
+              write.key("count");
+              write.value(count.getCount());
+              write.endObject();
             }
-            mapCount.put(key, val);
           }
+          write.endArray();
         }
-
-        write.object();
-        write.key("count");
-        write.array();
-        for (Entry<String, Integer> e : mapCount.entrySet()) {
-          write.object();
-
-          write.key("group");
-          write.value(e.getKey());
-          write.key("count");
-          write.value(e.getValue());
-
-          write.endObject();
-        }
-        write.endArray();
         write.endObject();
-
+        json = buffer.toString();
+        if (countCache != null) {
+          countCache.put(user, cacheKey, json);
+        }
       }
 
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      response.getWriter().write(json);
+
     } catch (JSONException e) {
       LOGGER.error("JSON issue from query " + request.getQueryString(), e);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getLocalizedMessage());
@@ -233,4 +219,23 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
     }
 
   }
+
+  private String getParameter(SlingHttpServletRequest request, String name) {
+    if (request.getRequestParameter(name) == null) {
+      return null;
+    }
+    return request.getRequestParameter(name).getString();
+  }
+
+  private FacetField getFacetField(SolrSearchResultSet resultSet, String name) {
+    List<FacetField> fields = resultSet.getFacetFields();
+    if (fields != null) {
+      for (FacetField field : fields) {
+        if (name.equals(field.getName())) {
+          return field;
+        }
+      }
+    }
+    return null;
+  }
 }
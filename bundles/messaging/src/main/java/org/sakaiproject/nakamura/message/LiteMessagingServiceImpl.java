@@ -62,7 +62,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -177,13 +179,35 @@ public class LiteMessagingServiceImpl implements LiteMessagingService {
       throws StorageClientException, AccessDeniedException, IOException {
     String sourcePath = sourceMessage.getPath();
     String messageId = StorageClientUtils.getObjectName(sourcePath);
-    String targetNodePath = PathUtils.toSimpleShardPath(targetStore, messageId, "");
+    String box = (String) sourceMessage.getProperty(PROP_SAKAI_MESSAGEBOX);
+    if (box == null) {
+      box = BOX_OUTBOX;
+    }
+    // the same layout as create, so the copy is found like any other message in the store
+    String targetBoxPath = targetStore + box;
+    String targetNodePath = targetBoxPath + "/" + messageId;
     ContentManager contentManager = session.getContentManager();
-    contentManager.copy(sourcePath, targetNodePath, true);
+    contentManager.update(new Content(targetBoxPath, new HashMap<String, Object>()));
+    copyTree(contentManager, sourcePath, targetNodePath);
     Content msg = contentManager.get(targetNodePath);
+    msg.setProperty(MessageConstants.PROP_SAKAI_MESSAGE_STORE, targetStore);
+    contentManager.update(msg);
     raisePendingMessageEvent(session, msg);
   }
 
+  /**
+   * Copy a message with its body and the nodes holding its parts.
+   */
+  private void copyTree(ContentManager contentManager, String sourcePath, String targetPath)
+      throws StorageClientException, AccessDeniedException, IOException {
+    contentManager.copy(sourcePath, targetPath, true);
+    for (Iterator<String> children = contentManager.listChildPaths(sourcePath); children
+        .hasNext();) {
+      String child = children.next();
+      copyTree(contentManager, child, targetPath + "/" + StorageClientUtils.getObjectName(child));
+    }
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.message.LiteMessagingService#getFullPathToMessage(java.lang.String, java.lang.String, org.sakaiproject.nakamura.api.lite.Session)
@@ -0,0 +1,194 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.util.PathUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Holds the message counts rendered by {@link LiteCountServlet} per user. Any change to
+ * content in a user's home, which includes the message store, drops all of that user's
+ * counts. The search index is updated a little after the content, so counts taken shortly
+ * after a change are not kept at all, and all counts expire after a short time in case
+ * the index took longer to catch up.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { MessageCountCache.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Caches message counts per user."),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/content/ADDED",
+        "org/sakaiproject/nakamura/lite/content/UPDATED",
+        "org/sakaiproject/nakamura/lite/content/DELETE" }, propertyPrivate = true) })
+public class MessageCountCache implements EventHandler {
+
+  private static final int DEFAULT_TTL = 30;
+  @Property(intValue = DEFAULT_TTL, label = "Count lifetime", description = "Seconds a message count may be served from the cache, 0 disables caching.")
+  static final String CACHE_TTL = "message.count.cache.ttl";
+
+  private static final int DEFAULT_SETTLE = 5;
+  @Property(intValue = DEFAULT_SETTLE, label = "Index settle time", description = "Seconds after a change to a user's content during which their counts are not cached, as the search index may not show the change yet.")
+  static final String CACHE_SETTLE = "message.count.cache.settle";
+
+  private static final int DEFAULT_SIZE = 1000;
+  @Property(intValue = DEFAULT_SIZE, label = "Users cached", description = "The number of users to keep message counts for.")
+  static final String CACHE_SIZE = "message.count.cache.size";
+
+  /**
+   * Different filters give different counts, but a user only ever asks for a few.
+   */
+  private static final int MAX_COUNTS_PER_USER = 16;
+
+  private Map<String, Map<String, CachedCount>> counts;
+  /**
+   * When the content of each recently changed user last changed.
+   */
+  private Map<String, Long> changes;
+  private long ttl;
+  private long settle;
+
+  public MessageCountCache() {
+    configure(DEFAULT_SIZE, DEFAULT_TTL, DEFAULT_SETTLE);
+  }
+
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> properties) {
+    configure(PropertiesUtil.toInteger(properties.get(CACHE_SIZE), DEFAULT_SIZE),
+        PropertiesUtil.toInteger(properties.get(CACHE_TTL), DEFAULT_TTL),
+        PropertiesUtil.toInteger(properties.get(CACHE_SETTLE), DEFAULT_SETTLE));
+  }
+
+  private synchronized void configure(final int maxUsers, int ttlSeconds,
+      int settleSeconds) {
+    ttl = ttlSeconds * 1000L;
+    settle = settleSeconds * 1000L;
+    changes = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, Long> eldest) {
+        return size() > maxUsers;
+      }
+    };
+    counts = new LinkedHashMap<String, Map<String, CachedCount>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, Map<String, CachedCount>> eldest) {
+        return size() > maxUsers;
+      }
+    };
+  }
+
+  /**
+   * @return the count JSON for user and query, or null if there is none or it has
+   *         expired.
+   */
+  public synchronized String get(String user, String query) {
+    Map<String, CachedCount> userCounts = counts.get(user);
+    if (userCounts == null) {
+      return null;
+    }
+    CachedCount cached = userCounts.get(query);
+    if (cached == null) {
+      return null;
+    }
+    if (cached.expires < System.currentTimeMillis()) {
+      userCounts.remove(query);
+      return null;
+    }
+    return cached.json;
+  }
+
+  /**
+   * Keep a count, unless the user's content changed so recently that the count may not
+   * include the change yet.
+   */
+  public synchronized void put(String user, String query, String json) {
+    if (ttl <= 0) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    Long changed = changes.get(user);
+    if (changed != null) {
+      if (now - changed < settle) {
+        return;
+      }
+      changes.remove(user);
+    }
+    Map<String, CachedCount> userCounts = counts.get(user);
+    if (userCounts == null) {
+      userCounts = new LinkedHashMap<String, CachedCount>(4, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Entry<String, CachedCount> eldest) {
+          return size() > MAX_COUNTS_PER_USER;
+        }
+      };
+      counts.put(user, userCounts);
+    }
+    userCounts.put(query, new CachedCount(json, now + ttl));
+  }
+
+  public synchronized void invalidate(String user) {
+    counts.remove(user);
+    if (settle > 0) {
+      changes.put(user, System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty("path");
+    if (path != null) {
+      String user = PathUtils.getAuthorizableId(path);
+      if (user != null) {
+        invalidate(user);
+      }
+    }
+  }
+
+  private static class CachedCount {
+    private final String json;
+    private final long expires;
+
+    CachedCount(String json, long expires) {
+      this.json = json;
+      this.expires = expires;
+    }
+  }
+}
@@ -19,13 +19,16 @@ package org.sakaiproject.nakamura.message.internal;
 
 import com.google.common.collect.ImmutableMap;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.osgi.service.event.Event;
@@ -40,8 +43,6 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
-import org.sakaiproject.nakamura.api.locking.LockManager;
-import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.message.LiteMessageProfileWriter;
 import org.sakaiproject.nakamura.api.message.LiteMessageTransport;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
@@ -58,14 +59,33 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Handler for messages that are sent locally and intended for local delivery. Needs to be
  * started immediately to make sure it registers with JCR as soon as possible.
+ * <p>
+ * Group recipients are expanded to their members up front. A message to more than
+ * <code>internal.message.async.threshold</code> recipients is delivered in the
+ * background, and the sent message records how far delivery has got in
+ * {@link MessageConstants#PROP_SAKAI_DELIVERY_TOTAL} and
+ * {@link MessageConstants#PROP_SAKAI_DELIVERY_DONE}.
  */
-@Component(immediate = true, label = "LiteInternalMessageHandler", description = "Handler for internally delivered messages.")
+@Component(immediate = true, metatype = true, label = "LiteInternalMessageHandler", description = "Handler for internally delivered messages.")
 @Service({ LiteMessageTransport.class, LiteMessageProfileWriter.class })
 @Properties(value = {
     @Property(name = "service.vendor", value = "The Sakai Foundation"),
@@ -75,6 +95,23 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
   private static final Logger LOG = LoggerFactory.getLogger(LiteInternalMessageHandler.class);
   private static final String TYPE = MessageConstants.TYPE_INTERNAL;
 
+  private static final int DEFAULT_ASYNC_THRESHOLD = 100;
+  @Property(intValue = DEFAULT_ASYNC_THRESHOLD, label = "Background delivery threshold", description = "Messages to more recipients than this are delivered in the background.")
+  static final String ASYNC_THRESHOLD = "internal.message.async.threshold";
+
+  private static final int DEFAULT_DELIVERY_THREADS = 2;
+  @Property(intValue = DEFAULT_DELIVERY_THREADS, label = "Delivery threads", description = "Threads delivering messages in the background.")
+  static final String DELIVERY_THREADS = "internal.message.delivery.threads";
+
+  private static final int DEFAULT_DELIVERY_QUEUE_SIZE = 100;
+  @Property(intValue = DEFAULT_DELIVERY_QUEUE_SIZE, label = "Delivery queue size", description = "Messages that may wait for background delivery; when full, messages are delivered straight away.")
+  static final String DELIVERY_QUEUE_SIZE = "internal.message.delivery.queueSize";
+
+  /**
+   * How many recipients are handled between updates of the delivery progress.
+   */
+  static final int DELIVERY_BATCH_SIZE = 100;
+
   @Reference
   protected transient Repository slingRepository;
 
@@ -84,17 +121,47 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
   @Reference
   protected transient PresenceService presenceService;
 
-  @Reference
-  protected transient LockManager lockManager;
   @Reference
   private BasicUserInfoService basicUserInfoService;
 
+  private int asyncThreshold = DEFAULT_ASYNC_THRESHOLD;
+
+  private ThreadPoolExecutor deliveryExecutor;
+
   /**
    * Default constructor
    */
   public LiteInternalMessageHandler() {
   }
 
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    asyncThreshold = PropertiesUtil.toInteger(properties.get(ASYNC_THRESHOLD),
+        DEFAULT_ASYNC_THRESHOLD);
+    int threads = Math.max(1, PropertiesUtil.toInteger(properties.get(DELIVERY_THREADS),
+        DEFAULT_DELIVERY_THREADS));
+    int queueSize = Math.max(1, PropertiesUtil.toInteger(
+        properties.get(DELIVERY_QUEUE_SIZE), DEFAULT_DELIVERY_QUEUE_SIZE));
+    final AtomicInteger threadCount = new AtomicInteger();
+    deliveryExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "internal-message-delivery-"
+                + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (deliveryExecutor != null) {
+      deliveryExecutor.shutdown();
+      deliveryExecutor = null;
+    }
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -107,23 +174,14 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
 
       session = slingRepository.loginAdministrative();
 
-      // recipients keeps track of who have already received the message, to avoid
-      // duplicate messages
-      List<String> recipients = new ArrayList<String>();
-      AuthorizableManager authorizableManager = session.getAuthorizableManager();
-      for (MessageRoute route : routes) {
-        if (LiteMessageTransport.INTERNAL_TRANSPORT.equals(route.getTransport())) {
-          String recipient = route.getRcpt();
-          LOG.info("Started handling a message for delivery to {} ", recipient );
-          // the path were we want to save messages in.
-          String messageId = (String) originalMessage
-              .getProperty(MessageConstants.PROP_SAKAI_ID);
-          sendHelper(recipients, recipient, originalMessage, session, messageId,
-              authorizableManager);
-        }
+      Set<String> recipients = expandRecipients(routes, session.getAuthorizableManager());
+      if (recipients.isEmpty()) {
+        return;
       }
-    } catch (AccessDeniedException e) {
-      LOG.error(e.getMessage(), e);
+      if (recipients.size() > asyncThreshold && deliverLater(recipients, originalMessage)) {
+        return;
+      }
+      deliver(session, recipients, originalMessage, false);
     } catch (ClientPoolException e) {
       LOG.error(e.getMessage(), e);
     } catch (StorageClientException e) {
@@ -139,75 +197,210 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
     }
   }
 
-  private void sendHelper(List<String> recipients, String recipient,
-      Content originalMessage, Session session, String messageId,
+  /**
+   * Expand the internal routes to the users and paths that should get a copy of the
+   * message. Groups are replaced by their direct members, level by level, and every
+   * recipient is only looked at once so cyclic group references end.
+   */
+  protected Set<String> expandRecipients(MessageRoutes routes,
       AuthorizableManager authManager) {
-    try {
-      ContentManager contentManager = session.getContentManager();
-      Authorizable au = authManager.findAuthorizable(recipient);
-      if (au != null && au instanceof Group) {
-        Group group = (Group) au;
-        recipients.add(recipient); // prevent infinite recursion in cyclic group references
-        // user must be in the group directly to send a message:
-        for (String memberName : group.getMembers()) {
-          if (!recipients.contains(memberName)) {
-            // call back to itself: this allows for groups to be in groups and future
-            // extensions
-            sendHelper(recipients, memberName, originalMessage, session, messageId,
-                authManager);
+    Deque<String> pending = new ArrayDeque<String>();
+    for (MessageRoute route : routes) {
+      if (LiteMessageTransport.INTERNAL_TRANSPORT.equals(route.getTransport())) {
+        LOG.info("Started handling a message for delivery to {} ", route.getRcpt());
+        pending.add(route.getRcpt());
+      }
+    }
+    Set<String> seen = new HashSet<String>();
+    Set<String> recipients = new LinkedHashSet<String>();
+    while (!pending.isEmpty()) {
+      String recipient = pending.poll();
+      if (!seen.add(recipient)) {
+        continue;
+      }
+      try {
+        Authorizable au = authManager.findAuthorizable(recipient);
+        if (au instanceof Group) {
+          // user must be in the group directly to send a message:
+          for (String memberName : ((Group) au).getMembers()) {
+            if (!seen.contains(memberName)) {
+              pending.add(memberName);
+            }
           }
+        } else {
+          recipients.add(recipient);
         }
-      } else {
-        // only send a message to a user who hasn't already received one:
-        if (!recipients.contains(recipient)) {
+      } catch (AccessDeniedException e) {
+        LOG.error(e.getMessage(), e);
+      } catch (StorageClientException e) {
+        LOG.error(e.getMessage(), e);
+      }
+    }
+    return recipients;
+  }
 
-          String messageStorePath = messagingService.getFullPathToStore(recipient, session);
-          if (messageStorePath.endsWith("/")) {
-            messageStorePath = messageStorePath.substring(0, messageStorePath.length() - 1);
-          }
-          boolean forPublicOrEveryone = hasEveryoneOrPublicPermission(messageStorePath, contentManager);
-
-          if ( forPublicOrEveryone || messagingService.checkDeliveryAccessOk(recipient, originalMessage, session ) ) {
-            String toPath = messagingService.getFullPathToMessage(recipient, messageId,
-                session);
-            
-            
-  
-            try {
-              lockManager.waitForLock(toPath);
-            } catch (LockTimeoutException e1) {
-              throw new MessagingException("Unable to lock destination message store");
+  /**
+   * Hand delivery to the background threads.
+   *
+   * @return false if the queue is full, in which case the caller should deliver.
+   */
+  private boolean deliverLater(final Collection<String> recipients,
+      final Content originalMessage) {
+    ThreadPoolExecutor executor = deliveryExecutor;
+    if (executor == null) {
+      return false;
+    }
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          Session session = null;
+          try {
+            session = slingRepository.loginAdministrative();
+            deliver(session, recipients, originalMessage, true);
+          } catch (ClientPoolException e) {
+            LOG.error(e.getMessage(), e);
+          } catch (StorageClientException e) {
+            LOG.error(e.getMessage(), e);
+          } finally {
+            if (session != null) {
+              try {
+                session.logout();
+              } catch (ClientPoolException e) {
+                LOG.error(e.getMessage(), e);
+              }
             }
-            
-            ImmutableMap.Builder<String, Object> propertyBuilder = ImmutableMap.builder();
-            // Copy the content into the user his folder.
-            contentManager.update(
-                new Content(toPath.substring(0, toPath.lastIndexOf("/")), propertyBuilder
-                    .build()));
-            contentManager.copy(originalMessage.getPath(), toPath, true);
-            Content message = contentManager.get(toPath);
-            LOG.debug("Message As delivered at {} from {} is {} ",new Object[]{message.getPath(), originalMessage.getPath(), message});
-  
-            // Add some extra properties on the just created node.
-            message.setProperty(MessageConstants.PROP_SAKAI_READ, false);
-            message.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
-            message.setProperty(MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_NOTIFIED);
-            message.setProperty(MessageConstants.PROP_SAKAI_MESSAGE_STORE, messagingService.getFullPathToStore(recipient, session));
-            contentManager.update(message);
-          } else {
-            LOG.warn("Unable to deliver message, permission denied {} ", originalMessage.getPath());
           }
-          recipients.add(recipient);
         }
+      });
+      LOG.info("Delivering {} to {} recipients in the background ",
+          originalMessage.getPath(), recipients.size());
+      return true;
+    } catch (RejectedExecutionException e) {
+      LOG.warn("Background delivery is busy, delivering {} now ", originalMessage.getPath());
+      return false;
+    }
+  }
+
+  /**
+   * Copy the message into the message store of every recipient.
+   *
+   * @param reportProgress
+   *          true to record the progress on the original message every
+   *          {@link #DELIVERY_BATCH_SIZE} recipients.
+   * @return the number of recipients the message was delivered to.
+   */
+  protected int deliver(Session session, Collection<String> recipients,
+      Content originalMessage, boolean reportProgress) {
+    ContentManager contentManager;
+    try {
+      contentManager = session.getContentManager();
+    } catch (StorageClientException e) {
+      LOG.error(e.getMessage(), e);
+      return 0;
+    }
+    String messageId = (String) originalMessage.getProperty(MessageConstants.PROP_SAKAI_ID);
+    Map<String, Object> deliveredProperties = getDeliveredProperties(originalMessage);
+    // a body stream can only be carried over by copying the message.
+    boolean copyBody = originalMessage.hasProperty(Content.LENGTH_FIELD);
+    int total = recipients.size();
+    int done = 0;
+    int delivered = 0;
+    if (reportProgress) {
+      reportProgress(contentManager, originalMessage.getPath(), 0, total);
+    }
+    for (String recipient : recipients) {
+      try {
+        if (deliverTo(session, contentManager, recipient, originalMessage, messageId,
+            deliveredProperties, copyBody)) {
+          delivered++;
+        }
+      } catch (AccessDeniedException e) {
+        LOG.error(e.getMessage(), e);
+      } catch (StorageClientException e) {
+        LOG.error(e.getMessage(), e);
+      } catch (MessagingException e) {
+        LOG.error(e.getMessage(), e);
       }
+      done++;
+      if (reportProgress && (done % DELIVERY_BATCH_SIZE == 0 || done == total)) {
+        reportProgress(contentManager, originalMessage.getPath(), done, total);
+      }
+    }
+    LOG.info("Delivered {} to {} of {} recipients ", new Object[] {
+        originalMessage.getPath(), delivered, total });
+    return delivered;
+  }
+
+  private boolean deliverTo(Session session, ContentManager contentManager,
+      String recipient, Content originalMessage, String messageId,
+      Map<String, Object> deliveredProperties, boolean copyBody)
+      throws AccessDeniedException, StorageClientException {
+    String messageStorePath = messagingService.getFullPathToStore(recipient, session);
+    // delivery to a user is always allowed, delivery to a content location needs
+    // permission.
+    if (recipient.indexOf('/') >= 0) {
+      String storePath = messageStorePath;
+      if (storePath.endsWith("/")) {
+        storePath = storePath.substring(0, storePath.length() - 1);
+      }
+      if (!hasEveryoneOrPublicPermission(storePath, contentManager)
+          && !messagingService.checkDeliveryAccessOk(recipient, originalMessage, session)) {
+        LOG.warn("Unable to deliver message, permission denied {} ", originalMessage.getPath());
+        return false;
+      }
+    }
+    String toPath = messagingService.getFullPathToMessage(recipient, messageId, session);
+    if (copyBody) {
+      // Copy the content into the user his folder.
+      ImmutableMap.Builder<String, Object> propertyBuilder = ImmutableMap.builder();
+      contentManager.update(new Content(toPath.substring(0, toPath.lastIndexOf("/")),
+          propertyBuilder.build()));
+      try {
+        contentManager.copy(originalMessage.getPath(), toPath, true);
+      } catch (IOException e) {
+        LOG.error(e.getMessage(), e);
+        return false;
+      }
+    }
+    // one write puts the message with its delivery properties into the store.
+    Map<String, Object> properties = new HashMap<String, Object>(deliveredProperties);
+    properties.put(MessageConstants.PROP_SAKAI_MESSAGE_STORE, messageStorePath);
+    Content message = new Content(toPath, properties);
+    contentManager.update(message);
+    LOG.debug("Message As delivered at {} from {} is {} ",new Object[]{toPath, originalMessage.getPath(), message});
+    return true;
+  }
+
+  /**
+   * @return the properties every delivered copy gets: those of the original message,
+   *         without the storage managed ones, and the state of a new inbox message.
+   */
+  private Map<String, Object> getDeliveredProperties(Content originalMessage) {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    for (Entry<String, Object> property : originalMessage.getProperties().entrySet()) {
+      if (!property.getKey().startsWith("_")) {
+        properties.put(property.getKey(), property.getValue());
+      }
+    }
+    properties.remove(MessageConstants.PROP_SAKAI_DELIVERY_TOTAL);
+    properties.remove(MessageConstants.PROP_SAKAI_DELIVERY_DONE);
+    // Add some extra properties on the just created node.
+    properties.put(MessageConstants.PROP_SAKAI_READ, false);
+    properties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+    properties.put(MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_NOTIFIED);
+    return properties;
+  }
+
+  private void reportProgress(ContentManager contentManager, String path, int done,
+      int total) {
+    try {
+      contentManager.update(new Content(path, ImmutableMap.of(
+          MessageConstants.PROP_SAKAI_DELIVERY_TOTAL, (Object) total,
+          MessageConstants.PROP_SAKAI_DELIVERY_DONE, done)));
     } catch (AccessDeniedException e) {
-      LOG.error(e.getMessage(), e);
+      LOG.warn("Unable to record delivery progress of {}: {} ", path, e.getMessage());
     } catch (StorageClientException e) {
-      LOG.error(e.getMessage(), e);
-    } catch (IOException e) {
-      LOG.error(e.getMessage(), e);
-    } finally {
-      lockManager.clearLocks();
+      LOG.warn("Unable to record delivery progress of {}: {} ", path, e.getMessage());
     }
   }
 
@@ -22,6 +22,8 @@ import static org.mockito.Matchers.isA;
 
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.withSettings;
 
@@ -32,26 +34,27 @@ import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONObject;
+import org.apache.solr.client.solrj.response.FacetField;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
-import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.Dictionary;
+import java.util.Hashtable;
 
 /**
  *
@@ -61,41 +64,23 @@ public class LiteCountServletTest {
   private LiteCountServlet servlet;
   private LiteMessagingService messagingService;
   private SolrSearchServiceFactory searchFactory;
+  private MessageCountCache countCache;
+  private SlingHttpServletRequest request;
+  private SolrSearchResultSet resultSet;
 
   @Before
-  public void setUp() {
+  public void setUp() throws Exception {
     servlet = new LiteCountServlet();
     messagingService = mock(LiteMessagingService.class);
     searchFactory = mock(SolrSearchServiceFactory.class);
+    countCache = new MessageCountCache();
 
     servlet.messagingService = messagingService;
     servlet.searchServiceFactory = searchFactory;
-  }
-
-  @After
-  public void tearDown() {
-    servlet.messagingService = messagingService;
-  }
-
-  @Test
-  public void testParams() throws Exception {
-    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
-    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    PrintWriter write = new PrintWriter(baos);
-    when(response.getWriter()).thenReturn(write);
+    servlet.countCache = countCache;
 
-    // Request stuff
-    RequestParameter groupParam = mock(RequestParameter.class);
-    when(groupParam.getString()).thenReturn("foo");
+    request = mock(SlingHttpServletRequest.class);
     when(request.getRemoteUser()).thenReturn("admin");
-    when(request.getRequestParameter("groupedby")).thenReturn(groupParam);
-
-    // Results
-    Map<String, Collection<Object>> props = new HashMap<String, Collection<Object>>();
-    props.put("foo", (Collection<Object>) Lists.newArrayList((Object) "a"));
-    Map<String, Collection<Object>> propsC = new HashMap<String, Collection<Object>>();
-    propsC.put("foo", (Collection<Object>) Lists.newArrayList((Object) "c"));
 
     // Session & search
     ResourceResolver rr = mock(ResourceResolver.class);
@@ -104,7 +89,7 @@ public class LiteCountServletTest {
     when(rr.adaptTo(javax.jcr.Session.class)).thenReturn(jcrSession);
     Session session = mock(Session.class);
     when(((SessionAdaptable) jcrSession).getSession()).thenReturn(session);
-    
+
     // Node
     Content node = new Content("/_user/message.count.json", null);
     Resource resource = mock(Resource.class);
@@ -114,30 +99,97 @@ public class LiteCountServletTest {
     when(messagingService.getFullPathToStore("admin", session)).thenReturn(
         "/path/to/store");
 
-    Result r1 = mock(Result.class);
-    when(r1.getPath()).thenReturn("/path/to/msgA");
-    when(r1.getProperties()).thenReturn(props);
-    Result r2 = mock(Result.class);
-    when(r2.getPath()).thenReturn("/path/to/msgB");
-    when(r2.getProperties()).thenReturn(props);
-    Result r3 = mock(Result.class);
-    when(r3.getPath()).thenReturn("/path/to/msgC");
-    when(r3.getProperties()).thenReturn(propsC);
-    Iterator<Result> results = Lists.newArrayList(r1, r2, r3).iterator();
-
-    SolrSearchResultSet resultSet = mock(SolrSearchResultSet.class);
+    resultSet = mock(SolrSearchResultSet.class);
     when(searchFactory.getSearchResultSet(isA(SlingHttpServletRequest.class), isA(Query.class), anyBoolean())).thenReturn(resultSet);
-    when(resultSet.getResultSetIterator()).thenReturn(results);
-    servlet.doGet(request, response);
+  }
 
-    write.flush();
-    String s = baos.toString("UTF-8");
-    JSONObject o = new JSONObject(s);
+  @After
+  public void tearDown() {
+    servlet.messagingService = messagingService;
+  }
+
+  @Test
+  public void testParams() throws Exception {
+    // Request stuff
+    RequestParameter groupParam = mock(RequestParameter.class);
+    when(groupParam.getString()).thenReturn("sakai:foo");
+    when(request.getRequestParameter("groupedby")).thenReturn(groupParam);
+
+    // Facet counts, which are exact however many messages match.
+    FacetField field = new FacetField("foo");
+    field.add("a", 1200);
+    field.add("c", 1);
+    when(resultSet.getFacetFields()).thenReturn(Lists.newArrayList(field));
+
+    JSONObject o = doGet();
 
     JSONArray arr = o.getJSONArray("count");
-    assertEquals(1, arr.length());
-    assertEquals("null", arr.getJSONObject(0).getString("group"));
-    assertEquals("3", arr.getJSONObject(0).getString("count"));
+    assertEquals(2, arr.length());
+    assertEquals("a", arr.getJSONObject(0).getString("group"));
+    assertEquals(1200, arr.getJSONObject(0).getLong("count"));
+    assertEquals("c", arr.getJSONObject(1).getString("group"));
+    assertEquals(1, arr.getJSONObject(1).getLong("count"));
+
+    // no documents are fetched, the grouping is done by a facet.
+    ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+    verify(searchFactory).getSearchResultSet(isA(SlingHttpServletRequest.class), query.capture(), anyBoolean());
+    assertEquals("0", query.getValue().getOptions().get("items"));
+    assertEquals("true", query.getValue().getOptions().get("facet"));
+    assertEquals("foo", query.getValue().getOptions().get("facet.field"));
+  }
+
+  @Test
+  public void testCountIsCachedUntilTheStoreChanges() throws Exception {
+    when(resultSet.getSize()).thenReturn(3L);
+
+    assertEquals(3, doGet().getLong("count"));
+    assertEquals(3, doGet().getLong("count"));
+    verify(searchFactory, times(1)).getSearchResultSet(isA(SlingHttpServletRequest.class), isA(Query.class), anyBoolean());
+
+    // a change to someone else's content leaves the count alone.
+    countCache.handleEvent(contentEvent("a:zach/message/ab/cd/msg"));
+    doGet();
+    verify(searchFactory, times(1)).getSearchResultSet(isA(SlingHttpServletRequest.class), isA(Query.class), anyBoolean());
+
+    when(resultSet.getSize()).thenReturn(4L);
+    countCache.handleEvent(contentEvent("a:admin/message/ab/cd/msg"));
+    assertEquals(4, doGet().getLong("count"));
+    verify(searchFactory, times(2)).getSearchResultSet(isA(SlingHttpServletRequest.class), isA(Query.class), anyBoolean());
+  }
+
+  @Test
+  public void testCountIsNotCachedWhileTheIndexSettles() throws Exception {
+    when(resultSet.getSize()).thenReturn(3L);
+    countCache.handleEvent(contentEvent("a:admin/message/ab/cd/msg"));
+
+    // the index may not have caught up with the change yet, so ask it every time.
+    doGet();
+    when(resultSet.getSize()).thenReturn(4L);
+    assertEquals(4, doGet().getLong("count"));
+    verify(searchFactory, times(2)).getSearchResultSet(isA(SlingHttpServletRequest.class), isA(Query.class), anyBoolean());
+
+    // once it has settled counts are kept again.
+    countCache.activate(ImmutableMap.of(MessageCountCache.CACHE_SETTLE, (Object) 0));
+    doGet();
+    doGet();
+    verify(searchFactory, times(3)).getSearchResultSet(isA(SlingHttpServletRequest.class), isA(Query.class), anyBoolean());
+  }
+
+  private JSONObject doGet() throws Exception {
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter write = new PrintWriter(baos);
+    when(response.getWriter()).thenReturn(write);
+
+    servlet.doGet(request, response);
+
+    write.flush();
+    return new JSONObject(baos.toString("UTF-8"));
+  }
 
+  private Event contentEvent(String path) {
+    Dictionary<String, Object> props = new Hashtable<String, Object>();
+    props.put("path", path);
+    return new Event("org/sakaiproject/nakamura/lite/content/UPDATED", props);
   }
 }
@@ -30,6 +30,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
@@ -47,6 +48,8 @@ import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.message.MessagingException;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -138,4 +141,37 @@ public class LiteMessagingServiceImplTest {
     }
     verify(eventAdmin, times(0)).postEvent(Matchers.<Event>any());
   }
+
+  @Test
+  public void testCopyMessageNode() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+    properties.put(MessageConstants.PROP_SAKAI_MESSAGE_STORE, "a:alice/message/");
+    Content source = new Content("a:alice/message/inbox/foo", properties);
+    when(contentManager.listChildPaths("a:alice/message/inbox/foo")).thenReturn(
+        Arrays.asList("a:alice/message/inbox/foo/part000").iterator());
+    when(contentManager.listChildPaths("a:alice/message/inbox/foo/part000")).thenReturn(
+        Arrays.asList("a:alice/message/inbox/foo/part000/part001").iterator());
+    when(contentManager.listChildPaths("a:alice/message/inbox/foo/part000/part001"))
+        .thenReturn(Collections.<String> emptyList().iterator());
+    when(contentManager.get("a:carol/message/inbox/foo")).thenReturn(
+        new Content("a:carol/message/inbox/foo", new HashMap<String, Object>(properties)));
+
+    messagingServiceImpl.copyMessageNode(source, "a:carol/message/", session);
+
+    // the copy lands where create would have put it, with all of its parts
+    verify(contentManager).copy("a:alice/message/inbox/foo", "a:carol/message/inbox/foo",
+        true);
+    verify(contentManager).copy("a:alice/message/inbox/foo/part000",
+        "a:carol/message/inbox/foo/part000", true);
+    verify(contentManager).copy("a:alice/message/inbox/foo/part000/part001",
+        "a:carol/message/inbox/foo/part000/part001", true);
+    ArgumentCaptor<Content> updated = ArgumentCaptor.forClass(Content.class);
+    verify(contentManager, times(2)).update(updated.capture());
+    assertEquals("a:carol/message/inbox", updated.getAllValues().get(0).getPath());
+    assertEquals("a:carol/message/", updated.getAllValues().get(1).getProperty(
+        MessageConstants.PROP_SAKAI_MESSAGE_STORE));
+    // inbox messages are not sent anywhere
+    verify(eventAdmin, times(0)).postEvent(Matchers.<Event>any());
+  }
 }
@@ -18,14 +18,24 @@
 package org.sakaiproject.nakamura.message.internal;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
@@ -33,7 +43,6 @@ import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
-import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.message.MessageRoutes;
@@ -41,7 +50,15 @@ import org.sakaiproject.nakamura.message.listener.LiteMessageRoutesImpl;
 
 import com.google.common.collect.ImmutableMap;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -50,7 +67,6 @@ public class LiteInternalMessageHandlerTest {
 
   private LiteInternalMessageHandler handler;
   private LiteMessagingService messagingService;
-  private LockManager lockManager;
   private Repository repository;
   private Session session;
   private ContentManager cm;
@@ -60,11 +76,9 @@ public class LiteInternalMessageHandlerTest {
   public void setUp() throws Exception {
     messagingService = mock(LiteMessagingService.class);
     repository = mock(Repository.class);
-    lockManager = mock(LockManager.class);
     handler = new LiteInternalMessageHandler();
     handler.messagingService = messagingService;
     handler.slingRepository = repository;
-    handler.lockManager = lockManager;
     session = mock(Session.class);
     cm = mock(ContentManager.class);
     when(session.getContentManager()).thenReturn(cm);
@@ -105,18 +119,104 @@ public class LiteInternalMessageHandlerTest {
 
   }
 
+  @Test
+  public void testGroupsAreExpandedOncePerUser() throws Exception {
+    Authorizable admin = createAuthorizable("admin", false);
+    Group group = (Group) createAuthorizable(groupName, true);
+    Group nested = (Group) createAuthorizable("g_group2", true);
+    // the groups contain each other and both contain admin.
+    when(group.getMembers()).thenReturn(new String[] { "admin", "g_group2" });
+    when(nested.getMembers()).thenReturn(new String[] { groupName, "admin" });
+    AuthorizableManager am = createAuthManager(null, admin, group, nested);
+    when(session.getAuthorizableManager()).thenReturn(am);
+    when(messagingService.getFullPathToStore(isA(String.class), isA(Session.class)))
+        .thenReturn("/path/to/store");
+
+    testMessage("/path/to/msg3", "/path/to/new/msg3", "internal:" + groupName
+        + ",internal:admin");
+    verify(messagingService, times(1)).getFullPathToMessage("admin", "foo", session);
+  }
+
+  @Test
+  public void testLargeGroupIsDeliveredInTheBackground() throws Exception {
+    handler.activate(ImmutableMap.of(LiteInternalMessageHandler.ASYNC_THRESHOLD,
+        (Object) 10, LiteInternalMessageHandler.DELIVERY_THREADS, 1));
+    try {
+      int memberCount = 2 * LiteInternalMessageHandler.DELIVERY_BATCH_SIZE + 50;
+      String[] members = new String[memberCount];
+      Authorizable[] authorizables = new Authorizable[memberCount + 1];
+      for (int i = 0; i < memberCount; i++) {
+        members[i] = "user" + i;
+        authorizables[i] = createAuthorizable(members[i], false);
+      }
+      Group group = (Group) createAuthorizable(groupName, true);
+      when(group.getMembers()).thenReturn(members);
+      authorizables[memberCount] = group;
+      AuthorizableManager am = createAuthManager(null, authorizables);
+      when(session.getAuthorizableManager()).thenReturn(am);
+
+      // the background delivery gets a session of its own
+      Session deliverySession = mock(Session.class);
+      ContentManager deliveryCm = mock(ContentManager.class);
+      when(deliverySession.getContentManager()).thenReturn(deliveryCm);
+      final CountDownLatch delivered = new CountDownLatch(1);
+      doAnswer(new Answer<Void>() {
+        public Void answer(InvocationOnMock invocation) throws Throwable {
+          delivered.countDown();
+          return null;
+        }
+      }).when(deliverySession).logout();
+      when(repository.loginAdministrative()).thenReturn(session, deliverySession);
+      when(messagingService.getFullPathToStore(isA(String.class), isA(Session.class)))
+          .thenReturn("/path/to/store/");
+      when(messagingService.getFullPathToMessage(isA(String.class), eq("foo"),
+          isA(Session.class))).thenAnswer(new Answer<String>() {
+        public String answer(InvocationOnMock invocation) throws Throwable {
+          return "/path/to/" + invocation.getArguments()[0] + "/foo";
+        }
+      });
+
+      String path = "/path/to/msg4";
+      Content originalMessage = new Content(path, ImmutableMap.of(
+          MessageConstants.PROP_SAKAI_TO, (Object) ("internal:" + groupName),
+          MessageConstants.PROP_SAKAI_ID, "foo"));
+      handler.send(new LiteMessageRoutesImpl(originalMessage), null, originalMessage);
+
+      assertTrue("The background delivery did not finish",
+          delivered.await(10, TimeUnit.SECONDS));
+      // nothing was written by the sending thread
+      verify(cm, never()).update(isA(Content.class));
+
+      ArgumentCaptor<Content> written = ArgumentCaptor.forClass(Content.class);
+      verify(deliveryCm, atLeastOnce()).update(written.capture());
+      Set<String> copies = new HashSet<String>();
+      List<Object> progress = new ArrayList<Object>();
+      for (Content content : written.getAllValues()) {
+        if (path.equals(content.getPath())) {
+          assertEquals(memberCount, content.getProperty(
+              MessageConstants.PROP_SAKAI_DELIVERY_TOTAL));
+          progress.add(content.getProperty(MessageConstants.PROP_SAKAI_DELIVERY_DONE));
+        } else {
+          copies.add(content.getPath());
+        }
+      }
+      assertEquals(memberCount, copies.size());
+      assertTrue(copies.contains("/path/to/user0/foo"));
+      assertTrue(copies.contains("/path/to/user" + (memberCount - 1) + "/foo"));
+      // progress is recorded at the start, after every batch and at the end
+      assertEquals(Arrays.asList((Object) 0, LiteInternalMessageHandler.DELIVERY_BATCH_SIZE,
+          2 * LiteInternalMessageHandler.DELIVERY_BATCH_SIZE, memberCount), progress);
+    } finally {
+      handler.deactivate();
+    }
+  }
+
   private void testMessage(String path, String newPath, String to) throws Exception {
  // Original message created to send
     Map<String, Object> props = ImmutableMap.of(MessageConstants.PROP_SAKAI_TO,
         (Object) to, MessageConstants.PROP_SAKAI_ID, "foo");
     Content originalMessage = new Content(path, props);
 
-    Map<String, Object> newProps = ImmutableMap.of(MessageConstants.PROP_SAKAI_READ, (Object) Boolean.FALSE,
-        MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX,
-        MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_NOTIFIED);
-    Content newNode = new Content(newPath, newProps);
-    when(cm.get(newPath)).thenReturn(newNode);
-
     when(repository.loginAdministrative()).thenReturn(session);
 
     when(messagingService.getFullPathToMessage("admin", "foo", session)).thenReturn(
@@ -126,11 +226,21 @@ public class LiteInternalMessageHandlerTest {
 
     handler.send(routes, null, originalMessage);
 
+    ArgumentCaptor<Content> written = ArgumentCaptor.forClass(Content.class);
+    verify(cm, atLeastOnce()).update(written.capture());
+    Map<String, Content> byPath = new HashMap<String, Content>();
+    List<Content> updates = written.getAllValues();
+    for (Content content : updates) {
+      byPath.put(content.getPath(), content);
+    }
+    Content newNode = byPath.get(newPath);
     assertEquals(false, (Boolean) newNode.getProperty(MessageConstants.PROP_SAKAI_READ));
     assertEquals(MessageConstants.BOX_INBOX, newNode.getProperty(
         MessageConstants.PROP_SAKAI_MESSAGEBOX));
     assertEquals(MessageConstants.STATE_NOTIFIED, newNode.getProperty(
         MessageConstants.PROP_SAKAI_SENDSTATE));
+    assertEquals("foo", newNode.getProperty(MessageConstants.PROP_SAKAI_ID));
+    assertEquals(to, newNode.getProperty(MessageConstants.PROP_SAKAI_TO));
   }
 
   private void registerAuthorizable(Authorizable authorizable, AuthorizableManager am, String name)
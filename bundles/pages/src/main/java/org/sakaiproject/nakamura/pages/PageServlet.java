@@ -17,6 +17,8 @@
  */
 package org.sakaiproject.nakamura.pages;
 
+import com.google.common.collect.ImmutableSet;
+
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -32,6 +34,8 @@ import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.search.SearchConstants;
+import org.sakaiproject.nakamura.api.search.SearchUtil;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.slf4j.Logger;
@@ -39,8 +43,11 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -51,10 +58,13 @@ import javax.servlet.http.HttpServletResponse;
     bindings = @ServiceBinding(type = BindingType.PATH, bindings = "/var/search/page"),
     methods = @ServiceMethod(name = "GET", description = "Get a list of pages below the specified path.",
       parameters = {
-        @ServiceParameter(name = "path", description = "The path of the pages to retrieve, e.g. /~welcome-group/pages")
+        @ServiceParameter(name = "path", description = "The path of the pages to retrieve, e.g. /~welcome-group/pages"),
+        @ServiceParameter(name = "items", description = "The number of pages to return, all pages if not set."),
+        @ServiceParameter(name = "page", description = "The page of results to return, starting at 0.")
       },
       response = {
-        @ServiceResponse(code = 200, description = "Request for information was successful. <br />"),
+        @ServiceResponse(code = 200, description = "Request for information was successful. <br />"
+            + "Only as much of the tree as the requested page needs is walked, so when 'hasMore' is true 'total' is a lower bound."),
         @ServiceResponse(code = 401, description = "Unauthorized: credentials provided were not acceptable to return information for."),
         @ServiceResponse(code = 500, description = "Unable to return information about current user.")
       }))
@@ -64,6 +74,18 @@ public class PageServlet extends SlingSafeMethodsServlet {
   private static final long serialVersionUID = -3786472219389695181L;
   private static final Logger LOG = LoggerFactory.getLogger(PageServlet.class);
 
+  private static final String PAGE_RESOURCE_TYPE = "sakai/page";
+
+  static final String HAS_MORE = "hasMore";
+
+  /**
+   * Resource types whose subtrees never hold pages, so the walk does not descend into
+   * them.
+   */
+  private static final Set<String> NON_PAGE_TREES = ImmutableSet.of("sakai/messagestore",
+      "sakai/message", "sakai/calendar", "sakai/activity", "sakai/widget-data",
+      "sakai/contact");
+
   /**
    * {@inheritDoc}
    *
@@ -74,7 +96,7 @@ public class PageServlet extends SlingSafeMethodsServlet {
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
     try {
-      List<Content> contentList = null;
+      Content pagesContent = null;
       RequestParameter rp = request.getRequestParameter("path");
       ResourceResolver resourceResolver = request.getResourceResolver();
       if (rp != null) {
@@ -88,42 +110,48 @@ public class PageServlet extends SlingSafeMethodsServlet {
 
         Resource pagesResource = resourceResolver.getResource(contentPath);
         if (pagesResource != null) {
-          contentList = getPageTree(pagesResource.adaptTo(Content.class));
+          pagesContent = pagesResource.adaptTo(Content.class);
         }
 
       }
 
+      long nitems = SearchUtil.longRequestParameter(request,
+          SearchConstants.PARAMS_ITEMS_PER_PAGE, -1);
+      long offset = 0;
+      if (nitems >= 0) {
+        offset = Math.max(0, SearchUtil.longRequestParameter(request,
+            SearchConstants.PARAMS_PAGE, 0)) * nitems;
+      }
+
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
       PrintWriter w = response.getWriter();
       ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
       writer.object();
-      // pages info
-      int messageCount = 0;
-      writer.key("items");
-      writer.value(255);
 
-      writer.key("results");
+      writer.key(SearchConstants.JSON_RESULTS);
       writer.array();
-      if (contentList != null) {
-        for (int i = 0; i < contentList.size(); i++) {
-          Content page = contentList.get(i);
-
-          writer.object();
-          writer.key("jcr:path");
-          writer.value(page.getPath().replaceFirst(LitePersonalUtils.PATH_AUTHORIZABLE,
-              LitePersonalUtils.PATH_RESOURCE_AUTHORIZABLE));
-          for (String messagePropKey : page.getProperties().keySet()) {
-            writer.key(messagePropKey);
-            writer.value(massageValue(messagePropKey, page.getProperty(messagePropKey)));
-          }
-          writer.endObject();
-          messageCount++;
+      // pages are written as the walk finds them, those before the requested window are
+      // only counted. The walk stops once the window is full.
+      long total = 0;
+      PageTreeWalker pages = new PageTreeWalker(pagesContent);
+      while ((nitems < 0 || total < offset + nitems) && pages.hasNext()) {
+        Content page = pages.next();
+        if (total >= offset) {
+          writePage(writer, page);
         }
+        total++;
       }
       writer.endArray();
-      writer.key("total");
-      writer.value(messageCount);
+      // the total is only exact when the walk reached the end, otherwise it is the pages
+      // found so far plus one for the next.
+      boolean hasMore = pages.hasNext();
+      writer.key(SearchConstants.PARAMS_ITEMS_PER_PAGE);
+      writer.value(nitems < 0 ? total : nitems);
+      writer.key(SearchConstants.TOTAL);
+      writer.value(hasMore ? total + 1 : total);
+      writer.key(HAS_MORE);
+      writer.value(hasMore);
 
       writer.endObject();
     } catch (JSONException e) {
@@ -145,25 +173,70 @@ public class PageServlet extends SlingSafeMethodsServlet {
     return rv;
   }
 
-  /*
-   * getPageTree: returns List of all pages under the passed path
+  private void writePage(ExtendedJSONWriter writer, Content page) throws JSONException {
+    writer.object();
+    writer.key("jcr:path");
+    writer.value(page.getPath().replaceFirst(LitePersonalUtils.PATH_AUTHORIZABLE,
+        LitePersonalUtils.PATH_RESOURCE_AUTHORIZABLE));
+    for (String messagePropKey : page.getProperties().keySet()) {
+      writer.key(messagePropKey);
+      writer.value(massageValue(messagePropKey, page.getProperty(messagePropKey)));
+    }
+    writer.endObject();
+  }
+
+  /**
+   * Iterates over the pages under some content depth first, each page before the pages
+   * below it, keeping only the child iterators of the current branch.
    */
-  private List<Content> getPageTree(Content pageContent) {
-    List<Content> contentList = new ArrayList<Content>();
-
-    if (pageContent != null) {
-      // Add to list only if content is a page
-      String resourceType = String.valueOf(pageContent.getProperty("sling:resourceType"));
-      if ("sakai/page".equals(resourceType))  {
-        contentList.add(pageContent);
+  static class PageTreeWalker implements Iterator<Content> {
+    private final Deque<Iterator<Content>> branch = new ArrayDeque<Iterator<Content>>();
+    private Content next;
+
+    /**
+     * @param root
+     *          the content to list the pages of, it is included if it is a page.
+     */
+    PageTreeWalker(Content root) {
+      if (root != null) {
+        visit(root);
       }
-      for (Content page : pageContent.listChildren()) {
-        contentList.addAll(getPageTree(page));
+    }
+
+    public boolean hasNext() {
+      while (next == null && !branch.isEmpty()) {
+        Iterator<Content> children = branch.peek();
+        if (children.hasNext()) {
+          visit(children.next());
+        } else {
+          branch.pop();
+        }
       }
+      return next != null;
     }
 
-    return contentList;
-  }
+    public Content next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Content page = next;
+      next = null;
+      return page;
+    }
 
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private void visit(Content content) {
+      String resourceType = String.valueOf(content.getProperty("sling:resourceType"));
+      if (PAGE_RESOURCE_TYPE.equals(resourceType)) {
+        next = content;
+      }
+      if (!NON_PAGE_TREES.contains(resourceType)) {
+        branch.push(content.listChildren().iterator());
+      }
+    }
+  }
 
 }
\ No newline at end of file
@@ -26,24 +26,36 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrInputDocument;
 import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.solr.IndexingHandler;
 import org.sakaiproject.nakamura.api.solr.RepositorySession;
 import org.sakaiproject.nakamura.api.solr.ResourceIndexingService;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -52,13 +64,32 @@ import java.util.Set;
  * Indexing handler for widget data stored under a group. See {@link https
  * ://confluence.sakaiproject.org/display/KERNDOC/KERN-1675+Searching+Widget+Data} for
  * more details.
+ * <p>
+ * Autosaving widgets update their data every few seconds, usually without changing any of
+ * the indexed fields, and a burst of updates for the same path can queue up before the
+ * first is indexed. The handler remembers a hash of the text it last indexed for each path
+ * for a while, and an update whose text hashes the same is dropped, so a burst collapses
+ * into a single document holding the latest state.
+ * <p>
+ * The hash is also indexed with the document. Until Solr has been seen to hold it, a
+ * remembered hash is only pending, since the commit that carried it may have failed and the
+ * event be on its way round again. The first repeat of a pending hash checks Solr for it,
+ * and only once it is there are repeats dropped.
  */
-@Component(immediate = true)
+@Component(immediate = true, metatype = true)
 @Service
 public class WidgetDataIndexingHandler implements IndexingHandler {
 
+  @Property(intValue = 300)
+  static final String COALESCE_WINDOW_SECONDS = "sakai.widgetdata.index.coalesceWindowSeconds";
+
+  @Property(intValue = 10000)
+  static final String MAX_TRACKED_PATHS = "sakai.widgetdata.index.maxTrackedPaths";
+
   public static final String INDEXED_FIELDS = "sakai:indexed-fields";
 
+  static final String FIELD_HASH = "widgetdatahash";
+
   private static final Logger logger = LoggerFactory
       .getLogger(WidgetDataIndexingHandler.class);
 
@@ -67,13 +98,43 @@ public class WidgetDataIndexingHandler implements IndexingHandler {
   @Reference(target = "(type=sparse)")
   private ResourceIndexingService resourceIndexingService;
 
+  @Reference
+  protected SolrServerService solrServerService;
+
+  private long coalesceWindow = 300000L;
+
+  private int maxTrackedPaths = 10000;
+
+  /**
+   * path -> what was last indexed for it, least recently indexed first.
+   */
+  private final Map<String, IndexedText> lastIndexed = new LinkedHashMap<String, IndexedText>(
+      16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, IndexedText> eldest) {
+      return size() > maxTrackedPaths;
+    }
+  };
+
   @Activate
   public void activate(Map<String, Object> properties) throws Exception {
+    modified(properties);
     for (String type : CONTENT_TYPES) {
       resourceIndexingService.addHandler(type, this);
     }
   }
 
+  @Modified
+  public void modified(Map<String, Object> properties) {
+    coalesceWindow = PropertiesUtil.toInteger(properties.get(COALESCE_WINDOW_SECONDS), 300) * 1000L;
+    synchronized (lastIndexed) {
+      maxTrackedPaths = PropertiesUtil.toInteger(properties.get(MAX_TRACKED_PATHS), 10000);
+      lastIndexed.clear();
+    }
+  }
+
   @Deactivate
   public void deactivate(Map<String, Object> properties) {
     for (String type : CONTENT_TYPES) {
@@ -125,6 +186,13 @@ public class WidgetDataIndexingHandler implements IndexingHandler {
           }
         }
 
+        String text = sb.toString();
+        String hash = hash(docPath, text);
+        if (isUnchangedUpdate(event, path, hash)) {
+          logger.debug("Indexed text of {} is unchanged, not reindexing", path);
+          return docs;
+        }
+
         SolrInputDocument doc = new SolrInputDocument();
         // set the path here so that it's the first path found when rendering to
         // the client. we want this one first, so we don't have to create a
@@ -133,7 +201,8 @@ public class WidgetDataIndexingHandler implements IndexingHandler {
 
         // set the return to a single value field so we can group it
         doc.setField("returnpath", docPath);
-        doc.setField("widgetdata", sb.toString());
+        doc.setField("widgetdata", text);
+        doc.setField(FIELD_HASH, hash);
         doc.addField(_DOC_SOURCE_OBJECT, content);
         docs.add(doc);
       } catch (StorageClientException e) {
@@ -159,7 +228,85 @@ public class WidgetDataIndexingHandler implements IndexingHandler {
     String resourceType = (String) event.getProperty("resourceType");
     if (CONTENT_TYPES.contains(resourceType)) {
       retval = ImmutableList.of("id:" + ClientUtils.escapeQueryChars(path));
+      synchronized (lastIndexed) {
+        lastIndexed.remove(path);
+      }
     }
     return retval;
   }
+
+  /**
+   * Records what is about to be indexed for a path, and tells whether that is the same as
+   * what was indexed and committed for it within the coalescing window. Only updates are
+   * ever dropped; an add, or any other event, is always indexed.
+   */
+  protected boolean isUnchangedUpdate(Event event, String path, String hash) {
+    long now = System.currentTimeMillis();
+    boolean update = event.getTopic() != null
+        && event.getTopic().endsWith(StoreListener.UPDATED_TOPIC);
+    IndexedText pending;
+    synchronized (lastIndexed) {
+      IndexedText previous = lastIndexed.get(path);
+      if (!update || previous == null || !previous.hash.equals(hash)
+          || now - previous.indexedAt >= coalesceWindow) {
+        lastIndexed.put(path, new IndexedText(hash, now));
+        return false;
+      }
+      if (previous.committed) {
+        return true;
+      }
+      pending = previous;
+    }
+    if (isCommitted(path, hash)) {
+      pending.committed = true;
+      return true;
+    }
+    // the earlier document never made it into the index, so this one has to
+    synchronized (lastIndexed) {
+      lastIndexed.put(path, new IndexedText(hash, now));
+    }
+    return false;
+  }
+
+  /**
+   * @return true if the committed index holds the document for the path with this hash
+   */
+  protected boolean isCommitted(String path, String hash) {
+    SolrQuery query = new SolrQuery("id:" + ClientUtils.escapeQueryChars(path) + " AND "
+        + FIELD_HASH + ":" + ClientUtils.escapeQueryChars(hash));
+    query.setRows(0);
+    try {
+      return solrServerService.getServer().query(query).getResults().getNumFound() > 0;
+    } catch (SolrServerException e) {
+      logger.warn("Could not check whether {} is indexed, reindexing it: {}", path,
+          e.getMessage());
+      return false;
+    }
+  }
+
+  private String hash(String docPath, String text) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      digest.update(docPath.getBytes("UTF-8"));
+      digest.update((byte) 0);
+      digest.update(text.getBytes("UTF-8"));
+      return new BigInteger(1, digest.digest()).toString(16);
+    } catch (NoSuchAlgorithmException e) {
+      // every JVM has SHA-1, but fall back to the text itself rather than fail indexing
+      return docPath + '\u0000' + text;
+    } catch (UnsupportedEncodingException e) {
+      return docPath + '\u0000' + text;
+    }
+  }
+
+  private static final class IndexedText {
+    private final String hash;
+    private final long indexedAt;
+    private volatile boolean committed;
+
+    private IndexedText(String hash, long indexedAt) {
+      this.hash = hash;
+      this.indexedAt = indexedAt;
+    }
+  }
 }
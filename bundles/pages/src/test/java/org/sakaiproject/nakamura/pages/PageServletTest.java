@@ -0,0 +1,182 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.pages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.pages.PageServlet.PageTreeWalker;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ */
+public class PageServletTest {
+
+  private SlingHttpServletRequest request;
+  private TreeContent root;
+  private TreeContent p3;
+
+  /**
+   * Sets up a pages tree of
+   *
+   * <pre>
+   * p1
+   * - p1a
+   * - messages (not walked)
+   *   - hidden
+   * p2
+   * p3
+   * </pre>
+   */
+  @Before
+  public void setUp() throws Exception {
+    root = new TreeContent("a:group/pages", "sakai/pages");
+    TreeContent p1 = root.add(new TreeContent("a:group/pages/p1", "sakai/page"));
+    p1.add(new TreeContent("a:group/pages/p1/p1a", "sakai/page"));
+    TreeContent messages = p1.add(new TreeContent("a:group/pages/p1/messages",
+        "sakai/messagestore") {
+      @Override
+      public Iterable<Content> listChildren() {
+        fail("Message stores should not be walked");
+        return null;
+      }
+    });
+    messages.add(new TreeContent("a:group/pages/p1/messages/hidden", "sakai/page"));
+    root.add(new TreeContent("a:group/pages/p2", "sakai/page"));
+    p3 = root.add(new TreeContent("a:group/pages/p3", "sakai/page"));
+
+    request = mock(SlingHttpServletRequest.class);
+    ResourceResolver resolver = mock(ResourceResolver.class);
+    when(request.getResourceResolver()).thenReturn(resolver);
+    Resource resource = mock(Resource.class);
+    when(resolver.getResource("/~group/pages")).thenReturn(resource);
+    when(resource.adaptTo(Content.class)).thenReturn(root);
+    setParameter("path", "/~group/pages/");
+  }
+
+  @Test
+  public void testWalkerListsPagesDepthFirst() throws Exception {
+    List<String> paths = new ArrayList<String>();
+    PageTreeWalker pages = new PageTreeWalker(root);
+    while (pages.hasNext()) {
+      paths.add(pages.next().getPath());
+    }
+    assertEquals(Lists.newArrayList("a:group/pages/p1", "a:group/pages/p1/p1a",
+        "a:group/pages/p2", "a:group/pages/p3"), paths);
+    assertFalse(new PageTreeWalker(null).hasNext());
+  }
+
+  @Test
+  public void testAllPagesWithoutItems() throws Exception {
+    JSONObject json = doGet();
+    assertEquals(4, json.getJSONArray("results").length());
+    assertEquals(4, json.getLong("items"));
+    assertEquals(4, json.getLong("total"));
+    assertFalse(json.getBoolean(PageServlet.HAS_MORE));
+  }
+
+  @Test
+  public void testWalkStopsAtTheRequestedPage() throws Exception {
+    setParameter("items", "1");
+    setParameter("page", "1");
+
+    JSONObject json = doGet();
+    JSONArray results = json.getJSONArray("results");
+    assertEquals(1, results.length());
+    assertEquals("/~group/pages/p1/p1a", results.getJSONObject(0).get("jcr:path"));
+    assertEquals(1, json.getLong("items"));
+    // p2 is found to tell there is more, p3 is never reached.
+    assertEquals(3, json.getLong("total"));
+    assertTrue(json.getBoolean(PageServlet.HAS_MORE));
+    assertEquals(0, p3.listed);
+  }
+
+  @Test
+  public void testLastPage() throws Exception {
+    setParameter("items", "2");
+    setParameter("page", "1");
+
+    JSONObject json = doGet();
+    JSONArray results = json.getJSONArray("results");
+    assertEquals(2, results.length());
+    assertEquals("/~group/pages/p2", results.getJSONObject(0).get("jcr:path"));
+    assertEquals("/~group/pages/p3", results.getJSONObject(1).get("jcr:path"));
+    assertEquals(4, json.getLong("total"));
+    assertFalse(json.getBoolean(PageServlet.HAS_MORE));
+  }
+
+  private void setParameter(String name, String value) throws Exception {
+    RequestParameter param = mock(RequestParameter.class);
+    when(param.getString()).thenReturn(value);
+    when(param.getString("UTF-8")).thenReturn(value);
+    when(request.getRequestParameter(name)).thenReturn(param);
+  }
+
+  private JSONObject doGet() throws Exception {
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    StringWriter out = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(out));
+    new PageServlet().doGet(request, response);
+    return new JSONObject(out.toString());
+  }
+
+  /**
+   * Content with its children held in memory.
+   */
+  private static class TreeContent extends Content {
+    private final List<Content> children = new ArrayList<Content>();
+    private int listed;
+
+    TreeContent(String path, String resourceType) {
+      super(path, ImmutableMap.of("sling:resourceType", (Object) resourceType));
+    }
+
+    TreeContent add(TreeContent child) {
+      children.add(child);
+      return child;
+    }
+
+    @Override
+    public Iterable<Content> listChildren() {
+      listed++;
+      return children;
+    }
+  }
+}
@@ -0,0 +1,180 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.pages.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.sakaiproject.nakamura.api.solr.RepositorySession;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+/**
+ *
+ */
+public class WidgetDataIndexingHandlerTest extends AbstractEasyMockTest {
+
+  private static final String PATH = "poolid/id123/rte";
+
+  private WidgetDataIndexingHandler handler;
+
+  private RepositorySession repositorySession;
+
+  private ContentManager contentManager;
+
+  /**
+   * Whether Solr answers that the last indexed document has been committed.
+   */
+  private boolean committed = true;
+
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    handler = new WidgetDataIndexingHandler() {
+      @Override
+      protected boolean isCommitted(String path, String hash) {
+        return committed;
+      }
+    };
+    handler.modified(new HashMap<String, Object>());
+    repositorySession = createNiceMock(RepositorySession.class);
+    Session session = createNiceMock(Session.class);
+    contentManager = createMock(ContentManager.class);
+    EasyMock.expect(repositorySession.adaptTo(Session.class)).andReturn(session).anyTimes();
+    EasyMock.expect(session.getContentManager()).andReturn(contentManager).anyTimes();
+  }
+
+  /**
+   * An autosaving editor: 20 updates, but the text only really changes every 5th save.
+   */
+  @Test
+  public void testAutosaveBurstIsIndexedOncePerChange() throws Exception {
+    for (int i = 0; i < 20; i++) {
+      EasyMock.expect(contentManager.get(PATH)).andReturn(widgetData("draft " + (i / 5)));
+    }
+    replay();
+
+    int indexed = 0;
+    for (int i = 0; i < 20; i++) {
+      indexed += handler.getDocuments(repositorySession, event(StoreListener.UPDATED_TOPIC))
+          .size();
+    }
+    assertEquals(4, indexed);
+    verify();
+  }
+
+  @Test
+  public void testIndexedDocumentHasTheLatestText() throws Exception {
+    EasyMock.expect(contentManager.get(PATH)).andReturn(widgetData("first"));
+    EasyMock.expect(contentManager.get(PATH)).andReturn(widgetData("second"));
+    replay();
+
+    handler.getDocuments(repositorySession, event(StoreListener.UPDATED_TOPIC));
+    Collection<SolrInputDocument> docs = handler.getDocuments(repositorySession,
+        event(StoreListener.UPDATED_TOPIC));
+    assertEquals(1, docs.size());
+    SolrInputDocument doc = docs.iterator().next();
+    assertEquals("second ", doc.getFieldValue("widgetdata"));
+    assertEquals("poolid", doc.getFieldValue(IndexingHandler.FIELD_PATH));
+    assertNotNull(doc.getFieldValue(WidgetDataIndexingHandler.FIELD_HASH));
+    verify();
+  }
+
+  /**
+   * Until Solr holds the document, the same text is indexed again, because the commit that
+   * carried it may have failed.
+   */
+  @Test
+  public void testUncommittedTextIsIndexedAgain() throws Exception {
+    EasyMock.expect(contentManager.get(PATH)).andReturn(widgetData("same")).times(4);
+    replay();
+
+    committed = false;
+    assertEquals(1, handler.getDocuments(repositorySession, event(StoreListener.UPDATED_TOPIC)).size());
+    assertEquals(1, handler.getDocuments(repositorySession, event(StoreListener.UPDATED_TOPIC)).size());
+    committed = true;
+    assertEquals(0, handler.getDocuments(repositorySession, event(StoreListener.UPDATED_TOPIC)).size());
+    committed = false;
+    // once seen in Solr the hash is not checked again
+    assertEquals(0, handler.getDocuments(repositorySession, event(StoreListener.UPDATED_TOPIC)).size());
+    verify();
+  }
+
+  @Test
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void testAddsAndRecreatedPathsAreAlwaysIndexed() throws Exception {
+    EasyMock.expect(contentManager.get(PATH)).andReturn(widgetData("same")).times(3);
+    replay();
+
+    assertEquals(1, handler.getDocuments(repositorySession, event(StoreListener.UPDATED_TOPIC)).size());
+    assertEquals(1, handler.getDocuments(repositorySession, event(StoreListener.ADDED_TOPIC)).size());
+
+    Hashtable<String, Object> deleted = new Hashtable<String, Object>();
+    deleted.put(IndexingHandler.FIELD_PATH, PATH);
+    deleted.put("resourceType", "sakai/widget-data");
+    handler.getDeleteQueries(repositorySession, new Event(StoreListener.DELETE_TOPIC, (Map) deleted));
+    assertEquals(1, handler.getDocuments(repositorySession, event(StoreListener.UPDATED_TOPIC)).size());
+    verify();
+  }
+
+  @Test
+  public void testNoCoalescingWithAZeroWindow() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(WidgetDataIndexingHandler.COALESCE_WINDOW_SECONDS, 0);
+    handler.modified(properties);
+    EasyMock.expect(contentManager.get(PATH)).andReturn(widgetData("same")).times(3);
+    replay();
+
+    int indexed = 0;
+    for (int i = 0; i < 3; i++) {
+      indexed += handler.getDocuments(repositorySession, event(StoreListener.UPDATED_TOPIC))
+          .size();
+    }
+    assertEquals(3, indexed);
+    verify();
+  }
+
+  private Content widgetData(String text) {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put("sling:resourceType", "sakai/widget-data");
+    properties.put(WidgetDataIndexingHandler.INDEXED_FIELDS, "content");
+    properties.put("content", text);
+    return new Content(PATH, properties);
+  }
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private Event event(String topic) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(IndexingHandler.FIELD_PATH, PATH);
+    return new Event(topic, (Map) properties);
+  }
+}
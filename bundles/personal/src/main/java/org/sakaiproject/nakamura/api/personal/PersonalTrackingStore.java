@@ -18,6 +18,7 @@
 package org.sakaiproject.nakamura.api.personal;
 
 import java.util.Calendar;
+import java.util.Map;
 
 public interface PersonalTrackingStore {
   /**
@@ -33,5 +34,30 @@ public interface PersonalTrackingStore {
    * @param timestamp date and time of the activity
    */
   void recordActivity(String resourceId, String resourceType, String activityType, String userId, Calendar timestamp);
-  
+
+  /**
+   * Store a run of identical activities by one user against one resource as a single
+   * record, adding count to the resource's activity total.
+   *
+   * @param resourceId the identifier of the group or content that was modified
+   * @param resourceType content | group
+   * @param activityType ADDED | CHANGED
+   * @param userid the id of the user who performed the activity
+   * @param timestamp date and time of the most recent of the activities
+   * @param count how many activities the record stands for
+   */
+  void recordActivity(String resourceId, String resourceType, String activityType, String userId, Calendar timestamp, int count);
+
+  /**
+   * Find the resources of a type with the most activity recorded since a point in time.
+   * The ranking is kept up to date as activity is recorded, so this does not need to look
+   * at individual activity records.
+   *
+   * @param resourceType content | group
+   * @param since the earliest activity to count, or null for all that is retained
+   * @param limit the most resources to return, or 0 for all of them
+   * @return activity counts keyed by resource id, most active first
+   */
+  Map<String, Long> getMostActive(String resourceType, Calendar since, int limit);
+
 }
@@ -18,9 +18,13 @@
 package org.sakaiproject.nakamura.personal;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
@@ -33,19 +37,131 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
 
-@Component(immediate = true)
+/**
+ * Keeps a tracking node per resource under /activity, holding the total number of
+ * activities, with a sakai/resource-update child per recorded activity. Updates to the
+ * same tracking node are serialized so concurrent deltas are not lost, and old updates are
+ * pruned now and then so a busy resource doesn't collect children without bound.
+ * <p>
+ * Activity is also added to hourly and daily ranking buckets per resource type under
+ * {@link #RANKING_ROOT}, each holding a count per resource id. A bucket keeps only its
+ * most active resources, so "most active" feeds are answered by summing a few buckets.
+ * Counts for resources that drop out of a full bucket are lost, which only affects the
+ * tail of the ranking.
+ * <p>
+ * Updates recorded before the buckets existed are added to them once per resource type,
+ * the first time its ranking is read. Updates added to the buckets as they are recorded are
+ * marked as ranked so that this backfill never counts them twice.
+ */
+@Component(immediate = true, metatype = true)
 @Service(value = PersonalTrackingStore.class)
 public class LitePersonalTrackingStore implements PersonalTrackingStore {
 
   private static final Logger LOG = LoggerFactory
       .getLogger(LitePersonalTrackingStore.class);
 
+  @Property(intValue = 90)
+  static final String RETENTION_DAYS = "tracking.retention.days";
+
+  @Property(intValue = 1000)
+  static final String RETENTION_MAX_UPDATES = "tracking.retention.maxUpdates";
+
+  @Property(longValue = 3600)
+  static final String PRUNE_INTERVAL_SECONDS = "tracking.prune.intervalSeconds";
+
+  @Property(intValue = 500)
+  static final String RANKING_CAPACITY = "tracking.ranking.capacity";
+
+  static final String RANKING_ROOT = "/var/activity/mostactive";
+
+  static final String HOURLY = "hourly";
+
+  static final String DAILY = "daily";
+
+  static final long HOUR_MILLIS = 60L * 60 * 1000;
+
+  static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+  /**
+   * Hourly buckets only refine the start of a window, so a couple of days is plenty.
+   */
+  static final long HOURLY_RETENTION_MILLIS = 2 * DAY_MILLIS;
+
+  static final String RESOURCE_UPDATE_RT = "sakai/resource-update";
+
+  static final String EVENT_COUNT = "eventcount";
+
+  static final String LAST_PRUNED = "lastpruned";
+
+  static final String RANKED = "ranked";
+
+  static final String BACKFILLED = "backfilled";
+
+  private static final int LOCK_STRIPES = 64;
+
+  private static final Comparator<Entry<String, Long>> MOST_ACTIVE_FIRST = new Comparator<Entry<String, Long>>() {
+    public int compare(Entry<String, Long> o1, Entry<String, Long> o2) {
+      int diff = o2.getValue().compareTo(o1.getValue());
+      return (diff != 0) ? diff : o1.getKey().compareTo(o2.getKey());
+    }
+  };
+
+  private static final Comparator<Content> OLDEST_FIRST = new Comparator<Content>() {
+    public int compare(Content o1, Content o2) {
+      return Long.valueOf(timestampOf(o1)).compareTo(timestampOf(o2));
+    }
+  };
+
   @Reference
-  private transient Repository repository;
+  transient Repository repository;
+
+  private final Object[] locks = new Object[LOCK_STRIPES];
+
+  private long retentionMillis = 90L * 24 * 60 * 60 * 1000;
+
+  private int maxUpdates = 1000;
+
+  private long pruneIntervalMillis = 3600L * 1000;
+
+  private int rankingCapacity = 500;
+
+  private final Object backfillLock = new Object();
+
+  /**
+   * Resource types whose ranking is known to hold the updates recorded before it existed.
+   */
+  private final Set<String> backfilled = Collections.synchronizedSet(new HashSet<String>());
+
+  public LitePersonalTrackingStore() {
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> properties) {
+    retentionMillis = PropertiesUtil.toInteger(properties.get(RETENTION_DAYS), 90) * 24L * 60
+        * 60 * 1000;
+    maxUpdates = PropertiesUtil.toInteger(properties.get(RETENTION_MAX_UPDATES), 1000);
+    pruneIntervalMillis = PropertiesUtil.toLong(properties.get(PRUNE_INTERVAL_SECONDS), 3600) * 1000;
+    rankingCapacity = Math.max(1,
+        PropertiesUtil.toInteger(properties.get(RANKING_CAPACITY), 500));
+  }
 
   /**
    * {@inheritDoc}
@@ -55,40 +171,69 @@ public class LitePersonalTrackingStore implements PersonalTrackingStore {
    */
   public void recordActivity(String resourceId, String resourceType, String activityType,
       String userId, Calendar timestamp) {
+    recordActivity(resourceId, resourceType, activityType, userId, timestamp, 1);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.personal.PersonalTrackingStore#recordActivity(java.lang.String,
+   *      java.lang.String, java.lang.String, java.lang.String, java.util.Calendar, int)
+   */
+  public void recordActivity(String resourceId, String resourceType, String activityType,
+      String userId, Calendar timestamp, int count) {
+    if (count < 1) {
+      return;
+    }
     Session session = null;
     try {
       session = repository.loginAdministrative();
       final ContentManager cm = session.getContentManager();
       final String trackingNodePath = "/activity/" + resourceType + "/" + resourceId;
-      Content trackingNode = cm.get(trackingNodePath);
-      if (trackingNode == null) {
-        trackingNode = new Content(trackingNodePath, new HashMap<String, Object>());
-      }
-      if (!trackingNode.hasProperty("count")) {
-        trackingNode.setProperty("count", BigDecimal.ZERO);
-      }
-      if (!trackingNode.hasProperty("sling:resourceType")) {
-        trackingNode.setProperty("sling:resourceType", "sakai/resource-activity");
-      }
       final String generatedNodeName = Base64
           .encodeBase64URLSafeString(asShorterByteArray(UUID.randomUUID()));
-      final String activityNodePath = trackingNodePath + "/" + generatedNodeName;
-      Content activityNode = null;
-      if (cm.exists(activityNodePath)) {
-        activityNode = cm.get(activityNodePath);
-      } else {
-        activityNode = new Content(activityNodePath, new HashMap<String, Object>());
-      }
-      BigDecimal activityCount = (BigDecimal) trackingNode.getProperty("count");
-      activityNode.setProperty("sling:resourceType", "sakai/resource-update");
-      trackingNode.setProperty("count", activityCount.add(BigDecimal.ONE));
+      final Content activityNode = new Content(trackingNodePath + "/" + generatedNodeName,
+          new HashMap<String, Object>());
+      activityNode.setProperty("sling:resourceType", RESOURCE_UPDATE_RT);
       activityNode.setProperty("resourceId", resourceId);
       activityNode.setProperty("resourcetype", resourceType);
       activityNode.setProperty("activitytype", activityType);
       activityNode.setProperty("timestamp", timestamp);
       activityNode.setProperty("userid", userId);
+      activityNode.setProperty(EVENT_COUNT, count);
+      activityNode.setProperty(RANKED, true);
       cm.update(activityNode);
-      cm.update(trackingNode);
+
+      // only the read-modify-write of the total has to be serialized
+      synchronized (lockFor(trackingNodePath)) {
+        Content trackingNode = cm.get(trackingNodePath);
+        if (trackingNode == null) {
+          trackingNode = new Content(trackingNodePath, new HashMap<String, Object>());
+        }
+        if (!trackingNode.hasProperty("sling:resourceType")) {
+          trackingNode.setProperty("sling:resourceType", "sakai/resource-activity");
+        }
+        BigDecimal activityCount = BigDecimal.ZERO;
+        if (trackingNode.hasProperty("count")) {
+          activityCount = (BigDecimal) trackingNode.getProperty("count");
+        }
+        trackingNode.setProperty("count", activityCount.add(BigDecimal.valueOf(count)));
+        long now = System.currentTimeMillis();
+        boolean prune = now - toLong(trackingNode.getProperty(LAST_PRUNED)) > pruneIntervalMillis;
+        if (prune) {
+          trackingNode.setProperty(LAST_PRUNED, now);
+        }
+        cm.update(trackingNode);
+        if (prune) {
+          prune(cm, trackingNodePath, now);
+        }
+      }
+
+      final long when = (timestamp != null) ? timestamp.getTimeInMillis() : System
+          .currentTimeMillis();
+      addToRanking(cm, resourceType, HOURLY, bucketStart(when, HOUR_MILLIS), resourceId,
+          count);
+      addToRanking(cm, resourceType, DAILY, bucketStart(when, DAY_MILLIS), resourceId, count);
     } catch (AccessDeniedException e) {
       LOG.error(e.getLocalizedMessage(), e);
     } catch (StorageClientException e) {
@@ -106,6 +251,252 @@ public class LitePersonalTrackingStore implements PersonalTrackingStore {
 
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.personal.PersonalTrackingStore#getMostActive(java.lang.String,
+   *      java.util.Calendar, int)
+   */
+  public Map<String, Long> getMostActive(String resourceType, Calendar since, int limit) {
+    final long now = System.currentTimeMillis();
+    final long from = (since != null) ? since.getTimeInMillis() : now - retentionMillis;
+    final Map<String, Long> totals = new HashMap<String, Long>();
+    Session session = null;
+    try {
+      session = repository.loginAdministrative();
+      final ContentManager cm = session.getContentManager();
+      if (!backfilled.contains(resourceType)) {
+        backfillRanking(cm, resourceType);
+      }
+      // whole days come from the daily buckets; the part of a day before the first of them
+      // comes from the hourly buckets while those are still kept
+      final long firstDay = bucketStart(from + DAY_MILLIS - 1, DAY_MILLIS);
+      if (from < firstDay) {
+        if (from >= now - HOURLY_RETENTION_MILLIS) {
+          for (long hour = bucketStart(from, HOUR_MILLIS); hour < firstDay && hour <= now; hour += HOUR_MILLIS) {
+            addBucket(cm, rankingPath(resourceType, HOURLY, hour), totals);
+          }
+        } else {
+          addBucket(cm, rankingPath(resourceType, DAILY, firstDay - DAY_MILLIS), totals);
+        }
+      }
+      for (long day = firstDay; day <= now; day += DAY_MILLIS) {
+        addBucket(cm, rankingPath(resourceType, DAILY, day), totals);
+      }
+    } catch (AccessDeniedException e) {
+      LOG.error(e.getLocalizedMessage(), e);
+    } catch (StorageClientException e) {
+      LOG.error(e.getLocalizedMessage(), e);
+    } finally {
+      if (session != null) {
+        try {
+          session.logout();
+        } catch (ClientPoolException e) {
+          LOG.error(e.getLocalizedMessage(), e);
+          throw new IllegalStateException(e);
+        }
+      }
+    }
+
+    List<Entry<String, Long>> ranked = new ArrayList<Entry<String, Long>>(totals.entrySet());
+    Collections.sort(ranked, MOST_ACTIVE_FIRST);
+    if (limit > 0 && ranked.size() > limit) {
+      ranked = ranked.subList(0, limit);
+    }
+    Map<String, Long> mostActive = new LinkedHashMap<String, Long>();
+    for (Entry<String, Long> entry : ranked) {
+      mostActive.put(entry.getKey(), entry.getValue());
+    }
+    return mostActive;
+  }
+
+  /**
+   * Add to a resource's count in a ranking bucket, dropping the least active resources if
+   * the bucket is over capacity. Starting a new bucket removes the expired ones beside it.
+   */
+  private void addToRanking(ContentManager cm, String resourceType, String granularity,
+      long bucketStart, String resourceId, int count) throws StorageClientException,
+      AccessDeniedException {
+    final String bucketPath = rankingPath(resourceType, granularity, bucketStart);
+    boolean created = false;
+    synchronized (lockFor(bucketPath)) {
+      Content bucket = cm.get(bucketPath);
+      if (bucket == null) {
+        bucket = new Content(bucketPath, new HashMap<String, Object>());
+        created = true;
+      }
+      Map<String, Long> counts = rankingCounts(bucket);
+      counts.put(resourceId, toLong(counts.get(resourceId)) + count);
+      bucket.setProperty(resourceId, counts.get(resourceId));
+      if (counts.size() > rankingCapacity) {
+        List<Entry<String, Long>> ranked = new ArrayList<Entry<String, Long>>(
+            counts.entrySet());
+        Collections.sort(ranked, MOST_ACTIVE_FIRST);
+        for (Entry<String, Long> dropped : ranked.subList(rankingCapacity, ranked.size())) {
+          bucket.removeProperty(dropped.getKey());
+        }
+      }
+      cm.update(bucket);
+    }
+    if (created) {
+      final long retention = HOURLY.equals(granularity) ? HOURLY_RETENTION_MILLIS
+          : retentionMillis;
+      pruneRanking(cm, RANKING_ROOT + "/" + resourceType + "/" + granularity,
+          System.currentTimeMillis() - retention);
+    }
+  }
+
+  /**
+   * Add the updates that were recorded before there were ranking buckets to the buckets of a
+   * resource type. This walks every tracking node of the type, so it is done only once, and
+   * marked as done on the ranking node of the type.
+   */
+  private void backfillRanking(ContentManager cm, String resourceType)
+      throws StorageClientException, AccessDeniedException {
+    synchronized (backfillLock) {
+      final String typePath = RANKING_ROOT + "/" + resourceType;
+      Content typeNode = cm.get(typePath);
+      if (typeNode == null || !typeNode.hasProperty(BACKFILLED)) {
+        final long now = System.currentTimeMillis();
+        final long cutoff = now - retentionMillis;
+        int added = 0;
+        for (Iterator<Content> tracked = cm.listChildren("/activity/" + resourceType); tracked
+            .hasNext();) {
+          for (Iterator<Content> updates = cm.listChildren(tracked.next().getPath()); updates
+              .hasNext();) {
+            Content update = updates.next();
+            if (!RESOURCE_UPDATE_RT.equals(update.getProperty("sling:resourceType"))
+                || update.hasProperty(RANKED)) {
+              continue;
+            }
+            final long when = timestampOf(update);
+            final Object resourceId = update.getProperty("resourceId");
+            if (when < cutoff || !(resourceId instanceof String)) {
+              continue;
+            }
+            // updates from before counts were kept stand for one activity each
+            final int count = (int) Math.max(1L, toLong(update.getProperty(EVENT_COUNT)));
+            if (when >= now - HOURLY_RETENTION_MILLIS) {
+              addToRanking(cm, resourceType, HOURLY, bucketStart(when, HOUR_MILLIS),
+                  (String) resourceId, count);
+            }
+            addToRanking(cm, resourceType, DAILY, bucketStart(when, DAY_MILLIS),
+                (String) resourceId, count);
+            added++;
+          }
+        }
+        typeNode = cm.get(typePath);
+        if (typeNode == null) {
+          typeNode = new Content(typePath, new HashMap<String, Object>());
+        }
+        typeNode.setProperty(BACKFILLED, now);
+        cm.update(typeNode);
+        LOG.info("Added {} earlier {} updates to the most active ranking", added, resourceType);
+      }
+      backfilled.add(resourceType);
+    }
+  }
+
+  private void pruneRanking(ContentManager cm, String granularityPath, long cutoff)
+      throws StorageClientException, AccessDeniedException {
+    List<String> expired = new ArrayList<String>();
+    for (Iterator<Content> buckets = cm.listChildren(granularityPath); buckets.hasNext();) {
+      String bucketPath = buckets.next().getPath();
+      try {
+        if (Long.parseLong(bucketPath.substring(bucketPath.lastIndexOf('/') + 1)) < cutoff) {
+          expired.add(bucketPath);
+        }
+      } catch (NumberFormatException e) {
+        LOG.debug("Ignoring {}, which isn't a ranking bucket", bucketPath);
+      }
+    }
+    for (String bucketPath : expired) {
+      cm.delete(bucketPath);
+    }
+  }
+
+  private void addBucket(ContentManager cm, String bucketPath, Map<String, Long> totals)
+      throws StorageClientException, AccessDeniedException {
+    Content bucket = cm.get(bucketPath);
+    if (bucket != null) {
+      for (Entry<String, Long> entry : rankingCounts(bucket).entrySet()) {
+        totals.put(entry.getKey(), toLong(totals.get(entry.getKey())) + entry.getValue());
+      }
+    }
+  }
+
+  private static Map<String, Long> rankingCounts(Content bucket) {
+    Map<String, Long> counts = new HashMap<String, Long>();
+    for (Entry<String, Object> property : bucket.getProperties().entrySet()) {
+      // the underscored properties are sparse's own
+      if (!property.getKey().startsWith("_") && property.getValue() instanceof Number) {
+        counts.put(property.getKey(), ((Number) property.getValue()).longValue());
+      }
+    }
+    return counts;
+  }
+
+  static String rankingPath(String resourceType, String granularity, long bucketStart) {
+    return RANKING_ROOT + "/" + resourceType + "/" + granularity + "/" + bucketStart;
+  }
+
+  static long bucketStart(long time, long bucketMillis) {
+    return time - (time % bucketMillis);
+  }
+
+  /**
+   * Remove the updates under a tracking node that are older than the retention period,
+   * then the oldest of the rest until no more than the maximum number remain. The count on
+   * the tracking node is a running total and is left alone.
+   */
+  private void prune(ContentManager cm, String trackingNodePath, long now)
+      throws StorageClientException, AccessDeniedException {
+    final long cutoff = now - retentionMillis;
+    List<Content> kept = new ArrayList<Content>();
+    int removed = 0;
+    for (Iterator<Content> children = cm.listChildren(trackingNodePath); children.hasNext();) {
+      Content child = children.next();
+      if (!RESOURCE_UPDATE_RT.equals(child.getProperty("sling:resourceType"))) {
+        continue;
+      }
+      if (timestampOf(child) < cutoff) {
+        cm.delete(child.getPath());
+        removed++;
+      } else {
+        kept.add(child);
+      }
+    }
+    if (kept.size() > maxUpdates) {
+      Collections.sort(kept, OLDEST_FIRST);
+      for (Content child : kept.subList(0, kept.size() - maxUpdates)) {
+        cm.delete(child.getPath());
+        removed++;
+      }
+    }
+    if (removed > 0) {
+      LOG.debug("Pruned {} updates from {}", removed, trackingNodePath);
+    }
+  }
+
+  private Object lockFor(String trackingNodePath) {
+    return locks[(trackingNodePath.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+  }
+
+  private static long timestampOf(Content update) {
+    Object timestamp = update.getProperty("timestamp");
+    if (timestamp instanceof Calendar) {
+      return ((Calendar) timestamp).getTimeInMillis();
+    }
+    return 0L;
+  }
+
+  private static long toLong(Object value) {
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    }
+    return 0L;
+  }
+
   private byte[] asShorterByteArray(UUID uuid) {
 
     long msb = uuid.getMostSignificantBits();
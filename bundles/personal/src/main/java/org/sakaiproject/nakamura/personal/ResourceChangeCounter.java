@@ -17,11 +17,15 @@
  */
 package org.sakaiproject.nakamura.personal;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.commons.scheduler.Scheduler;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
@@ -38,9 +42,21 @@ import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Serializable;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-@Component(inherit = true, label = "%sakai-event.name", immediate = true)
+/**
+ * Counts ADDED and UPDATED events against groups, pages and pooled content. The event
+ * thread only notes the path and the user; a burst of saves by one user against the same
+ * path is coalesced in memory, and the buffer is resolved and handed to the
+ * {@link PersonalTrackingStore} from a scheduled job, one record per resource and user.
+ */
+@Component(inherit = true, label = "%sakai-event.name", immediate = true, metatype = true)
 @Service
 @Properties(value = {
     @Property(name = "service.vendor", value = "The Sakai Foundation"),
@@ -52,36 +68,151 @@ public class ResourceChangeCounter implements EventHandler {
 
   private static final Logger LOG = LoggerFactory.getLogger(ResourceChangeCounter.class);
   protected static final String SAKAI_POOLED_CONTENT = "sakai/pooled-content";
-  
+
+  @Property(longValue = 5)
+  protected static final String PROP_FLUSH_INTERVAL_SECONDS = "resourcechangecounter.flushinterval";
+
+  @Property(intValue = 1000)
+  protected static final String PROP_MAX_PENDING = "resourcechangecounter.maxpending";
+
+  protected static final String JOB_NAME = "flushResourceChangesJob";
+
+  private static final String ACTIVITY_TYPE = "CHANGE";
+
   @Reference
   protected PersonalTrackingStore store;
   
   @Reference
   protected Repository repository;
 
+  @Reference
+  protected Scheduler scheduler;
+
+  private final Object pendingLock = new Object();
+
+  private final Object flushLock = new Object();
+
+  /**
+   * path -> user -> the changes that user has made to that path since the last flush.
+   */
+  private Map<String, Map<String, PendingChange>> pending =
+      new LinkedHashMap<String, Map<String, PendingChange>>();
+
+  private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+  private int maxPending = 1000;
+
+  private final Runnable flushJob = new Runnable() {
+    public void run() {
+      flushRequested.set(false);
+      flush();
+    }
+  };
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    long flushInterval = PropertiesUtil.toLong(properties.get(PROP_FLUSH_INTERVAL_SECONDS), 5);
+    maxPending = PropertiesUtil.toInteger(properties.get(PROP_MAX_PENDING), 1000);
+    try {
+      scheduler.addPeriodicJob(JOB_NAME, flushJob, new HashMap<String, Serializable>(),
+          flushInterval, false);
+    } catch (Exception e) {
+      LOG.error("Failed to add periodic job for ResourceChangeCounter", e);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    scheduler.removeJob(JOB_NAME);
+    flush();
+  }
+
   /**
    * {@inheritDoc}
    * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
    */
   public void handleEvent(Event event) {
-    // be fast
+    // be fast, everything else happens when the buffer is flushed
     final String path = (String) event.getProperty("path");
-    if (path != null) {
+    if (path == null) {
+      return;
+    }
+    final String userId = (String) event.getProperty("userid");
+    boolean full;
+    synchronized (pendingLock) {
+      Map<String, PendingChange> byUser = pending.get(path);
+      if (byUser == null) {
+        byUser = new HashMap<String, PendingChange>();
+        pending.put(path, byUser);
+      }
+      PendingChange change = byUser.get(userId);
+      if (change == null) {
+        byUser.put(userId, new PendingChange(Calendar.getInstance()));
+      } else {
+        change.add(1, Calendar.getInstance());
+      }
+      full = pending.size() >= maxPending;
+    }
+    if (full && flushRequested.compareAndSet(false, true)) {
+      try {
+        scheduler.fireJob(flushJob, new HashMap<String, Serializable>());
+      } catch (Exception e) {
+        flushRequested.set(false);
+        LOG.warn("Unable to request an early flush of resource changes: {}", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @return the number of paths with buffered changes.
+   */
+  public int getPendingCount() {
+    synchronized (pendingLock) {
+      return pending.size();
+    }
+  }
+
+  /**
+   * Resolve every buffered path to the resource it belongs to and record the changes, one
+   * record per resource and user.
+   */
+  public void flush() {
+    Map<String, Map<String, PendingChange>> batch;
+    synchronized (pendingLock) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      batch = pending;
+      pending = new LinkedHashMap<String, Map<String, PendingChange>>();
+    }
+    synchronized (flushLock) {
       Session adminSession = null;
       try {
         adminSession = repository.loginAdministrative();
-        final Content content = adminSession.getContentManager().get(path);
-        if (content == null) {
-          LOG.debug("Unable to record change for nonexistent content: " + path);
-        } else {
-          if (content.hasProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY)) {
-            final String resourceType = (String) content
-            .getProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY);
-            if (resourceIsOfInterest(resourceType)) {
-              countThisEvent(event, resourceType, adminSession);
+        long startTicks = System.currentTimeMillis();
+        Map<String, String> authorizableTypes = new HashMap<String, String>();
+        Map<String, PendingChange> toRecord = new LinkedHashMap<String, PendingChange>();
+        for (Entry<String, Map<String, PendingChange>> e : batch.entrySet()) {
+          String[] resource = resolve(e.getKey(), adminSession, authorizableTypes);
+          if (resource == null) {
+            continue;
+          }
+          for (Entry<String, PendingChange> change : e.getValue().entrySet()) {
+            PendingChange merged = new PendingChange(resource[0], resource[1], change.getKey());
+            PendingChange existing = toRecord.get(merged.key());
+            if (existing == null) {
+              toRecord.put(merged.key(), merged);
+              existing = merged;
             }
+            existing.add(change.getValue().count, change.getValue().timestamp);
           }
         }
+        for (PendingChange change : toRecord.values()) {
+          store.recordActivity(change.resourceId, change.resourceType, ACTIVITY_TYPE,
+              change.userId, change.timestamp, change.count);
+        }
+        LOG.debug("recorded changes to {} paths as {} activities in {} ms", new Object[] {
+            batch.size(), toRecord.size(), System.currentTimeMillis() - startTicks });
       } catch (ClientPoolException e) {
         LOG.error(e.getLocalizedMessage(), e);
       } catch (StorageClientException e) {
@@ -94,37 +225,48 @@ public class ResourceChangeCounter implements EventHandler {
             adminSession.logout();
           } catch (ClientPoolException e) {
             LOG.error(e.getLocalizedMessage(), e);
-            throw new IllegalStateException(e);
           }
         }
       }
     }
   }
 
-  private void countThisEvent(final Event e, final String eventResourceType,
-      final Session session) throws AccessDeniedException, StorageClientException {
-
-    String userId = (String)e.getProperty("userid");
-    String path = (String)e.getProperty("path");
-    String activityType = "CHANGE";
-    String resourceId = null;
-    String resourceType = null;
-    if (path != null) {
+  /**
+   * @return the id and type of the resource a changed path belongs to, or null if the path
+   *         is not something we track.
+   */
+  private String[] resolve(String path, Session session, Map<String, String> authorizableTypes) {
+    try {
+      final Content content = session.getContentManager().get(path);
+      if (content == null) {
+        LOG.debug("Unable to record change for nonexistent content: " + path);
+        return null;
+      }
+      if (!content.hasProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY)) {
+        return null;
+      }
+      final String eventResourceType = (String) content
+          .getProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY);
+      if (!resourceIsOfInterest(eventResourceType)) {
+        return null;
+      }
       if (path.startsWith("a:")) {
-        resourceId = PathUtils.getAuthorizableId(path);
-        final Authorizable az = session.getAuthorizableManager().findAuthorizable(
-            resourceId);
-        if (az != null) {
-          resourceType = (az instanceof Group) ? "group" : "user";
-        }
-      } else {
-        if (SAKAI_POOLED_CONTENT.equals(eventResourceType)) {
-          resourceType = "content";
-          resourceId = path.substring(path.lastIndexOf("/") + 1);
+        String resourceId = PathUtils.getAuthorizableId(path);
+        if (!authorizableTypes.containsKey(resourceId)) {
+          final Authorizable az = session.getAuthorizableManager().findAuthorizable(resourceId);
+          authorizableTypes.put(resourceId, az == null ? null : (az instanceof Group) ? "group" : "user");
         }
+        String resourceType = authorizableTypes.get(resourceId);
+        return resourceType == null ? null : new String[] { resourceId, resourceType };
+      } else if (SAKAI_POOLED_CONTENT.equals(eventResourceType)) {
+        return new String[] { path.substring(path.lastIndexOf("/") + 1), "content" };
       }
+    } catch (StorageClientException e) {
+      LOG.warn("Unable to record change to {}: {}", path, e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOG.warn("Unable to record change to {}: {}", path, e.getMessage());
     }
-    store.recordActivity(resourceId, resourceType, activityType, userId, Calendar.getInstance());
+    return null;
   }
 
   private boolean resourceIsOfInterest(String resourceType) {
@@ -133,4 +275,34 @@ public class ResourceChangeCounter implements EventHandler {
         || SAKAI_POOLED_CONTENT.equals(resourceType));
   }
 
+  private static final class PendingChange {
+    private String resourceId;
+    private String resourceType;
+    private String userId;
+    private int count;
+    private Calendar timestamp;
+
+    PendingChange(Calendar timestamp) {
+      this.count = 1;
+      this.timestamp = timestamp;
+    }
+
+    PendingChange(String resourceId, String resourceType, String userId) {
+      this.resourceId = resourceId;
+      this.resourceType = resourceType;
+      this.userId = userId;
+    }
+
+    void add(int count, Calendar timestamp) {
+      this.count += count;
+      if (this.timestamp == null || this.timestamp.before(timestamp)) {
+        this.timestamp = timestamp;
+      }
+    }
+
+    String key() {
+      return resourceType + "/" + resourceId + "/" + userId;
+    }
+  }
+
 }
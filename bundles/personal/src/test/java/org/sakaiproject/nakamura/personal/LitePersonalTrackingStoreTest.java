@@ -0,0 +1,236 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.personal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class LitePersonalTrackingStoreTest {
+
+  private LitePersonalTrackingStore store;
+
+  @Before
+  public void before() throws Exception {
+    store = new LitePersonalTrackingStore();
+    store.repository = new BaseMemoryRepository().getRepository();
+    store.activate(new HashMap<String, Object>());
+  }
+
+  @Test
+  public void testRanksByRecordedCounts() {
+    Calendar now = Calendar.getInstance();
+    store.recordActivity("quiet", "content", "CHANGED", "ieb", now, 1);
+    store.recordActivity("busy", "content", "CHANGED", "ieb", now, 3);
+    store.recordActivity("busy", "content", "CHANGED", "zach", now, 4);
+    store.recordActivity("middling", "content", "CHANGED", "zach", now, 2);
+    store.recordActivity("g-course", "group", "CHANGED", "zach", now, 9);
+
+    Map<String, Long> mostActive = store.getMostActive("content", hoursAgo(1), 0);
+    assertEquals(Arrays.asList("busy", "middling", "quiet"),
+        new ArrayList<String>(mostActive.keySet()));
+    assertEquals(Long.valueOf(7), mostActive.get("busy"));
+
+    assertEquals(Arrays.asList("busy", "middling"),
+        new ArrayList<String>(store.getMostActive("content", hoursAgo(1), 2).keySet()));
+  }
+
+  @Test
+  public void testOnlyCountsActivityInTheWindow() {
+    store.recordActivity("old", "content", "CHANGED", "ieb", daysAgo(10), 5);
+    store.recordActivity("new", "content", "CHANGED", "ieb", Calendar.getInstance(), 1);
+
+    Map<String, Long> lastWeek = store.getMostActive("content", daysAgo(5), 0);
+    assertFalse(lastWeek.containsKey("old"));
+    assertTrue(lastWeek.containsKey("new"));
+
+    Map<String, Long> lastMonth = store.getMostActive("content", daysAgo(30), 0);
+    assertEquals(Arrays.asList("old", "new"), new ArrayList<String>(lastMonth.keySet()));
+  }
+
+  @Test
+  public void testBucketsKeepOnlyTheMostActive() {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(LitePersonalTrackingStore.RANKING_CAPACITY, 2);
+    store.activate(properties);
+
+    Calendar now = Calendar.getInstance();
+    store.recordActivity("a", "content", "CHANGED", "ieb", now, 5);
+    store.recordActivity("b", "content", "CHANGED", "ieb", now, 3);
+    store.recordActivity("c", "content", "CHANGED", "ieb", now, 1);
+
+    Map<String, Long> mostActive = store.getMostActive("content", hoursAgo(1), 0);
+    assertEquals(Arrays.asList("a", "b"), new ArrayList<String>(mostActive.keySet()));
+  }
+
+  @Test
+  public void testUpdatesFromBeforeTheRankingAreBackfilledOnce() throws Exception {
+    recordLegacyUpdate("legacy", "content", daysAgo(3));
+    recordLegacyUpdate("legacy", "content", hoursAgo(2));
+    recordLegacyUpdate("expired", "content", daysAgo(200));
+    store.recordActivity("recent", "content", "CHANGED", "ieb", Calendar.getInstance(), 1);
+
+    Map<String, Long> mostActive = store.getMostActive("content", daysAgo(30), 0);
+    assertEquals(Long.valueOf(2), mostActive.get("legacy"));
+    assertEquals(Long.valueOf(1), mostActive.get("recent"));
+    assertFalse(mostActive.containsKey("expired"));
+    assertEquals(Long.valueOf(1), store.getMostActive("content", hoursAgo(3), 0).get("legacy"));
+
+    // a restarted store finds the ranking already backfilled
+    LitePersonalTrackingStore restarted = new LitePersonalTrackingStore();
+    restarted.repository = store.repository;
+    restarted.activate(new HashMap<String, Object>());
+    assertEquals(Long.valueOf(2), restarted.getMostActive("content", daysAgo(30), 0).get("legacy"));
+  }
+
+  @Test
+  public void testPruneRemovesUpdatesPastTheRetention() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(LitePersonalTrackingStore.RETENTION_DAYS, 30);
+    store.activate(properties);
+
+    // the first update on a tracking node prunes it, later ones wait for the interval
+    Calendar now = Calendar.getInstance();
+    Calendar tenDaysAgo = daysAgo(10);
+    store.recordActivity("doc", "content", "CHANGED", "ieb", now, 1);
+    store.recordActivity("doc", "content", "CHANGED", "ieb", daysAgo(60), 2);
+    store.recordActivity("doc", "content", "CHANGED", "ieb", daysAgo(45), 3);
+    store.recordActivity("doc", "content", "CHANGED", "ieb", tenDaysAgo, 4);
+    assertEquals(4, updateTimes("/activity/content/doc").size());
+
+    properties.put(LitePersonalTrackingStore.PRUNE_INTERVAL_SECONDS, 0L);
+    store.activate(properties);
+    Thread.sleep(5);
+    Calendar later = Calendar.getInstance();
+    store.recordActivity("doc", "content", "CHANGED", "ieb", later, 5);
+
+    assertEquals(Arrays.asList(tenDaysAgo.getTimeInMillis(), now.getTimeInMillis(),
+        later.getTimeInMillis()), updateTimes("/activity/content/doc"));
+    assertEquals(15, activityCount("/activity/content/doc"));
+  }
+
+  @Test
+  public void testPruneKeepsTheMostRecentUpdates() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(LitePersonalTrackingStore.RETENTION_MAX_UPDATES, 2);
+    store.activate(properties);
+
+    Calendar oneHourAgo = hoursAgo(1);
+    Calendar twoHoursAgo = hoursAgo(2);
+    store.recordActivity("doc", "content", "CHANGED", "ieb", hoursAgo(5), 1);
+    store.recordActivity("doc", "content", "CHANGED", "ieb", hoursAgo(4), 2);
+    store.recordActivity("doc", "content", "CHANGED", "ieb", oneHourAgo, 3);
+    store.recordActivity("doc", "content", "CHANGED", "ieb", hoursAgo(3), 4);
+    assertEquals(4, updateTimes("/activity/content/doc").size());
+
+    // the update that triggers the prune is not the most recent, the oldest go first
+    properties.put(LitePersonalTrackingStore.PRUNE_INTERVAL_SECONDS, 0L);
+    store.activate(properties);
+    Thread.sleep(5);
+    store.recordActivity("doc", "content", "CHANGED", "ieb", twoHoursAgo, 5);
+
+    assertEquals(Arrays.asList(twoHoursAgo.getTimeInMillis(), oneHourAgo.getTimeInMillis()),
+        updateTimes("/activity/content/doc"));
+    assertEquals(15, activityCount("/activity/content/doc"));
+  }
+
+  /**
+   * @return the timestamps of the updates kept under a tracking node, oldest first.
+   */
+  private List<Long> updateTimes(String trackingPath) throws Exception {
+    Session session = store.repository.loginAdministrative();
+    try {
+      List<Long> times = new ArrayList<Long>();
+      for (Iterator<Content> children = session.getContentManager().listChildren(
+          trackingPath); children.hasNext();) {
+        Content child = children.next();
+        if (LitePersonalTrackingStore.RESOURCE_UPDATE_RT.equals(child
+            .getProperty("sling:resourceType"))) {
+          times.add(((Calendar) child.getProperty("timestamp")).getTimeInMillis());
+        }
+      }
+      Collections.sort(times);
+      return times;
+    } finally {
+      session.logout();
+    }
+  }
+
+  private int activityCount(String trackingPath) throws Exception {
+    Session session = store.repository.loginAdministrative();
+    try {
+      return ((BigDecimal) session.getContentManager().get(trackingPath)
+          .getProperty("count")).intValue();
+    } finally {
+      session.logout();
+    }
+  }
+
+  /**
+   * An update as it was written before the ranking buckets were kept.
+   */
+  private void recordLegacyUpdate(String resourceId, String resourceType, Calendar timestamp)
+      throws Exception {
+    Session session = store.repository.loginAdministrative();
+    try {
+      String trackingPath = "/activity/" + resourceType + "/" + resourceId;
+      if (!session.getContentManager().exists(trackingPath)) {
+        Map<String, Object> tracking = new HashMap<String, Object>();
+        tracking.put("sling:resourceType", "sakai/resource-activity");
+        session.getContentManager().update(new Content(trackingPath, tracking));
+      }
+      Map<String, Object> properties = new HashMap<String, Object>();
+      properties.put("sling:resourceType", LitePersonalTrackingStore.RESOURCE_UPDATE_RT);
+      properties.put("resourceId", resourceId);
+      properties.put("resourcetype", resourceType);
+      properties.put("timestamp", timestamp);
+      session.getContentManager().update(new Content(trackingPath + "/"
+          + timestamp.getTimeInMillis(), properties));
+    } finally {
+      session.logout();
+    }
+  }
+
+  private Calendar hoursAgo(int hours) {
+    Calendar then = Calendar.getInstance();
+    then.add(Calendar.HOUR_OF_DAY, -hours);
+    return then;
+  }
+
+  private Calendar daysAgo(int days) {
+    Calendar then = Calendar.getInstance();
+    then.add(Calendar.DAY_OF_MONTH, -days);
+    return then;
+  }
+}
@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.personal;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.personal.PersonalTrackingStore;
+
+import java.util.Calendar;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ResourceChangeCounterTest {
+  @Mock
+  private PersonalTrackingStore store;
+  @Mock
+  private Repository repository;
+  @Mock
+  private Session session;
+  @Mock
+  private ContentManager contentManager;
+
+  private ResourceChangeCounter counter;
+
+  @Before
+  public void setUp() throws Exception {
+    when(repository.loginAdministrative()).thenReturn(session);
+    when(session.getContentManager()).thenReturn(contentManager);
+    when(contentManager.get("p/abc")).thenReturn(content("p/abc",
+        ResourceChangeCounter.SAKAI_POOLED_CONTENT));
+    when(contentManager.get("p/other")).thenReturn(content("p/other", "sakai/unrelated"));
+    counter = new ResourceChangeCounter();
+    counter.store = store;
+    counter.repository = repository;
+  }
+
+  @Test
+  public void testEventsAreOnlyBufferedUntilFlush() throws Exception {
+    counter.handleEvent(event("p/abc", "alice"));
+    assertEquals(1, counter.getPendingCount());
+    verify(repository, never()).loginAdministrative();
+    verify(store, never()).recordActivity(anyString(), anyString(), anyString(), anyString(),
+        any(Calendar.class), anyInt());
+  }
+
+  @Test
+  public void testChangesAreCoalescedPerResourceAndUser() throws Exception {
+    counter.handleEvent(event("p/abc", "alice"));
+    counter.handleEvent(event("p/abc", "alice"));
+    counter.handleEvent(event("p/abc", "alice"));
+    counter.handleEvent(event("p/abc", "bob"));
+    counter.handleEvent(event("p/other", "alice"));
+    counter.flush();
+
+    assertEquals(0, counter.getPendingCount());
+    verify(store).recordActivity(eq("abc"), eq("content"), eq("CHANGE"), eq("alice"),
+        any(Calendar.class), eq(3));
+    verify(store).recordActivity(eq("abc"), eq("content"), eq("CHANGE"), eq("bob"),
+        any(Calendar.class), eq(1));
+    verify(store, never()).recordActivity(eq("other"), anyString(), anyString(), anyString(),
+        any(Calendar.class), anyInt());
+    verify(session).logout();
+  }
+
+  private Content content(String path, String resourceType) {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put("sling:resourceType", resourceType);
+    return new Content(path, properties);
+  }
+
+  private Event event(String path, String userId) {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("path", path);
+    properties.put("userid", userId);
+    return new Event("org/sakaiproject/nakamura/lite/content/UPDATED", properties);
+  }
+}
@@ -25,6 +25,7 @@ import static org.sakaiproject.nakamura.api.user.UserConstants.GROUP_TITLE_PROPE
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
@@ -37,9 +38,11 @@ import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
@@ -53,6 +56,8 @@ import org.sakaiproject.nakamura.api.resource.lite.LiteJsonImporter;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.sakaiproject.nakamura.util.PathUtils;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -64,6 +69,8 @@ import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -74,22 +81,76 @@ import javax.jcr.Session;
 @Component(immediate = true, metatype = true, specVersion="1.1")
 @Service
 @Reference(name = "ProfileProviders", referenceInterface = ProfileProvider.class, policy = ReferencePolicy.DYNAMIC, cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, strategy = ReferenceStrategy.EVENT, bind = "bindProfileProvider", unbind = "unbindProfileProvider")
-public class ProfileServiceImpl implements ProfileService {
+@Properties(value = {
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/content/ADDED",
+        "org/sakaiproject/nakamura/lite/content/UPDATED",
+        "org/sakaiproject/nakamura/lite/content/DELETE",
+        StoreListener.TOPIC_BASE + Security.ZONE_CONTENT + "/" + StoreListener.UPDATED_TOPIC },
+        propertyPrivate = true) })
+public class ProfileServiceImpl implements ProfileService, EventHandler {
 
   private Map<String, ProfileProvider> providers = new ConcurrentHashMap<String, ProfileProvider>();
-  private ProviderSettingsFactory providerSettingsFactory = new ProviderSettingsFactory();
+  protected ProviderSettingsFactory providerSettingsFactory = new ProviderSettingsFactory();
   public static final Logger LOG = LoggerFactory.getLogger(ProfileServiceImpl.class);
 
   @Property
   static final String EMAIL_LOCATION = "sakai.profile.email.location";
   private String emailLocation;
 
+  private static final long DEFAULT_PROVIDER_TIMEOUT = 5000;
+  @Property(longValue = DEFAULT_PROVIDER_TIMEOUT, label = "Provider timeout", description = "How long in ms to wait for a profile provider before showing the stored profile data instead.")
+  static final String PROVIDER_TIMEOUT = "sakai.profile.provider.timeout";
+  private long providerTimeout = DEFAULT_PROVIDER_TIMEOUT;
+
+  private static final int DEFAULT_CACHE_TTL = 60;
+  @Property(intValue = DEFAULT_CACHE_TTL, label = "Resolved profile cache TTL", description = "How long in seconds a resolved profile is reused for, 0 disables the cache. Writes to a profile drop it straight away.")
+  static final String CACHE_TTL = "sakai.profile.cache.ttl";
+
+  private static final int DEFAULT_CACHE_SIZE = 500;
+  @Property(intValue = DEFAULT_CACHE_SIZE, label = "Resolved profile cache size", description = "The number of resolved profiles to keep, counting each viewer of a profile separately.")
+  static final String CACHE_SIZE = "sakai.profile.cache.size";
+
+  private ResolvedProfileCache resolvedProfiles;
+
   @Reference
   private BasicUserInfoService basicUserInfoService;
 
   @Activate @Modified
   protected void activate(Map<?, ?> props) {
     emailLocation = PropertiesUtil.toString(props.get(EMAIL_LOCATION), null);
+    providerTimeout = PropertiesUtil.toLong(props.get(PROVIDER_TIMEOUT),
+        DEFAULT_PROVIDER_TIMEOUT);
+    int cacheTtl = PropertiesUtil.toInteger(props.get(CACHE_TTL), DEFAULT_CACHE_TTL);
+    int cacheSize = PropertiesUtil.toInteger(props.get(CACHE_SIZE), DEFAULT_CACHE_SIZE);
+    if (cacheTtl > 0 && cacheSize > 0) {
+      resolvedProfiles = new ResolvedProfileCache(cacheSize, cacheTtl * 1000L);
+    } else {
+      resolvedProfiles = null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Drops the resolved profile of the owner of any content that changes under a home,
+   * including changes to its access control.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty("path");
+    if (path != null) {
+      invalidateResolvedProfile(path);
+    }
+  }
+
+  private void invalidateResolvedProfile(String path) {
+    ResolvedProfileCache cache = resolvedProfiles;
+    String authorizableId = PathUtils.getAuthorizableId(path);
+    if (cache != null && authorizableId != null) {
+      cache.invalidate(authorizableId);
+    }
   }
 
   public String getEmailLocation() {
@@ -190,125 +251,181 @@ public class ProfileServiceImpl implements ProfileService {
    * @see org.sakaiproject.nakamura.api.profile.ProfileService#getProfileMap(javax.jcr.Node)
    */
   public ValueMap getResolvedProfileMap(Authorizable authorizable, Content profileContent, Session jcrSession) throws RepositoryException {
-    // Get the data from our external providers.
-    Map<String, List<ProviderSettings>> providersMap = scanForProviders(profileContent, jcrSession);
-    Map<Content, Future<Map<String, Object>>> providedNodeData = new HashMap<Content, Future<Map<String, Object>>>();
-    for (Entry<String, List<ProviderSettings>> e : providersMap.entrySet()) {
-      ProfileProvider pp = providers.get(e.getKey());
-      if (pp != null) {
-        providedNodeData.putAll(pp.getProvidedMap(e.getValue()));
+    ResolvedProfileCache cache = resolvedProfiles;
+    String owner = PathUtils.getAuthorizableId(profileContent.getPath());
+    String viewer = jcrSession.getUserID();
+    if (cache != null && owner != null) {
+      Map<String, Object> cached = cache.get(owner, viewer);
+      if (cached != null) {
+        return new ValueMapDecorator(cached);
       }
     }
-    try {
-      // Return it as a ValueMap.
-      ValueMap map = new ValueMapDecorator(new HashMap<String, Object>());
-      handleNode(profileContent, providedNodeData, map);
-      final String resourceType = (String) profileContent
-          .getProperty("sling:resourceType");
-      if (ProfileConstants.USER_PROFILE_RT.equals(resourceType)) {
-        map.put("userid", PathUtils.getAuthorizableId(profileContent.getPath()));
-      } else if (ProfileConstants.GROUP_PROFILE_RT.equals(resourceType)) {
-        map.put("groupid", PathUtils.getAuthorizableId(profileContent.getPath()));
-      }
-      return map;
-    } catch (InterruptedException e) {
-      throw new RuntimeException(e.getMessage(),e);
-    } catch (ExecutionException e) {
-      throw new RuntimeException(e.getMessage(),e);
+
+    // Walk the profile once, copying the stored data and noting the external nodes.
+    ValueMap map = new ValueMapDecorator(new HashMap<String, Object>());
+    List<ExternalNode> externalNodes = new ArrayList<ExternalNode>();
+    handleNode("", profileContent, map, externalNodes, jcrSession);
+
+    // Fill in the external nodes from our providers.
+    resolveExternalNodes(externalNodes);
+
+    final String resourceType = (String) profileContent
+        .getProperty("sling:resourceType");
+    if (ProfileConstants.USER_PROFILE_RT.equals(resourceType)) {
+      map.put("userid", PathUtils.getAuthorizableId(profileContent.getPath()));
+    } else if (ProfileConstants.GROUP_PROFILE_RT.equals(resourceType)) {
+      map.put("groupid", PathUtils.getAuthorizableId(profileContent.getPath()));
+    }
+    if (cache != null && owner != null) {
+      cache.put(owner, viewer, map);
     }
+    return map;
   }
 
   /**
-   * Fills the provided map with the JCR info and the external information.
+   * Fills the map with the Sparse data of a profile node and its subtree. Nodes that are
+   * marked as external and have a provider bound are not filled but added to
+   * externalNodes, so their data can be fetched from all providers at once.
    *
+   * @param path
+   *          The path of the node relative to the top of the profile.
    * @param profileContent
-   *          The node that should be merged with the external info. The entire nodetree
-   *          will be checked.
-   * @param baseMap
-   *          The map that contains the external information.
+   *          The node to dump.
    * @param map
    *          The map that should be filled.
+   * @param externalNodes
+   *          Collects the nodes that should be filled by a provider.
    * @throws RepositoryException
-   * @throws InterruptedException
-   * @throws ExecutionException
    */
-  protected void handleNode(Content profileContent, Map<Content, Future<Map<String, Object>>> baseMap,
-      Map<String, Object> map) throws RepositoryException, InterruptedException,
-      ExecutionException {
-    // If our map contains this node, that means one of the provides had some information
-    // for it.
-    // We will use the provider.
-    if (baseMap.containsKey(profileContent.getPath())) {
-      map.putAll(baseMap.get(profileContent.getPath()).get());
+  protected void handleNode(String path, Content profileContent, Map<String, Object> map,
+      List<ExternalNode> externalNodes, Session jcrSession) throws RepositoryException {
+    ProviderSettings settings = providerSettingsFactory.newProviderSettings(path,
+        profileContent, jcrSession);
+    if (settings != null && providers.containsKey(settings.getProvider())) {
+      externalNodes.add(new ExternalNode(profileContent, settings, map));
+    } else if (settings != null) {
+      // No provider for this node at the moment, show what we have stored for it.
+      dumpNode(profileContent, map);
     } else {
-
-      // The node wasn't found in the baseMap.
-      // We just dump the Sparse properties excluding any system properties.
-      for ( Entry<String, Object> e : profileContent.getProperties().entrySet()) {
-        String k = e.getKey();
-        if ( !k.startsWith("_") &&  !k.startsWith(":") ) {
-          map.put(k,e.getValue());
-        }
-      }
-      map.put("_path", PathUtils.translateAuthorizablePath(profileContent.getPath()));
-
-      // We loop over the child nodes, but each node get checked against the baseMap
-      // again.
+      dumpProperties(profileContent, map);
+      // We loop over the child nodes, each of them may be external.
       for (Content childProfile : profileContent.listChildren()) {
+        String childName = StorageClientUtils.getObjectName(childProfile.getPath());
         ValueMap childMap = new ValueMapDecorator(new HashMap<String, Object>());
-        handleNode(childProfile, baseMap, childMap);
-        map.put(StorageClientUtils.getObjectName(childProfile.getPath()), childMap);
+        handleNode(StorageClientUtils.newPath(path, childName), childProfile, childMap,
+            externalNodes, jcrSession);
+        map.put(childName, childMap);
       }
     }
   }
 
-
-
   /**
-   * Loops over an entire profile and checks if some of the nodes are marked as external.
-   * If there is a node found that has it's sakai:source property set to external, we'll
-   * look for a ProfileProvider that matches that path.
-   *
-   * @param profileContent
-   *          The top node of a profile.
-   * @param jcrSession 
-   * @return
-   * @throws RepositoryException
+   * Fills the map with the Sparse data of a node and its subtree, without looking for
+   * external nodes.
    */
-  private Map<String, List<ProviderSettings>> scanForProviders(Content profileContent, Session jcrSession)
-      throws RepositoryException {
-    Map<String, List<ProviderSettings>> providerMap = new HashMap<String, List<ProviderSettings>>();
-    return scanForProviders("", profileContent, providerMap, jcrSession);
+  private void dumpNode(Content content, Map<String, Object> map) {
+    dumpProperties(content, map);
+    for (Content child : content.listChildren()) {
+      ValueMap childMap = new ValueMapDecorator(new HashMap<String, Object>());
+      dumpNode(child, childMap);
+      map.put(StorageClientUtils.getObjectName(child.getPath()), childMap);
+    }
   }
 
   /**
-   * @param path
-   * @param profileContent
-   * @param providerMap
-   * @param jcrSession 
-   * @return
-   * @throws RepositoryException
+   * Dumps the Sparse properties of a node excluding any system properties.
    */
-  private Map<String, List<ProviderSettings>> scanForProviders(String path, Content profileContent,
-      Map<String, List<ProviderSettings>> providerMap, Session jcrSession) throws RepositoryException {
-    ProviderSettings settings = providerSettingsFactory.newProviderSettings(path, profileContent, jcrSession);
-    if (settings == null) {
-      for (Content childProfileContent : profileContent.listChildren()) {
-        scanForProviders(StorageClientUtils.newPath(path, StorageClientUtils.getObjectName(childProfileContent.getPath())), childProfileContent, providerMap, jcrSession);
+  private void dumpProperties(Content content, Map<String, Object> map) {
+    for ( Entry<String, Object> e : content.getProperties().entrySet()) {
+      String k = e.getKey();
+      if ( !k.startsWith("_") &&  !k.startsWith(":") ) {
+        map.put(k,e.getValue());
       }
-    } else {
-
-      List<ProviderSettings> l = providerMap.get(settings.getProvider());
+    }
+    map.put("_path", PathUtils.translateAuthorizablePath(content.getPath()));
+  }
 
+  /**
+   * Asks every provider for its nodes before waiting on any of them, so the providers
+   * work in parallel. Each provider gets providerTimeout ms from the moment it was asked
+   * to deliver all its nodes; nodes that are not delivered in time, or fail, show the
+   * stored Sparse data instead.
+   */
+  private void resolveExternalNodes(List<ExternalNode> externalNodes) {
+    if (externalNodes.isEmpty()) {
+      return;
+    }
+    Map<String, List<ProviderSettings>> providersMap = new HashMap<String, List<ProviderSettings>>();
+    for (ExternalNode externalNode : externalNodes) {
+      String provider = externalNode.settings.getProvider();
+      List<ProviderSettings> l = providersMap.get(provider);
       if (l == null) {
         l = new ArrayList<ProviderSettings>();
-        providerMap.put(settings.getProvider(), l);
+        providersMap.put(provider, l);
+      }
+      l.add(externalNode.settings);
+    }
+
+    Map<String, Future<Map<String, Object>>> providedNodeData = new HashMap<String, Future<Map<String, Object>>>();
+    Map<String, Long> deadlines = new HashMap<String, Long>();
+    for (Entry<String, List<ProviderSettings>> e : providersMap.entrySet()) {
+      ProfileProvider pp = providers.get(e.getKey());
+      if (pp != null) {
+        deadlines.put(e.getKey(), System.currentTimeMillis() + providerTimeout);
+        try {
+          for (Entry<Content, ? extends Future<Map<String, Object>>> provided : pp
+              .getProvidedMap(e.getValue()).entrySet()) {
+            providedNodeData.put(provided.getKey().getPath(), provided.getValue());
+          }
+        } catch (RuntimeException ex) {
+          LOG.warn("Profile provider " + e.getKey() + " failed, using stored data", ex);
+        }
+      }
+    }
+
+    for (ExternalNode externalNode : externalNodes) {
+      String path = externalNode.content.getPath();
+      Future<Map<String, Object>> future = providedNodeData.get(path);
+      Map<String, Object> provided = null;
+      if (future != null) {
+        String provider = externalNode.settings.getProvider();
+        long wait = Math.max(0, deadlines.get(provider) - System.currentTimeMillis());
+        try {
+          provided = future.get(wait, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+          LOG.warn("Profile provider {} took longer than {} ms for {}, using stored data",
+              new Object[] { provider, providerTimeout, path });
+          future.cancel(true);
+        } catch (ExecutionException e) {
+          LOG.warn("Profile provider " + provider + " failed for " + path
+              + ", using stored data", e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          future.cancel(true);
+        }
+      }
+      if (provided != null) {
+        externalNode.map.putAll(provided);
+      } else {
+        dumpNode(externalNode.content, externalNode.map);
       }
-      l.add(settings);
     }
-    return providerMap;
   }
 
+  /**
+   * A profile node whose data should come from a provider, and the map to put it in.
+   */
+  protected static class ExternalNode {
+    private final Content content;
+    private final ProviderSettings settings;
+    private final Map<String, Object> map;
+
+    ExternalNode(Content content, ProviderSettings settings, Map<String, Object> map) {
+      this.content = content;
+      this.settings = settings;
+      this.map = map;
+    }
+  }
 
   protected void bindProfileProvider(ProfileProvider provider,
       Map<String, Object> properties) {
@@ -331,6 +448,7 @@ public class ProfileServiceImpl implements ProfileService {
   public void update(org.sakaiproject.nakamura.api.lite.Session session, String profilePath,
       JSONObject json, boolean replace, boolean replaceProperties, boolean removeTree)
       throws StorageClientException, AccessDeniedException, JSONException {
+    invalidateResolvedProfile(profilePath);
     String objectName = PathUtils.lastElement(profilePath);
     ContentManager contentManager = session.getContentManager();
     String authorizableId = PathUtils.getAuthorizableId(profilePath);
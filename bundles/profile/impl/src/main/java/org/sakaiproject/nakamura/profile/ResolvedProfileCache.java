@@ -0,0 +1,184 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * A small LRU cache of resolved profiles. Entries are kept per owner and viewer as access
+ * control decides which parts of a profile a viewer can see, and are indexed by owner so
+ * that a write to a profile can drop every view of it in one go. Profiles are copied on
+ * the way in and out as callers decorate the maps they get.
+ */
+class ResolvedProfileCache {
+
+  private final Map<ViewKey, CachedProfile> profiles;
+  private final Map<String, Set<String>> viewersByOwner = new HashMap<String, Set<String>>();
+  private final long ttl;
+
+  /**
+   * @param maxEntries
+   *          the number of resolved profiles to keep, counting every viewer of every
+   *          owner.
+   * @param ttl
+   *          how long in ms a resolved profile may be used for. Provided data can change
+   *          without the profile being written, so entries always expire.
+   */
+  ResolvedProfileCache(final int maxEntries, long ttl) {
+    this.ttl = ttl;
+    this.profiles = new LinkedHashMap<ViewKey, CachedProfile>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<ViewKey, CachedProfile> eldest) {
+        if (size() > maxEntries) {
+          forgetViewer(eldest.getKey());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @return a copy of the profile of owner as resolved for viewer, or null if there is
+   *         none or it has expired.
+   */
+  synchronized Map<String, Object> get(String owner, String viewer) {
+    ViewKey key = new ViewKey(owner, viewer);
+    CachedProfile cached = profiles.get(key);
+    if (cached == null) {
+      return null;
+    }
+    if (cached.expires < System.currentTimeMillis()) {
+      profiles.remove(key);
+      forgetViewer(key);
+      return null;
+    }
+    return copyMap(cached.profile);
+  }
+
+  synchronized void put(String owner, String viewer, Map<String, Object> profile) {
+    Set<String> viewers = viewersByOwner.get(owner);
+    if (viewers == null) {
+      viewers = new HashSet<String>();
+      viewersByOwner.put(owner, viewers);
+    }
+    viewers.add(viewer);
+    profiles.put(new ViewKey(owner, viewer), new CachedProfile(copyMap(profile),
+        System.currentTimeMillis() + ttl));
+  }
+
+  /**
+   * Drop every resolved view of the profile of owner.
+   */
+  synchronized void invalidate(String owner) {
+    Set<String> viewers = viewersByOwner.remove(owner);
+    if (viewers != null) {
+      for (String viewer : viewers) {
+        profiles.remove(new ViewKey(owner, viewer));
+      }
+    }
+  }
+
+  /**
+   * @return the number of resolved profiles held.
+   */
+  synchronized int size() {
+    return profiles.size();
+  }
+
+  private void forgetViewer(ViewKey key) {
+    Set<String> viewers = viewersByOwner.get(key.owner);
+    if (viewers != null) {
+      viewers.remove(key.viewer);
+      if (viewers.isEmpty()) {
+        viewersByOwner.remove(key.owner);
+      }
+    }
+  }
+
+  /**
+   * Copy a profile down to its leaves, so neither the cache nor its callers see changes
+   * the other makes to nested sections, multi-valued properties or dates.
+   */
+  @SuppressWarnings("unchecked")
+  private static Object copyValue(Object value) {
+    if (value instanceof Map) {
+      return copyMap((Map<String, Object>) value);
+    } else if (value instanceof Object[]) {
+      Object[] values = ((Object[]) value).clone();
+      for (int i = 0; i < values.length; i++) {
+        values[i] = copyValue(values[i]);
+      }
+      return values;
+    } else if (value instanceof Calendar) {
+      return ((Calendar) value).clone();
+    }
+    return value;
+  }
+
+  private static Map<String, Object> copyMap(Map<String, Object> map) {
+    Map<String, Object> copy = new HashMap<String, Object>(map.size());
+    for (Entry<String, Object> e : map.entrySet()) {
+      copy.put(e.getKey(), copyValue(e.getValue()));
+    }
+    return copy;
+  }
+
+  private static class ViewKey {
+    private final String owner;
+    private final String viewer;
+
+    ViewKey(String owner, String viewer) {
+      this.owner = owner;
+      this.viewer = viewer;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof ViewKey)) {
+        return false;
+      }
+      ViewKey other = (ViewKey) obj;
+      return owner.equals(other.owner)
+          && (viewer == null ? other.viewer == null : viewer.equals(other.viewer));
+    }
+
+    @Override
+    public int hashCode() {
+      return owner.hashCode() * 31 + (viewer == null ? 0 : viewer.hashCode());
+    }
+  }
+
+  private static class CachedProfile {
+    private final Map<String, Object> profile;
+    private final long expires;
+
+    CachedProfile(Map<String, Object> profile, long expires) {
+      this.profile = profile;
+      this.expires = expires;
+    }
+  }
+}
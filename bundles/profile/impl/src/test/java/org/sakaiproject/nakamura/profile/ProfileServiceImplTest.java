@@ -19,6 +19,8 @@ package org.sakaiproject.nakamura.profile;
 
 import junit.framework.Assert;
 
+import com.google.common.collect.ImmutableMap;
+
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.junit.Test;
@@ -27,14 +29,26 @@ import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.profile.ProfileConstants;
 import org.sakaiproject.nakamura.api.profile.ProfileProvider;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
+import org.sakaiproject.nakamura.api.profile.ProviderSettings;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 
 import java.io.Writer;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -239,4 +253,136 @@ public class ProfileServiceImplTest {
     Mockito.when(propertyV.getString()).thenReturn(propertyValue);
 
   }
+
+  @Test
+  public void testProvidedDataReplacesExternalNode() throws Exception {
+    ProfileServiceImpl ps = setupResolvingProfileService();
+    Mockito.when(future.get(Mockito.anyLong(), Mockito.any(TimeUnit.class))).thenReturn(
+        ImmutableMap.of("department", (Object) "provided"));
+
+    Map<String, Object> profile = ps.getResolvedProfileMap(null, getProfile(), session);
+
+    Assert.assertEquals("ieb", profile.get("userid"));
+    Assert.assertEquals("stored", ((Map<?, ?>) profile.get("aboutme")).get("about"));
+    Map<?, ?> ldap = (Map<?, ?>) profile.get("ldap");
+    Assert.assertEquals("provided", ldap.get("department"));
+    Assert.assertFalse(ldap.containsKey("_path"));
+  }
+
+  @Test
+  public void testSlowProviderFallsBackToStoredData() throws Exception {
+    ProfileServiceImpl ps = setupResolvingProfileService();
+    Mockito.when(future.get(Mockito.anyLong(), Mockito.any(TimeUnit.class))).thenThrow(
+        new TimeoutException());
+
+    Map<String, Object> profile = ps.getResolvedProfileMap(null, getProfile(), session);
+
+    Map<?, ?> ldap = (Map<?, ?>) profile.get("ldap");
+    Assert.assertEquals("stored", ldap.get("department"));
+    Mockito.verify(future).cancel(true);
+  }
+
+  @Test
+  public void testResolvedProfileIsCachedUntilWritten() throws Exception {
+    ProfileServiceImpl ps = setupResolvingProfileService();
+    Mockito.when(future.get(Mockito.anyLong(), Mockito.any(TimeUnit.class))).thenReturn(
+        ImmutableMap.of("department", (Object) "provided"));
+
+    ps.getResolvedProfileMap(null, getProfile(), session);
+    ps.getResolvedProfileMap(null, getProfile(), session);
+    Mockito.verify(profileProvider, Mockito.times(1)).getProvidedMap(Mockito.anyList());
+
+    Map<String, Object> eventProps = ImmutableMap.of("path",
+        (Object) "a:ieb/public/authprofile/aboutme");
+    ps.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/UPDATED", eventProps));
+    ps.getResolvedProfileMap(null, getProfile(), session);
+    Mockito.verify(profileProvider, Mockito.times(2)).getProvidedMap(Mockito.anyList());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testCachedProfileIsNotShared() throws Exception {
+    ProfileServiceImpl ps = setupResolvingProfileService();
+    Mockito.when(future.get(Mockito.anyLong(), Mockito.any(TimeUnit.class))).thenReturn(
+        ImmutableMap.of("department", (Object) "provided"));
+
+    Map<String, Object> profile = ps.getResolvedProfileMap(null, getProfile(), session);
+    ((Map<String, Object>) profile.get("aboutme")).put("about", "changed");
+    profile = ps.getResolvedProfileMap(null, getProfile(), session);
+    ((Map<String, Object>) profile.get("ldap")).put("department", "changed");
+
+    profile = ps.getResolvedProfileMap(null, getProfile(), session);
+    Assert.assertEquals("stored", ((Map<?, ?>) profile.get("aboutme")).get("about"));
+    Assert.assertEquals("provided", ((Map<?, ?>) profile.get("ldap")).get("department"));
+    Mockito.verify(profileProvider, Mockito.times(1)).getProvidedMap(Mockito.anyList());
+  }
+
+  @Test
+  public void testAclChangeDropsResolvedProfile() throws Exception {
+    ProfileServiceImpl ps = setupResolvingProfileService();
+    Mockito.when(future.get(Mockito.anyLong(), Mockito.any(TimeUnit.class))).thenReturn(
+        ImmutableMap.of("department", (Object) "provided"));
+
+    ps.getResolvedProfileMap(null, getProfile(), session);
+    Map<String, Object> eventProps = ImmutableMap.of("path", (Object) "a:ieb");
+    ps.handleEvent(new Event(StoreListener.TOPIC_BASE + Security.ZONE_CONTENT + "/"
+        + StoreListener.UPDATED_TOPIC, eventProps));
+    ps.getResolvedProfileMap(null, getProfile(), session);
+    Mockito.verify(profileProvider, Mockito.times(2)).getProvidedMap(Mockito.anyList());
+  }
+
+  private ContentManager contentManager;
+
+  private Content getProfile() throws Exception {
+    return contentManager.get("a:ieb/public/authprofile");
+  }
+
+  /**
+   * A profile with a stored "aboutme" section and an external "ldap" section.
+   */
+  private ProfileServiceImpl setupResolvingProfileService() throws Exception {
+    Repository repository = (Repository) new BaseMemoryRepository().getRepository();
+    contentManager = repository.loginAdministrative().getContentManager();
+    contentManager.update(new Content("a:ieb/public/authprofile", ImmutableMap.of(
+        "sling:resourceType", (Object) ProfileConstants.USER_PROFILE_RT)));
+    contentManager.update(new Content("a:ieb/public/authprofile/aboutme", ImmutableMap.of(
+        "about", (Object) "stored")));
+    contentManager.update(new Content("a:ieb/public/authprofile/ldap", ImmutableMap.of(
+        "sakai:source", (Object) "external", "department", "stored")));
+    Mockito.when(session.getUserID()).thenReturn("ieb");
+
+    ProfileServiceImpl ps = new ProfileServiceImpl();
+    ps.activate(new HashMap<String, Object>());
+    ps.providerSettingsFactory = new ProviderSettingsFactory() {
+      @Override
+      public ProviderSettings newProviderSettings(String path, Content profileContent,
+          Session session) throws RepositoryException {
+        if (!"external".equals(profileContent.getProperty("sakai:source"))) {
+          return null;
+        }
+        ProviderSettings settings = Mockito.mock(ProviderSettings.class);
+        Mockito.when(settings.getProvider()).thenReturn("ldapProvider");
+        Mockito.when(settings.getNode()).thenReturn(profileContent);
+        return settings;
+      }
+    };
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(ProfileProvider.PROVIDER_NAME, "ldapProvider");
+    ps.bindProfileProvider(profileProvider, properties);
+
+    // the provider hands back its own copy of the node, only the path matches.
+    Mockito.doAnswer(new Answer<Map<Content, Future<Map<String, Object>>>>() {
+      public Map<Content, Future<Map<String, Object>>> answer(InvocationOnMock invocation)
+          throws Throwable {
+        Map<Content, Future<Map<String, Object>>> futureMap = new HashMap<Content, Future<Map<String, Object>>>();
+        List<?> settings = (List<?>) invocation.getArguments()[0];
+        for (Object setting : settings) {
+          Content node = ((ProviderSettings) setting).getNode();
+          futureMap.put(contentManager.get(node.getPath()), future);
+        }
+        return futureMap;
+      }
+    }).when(profileProvider).getProvidedMap(Mockito.anyList());
+    return ps;
+  }
 }
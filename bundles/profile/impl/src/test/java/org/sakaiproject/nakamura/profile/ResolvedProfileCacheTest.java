@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ */
+public class ResolvedProfileCacheTest {
+
+  @Test
+  public void testSizeCountsEveryViewer() {
+    ResolvedProfileCache cache = new ResolvedProfileCache(3, 60000);
+    for (int i = 0; i < 10; i++) {
+      cache.put("ieb", "viewer" + i, profile());
+    }
+    assertEquals(3, cache.size());
+    assertNull(cache.get("ieb", "viewer0"));
+    assertNotNull(cache.get("ieb", "viewer9"));
+
+    // evicted views are forgotten, so the owner can still be dropped cleanly.
+    cache.put("zach", "viewer0", profile());
+    cache.invalidate("ieb");
+    assertEquals(1, cache.size());
+    assertNotNull(cache.get("zach", "viewer0"));
+  }
+
+  @Test
+  public void testInvalidateDropsAllViewers() {
+    ResolvedProfileCache cache = new ResolvedProfileCache(10, 60000);
+    cache.put("ieb", "ieb", profile());
+    cache.put("ieb", "anonymous", profile());
+    cache.put("zach", "ieb", profile());
+    cache.invalidate("ieb");
+    assertNull(cache.get("ieb", "ieb"));
+    assertNull(cache.get("ieb", "anonymous"));
+    assertNotNull(cache.get("zach", "ieb"));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testProfilesAreCopied() {
+    ResolvedProfileCache cache = new ResolvedProfileCache(10, 60000);
+    Map<String, Object> profile = profile();
+    cache.put("ieb", "ieb", profile);
+    ((Map<String, Object>) profile.get("aboutme")).put("about", "changed");
+    ((String[]) profile.get("tags"))[0] = "changed";
+
+    Map<String, Object> cached = cache.get("ieb", "ieb");
+    assertEquals("stored", ((Map<String, Object>) cached.get("aboutme")).get("about"));
+    assertEquals("stored", ((String[]) cached.get("tags"))[0]);
+    ((Map<String, Object>) cached.get("aboutme")).put("about", "changed");
+    assertEquals("stored", ((Map<String, Object>) cache.get("ieb", "ieb").get("aboutme"))
+        .get("about"));
+  }
+
+  @Test
+  public void testExpiredProfilesAreDropped() throws Exception {
+    ResolvedProfileCache cache = new ResolvedProfileCache(10, -1);
+    cache.put("ieb", "ieb", profile());
+    assertNull(cache.get("ieb", "ieb"));
+    assertEquals(0, cache.size());
+  }
+
+  private Map<String, Object> profile() {
+    Map<String, Object> profile = new HashMap<String, Object>();
+    profile.put("aboutme", new HashMap<String, Object>(ImmutableMap.of("about",
+        (Object) "stored")));
+    profile.put("tags", new String[] { "stored" });
+    return profile;
+  }
+}
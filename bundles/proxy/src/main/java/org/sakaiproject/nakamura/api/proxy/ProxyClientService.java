@@ -61,6 +61,30 @@ public interface ProxyClientService {
    */
   public static final String SAKAI_LIMIT_GET_SIZE = "sakai:proxy-limit-length";
 
+  /**
+   * The number of ms to wait for a connection to the end point, overrides the service
+   * default.
+   */
+  public static final String SAKAI_PROXY_CONNECT_TIMEOUT = "sakai:proxy-connect-timeout";
+
+  /**
+   * The number of ms to wait for data from the end point, overrides the service default.
+   */
+  public static final String SAKAI_PROXY_READ_TIMEOUT = "sakai:proxy-read-timeout";
+
+  /**
+   * The maximum number of concurrent requests to the end point, overrides the service
+   * default. Requests over this limit are rejected with a 503.
+   */
+  public static final String SAKAI_PROXY_MAX_CONNECTIONS = "sakai:proxy-max-connections";
+
+  /**
+   * Set to true to keep GET responses of the end point in the shared response cache.
+   * Requests carrying cookies or credentials are never answered from the cache, but the
+   * node should only opt in when the response does not otherwise depend on the user.
+   */
+  public static final String SAKAI_PROXY_CACHE = "sakai:proxy-cache";
+
 
   /**
    * Executes a HTTP call using a path in the JCR to point to a template and a map of
@@ -54,6 +54,11 @@ public interface ProxyResponse {
    */
   String getResponseBodyAsString() throws IOException;
 
+  /**
+   * @return the URL the request was sent to, or null if no request was made.
+   */
+  String getRequestURL();
+
   /**
    * 
    */
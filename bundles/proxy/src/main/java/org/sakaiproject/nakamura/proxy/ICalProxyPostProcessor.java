@@ -21,7 +21,11 @@ import static com.google.common.base.Preconditions.*;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.text.ParseException;
 import java.util.Map;
 import java.util.Set;
 
@@ -29,14 +33,28 @@ import javax.servlet.http.HttpServletResponse;
 
 import net.fortuna.ical4j.data.CalendarBuilder;
 import net.fortuna.ical4j.data.CalendarOutputter;
+import net.fortuna.ical4j.data.CalendarParserImpl;
+import net.fortuna.ical4j.data.ContentHandler;
 import net.fortuna.ical4j.data.ParserException;
+import net.fortuna.ical4j.data.UnfoldingReader;
 import net.fortuna.ical4j.model.Calendar;
 import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.ComponentFactory;
 import net.fortuna.ical4j.model.ComponentList;
+import net.fortuna.ical4j.model.Escapable;
+import net.fortuna.ical4j.model.Parameter;
+import net.fortuna.ical4j.model.ParameterFactoryImpl;
+import net.fortuna.ical4j.model.PropertyFactoryImpl;
 import net.fortuna.ical4j.model.PropertyList;
+import net.fortuna.ical4j.model.TimeZone;
+import net.fortuna.ical4j.model.TimeZoneRegistry;
+import net.fortuna.ical4j.model.TimeZoneRegistryFactory;
 import net.fortuna.ical4j.model.ValidationException;
+import net.fortuna.ical4j.model.component.Observance;
 import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.component.VTimeZone;
 import net.fortuna.ical4j.model.property.DateProperty;
+import net.fortuna.ical4j.util.Strings;
 
 import org.apache.commons.io.input.ProxyInputStream;
 import org.apache.felix.scr.annotations.Activate;
@@ -60,7 +78,8 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 
 /**
- * Will convert iCal to JSON.
+ * Will convert iCal to JSON. Unless validation is requested the feed is converted as it
+ * is parsed, one event at a time, rather than building the whole calendar in memory.
  */
 @Service(value = ProxyPostProcessor.class)
 @org.apache.felix.scr.annotations.Component(label = "ProxyPostProcessor for iCal", description = "Post processor which converts iCal data to JSON.", immediate = true)
@@ -70,13 +89,25 @@ import com.google.common.collect.ImmutableSet;
     @Property(name = ICalProxyPostProcessor.MAX_RESPONSE_BYTES_PROP, 
               longValue=ICalProxyPostProcessor.DEFAULT_MAX_RESPONSE_BYTES,
               description="The maximum size (in bytes) that a response from a remote "
-              + "server can be.")})
+              + "server can be."),
+    @Property(name = ICalProxyPostProcessor.BUFFER_SIZE_PROP,
+              intValue=ICalProxyPostProcessor.DEFAULT_BUFFER_SIZE,
+              description="The number of characters of output held back before the "
+              + "response is committed. Outputs that fit can be cached."),
+    @Property(name = ICalProxyPostProcessor.CACHE_ENTRIES_PROP,
+              intValue=ICalProxyPostProcessor.DEFAULT_CACHE_ENTRIES,
+              description="The number of converted calendars kept, keyed by the upstream "
+              + "URL, ETag and Last-Modified.")})
 public class ICalProxyPostProcessor implements ProxyPostProcessor {
 
   private static final Logger LOG = LoggerFactory.getLogger(ICalProxyPostProcessor.class);
   
   /*package*/ static final long DEFAULT_MAX_RESPONSE_BYTES = 10 * 1024 * 1024;
   /*package*/ static final String MAX_RESPONSE_BYTES_PROP = "sakai.proxy.ical.maxlength";
+  /*package*/ static final int DEFAULT_BUFFER_SIZE = 65536;
+  /*package*/ static final String BUFFER_SIZE_PROP = "sakai.proxy.ical.buffersize";
+  /*package*/ static final int DEFAULT_CACHE_ENTRIES = 100;
+  /*package*/ static final String CACHE_ENTRIES_PROP = "sakai.proxy.ical.cacheentries";
   
   /** The mime/content types we'll permit as responses from the remote server. */
   /*package*/ static final Set<String> ICAL_MIME_TYPES = ImmutableSet.of(
@@ -123,11 +154,20 @@ public class ICalProxyPostProcessor implements ProxyPostProcessor {
   
   /** The size in bytes of the longest response we'll proxy. */
   private long maxResponseLength = -1;
+
+  /** The number of characters of output held back before the response is committed. */
+  private int bufferSize;
+
+  private ProcessedResponseCache cache;
   
   @Activate
   protected void activate(Map<?,?> properties) {
     maxResponseLength = PropertiesUtil.toLong(properties.get(MAX_RESPONSE_BYTES_PROP), 
         DEFAULT_MAX_RESPONSE_BYTES);
+    bufferSize = PropertiesUtil.toInteger(properties.get(BUFFER_SIZE_PROP),
+        DEFAULT_BUFFER_SIZE);
+    cache = new ProcessedResponseCache(PropertiesUtil.toInteger(
+        properties.get(CACHE_ENTRIES_PROP), DEFAULT_CACHE_ENTRIES), bufferSize);
   }
   
   /**
@@ -154,25 +194,52 @@ public class ICalProxyPostProcessor implements ProxyPostProcessor {
     checkNotNull(proxyResponse);
     if(templateParams == null) templateParams = ImmutableMap.of();
     
+    DeferredResponseWriter output = null;
     try {
       validateResponseHeaders(proxyResponse);
-      CalendarDumper dumper = getOutputMethod(castParams(templateParams));
-      Calendar calendar = loadCalendar(proxyResponse);
-      
-      if(isValidationRequested(castParams(templateParams)) 
-          || dumper.requiresValidCalendar()) {
+      Map<String, RequestParameter[]> params = castParams(templateParams);
+      CalendarDumper dumper = getOutputMethod(params);
+      boolean validate = isValidationRequested(params) || dumper.requiresValidCalendar();
+
+      String cacheKey = ProcessedResponseCache.getKey(proxyResponse, getName() + "-"
+          + dumper.getName() + (validate ? "-validated" : ""));
+      byte[] cached = cache.get(cacheKey);
+      if (cached != null) {
+        dumper.setupResponse(response);
+        response.getWriter().write(new String(cached, Charsets.UTF_8.name()));
+        return;
+      }
+
+      output = new DeferredResponseWriter(response, dumper);
+      if (validate) {
+        // Validation needs the whole calendar.
+        Calendar calendar = loadCalendar(proxyResponse);
         validateCalendar(calendar);
+        dumper.dump(calendar, output);
+      } else {
+        streamCalendar(proxyResponse, dumper, output);
+      }
+
+      String body = output.finish();
+      if (body != null) {
+        cache.put(cacheKey, body.getBytes(Charsets.UTF_8.name()));
       }
-      
-      dumper.dump(calendar, response);
     }
     catch(ResponseFailedException e) {
       LOG.info(e.getMessage());
+      if (output != null && output.isCommitted()) {
+        LOG.warn("Response already committed, calendar output truncated.");
+        return;
+      }
       e.populateHttpResponse(response);
       return;
     }
     catch(ParserException e) {
       LOG.info(ERR_ICAL_PARSE_FAILED, e);
+      if (output != null && output.isCommitted()) {
+        LOG.warn("Response already committed, calendar output truncated.");
+        return;
+      }
       response.sendError(HttpServletResponse.SC_BAD_REQUEST, ERR_ICAL_PARSE_FAILED 
           + ": " + e.getMessage());
       return;
@@ -283,6 +350,26 @@ public class ICalProxyPostProcessor implements ProxyPostProcessor {
     }
   }
   
+  /**
+   * Parse the response as an iCalendar feed, writing it to the output as it is parsed.
+   * @throws ResponseFailedException if the response is too long.
+   */
+  private void streamCalendar(ProxyResponse response, CalendarDumper dumper,
+      Writer output) throws IOException, ParserException, ResponseFailedException {
+
+    LengthLimitingInputStream input = new LengthLimitingInputStream(
+        response.getResponseBodyAsInputStream(), this.maxResponseLength);
+
+    try {
+      dumper.stream(new InputStreamReader(input, Charsets.UTF_8), output);
+    }
+    catch(StreamLengthException e) {
+      throw new ResponseFailedException(
+          HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE,
+          "The remote server's response was too long: " + e.getMessage());
+    }
+  }
+
   private void validateCalendar(Calendar calendar) throws ResponseFailedException {
     try {
       calendar.validate(true);
@@ -304,12 +391,27 @@ public class ICalProxyPostProcessor implements ProxyPostProcessor {
   
   /** Represents a means of outputting a {@link Calendar} as an HTTP response. */
   private interface CalendarDumper {
+    /** @return The value of {@link #PARAM_RESPONSE_TYPE} selecting this dumper. */
+    String getName();
+
+    /** Sets the content type and encoding of the HTTP response. */
+    void setupResponse(SlingHttpServletResponse response);
+
     /**
-     * Outputs a representation of the calendar to the destination HTTP response object.
+     * Outputs a representation of the calendar.
      * @param calendar The calendar to output.
-     * @param destination The HTTP response to write to.
+     * @param destination The writer for the HTTP response body.
+     */
+    void dump(Calendar calendar, Writer destination) throws IOException;
+
+    /**
+     * Outputs a representation of an unparsed calendar, as far as possible without
+     * holding the whole calendar in memory.
+     * @param calendar The iCalendar data.
+     * @param destination The writer for the HTTP response body.
      */
-    void dump(Calendar calendar, SlingHttpServletResponse destination) throws IOException;
+    void stream(Reader calendar, Writer destination) throws IOException,
+        ParserException;
 
     boolean requiresValidCalendar();
   }
@@ -326,21 +428,18 @@ public class ICalProxyPostProcessor implements ProxyPostProcessor {
     static final String NAME = "json";
     
     private JsonCalendarDumper() {}
+
+    public String getName() {
+      return NAME;
+    }
     
-    private void setupResponse(SlingHttpServletResponse response) {
+    public void setupResponse(SlingHttpServletResponse response) {
       response.setCharacterEncoding(Charsets.UTF_8.name());
       response.setContentType("application/json");
     }
     
-    public void dump(Calendar calendar, SlingHttpServletResponse response)
-        throws IOException {
-      
-      setupResponse(response);
-      
-      // Build JSON response in memory to allow an error to be sent if something goes 
-      // wrong.
-      StringWriter writer = new StringWriter();
-      JSONWriter json = new JSONWriter(writer);
+    public void dump(Calendar calendar, Writer destination) throws IOException {
+      JSONWriter json = new JSONWriter(destination);
       
       try {
         handleCalendar(json, calendar);
@@ -348,8 +447,12 @@ public class ICalProxyPostProcessor implements ProxyPostProcessor {
         // A JSONException being thrown indicates a programmer error...
         throw new RuntimeException("Error converting calendar to JSON.", e);
       }
-      
-      response.getWriter().write(writer.toString());
+    }
+
+    public void stream(Reader calendar, Writer destination) throws IOException,
+        ParserException {
+      new CalendarParserImpl().parse(new UnfoldingReader(calendar),
+          new JsonContentHandler(new JSONWriter(destination)));
     }
     
     private static void handleCalendar(JSONWriter json, Calendar calendar) 
@@ -373,27 +476,173 @@ public class ICalProxyPostProcessor implements ProxyPostProcessor {
       PropertyList pList = event.getProperties();
       
       for(int i = 0, size = pList.size(); i < size; ++i) {
-        net.fortuna.ical4j.model.Property p = 
-            (net.fortuna.ical4j.model.Property) pList.get(i);
-        json.key(p.getName());
-        // Check if it is a date
-        String value = p.getValue();
-        if (p instanceof DateProperty) {
-          DateProperty start = (DateProperty) p;
-          value = DateUtils.iso8601(start.getDate());
-        }
-
-        json.value(value);
+        handleProperty(json, (net.fortuna.ical4j.model.Property) pList.get(i));
       }
       json.endObject();
     }
 
+    private static void handleProperty(JSONWriter json,
+        net.fortuna.ical4j.model.Property p) throws JSONException {
+      json.key(p.getName());
+      // Check if it is a date
+      String value = p.getValue();
+      if (p instanceof DateProperty) {
+        DateProperty start = (DateProperty) p;
+        value = DateUtils.iso8601(start.getDate());
+      }
+
+      json.value(value);
+    }
+
     @Override
     public boolean requiresValidCalendar() {
       // We don't really care if the calendar is technically invalid when outputting JSON.
       return false;
     }
   }
+
+  /**
+   * Writes the same JSON as {@link JsonCalendarDumper#dump} while the calendar is being
+   * parsed. Only the event being parsed and the time zones of the calendar are held in
+   * memory, the time zones are needed to resolve the TZID of event dates.
+   */
+  private static final class JsonContentHandler implements ContentHandler {
+
+    private final JSONWriter json;
+    private final TimeZoneRegistry timeZones = TimeZoneRegistryFactory.getInstance()
+        .createRegistry();
+    private int depth;
+    private boolean inEvent;
+    private VTimeZone timeZone;
+    private Observance observance;
+    private net.fortuna.ical4j.model.Property property;
+    private String propertyValue;
+
+    JsonContentHandler(JSONWriter json) {
+      this.json = json;
+    }
+
+    public void startCalendar() {
+      try {
+        json.object();
+        json.key("vcalendar").object();
+        json.key("vevents").array();
+      } catch (JSONException e) {
+        throw new RuntimeException("Error converting calendar to JSON.", e);
+      }
+    }
+
+    public void endCalendar() {
+      try {
+        json.endArray().endObject().endObject();
+      } catch (JSONException e) {
+        throw new RuntimeException("Error converting calendar to JSON.", e);
+      }
+    }
+
+    public void startComponent(String name) {
+      depth++;
+      if (depth == 1 && Component.VEVENT.equalsIgnoreCase(name)) {
+        inEvent = true;
+        try {
+          json.object();
+        } catch (JSONException e) {
+          throw new RuntimeException("Error converting calendar to JSON.", e);
+        }
+      } else if (depth == 1 && Component.VTIMEZONE.equalsIgnoreCase(name)) {
+        timeZone = new VTimeZone();
+      } else if (depth == 2 && timeZone != null) {
+        Component component = ComponentFactory.getInstance().createComponent(
+            name.toUpperCase());
+        if (component instanceof Observance) {
+          observance = (Observance) component;
+        }
+      }
+    }
+
+    public void endComponent(String name) {
+      if (depth == 1 && inEvent) {
+        inEvent = false;
+        try {
+          json.endObject();
+        } catch (JSONException e) {
+          throw new RuntimeException("Error converting calendar to JSON.", e);
+        }
+      } else if (depth == 1 && timeZone != null) {
+        timeZones.register(new TimeZone(timeZone));
+        timeZone = null;
+      } else if (depth == 2 && observance != null) {
+        timeZone.getObservances().add(observance);
+        observance = null;
+      }
+      depth--;
+    }
+
+    public void startProperty(String name) {
+      if ((depth == 1 && (inEvent || timeZone != null))
+          || (depth == 2 && observance != null)) {
+        property = PropertyFactoryImpl.getInstance().createProperty(name.toUpperCase());
+      } else {
+        property = null;
+      }
+      propertyValue = null;
+    }
+
+    public void parameter(String name, String value) throws URISyntaxException {
+      if (property != null) {
+        property.getParameters().add(ParameterFactoryImpl.getInstance().createParameter(
+            name.toUpperCase(), value));
+      }
+    }
+
+    public void propertyValue(String value) throws URISyntaxException, ParseException,
+        IOException {
+      if (property != null) {
+        propertyValue = value;
+        if (property instanceof Escapable) {
+          property.setValue(Strings.unescape(value));
+        } else {
+          property.setValue(value);
+        }
+      }
+    }
+
+    public void endProperty(String name) {
+      if (property == null) {
+        return;
+      }
+      if (inEvent) {
+        resolveTimeZone();
+        try {
+          JsonCalendarDumper.handleProperty(json, property);
+        } catch (JSONException e) {
+          throw new RuntimeException("Error converting calendar to JSON.", e);
+        }
+      } else if (observance != null) {
+        observance.getProperties().add(property);
+      } else if (timeZone != null) {
+        timeZone.getProperties().add(property);
+      }
+      property = null;
+    }
+
+    /** Re-reads a date in the time zone named by its TZID, as CalendarBuilder does. */
+    private void resolveTimeZone() {
+      Parameter tzId = property.getParameter(Parameter.TZID);
+      if (tzId == null || propertyValue == null || !(property instanceof DateProperty)) {
+        return;
+      }
+      TimeZone tz = timeZones.getTimeZone(tzId.getValue());
+      if (tz != null) {
+        try {
+          ((DateProperty) property).setTimeZone(tz);
+          property.setValue(propertyValue);
+        } catch (Exception e) {
+          LOG.debug("Unable to apply time zone {} to {}", tzId.getValue(), propertyValue);
+        }
+      }
+    }
+  }
   
   private static final class ICalCalendarDumper implements CalendarDumper {
 
@@ -401,15 +650,20 @@ public class ICalProxyPostProcessor implements ProxyPostProcessor {
     static final ICalCalendarDumper INSTANCE = new ICalCalendarDumper();
     
     private ICalCalendarDumper() {}
-    
-    @Override
-    public void dump(Calendar calendar, SlingHttpServletResponse response)
-        throws IOException {
+
+    public String getName() {
+      return NAME;
+    }
+
+    public void setupResponse(SlingHttpServletResponse response) {
       response.setCharacterEncoding(Charsets.UTF_8.name());
       response.setContentType("text/calendar");
+    }
+    
+    @Override
+    public void dump(Calendar calendar, Writer destination) throws IOException {
       try {
-        new CalendarOutputter().output(calendar, response.getWriter());
-        response.flushBuffer();
+        new CalendarOutputter().output(calendar, destination);
       } catch (ValidationException e) {
         // This should never happen because the calendar will already have been validated.
         LOG.error(ERR_ICAL_OUTPUT_FAILED, e);
@@ -417,6 +671,13 @@ public class ICalProxyPostProcessor implements ProxyPostProcessor {
       }
     }
 
+    public void stream(Reader calendar, Writer destination) throws IOException,
+        ParserException {
+      // The iCalendar output is only produced for valid calendars, which are always
+      // parsed in full.
+      dump(new CalendarBuilder().build(calendar), destination);
+    }
+
     @Override
     public boolean requiresValidCalendar() {
       // CalendarOutputter() is rather picky about validity and seems to barf if the 
@@ -424,6 +685,74 @@ public class ICalProxyPostProcessor implements ProxyPostProcessor {
       return true;
     }
   }
+
+  /**
+   * Holds the output back until it grows beyond the buffer size, so that an error found
+   * in a small calendar can still be reported as an error response. Once the buffer is
+   * exceeded the response is committed and the rest is written straight through.
+   */
+  private final class DeferredResponseWriter extends Writer {
+
+    private final SlingHttpServletResponse response;
+    private final CalendarDumper dumper;
+    private StringBuilder buffer = new StringBuilder();
+    private Writer target;
+
+    DeferredResponseWriter(SlingHttpServletResponse response, CalendarDumper dumper) {
+      this.response = response;
+      this.dumper = dumper;
+    }
+
+    boolean isCommitted() {
+      return target != null;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      if (target != null) {
+        target.write(cbuf, off, len);
+        return;
+      }
+      buffer.append(cbuf, off, len);
+      if (buffer.length() > bufferSize) {
+        commit();
+      }
+    }
+
+    private void commit() throws IOException {
+      dumper.setupResponse(response);
+      target = response.getWriter();
+      target.write(buffer.toString());
+      buffer = null;
+    }
+
+    /**
+     * Writes out anything still held back.
+     * @return The complete output if it was held back in full, null otherwise.
+     */
+    String finish() throws IOException {
+      if (target != null) {
+        target.flush();
+        return null;
+      }
+      String output = buffer.toString();
+      commit();
+      target.flush();
+      return output;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (target != null) {
+        target.flush();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
   
   /**
    * An exception which is raised to abort the normal HTTP response and respond with an
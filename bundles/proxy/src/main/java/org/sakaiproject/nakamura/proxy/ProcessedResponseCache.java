@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.sakaiproject.nakamura.proxy.ProxyResponseCache.CachedProxyResponse;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A bounded cache of the output of a post processor. Entries are keyed by the upstream
+ * URL together with the validators (ETag, Last-Modified) of the upstream response, so a
+ * changed upstream document never hits a stale entry and old versions simply age out of
+ * the LRU. Only responses that came from the shared {@link ProxyResponseCache} are
+ * cached, since those were requested without cookies or credentials and may be shared
+ * between users. Responses without a URL or without validators are never cached.
+ */
+public class ProcessedResponseCache {
+
+  private final int maxEntrySize;
+  private final Map<String, byte[]> entries;
+
+  /**
+   * @param maxEntries
+   *          the maximum number of outputs kept, the least recently used is evicted.
+   * @param maxEntrySize
+   *          the maximum size in bytes of a cacheable output.
+   */
+  public ProcessedResponseCache(final int maxEntries, int maxEntrySize) {
+    this.maxEntrySize = maxEntrySize;
+    this.entries = Collections.synchronizedMap(new LinkedHashMap<String, byte[]>(16,
+        0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, byte[]> eldest) {
+        return size() > maxEntries;
+      }
+    });
+  }
+
+  /**
+   * @param proxyResponse
+   *          the upstream response.
+   * @param variant
+   *          identifies the kind of output produced from the upstream response, eg: the
+   *          requested output format.
+   * @return the key for the processed output of the response, or null if it can't be
+   *         cached.
+   */
+  public static String getKey(ProxyResponse proxyResponse, String variant) {
+    if (!(proxyResponse instanceof CachedProxyResponse)) {
+      // the upstream response may be specific to the user who requested it.
+      return null;
+    }
+    String url = proxyResponse.getRequestURL();
+    Map<String, String[]> headers = proxyResponse.getResponseHeaders();
+    if (url == null || headers == null || proxyResponse.getResultCode() != 200) {
+      return null;
+    }
+    String etag = ProxyResponseCache.getHeader(headers, "ETag");
+    String lastModified = ProxyResponseCache.getHeader(headers, "Last-Modified");
+    if (etag == null && lastModified == null) {
+      return null;
+    }
+    return variant + " " + url + " " + etag + " " + lastModified;
+  }
+
+  /**
+   * @param key
+   * @return the cached output or null.
+   */
+  public byte[] get(String key) {
+    if (key == null) {
+      return null;
+    }
+    return entries.get(key);
+  }
+
+  /**
+   * Stores the output, if it is small enough.
+   *
+   * @param key
+   * @param output
+   */
+  public void put(String key, byte[] output) {
+    if (key != null && output.length <= maxEntrySize) {
+      entries.put(key, output);
+    }
+  }
+
+  /**
+   * @return the maximum size in bytes of a cacheable output.
+   */
+  public int getMaxEntrySize() {
+    return maxEntrySize;
+  }
+}
@@ -45,6 +45,7 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
@@ -58,6 +59,7 @@ import org.sakaiproject.nakamura.api.proxy.ProxyMethod;
 import org.sakaiproject.nakamura.api.proxy.ProxyNodeSource;
 import org.sakaiproject.nakamura.api.proxy.ProxyPostProcessor;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.sakaiproject.nakamura.proxy.ProxyResponseCache.CachedProxyResponse;
 import org.sakaiproject.nakamura.proxy.velocity.JcrResourceLoader;
 import org.sakaiproject.nakamura.proxy.velocity.VelocityLogger;
 import org.sakaiproject.nakamura.util.JcrUtils;
@@ -70,6 +72,7 @@ import java.io.InputStream;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -80,10 +83,13 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Value;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -116,6 +122,29 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
   @Property(value={"rss", "trustedLoginTokenProxyPostProcessor", "iCal", "someothersafepostprocessor"})
   private static final String SAFE_POSTPROCESSORS = "safe.postprocessors";
 
+  @Property(intValue = 5000, description = "Default ms to wait for a connection to a proxy end point")
+  private static final String CONNECT_TIMEOUT = "proxy.connect.timeout";
+
+  @Property(intValue = 30000, description = "Default ms to wait for data from a proxy end point")
+  private static final String READ_TIMEOUT = "proxy.read.timeout";
+
+  @Property(intValue = 10, description = "Default maximum number of concurrent requests to a single proxy end point")
+  private static final String MAX_CONNECTIONS = "proxy.max.connections";
+
+  @Property(intValue = 5, description = "Consecutive failures after which requests to a proxy end point are short circuited")
+  private static final String CIRCUIT_FAILURE_THRESHOLD = "proxy.circuit.failure.threshold";
+
+  @Property(longValue = 30000, description = "ms to short circuit requests to a failing proxy end point before trying again")
+  private static final String CIRCUIT_OPEN_TIME = "proxy.circuit.open.time";
+
+  @Property(intValue = 500, description = "Maximum number of upstream responses held in the shared proxy cache")
+  private static final String CACHE_MAX_ENTRIES = "proxy.cache.max.entries";
+
+  @Property(intValue = 262144, description = "Maximum size in bytes of a response held in the shared proxy cache")
+  private static final String CACHE_MAX_ENTRY_SIZE = "proxy.cache.max.entry.size";
+
+  private static final String ENDPOINT_MBEAN_NAME = "org.sakaiproject.nakamura.proxy:type=ProxyEndpoint,name=";
+
   /**
    * The shared velocity engine, which should cache all the templates. (need to sort out
    * how to invalidate).
@@ -128,9 +157,20 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
   private MultiThreadedHttpConnectionManager httpClientConnectionManager;
 
   /**
-   * The http client for this component (multi threaded)
+   * The connection pool, bulkhead and circuit breaker of each proxy node, keyed by path.
    */
-  private HttpClient httpClient;
+  private Map<String, ProxyEndpoint> endpoints = new ConcurrentHashMap<String, ProxyEndpoint>();
+
+  /**
+   * Upstream responses that may be reused, shared between all proxy nodes.
+   */
+  private ProxyResponseCache responseCache;
+
+  private int connectTimeout;
+  private int readTimeout;
+  private int maxConnections;
+  private int circuitFailureThreshold;
+  private long circuitOpenTime;
 
   /**
    * A Thread local holder to bind the resource being processed to this thread.
@@ -190,16 +230,33 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
     velocityEngine.setExtendedProperties(configuration);
     velocityEngine.init();
 
+    connectTimeout = OsgiUtil.toInteger(configProperties.get(CONNECT_TIMEOUT), 5000);
+    readTimeout = OsgiUtil.toInteger(configProperties.get(READ_TIMEOUT), 30000);
+    maxConnections = OsgiUtil.toInteger(configProperties.get(MAX_CONNECTIONS), 10);
+    circuitFailureThreshold = OsgiUtil.toInteger(
+        configProperties.get(CIRCUIT_FAILURE_THRESHOLD), 5);
+    circuitOpenTime = OsgiUtil.toLong(configProperties.get(CIRCUIT_OPEN_TIME), 30000L);
+    responseCache = new ProxyResponseCache(OsgiUtil.toInteger(
+        configProperties.get(CACHE_MAX_ENTRIES), 500), OsgiUtil.toInteger(
+        configProperties.get(CACHE_MAX_ENTRY_SIZE), 262144));
+
+    // the shared connection manager is only exported for other bundles, proxy nodes each
+    // get their own pool.
     httpClientConnectionManager = new MultiThreadedHttpConnectionManager();
     HttpConnectionManagerParams params = new HttpConnectionManagerParams();
-    // could set a whole load of connection properties
+    params.setConnectionTimeout(connectTimeout);
+    params.setSoTimeout(readTimeout);
     httpClientConnectionManager.setParams(params);
+  }
 
-    httpClient = new HttpClient(httpClientConnectionManager);
-
-    // allow communications via a proxy server if command line
-    // java parameters http.proxyHost,http.proxyPort,http.proxyUser,
-    // http.proxyPassword have been provided.
+  /**
+   * Allow communications via a proxy server if command line java parameters
+   * http.proxyHost, http.proxyPort, http.proxyUser, http.proxyPassword have been
+   * provided.
+   *
+   * @param httpClient
+   */
+  private void configureExternalProxy(HttpClient httpClient) {
     externalAuthenticatingProxy=false;
     String proxyHost = System.getProperty("http.proxyHost","");
     int proxyPort = Integer.parseInt(System.getProperty("http.proxyPort","80"));
@@ -227,6 +284,11 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
    */
   protected void deactivate(ComponentContext ctx) throws Exception {
     httpClientConnectionManager.shutdown();
+    for (ProxyEndpoint endpoint : endpoints.values()) {
+      unregisterEndpoint(endpoint);
+      endpoint.shutdown();
+    }
+    endpoints.clear();
   }
 
   /**
@@ -323,7 +385,10 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
         // add in the config properties from the bundle overwriting everythign else.
         context.put("config", configProperties);
 
-        endpointURL = processUrlTemplate(endpointURL, context);
+        // most endpoints are static, only run velocity when there is something to expand.
+        if (endpointURL.indexOf('$') >= 0 || endpointURL.indexOf('#') >= 0) {
+          endpointURL = processUrlTemplate(endpointURL, context);
+        }
 
         ProxyMethod proxyMethod = ProxyMethod.GET;
         if (node.hasProperty(SAKAI_REQUEST_PROXY_METHOD)) {
@@ -335,151 +400,214 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
           + " failed, cause follows:", e);
           }
         }
+
+        ProxyEndpoint endpoint = getEndpoint(node);
+
+        // a fresh copy in the shared cache saves the upstream call altogether, a stale
+        // one can be revalidated. Only nodes that opt in are cached, and never for a
+        // request that identifies the user upstream.
+        boolean cacheable = proxyMethod == ProxyMethod.GET && requestInputStream == null
+            && node.hasProperty(SAKAI_PROXY_CACHE)
+            && node.getProperty(SAKAI_PROXY_CACHE).getBoolean()
+            && ProxyResponseCache.isCacheableRequest(headers);
+        CachedProxyResponse cached = null;
+        if (cacheable) {
+          cached = responseCache.get(endpointURL);
+          if (cached != null && !cached.matches(headers)) {
+            cached = null;
+          }
+          if (cached != null && node.hasProperty(SAKAI_LIMIT_GET_SIZE)
+              && cached.getBodyLength() > node.getProperty(SAKAI_LIMIT_GET_SIZE).getLong()) {
+            cached = null;
+          }
+          if (cached != null && cached.isFresh(System.currentTimeMillis())) {
+            endpoint.recordCacheHit();
+            return cached;
+          }
+        }
+
+        switch (endpoint.admit()) {
+        case SATURATED:
+          return new ProxyResponseImpl(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+              "Too many concurrent requests to " + node.getPath());
+        case OPEN:
+          return new ProxyResponseImpl(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+              "Requests to " + node.getPath() + " are failing, try again later");
+        default:
+          break;
+        }
+
+        // from here on the endpoint connection is either handed over to the response or
+        // released in the finally block.
         HttpMethod method = null;
-        switch (proxyMethod) {
-        case GET:
-          if (node.hasProperty(SAKAI_LIMIT_GET_SIZE)) {
-            long maxSize = node.getProperty(SAKAI_LIMIT_GET_SIZE).getLong();
+        ProxyResponse proxyResponse = null;
+        try {
+          switch (proxyMethod) {
+          case GET:
+            if (node.hasProperty(SAKAI_LIMIT_GET_SIZE)) {
+              long maxSize = node.getProperty(SAKAI_LIMIT_GET_SIZE).getLong();
+              method = new HeadMethod(endpointURL);
+              HttpMethodParams params = new HttpMethodParams(method.getParams());
+              // make certain we reject the body of a head
+              params.setBooleanParameter("http.protocol.reject-head-body", true);
+              method.setParams(params);
+              method.setFollowRedirects(true);
+              populateMethod(method, node, headers);
+              int result = execute(endpoint, method);
+              if (result == 200) {
+                // Check if the content-length is smaller than the maximum (if any).
+                Header contentLengthHeader = method.getResponseHeader("Content-Length");
+                if (contentLengthHeader != null) {
+                  long length = Long.parseLong(contentLengthHeader.getValue());
+                  if (length > maxSize) {
+                    proxyResponse = new ProxyResponseImpl(
+                        HttpServletResponse.SC_PRECONDITION_FAILED, "Response too large",
+                        method, endpoint);
+                    return proxyResponse;
+                  }
+                }
+              } else {
+                proxyResponse = new ProxyResponseImpl(result, method, endpoint);
+                return proxyResponse;
+              }
+              method.releaseConnection();
+            }
+            method = new GetMethod(endpointURL);
+            // redirects work automatically for get, options and head, but not for put and
+            // post
+            method.setFollowRedirects(true);
+            break;
+          case HEAD:
             method = new HeadMethod(endpointURL);
             HttpMethodParams params = new HttpMethodParams(method.getParams());
             // make certain we reject the body of a head
             params.setBooleanParameter("http.protocol.reject-head-body", true);
             method.setParams(params);
+            // redirects work automatically for get, options and head, but not for put and
+            // post
             method.setFollowRedirects(true);
-            populateMethod(method, node, headers);
-            int result = httpClient.executeMethod(method);
-            if (externalAuthenticatingProxy && result == 407) {
-              method.releaseConnection();
-              method.setDoAuthentication(true);
-              result = httpClient.executeMethod(method);
-            }
-            if (result == 200) {
-              // Check if the content-length is smaller than the maximum (if any).
-              Header contentLengthHeader = method.getResponseHeader("Content-Length");
-              if (contentLengthHeader != null) {
-                long length = Long.parseLong(contentLengthHeader.getValue());
-                if (length > maxSize) {
-                  return new ProxyResponseImpl(
-                      HttpServletResponse.SC_PRECONDITION_FAILED, "Response too large",
-                      method);
+            break;
+          case OPTIONS:
+            method = new OptionsMethod(endpointURL);
+            // redirects work automatically for get, options and head, but not for put and
+            // post
+            method.setFollowRedirects(true);
+            break;
+          case POST:
+            method = new PostMethod(endpointURL);
+            break;
+          case PUT:
+            method = new PutMethod(endpointURL);
+            break;
+          default:
+            method = new GetMethod(endpointURL);
+            // redirects work automatically for get, options and head, but not for put and
+            // post
+            method.setFollowRedirects(true);
+
+          }
+
+          populateMethod(method, node, headers);
+
+          if (requestInputStream == null && !node.hasProperty(SAKAI_PROXY_REQUEST_TEMPLATE)) {
+            if (method instanceof PostMethod) {
+              PostMethod postMethod = (PostMethod) method;
+              ArrayList<Part> parts = new ArrayList<Part>();
+              for (Entry<String, Object> param : input.entrySet()) {
+                String key = param.getKey();
+                Object value = param.getValue();
+                if (value instanceof RequestParameter[]) {
+                  for (RequestParameter val : (RequestParameter[]) param.getValue()) {
+                    Part part = null;
+                    if (val.isFormField()) {
+                      part = new StringPart(param.getKey(), val.getString());
+                    } else {
+                      ByteArrayPartSource source = new ByteArrayPartSource(key, val.get());
+                      part = new FilePart(key, source);
+                    }
+                    parts.add(part);
+                  }
+                } else {
+                  parts.add(new StringPart(key, value.toString()));
                 }
+                Part[] partsArray = parts.toArray(new Part[parts.size()]);
+                postMethod.setRequestEntity(new MultipartRequestEntity(partsArray, method
+                    .getParams()));
               }
-            } else {
-              return new ProxyResponseImpl(result, method);
             }
-          }
-          method = new GetMethod(endpointURL);
-          // redirects work automatically for get, options and head, but not for put and
-          // post
-          method.setFollowRedirects(true);
-          break;
-        case HEAD:
-          method = new HeadMethod(endpointURL);
-          HttpMethodParams params = new HttpMethodParams(method.getParams());
-          // make certain we reject the body of a head
-          params.setBooleanParameter("http.protocol.reject-head-body", true);
-          method.setParams(params);
-          // redirects work automatically for get, options and head, but not for put and
-          // post
-          method.setFollowRedirects(true);
-          break;
-        case OPTIONS:
-          method = new OptionsMethod(endpointURL);
-          // redirects work automatically for get, options and head, but not for put and
-          // post
-          method.setFollowRedirects(true);
-          break;
-        case POST:
-          method = new PostMethod(endpointURL);
-          break;
-        case PUT:
-          method = new PutMethod(endpointURL);
-          break;
-        default:
-          method = new GetMethod(endpointURL);
-          // redirects work automatically for get, options and head, but not for put and
-          // post
-          method.setFollowRedirects(true);
+          } else {
 
-        }
+            if (method instanceof EntityEnclosingMethod) {
+              String contentType = requestContentType;
+              if (contentType == null && node.hasProperty(SAKAI_REQUEST_CONTENT_TYPE)) {
+                contentType = node.getProperty(SAKAI_REQUEST_CONTENT_TYPE).getString();
 
-        populateMethod(method, node, headers);
-
-        if (requestInputStream == null && !node.hasProperty(SAKAI_PROXY_REQUEST_TEMPLATE)) {
-          if (method instanceof PostMethod) {
-            PostMethod postMethod = (PostMethod) method;
-            ArrayList<Part> parts = new ArrayList<Part>();
-            for (Entry<String, Object> param : input.entrySet()) {
-              String key = param.getKey();
-              Object value = param.getValue();
-              if (value instanceof RequestParameter[]) {
-                for (RequestParameter val : (RequestParameter[]) param.getValue()) {
-                  Part part = null;
-                  if (val.isFormField()) {
-                    part = new StringPart(param.getKey(), val.getString());
-                  } else {
-                    ByteArrayPartSource source = new ByteArrayPartSource(key, val.get());
-                    part = new FilePart(key, source);
-                  }
-                  parts.add(part);
-                }
+              }
+              if (contentType == null) {
+                contentType = APPLICATION_OCTET_STREAM;
+              }
+              EntityEnclosingMethod eemethod = (EntityEnclosingMethod) method;
+              if (requestInputStream != null) {
+                eemethod.setRequestEntity(new InputStreamRequestEntity(requestInputStream,
+                    requestContentLength, contentType));
               } else {
-                parts.add(new StringPart(key, value.toString()));
+                // build the request
+                Template template = velocityEngine.getTemplate(node.getPath());
+                StringWriter body = new StringWriter();
+                template.merge(context, body);
+                byte[] soapBodyContent = body.toString().getBytes("UTF-8");
+                eemethod.setRequestEntity(new ByteArrayRequestEntity(soapBodyContent,
+                    contentType));
+
               }
-              Part[] partsArray = parts.toArray(new Part[parts.size()]);
-              postMethod.setRequestEntity(new MultipartRequestEntity(partsArray, method
-                  .getParams()));
             }
           }
-        } else {
-
-          if (method instanceof EntityEnclosingMethod) {
-            String contentType = requestContentType;
-            if (contentType == null && node.hasProperty(SAKAI_REQUEST_CONTENT_TYPE)) {
-              contentType = node.getProperty(SAKAI_REQUEST_CONTENT_TYPE).getString();
 
+          if (cached != null) {
+            if (cached.getETag() != null) {
+              method.setRequestHeader("If-None-Match", cached.getETag());
             }
-            if (contentType == null) {
-              contentType = APPLICATION_OCTET_STREAM;
-            }
-            EntityEnclosingMethod eemethod = (EntityEnclosingMethod) method;
-            if (requestInputStream != null) {
-              eemethod.setRequestEntity(new InputStreamRequestEntity(requestInputStream,
-                  requestContentLength, contentType));
-            } else {
-              // build the request
-              Template template = velocityEngine.getTemplate(node.getPath());
-              StringWriter body = new StringWriter();
-              template.merge(context, body);
-              byte[] soapBodyContent = body.toString().getBytes("UTF-8");
-              eemethod.setRequestEntity(new ByteArrayRequestEntity(soapBodyContent,
-                  contentType));
-
+            if (cached.getLastModified() != null) {
+              method.setRequestHeader("If-Modified-Since", cached.getLastModified());
             }
           }
-        }
 
-        int result = httpClient.executeMethod(method);
-        if (externalAuthenticatingProxy && result == 407) {
-          method.releaseConnection();
-          method.setDoAuthentication(true);
-          result = httpClient.executeMethod(method);
-        }
-        if (result == 302 && method instanceof EntityEnclosingMethod) {
-          // handle redirects on post and put
-          String url = method.getResponseHeader("Location").getValue();
-          method = new GetMethod(url);
-          method.setFollowRedirects(true);
-          method.setDoAuthentication(false);
-          result = httpClient.executeMethod(method);
-          if (externalAuthenticatingProxy && result == 407) {
+          int result = execute(endpoint, method);
+          if (result == 302 && method instanceof EntityEnclosingMethod) {
+            // handle redirects on post and put
+            String url = method.getResponseHeader("Location").getValue();
             method.releaseConnection();
-            method.setDoAuthentication(true);
-            result = httpClient.executeMethod(method);
+            method = new GetMethod(url);
+            method.setFollowRedirects(true);
+            method.setDoAuthentication(false);
+            result = execute(endpoint, method);
+          }
+
+          if (cached != null && result == HttpServletResponse.SC_NOT_MODIFIED) {
+            // the upstream copy is unchanged, extend the lifetime of the cached one.
+            ProxyResponseImpl notModified = new ProxyResponseImpl(result, method, endpoint);
+            cached.revalidated(ProxyResponseCache.getExpiry(
+                notModified.getResponseHeaders(), System.currentTimeMillis()));
+            notModified.close();
+            endpoint.recordCacheHit();
+            proxyResponse = cached;
+            return proxyResponse;
           }
-        }
 
-        return new ProxyResponseImpl(result, method);
+          ProxyResponseImpl response = new ProxyResponseImpl(result, method, endpoint);
+          proxyResponse = response;
+          if (cacheable) {
+            proxyResponse = cacheResponse(endpointURL, headers, response);
+          }
+          return proxyResponse;
+        } finally {
+          if (proxyResponse == null) {
+            if (method != null) {
+              method.releaseConnection();
+            }
+            endpoint.release();
+          }
+        }
       }
 
     } catch ( ProxyClientException e ) {
@@ -494,6 +622,124 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
         + " does not contain a valid endpoint specification ");
   }
 
+  /**
+   * Execute the method on the endpoint, authenticating against an external proxy server
+   * if required.
+   */
+  private int execute(ProxyEndpoint endpoint, HttpMethod method) throws IOException {
+    int result = endpoint.execute(method);
+    if (externalAuthenticatingProxy && result == 407) {
+      method.releaseConnection();
+      method.setDoAuthentication(true);
+      result = endpoint.execute(method);
+    }
+    return result;
+  }
+
+  /**
+   * Stores a copy of the response in the shared cache if the upstream server allows it and
+   * the size of the body is known and small enough. The body is read fully and the
+   * connection released, so the cached copy is returned in place of the response.
+   *
+   * @return the response that should be handed to the caller.
+   * @throws IOException
+   */
+  private ProxyResponse cacheResponse(String url, Map<String, String> requestHeaders,
+      ProxyResponseImpl response) throws IOException {
+    Map<String, String[]> responseHeaders = response.getResponseHeaders();
+    if (!ProxyResponseCache.isCacheable(response.getResultCode(), responseHeaders)) {
+      responseCache.remove(url);
+      return response;
+    }
+    long length = -1;
+    String contentLength = ProxyResponseCache.getHeader(responseHeaders, "Content-Length");
+    if (contentLength != null) {
+      try {
+        length = Long.parseLong(contentLength.trim());
+      } catch (NumberFormatException e) {
+        logger.debug("Invalid Content-Length {} from {} ", contentLength, url);
+      }
+    }
+    if (length < 0 || length > responseCache.getMaxEntrySize()) {
+      return response;
+    }
+    CachedProxyResponse cached = new CachedProxyResponse(url, response.getResultCode(),
+        new HashMap<String, String[]>(responseHeaders), response.getResponseBody(),
+        ProxyResponseCache.getExpiry(responseHeaders, System.currentTimeMillis()),
+        requestHeaders);
+    response.close();
+    responseCache.put(url, cached);
+    return cached;
+  }
+
+  /**
+   * @return the endpoint for the proxy node, creating it or replacing it when the node's
+   *         pool settings have changed.
+   * @throws RepositoryException
+   */
+  private ProxyEndpoint getEndpoint(Node node) throws RepositoryException {
+    String path = node.getPath();
+    int nodeConnectTimeout = getIntProperty(node, SAKAI_PROXY_CONNECT_TIMEOUT,
+        connectTimeout);
+    int nodeReadTimeout = getIntProperty(node, SAKAI_PROXY_READ_TIMEOUT, readTimeout);
+    int nodeMaxConnections = getIntProperty(node, SAKAI_PROXY_MAX_CONNECTIONS,
+        maxConnections);
+    ProxyEndpoint endpoint = endpoints.get(path);
+    if (endpoint != null
+        && endpoint.hasSettings(nodeConnectTimeout, nodeReadTimeout, nodeMaxConnections)) {
+      return endpoint;
+    }
+    synchronized (endpoints) {
+      endpoint = endpoints.get(path);
+      if (endpoint == null
+          || !endpoint.hasSettings(nodeConnectTimeout, nodeReadTimeout, nodeMaxConnections)) {
+        if (endpoint != null) {
+          // calls in flight keep using the old pool, it is shut down once they are closed.
+          unregisterEndpoint(endpoint);
+          endpoint.retire();
+        }
+        endpoint = new ProxyEndpoint(path, nodeConnectTimeout, nodeReadTimeout,
+            nodeMaxConnections, circuitFailureThreshold, circuitOpenTime);
+        configureExternalProxy(endpoint.getHttpClient());
+        endpoints.put(path, endpoint);
+        registerEndpoint(endpoint);
+      }
+      return endpoint;
+    }
+  }
+
+  private int getIntProperty(Node node, String name, int defaultValue)
+      throws RepositoryException {
+    if (node.hasProperty(name)) {
+      return (int) node.getProperty(name).getLong();
+    }
+    return defaultValue;
+  }
+
+  private void registerEndpoint(ProxyEndpoint endpoint) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(endpoint,
+          getObjectName(endpoint));
+    } catch (Exception e) {
+      logger.debug("Unable to register statistics for proxy endpoint {}: {} ",
+          endpoint.getName(), e.getMessage());
+    }
+  }
+
+  private void unregisterEndpoint(ProxyEndpoint endpoint) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName(endpoint));
+    } catch (Exception e) {
+      logger.debug("Unable to unregister statistics for proxy endpoint {}: {} ",
+          endpoint.getName(), e.getMessage());
+    }
+  }
+
+  private ObjectName getObjectName(ProxyEndpoint endpoint)
+      throws MalformedObjectNameException {
+    return new ObjectName(ENDPOINT_MBEAN_NAME + ObjectName.quote(endpoint.getName()));
+  }
+
   private boolean isUnsafeProxyDefinition(Node node) throws RepositoryException {
     if (node.hasProperty(ProxyPostProcessor.SAKAI_POSTPROCESSOR)) {
       String postProcessorName = node.getProperty(
@@ -0,0 +1,311 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The outbound side of a single proxy node. Each endpoint has its own connection pool
+ * with connect and read timeouts, a bulkhead that bounds the number of request threads
+ * that can be waiting on the upstream server, and a circuit breaker that stops calling
+ * the upstream server for a while after repeated failures. A slow feed can therefore only
+ * tie up its own connections and never the whole of the container's thread pool.
+ */
+public class ProxyEndpoint implements ProxyEndpointMBean {
+
+  /**
+   * The outcome of asking for a connection.
+   */
+  public enum Admission {
+    /**
+     * The call may proceed, {@link ProxyEndpoint#release()} must be called when done.
+     */
+    ACCEPTED,
+    /**
+     * All connections are in use.
+     */
+    SATURATED,
+    /**
+     * The circuit is open after repeated failures.
+     */
+    OPEN
+  }
+
+  private final String name;
+  private final int connectTimeout;
+  private final int readTimeout;
+  private final int maxConnections;
+  private final int failureThreshold;
+  private final long openTime;
+
+  private final MultiThreadedHttpConnectionManager connectionManager;
+  private final HttpClient httpClient;
+  private final Semaphore permits;
+
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  private final AtomicBoolean trialInProgress = new AtomicBoolean();
+  private final AtomicBoolean retired = new AtomicBoolean();
+  private final AtomicBoolean shutdown = new AtomicBoolean();
+  private volatile long openUntil;
+
+  private final AtomicLong requestCount = new AtomicLong();
+  private final AtomicLong errorCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final AtomicLong shortCircuitedCount = new AtomicLong();
+  private final AtomicLong cacheHitCount = new AtomicLong();
+  private final AtomicLong totalLatency = new AtomicLong();
+  private final AtomicLong maxLatency = new AtomicLong();
+
+  /**
+   * @param name
+   *          the path of the proxy node.
+   * @param connectTimeout
+   *          ms to wait for a connection to the upstream server to be established.
+   * @param readTimeout
+   *          ms to wait for data from the upstream server.
+   * @param maxConnections
+   *          the maximum number of concurrent calls.
+   * @param failureThreshold
+   *          the number of consecutive failures that open the circuit.
+   * @param openTime
+   *          ms the circuit stays open before a trial call is let through.
+   */
+  public ProxyEndpoint(String name, int connectTimeout, int readTimeout,
+      int maxConnections, int failureThreshold, long openTime) {
+    this.name = name;
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+    this.maxConnections = maxConnections;
+    this.failureThreshold = failureThreshold;
+    this.openTime = openTime;
+
+    connectionManager = new MultiThreadedHttpConnectionManager();
+    HttpConnectionManagerParams params = new HttpConnectionManagerParams();
+    params.setConnectionTimeout(connectTimeout);
+    params.setSoTimeout(readTimeout);
+    params.setDefaultMaxConnectionsPerHost(maxConnections);
+    params.setMaxTotalConnections(maxConnections);
+    connectionManager.setParams(params);
+
+    httpClient = new HttpClient(connectionManager);
+    // the bulkhead keeps concurrent calls within the pool size, so a wait for a pooled
+    // connection should be rare and is bounded anyway.
+    httpClient.getParams().setConnectionManagerTimeout(connectTimeout);
+    permits = new Semaphore(maxConnections);
+  }
+
+  /**
+   * @return the client that uses this endpoint's connection pool.
+   */
+  public HttpClient getHttpClient() {
+    return httpClient;
+  }
+
+  /**
+   * @return true if the endpoint was created with these settings.
+   */
+  public boolean hasSettings(int connectTimeout, int readTimeout, int maxConnections) {
+    return this.connectTimeout == connectTimeout && this.readTimeout == readTimeout
+        && this.maxConnections == maxConnections;
+  }
+
+  /**
+   * Ask for a connection without blocking. If the result is {@link Admission#ACCEPTED}
+   * the caller must call {@link #release()} once the response has been consumed.
+   *
+   * @return whether the call may proceed.
+   */
+  public Admission admit() {
+    if (!permits.tryAcquire()) {
+      rejectedCount.incrementAndGet();
+      return Admission.SATURATED;
+    }
+    if (shutdown.get()) {
+      // replaced while the caller was looking it up.
+      permits.release();
+      rejectedCount.incrementAndGet();
+      return Admission.SATURATED;
+    }
+    if (!allowRequest()) {
+      permits.release();
+      shortCircuitedCount.incrementAndGet();
+      return Admission.OPEN;
+    }
+    return Admission.ACCEPTED;
+  }
+
+  /**
+   * Give back a connection obtained with {@link #admit()}.
+   */
+  public void release() {
+    permits.release();
+    if (retired.get() && permits.availablePermits() == maxConnections) {
+      shutdown();
+    }
+  }
+
+  /**
+   * Execute a method on the endpoint's pool, recording latency and failures. The caller
+   * must have been admitted.
+   *
+   * @param method
+   * @return the status code.
+   * @throws IOException
+   */
+  public int execute(HttpMethod method) throws IOException {
+    long start = System.currentTimeMillis();
+    requestCount.incrementAndGet();
+    try {
+      int result = httpClient.executeMethod(method);
+      recordLatency(System.currentTimeMillis() - start);
+      if (result >= 500) {
+        recordFailure();
+      } else {
+        recordSuccess();
+      }
+      return result;
+    } catch (IOException e) {
+      recordLatency(System.currentTimeMillis() - start);
+      recordFailure();
+      throw e;
+    }
+  }
+
+  /**
+   * Note that a call was answered from the response cache.
+   */
+  public void recordCacheHit() {
+    cacheHitCount.incrementAndGet();
+  }
+
+  /**
+   * Stop using the endpoint after it has been replaced. The pool is shut down now if no
+   * calls are in flight, otherwise when the last one is released.
+   */
+  public void retire() {
+    retired.set(true);
+    if (permits.availablePermits() == maxConnections) {
+      shutdown();
+    }
+  }
+
+  /**
+   * @return true once the connection pool has been shut down.
+   */
+  public boolean isShutdown() {
+    return shutdown.get();
+  }
+
+  /**
+   * Close all pooled connections.
+   */
+  public void shutdown() {
+    if (shutdown.compareAndSet(false, true)) {
+      connectionManager.shutdown();
+    }
+  }
+
+  private boolean allowRequest() {
+    long until = openUntil;
+    if (until == 0) {
+      return true;
+    }
+    if (System.currentTimeMillis() < until) {
+      return false;
+    }
+    // half open, let a single trial call through.
+    return trialInProgress.compareAndSet(false, true);
+  }
+
+  private void recordSuccess() {
+    consecutiveFailures.set(0);
+    openUntil = 0;
+    trialInProgress.set(false);
+  }
+
+  private void recordFailure() {
+    errorCount.incrementAndGet();
+    if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+      openUntil = System.currentTimeMillis() + openTime;
+    }
+    trialInProgress.set(false);
+  }
+
+  private void recordLatency(long latency) {
+    totalLatency.addAndGet(latency);
+    long max = maxLatency.get();
+    while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+      max = maxLatency.get();
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  public long getErrorCount() {
+    return errorCount.get();
+  }
+
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  public long getShortCircuitedCount() {
+    return shortCircuitedCount.get();
+  }
+
+  public long getCacheHitCount() {
+    return cacheHitCount.get();
+  }
+
+  public long getAverageLatency() {
+    long requests = requestCount.get();
+    return requests == 0 ? 0 : totalLatency.get() / requests;
+  }
+
+  public long getMaxLatency() {
+    return maxLatency.get();
+  }
+
+  public int getActiveConnections() {
+    return maxConnections - permits.availablePermits();
+  }
+
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  public boolean isCircuitOpen() {
+    long until = openUntil;
+    return until != 0 && System.currentTimeMillis() < until;
+  }
+}
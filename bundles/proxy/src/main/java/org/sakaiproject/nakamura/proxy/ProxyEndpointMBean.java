@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+/**
+ * Management view of the connection pool, bulkhead and circuit breaker of a single proxy
+ * endpoint.
+ */
+public interface ProxyEndpointMBean {
+
+  /**
+   * @return the path of the proxy node this endpoint serves.
+   */
+  String getName();
+
+  /**
+   * @return the number of calls made to the upstream server.
+   */
+  long getRequestCount();
+
+  /**
+   * @return the number of calls that failed with an IOException or a 5xx status.
+   */
+  long getErrorCount();
+
+  /**
+   * @return the number of calls rejected because all connections were in use.
+   */
+  long getRejectedCount();
+
+  /**
+   * @return the number of calls rejected because the circuit was open.
+   */
+  long getShortCircuitedCount();
+
+  /**
+   * @return the number of calls answered from the shared response cache.
+   */
+  long getCacheHitCount();
+
+  /**
+   * @return the mean time in ms taken to receive the response headers.
+   */
+  long getAverageLatency();
+
+  /**
+   * @return the longest time in ms taken to receive the response headers.
+   */
+  long getMaxLatency();
+
+  /**
+   * @return the number of calls currently holding a connection.
+   */
+  int getActiveConnections();
+
+  /**
+   * @return the maximum number of concurrent calls.
+   */
+  int getMaxConnections();
+
+  /**
+   * @return true if calls are currently being short circuited.
+   */
+  boolean isCircuitOpen();
+}
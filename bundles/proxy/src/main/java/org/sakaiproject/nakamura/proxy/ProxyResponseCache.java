@@ -0,0 +1,338 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A bounded, shared cache of upstream responses keyed by the resolved endpoint URL. Only
+ * anonymous requests are cached, and only responses that the upstream server allows a
+ * shared cache to keep are stored, honouring Cache-Control max-age/s-maxage, Expires,
+ * ETag, Last-Modified and Vary.
+ */
+public class ProxyResponseCache {
+
+  /**
+   * Request headers that identify the caller to the upstream server, a response to a
+   * request with any of them may be specific to that caller.
+   */
+  private static final String[] CREDENTIAL_HEADERS = { "Cookie", "Authorization",
+      "Proxy-Authorization", TrustedLoginTokenProxyPreProcessor.SECURE_TOKEN_HEADER_NAME };
+
+  private final int maxEntrySize;
+  private final Map<String, CachedProxyResponse> entries;
+
+  /**
+   * @param maxEntries
+   *          the maximum number of responses kept, the least recently used is evicted.
+   * @param maxEntrySize
+   *          the maximum body size in bytes of a cacheable response.
+   */
+  public ProxyResponseCache(final int maxEntries, int maxEntrySize) {
+    this.maxEntrySize = maxEntrySize;
+    this.entries = Collections.synchronizedMap(new LinkedHashMap<String, CachedProxyResponse>(
+        16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, CachedProxyResponse> eldest) {
+        return size() > maxEntries;
+      }
+    });
+  }
+
+  /**
+   * @param url
+   * @return the cached response for the url, fresh or stale, or null.
+   */
+  public CachedProxyResponse get(String url) {
+    return entries.get(url);
+  }
+
+  /**
+   * @param url
+   * @param response
+   */
+  public void put(String url, CachedProxyResponse response) {
+    entries.put(url, response);
+  }
+
+  /**
+   * @param url
+   */
+  public void remove(String url) {
+    entries.remove(url);
+  }
+
+  /**
+   * @return the maximum body size in bytes of a cacheable response.
+   */
+  public int getMaxEntrySize() {
+    return maxEntrySize;
+  }
+
+  /**
+   * @param requestHeaders
+   *          the headers that will be sent upstream.
+   * @return true if the request does not carry cookies or credentials, so the response
+   *         may be shared with other users.
+   */
+  public static boolean isCacheableRequest(Map<String, String> requestHeaders) {
+    for (String name : CREDENTIAL_HEADERS) {
+      if (getRequestHeader(requestHeaders, name) != null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param status
+   * @param headers
+   * @return true if a shared cache may store a response with these headers.
+   */
+  public static boolean isCacheable(int status, Map<String, String[]> headers) {
+    if (status != 200 || getHeader(headers, "Set-Cookie") != null
+        || "*".equals(getHeader(headers, "Vary"))) {
+      return false;
+    }
+    String cacheControl = getHeader(headers, "Cache-Control");
+    if (cacheControl != null) {
+      String cc = cacheControl.toLowerCase();
+      if (cc.contains("no-store") || cc.contains("private") || cc.contains("no-cache")) {
+        return false;
+      }
+    }
+    // without freshness information or a validator there is nothing we can do.
+    return getExpiry(headers, System.currentTimeMillis()) > 0
+        || getHeader(headers, "ETag") != null
+        || getHeader(headers, "Last-Modified") != null;
+  }
+
+  /**
+   * @param headers
+   * @param now
+   * @return the time in ms until which a response with these headers is fresh, 0 if it
+   *         must always be revalidated.
+   */
+  public static long getExpiry(Map<String, String[]> headers, long now) {
+    String cacheControl = getHeader(headers, "Cache-Control");
+    if (cacheControl != null) {
+      long maxAge = -1;
+      for (String directive : cacheControl.split(",")) {
+        String d = directive.trim().toLowerCase();
+        try {
+          if (d.startsWith("s-maxage=")) {
+            // s-maxage wins over max-age for shared caches.
+            maxAge = Long.parseLong(d.substring(9).trim());
+            break;
+          } else if (d.startsWith("max-age=")) {
+            maxAge = Long.parseLong(d.substring(8).trim());
+          }
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+      if (maxAge >= 0) {
+        return maxAge == 0 ? 0 : now + maxAge * 1000L;
+      }
+    }
+    String expires = getHeader(headers, "Expires");
+    if (expires != null) {
+      try {
+        long expiry = DateUtil.parseDate(expires).getTime();
+        return expiry > now ? expiry : 0;
+      } catch (DateParseException e) {
+        return 0;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @param headers
+   * @param name
+   * @return the first value of the header, matched ignoring case, or null.
+   */
+  public static String getHeader(Map<String, String[]> headers, String name) {
+    for (Entry<String, String[]> e : headers.entrySet()) {
+      if (e.getKey().equalsIgnoreCase(name) && e.getValue().length > 0) {
+        return e.getValue()[0];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param headers
+   * @param name
+   * @return the value of the request header, matched ignoring case, or null.
+   */
+  public static String getRequestHeader(Map<String, String> headers, String name) {
+    for (Entry<String, String> e : headers.entrySet()) {
+      if (e.getKey().equalsIgnoreCase(name)) {
+        return e.getValue();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * An immutable copy of an upstream response. Instances are shared between requests.
+   */
+  public static class CachedProxyResponse implements ProxyResponse {
+    private final String url;
+    private final int result;
+    private final Map<String, String[]> headers;
+    private final byte[] body;
+    private final String etag;
+    private final String lastModified;
+    private final Map<String, String> varyValues;
+    private volatile long expires;
+
+    public CachedProxyResponse(String url, int result, Map<String, String[]> headers,
+        byte[] body, long expires) {
+      this(url, result, headers, body, expires, new HashMap<String, String>());
+    }
+
+    /**
+     * @param requestHeaders
+     *          the headers of the request that produced the response, the ones named by
+     *          the Vary header must match for the response to be reused.
+     */
+    public CachedProxyResponse(String url, int result, Map<String, String[]> headers,
+        byte[] body, long expires, Map<String, String> requestHeaders) {
+      this.varyValues = new HashMap<String, String>();
+      String vary = getHeader(headers, "Vary");
+      if (vary != null) {
+        for (String name : vary.split(",")) {
+          name = name.trim().toLowerCase();
+          if (name.length() > 0) {
+            varyValues.put(name, getRequestHeader(requestHeaders, name));
+          }
+        }
+      }
+      this.url = url;
+      this.result = result;
+      this.headers = Collections.unmodifiableMap(headers);
+      this.body = body;
+      this.etag = getHeader(headers, "ETag");
+      this.lastModified = getHeader(headers, "Last-Modified");
+      this.expires = expires;
+    }
+
+    /**
+     * @param requestHeaders
+     * @return true if the request headers named by the Vary header of the response have
+     *         the same values as when it was cached.
+     */
+    public boolean matches(Map<String, String> requestHeaders) {
+      for (Entry<String, String> e : varyValues.entrySet()) {
+        String value = getRequestHeader(requestHeaders, e.getKey());
+        if (value == null ? e.getValue() != null : !value.equals(e.getValue())) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * @param now
+     * @return true if the response can be used without revalidation.
+     */
+    public boolean isFresh(long now) {
+      return now < expires;
+    }
+
+    /**
+     * Extend the lifetime after the upstream server confirmed the response is unchanged.
+     *
+     * @param expires
+     */
+    public void revalidated(long expires) {
+      this.expires = expires;
+    }
+
+    public String getETag() {
+      return etag;
+    }
+
+    public String getLastModified() {
+      return lastModified;
+    }
+
+    public int getBodyLength() {
+      return body.length;
+    }
+
+    public int getResultCode() {
+      return result;
+    }
+
+    public Map<String, String[]> getResponseHeaders() {
+      return headers;
+    }
+
+    public byte[] getResponseBody() throws IOException {
+      return body.clone();
+    }
+
+    public InputStream getResponseBodyAsInputStream() throws IOException {
+      return new ByteArrayInputStream(body);
+    }
+
+    public String getResponseBodyAsString() throws IOException {
+      String charset = "ISO-8859-1";
+      String contentType = getHeader(headers, "Content-Type");
+      if (contentType != null) {
+        int i = contentType.toLowerCase().indexOf("charset=");
+        if (i >= 0) {
+          charset = contentType.substring(i + 8).split(";")[0].trim()
+              .replace("\"", "");
+        }
+      }
+      return new String(body, charset);
+    }
+
+    public String getRequestURL() {
+      return url;
+    }
+
+    public void close() {
+      // nothing is held open.
+    }
+
+    @Override
+    public String toString() {
+      return "CachedProxyResponse[" + result + ", " + body.length + " bytes, expires "
+          + new Date(expires) + "]";
+    }
+  }
+}
@@ -19,8 +19,11 @@ package org.sakaiproject.nakamura.proxy;
 
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.URIException;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
@@ -35,14 +38,36 @@ public class ProxyResponseImpl implements ProxyResponse {
   private HttpMethod method;
   private Map<String, String[]> headers = new HashMap<String, String[]>();
   private String cause;
+  private ProxyEndpoint endpoint;
+  private String requestURL;
 
   /**
    * @param result
    * @param method
    */
   public ProxyResponseImpl(int result, HttpMethod method) {
+    this(result, method, null);
+  }
+
+  /**
+   * @param result
+   * @param method
+   * @param endpoint
+   *          the endpoint whose connection is released when this response is closed, may
+   *          be null.
+   */
+  public ProxyResponseImpl(int result, HttpMethod method, ProxyEndpoint endpoint) {
     this.result = result;
     this.method = method;
+    this.endpoint = endpoint;
+    try {
+      URI uri = method.getURI();
+      if (uri != null) {
+        this.requestURL = uri.toString();
+      }
+    } catch (URIException e) {
+      this.requestURL = null;
+    }
 
     for (Header header : method.getResponseHeaders()) {
       String name = header.getName();
@@ -82,6 +107,30 @@ public class ProxyResponseImpl implements ProxyResponse {
     this.cause = cause;
   }
 
+  /**
+   * @param result
+   * @param cause
+   * @param method
+   * @param endpoint
+   */
+  public ProxyResponseImpl(int result, String cause, HttpMethod method,
+      ProxyEndpoint endpoint) {
+    this(result, method, endpoint);
+    this.cause = cause;
+  }
+
+  /**
+   * A response that was produced without calling the upstream server, eg: when the
+   * endpoint rejected the call.
+   *
+   * @param result
+   * @param cause
+   */
+  public ProxyResponseImpl(int result, String cause) {
+    this.result = result;
+    this.cause = cause;
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResultCode()
@@ -103,6 +152,9 @@ public class ProxyResponseImpl implements ProxyResponse {
    * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBody()
    */
   public byte[] getResponseBody() throws IOException {
+    if (method == null) {
+      return new byte[0];
+    }
     return method.getResponseBody();
   }
 
@@ -111,6 +163,9 @@ public class ProxyResponseImpl implements ProxyResponse {
    * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBodyAsInputStream()
    */
   public InputStream getResponseBodyAsInputStream() throws IOException {
+    if (method == null) {
+      return new ByteArrayInputStream(new byte[0]);
+    }
     return method.getResponseBodyAsStream();
   }
 
@@ -119,17 +174,34 @@ public class ProxyResponseImpl implements ProxyResponse {
    * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBodyAsString()
    */
   public String getResponseBodyAsString() throws IOException {
+    if (method == null) {
+      return cause;
+    }
     return method.getResponseBodyAsString();
   }
 
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getRequestURL()
+   */
+  public String getRequestURL() {
+    return requestURL;
+  }
+
   /**
    * {@inheritDoc}
    * 
    * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#close()
    */
   public void close() {
-    method.releaseConnection();
-    method = null;
+    if (method != null) {
+      method.releaseConnection();
+      method = null;
+    }
+    if (endpoint != null) {
+      endpoint.release();
+      endpoint = null;
+    }
   }
 
   /**
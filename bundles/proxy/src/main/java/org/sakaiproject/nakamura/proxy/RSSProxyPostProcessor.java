@@ -38,6 +38,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -59,7 +60,9 @@ import javax.xml.stream.events.XMLEvent;
 
 /**
  * Will check if the response we get from an RSS file is valid. It will do basic checks
- * such as checking if the Content-Length is < 10K and Content-Type is a valid type.
+ * such as checking if the Content-Length is < 10K and Content-Type is a valid type. The
+ * feed is validated as it is read and streamed to the client once valid, so only a small
+ * buffer is held in memory for each request.
  */
 @Service(value = ProxyPostProcessor.class)
 @Component(label = "ProxyPostProcessor for RSS", description = "Post processor who checks if requests are valid RSS requests.", immediate = true)
@@ -67,19 +70,34 @@ import javax.xml.stream.events.XMLEvent;
     @Property(name = "service.vendor", value = "The Sakai foundation"),
     @Property(name = "service.description", value = "Post processor who checks if requests are valid RSS requests."),
     @Property(name = RSSProxyPostProcessor.EVENTS_THRESHOLD, intValue = RSSProxyPostProcessor.DEFAULT_EVENTS_THRESHOLD),
-    @Property(name = RSSProxyPostProcessor.MAX_LENGTH, intValue = RSSProxyPostProcessor.DEFAULT_MAX_LENGTH)
+    @Property(name = RSSProxyPostProcessor.MAX_LENGTH, intValue = RSSProxyPostProcessor.DEFAULT_MAX_LENGTH),
+    @Property(name = RSSProxyPostProcessor.BUFFER_SIZE, intValue = RSSProxyPostProcessor.DEFAULT_BUFFER_SIZE),
+    @Property(name = RSSProxyPostProcessor.CACHE_ENTRIES, intValue = RSSProxyPostProcessor.DEFAULT_CACHE_ENTRIES)
 })
 public class RSSProxyPostProcessor implements ProxyPostProcessor {
 
   public static final int DEFAULT_MAX_LENGTH = 10000000;
   public static final int DEFAULT_EVENTS_THRESHOLD = 100;
+  public static final int DEFAULT_BUFFER_SIZE = 65536;
+  public static final int DEFAULT_CACHE_ENTRIES = 100;
 
   static final String EVENTS_THRESHOLD = "sakai.rss.elements.threshold";
   static final String MAX_LENGTH = "sakai.rss.length.max";
+  /**
+   * The number of bytes of a valid feed held back before the response is committed, feeds
+   * that fit are sent with a Content-Length and can be cached.
+   */
+  static final String BUFFER_SIZE = "sakai.rss.buffer.size";
+  /**
+   * The number of processed feeds kept, keyed by upstream URL, ETag and Last-Modified.
+   */
+  static final String CACHE_ENTRIES = "sakai.rss.cache.entries";
 
   private XMLInputFactory xmlInputFactory;
   private int eventsThreshold;
   private int maxLength;
+  private int bufferSize;
+  private ProcessedResponseCache cache;
 
   // Maximum size is 10 megabyte.
   public static final Logger logger = LoggerFactory
@@ -94,6 +112,9 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
     eventsThreshold = PropertiesUtil.toInteger(props.get(EVENTS_THRESHOLD),
         DEFAULT_EVENTS_THRESHOLD);
     maxLength = PropertiesUtil.toInteger(props.get(MAX_LENGTH), DEFAULT_MAX_LENGTH);
+    bufferSize = PropertiesUtil.toInteger(props.get(BUFFER_SIZE), DEFAULT_BUFFER_SIZE);
+    cache = new ProcessedResponseCache(PropertiesUtil.toInteger(props.get(CACHE_ENTRIES),
+        DEFAULT_CACHE_ENTRIES), bufferSize);
 
     xmlInputFactory = new WstxInputFactory();
     xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
@@ -149,6 +170,7 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
   @Deactivate
   protected void deactivate(ComponentContext ctxt) {
     this.xmlInputFactory = null;
+    this.cache = null;
 
     contentTypes = null;
   }
@@ -193,19 +215,26 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
       }
     }
 
+    String cacheKey = ProcessedResponseCache.getKey(proxyResponse, getName());
+    byte[] cached = cache.get(cacheKey);
+    if (cached != null) {
+      copyHeaders(response, proxyResponse);
+      response.setStatus(200);
+      response.setHeader("Content-Length", Integer.toString(cached.length));
+      response.getOutputStream().write(cached);
+      return;
+    }
+
     boolean isValid = false;
     InputStream in = proxyResponse.getResponseBodyAsInputStream();
     InputStreamReader reader = new InputStreamReader(in);
 
-    // XMLStreamWriter writer = null;
     XMLEventWriter writer = null;
-    ByteArrayOutputStream out = null;
+    FeedOutputStream out = new FeedOutputStream(response, proxyResponse);
 
     int i = 0;
     try {
       XMLEventReader eventReader = xmlInputFactory.createXMLEventReader(reader);
-      // Create a temporary outputstream where we can write to.
-      out = new ByteArrayOutputStream();
 
       Set<String> checkedElements = null;
 
@@ -214,7 +243,8 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
 
       while (eventReader.hasNext()) {
         XMLEvent e = eventReader.nextEvent();
-        // Stream it to an output stream.
+        // Stream it to the output, which holds on to it until the feed is known to be
+        // valid.
         writer.add(e);
 
         if (!isValid) {
@@ -237,6 +267,7 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
 
               if (checkedElements.isEmpty()) {
                 isValid = true;
+                out.setValid();
               }
             }
           }
@@ -249,6 +280,7 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
           i++;
         }
       }
+      writer.flush();
 
       if (!isValid) {
         response.sendError(HttpServletResponse.SC_BAD_REQUEST,
@@ -256,43 +288,160 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
         return;
       }
 
-      // Check if we are not streaming a gigantic file..
-      if (out.size() > maxLength) {
-        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
-            "This file is too big.");
-        return;
+      if (out.isCommitted()) {
+        out.flush();
+      } else {
+        // The whole feed fitted in the buffer, send it with a Content-Length.
+        byte[] body = out.toByteArray();
+        cache.put(cacheKey, body);
+        copyHeaders(response, proxyResponse);
+        // We always return 200 when we get to this point.
+        response.setStatus(200);
+        response.setHeader("Content-Length", Integer.toString(body.length));
+        response.getOutputStream().write(body);
       }
 
-      for (Entry<String, String[]> h : proxyResponse.getResponseHeaders().entrySet()) {
-        for (String v : h.getValue()) {
-          response.setHeader(h.getKey(), v);
-        }
-      }
-      // We always return 200 when we get to this point.
-      response.setStatus(200);
-      response.setHeader("Content-Length", Integer.toString(out.size()));
-      // Write the cached stream to the output.
-      out.writeTo(response.getOutputStream());
-
     } catch (XMLStreamException e) {
-      response.sendError(HttpServletResponse.SC_BAD_REQUEST,
-          "This is not a valid XML file.");
+      if (out.isTooLarge()) {
+        tooLarge(response, out);
+      } else if (out.isCommitted()) {
+        logger.warn("Invalid XML part way through streaming RSS feed, response truncated: "
+            + e.getMessage());
+      } else {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+            "This is not a valid XML file.");
+      }
+    } catch (FeedTooLargeException e) {
+      tooLarge(response, out);
     } catch (Exception e) {
       logger.warn("Exception reading RSS feed.", e);
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "General exception caught.");
-    } finally {
-      if (out != null) {
-        out.close();
+      if (!out.isCommitted()) {
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+            "General exception caught.");
       }
+    } finally {
       reader.close();
       try {
         if (writer != null) writer.close();
       } catch (XMLStreamException e) {
         // Not much we can do?
-        e.printStackTrace();
+        logger.debug("Failed to close the RSS writer: " + e.getMessage());
       }
     }
 
   }
+
+  private void tooLarge(SlingHttpServletResponse response, FeedOutputStream out)
+      throws IOException {
+    if (out.isCommitted()) {
+      logger.warn("RSS feed exceeded {} bytes while streaming, response truncated.",
+          maxLength);
+    } else {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "This file is too big.");
+    }
+  }
+
+  /**
+   * Copies the upstream headers to the response. The length of the re-serialized feed
+   * differs from the upstream one, so Content-Length and Transfer-Encoding are left to
+   * the caller.
+   */
+  private void copyHeaders(SlingHttpServletResponse response,
+      ProxyResponse proxyResponse) {
+    for (Entry<String, String[]> h : proxyResponse.getResponseHeaders().entrySet()) {
+      if ("Content-Length".equalsIgnoreCase(h.getKey())
+          || "Transfer-Encoding".equalsIgnoreCase(h.getKey())) {
+        continue;
+      }
+      for (String v : h.getValue()) {
+        response.setHeader(h.getKey(), v);
+      }
+    }
+  }
+
+  /**
+   * Signals that the feed is longer than the configured maximum.
+   */
+  private static class FeedTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    FeedTooLargeException(long length) {
+      super("Feed is longer than " + length + " bytes");
+    }
+  }
+
+  /**
+   * Holds the serialized feed in memory until it is known to be valid and grows beyond
+   * the buffer size, after which the response is committed and the rest of the feed is
+   * written straight through. A feed that never outgrows the buffer is left for the
+   * caller to send, so that errors found late in a small feed still produce an error
+   * response.
+   */
+  private class FeedOutputStream extends OutputStream {
+    private final SlingHttpServletResponse response;
+    private final ProxyResponse proxyResponse;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private OutputStream target;
+    private long count;
+    private boolean valid;
+    private boolean tooLarge;
+
+    FeedOutputStream(SlingHttpServletResponse response, ProxyResponse proxyResponse) {
+      this.response = response;
+      this.proxyResponse = proxyResponse;
+    }
+
+    void setValid() {
+      valid = true;
+    }
+
+    boolean isCommitted() {
+      return target != null;
+    }
+
+    boolean isTooLarge() {
+      return tooLarge;
+    }
+
+    byte[] toByteArray() {
+      return buffer.toByteArray();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      count += len;
+      if (count > maxLength) {
+        tooLarge = true;
+        throw new FeedTooLargeException(maxLength);
+      }
+      if (target != null) {
+        target.write(b, off, len);
+        return;
+      }
+      buffer.write(b, off, len);
+      if (valid && buffer.size() > bufferSize) {
+        commit();
+      }
+    }
+
+    private void commit() throws IOException {
+      copyHeaders(response, proxyResponse);
+      response.setStatus(200);
+      target = response.getOutputStream();
+      buffer.writeTo(target);
+      buffer = null;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (target != null) {
+        target.flush();
+      }
+    }
+  }
 }
@@ -44,9 +44,13 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.sakaiproject.nakamura.proxy.ProxyResponseCache.CachedProxyResponse;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Resources;
 
 @RunWith(MockitoJUnitRunner.class)
 public class ICalProxyPostProcessorTest {
@@ -122,6 +126,32 @@ public class ICalProxyPostProcessorTest {
     stringContainsValidICalData(writer.toString());
   }
 
+  @Test
+  public void streamsJsonLargerThanTheBuffer() throws IOException, JSONException,
+      ParserException {
+
+    // given
+    Map<String, Object> getParams = queryParamsSpecifyingResponseType("json");
+    proxyResponseHeadersContainValidContentType();
+    proxyResponseContainingValidICalFeed();
+    StringWriter writer = responseUsingStringWriter();
+    Map<String, String> smallBufferConfig = ImmutableMap.of(
+        ICalProxyPostProcessor.BUFFER_SIZE_PROP, "256");
+
+    // when
+    proxyPostProcessor.activate(smallBufferConfig);
+    proxyPostProcessor.process(getParams, response, proxyResponse);
+
+    // then
+    verify(response).setContentType("application/json");
+    JSONObject json = new JSONObject(writer.toString());
+    int events = new CalendarBuilder().build(newInputStreamSupplier(
+        getResource(getClass(), "/ical/valid-calendar.ics")).getInput())
+        .getComponents("VEVENT").size();
+    assertThat(json.getJSONObject("vcalendar").getJSONArray("vevents").length(),
+        equalTo(events));
+  }
+
   @Test
   public void rejectsStreamOfExcessiveLength() throws IOException {
     // given
@@ -154,6 +184,45 @@ public class ICalProxyPostProcessorTest {
     verify4xxErrorReported();
   }
 
+  @Test
+  public void reusesOutputOfSharedUpstreamResponse() throws IOException, JSONException {
+    // given
+    Map<String, Object> getParams = queryParamsSpecifyingResponseType("json");
+    byte[] feed = toByteArray(getResource(getClass(), "/ical/valid-calendar.ics"));
+    byte[] changedFeed = toByteArray(getResource(getClass(), "/sample-rss.xml"));
+    StringWriter first = responseUsingStringWriter();
+
+    // when
+    proxyPostProcessor.activate(ImmutableMap.of());
+    proxyPostProcessor.process(getParams, response, sharedResponse(feed, "\"1\""));
+    StringWriter second = responseUsingStringWriter();
+    // same upstream version, so the (unparseable) body is not looked at again
+    proxyPostProcessor.process(getParams, response, sharedResponse(changedFeed, "\"1\""));
+
+    // then
+    stringContainsValidJsonDocument(first.toString());
+    assertThat(second.toString(), equalTo(first.toString()));
+
+    // a new upstream version is processed again
+    responseUsingStringWriter();
+    proxyPostProcessor.process(getParams, response, sharedResponse(changedFeed, "\"2\""));
+    verify4xxErrorReported();
+  }
+
+  @Test
+  public void icalProxyUsesTheSharedCache() throws IOException, JSONException {
+    JSONObject proxy = new JSONObject(Resources.toString(getResource(getClass(),
+        "/SLING-INF/content/var/proxy/ical.json"), Charsets.UTF_8));
+    assertThat(proxy.getBoolean(ProxyClientService.SAKAI_PROXY_CACHE), equalTo(true));
+  }
+
+  private ProxyResponse sharedResponse(byte[] body, String etag) {
+    Map<String, String[]> headers = ImmutableMap.of("Content-Type",
+        new String[] { "text/calendar" }, "ETag", new String[] { etag });
+    return new CachedProxyResponse("http://example.com/calendar.ics", 200, headers, body,
+        Long.MAX_VALUE);
+  }
+
   private void proxyResponseHeadersContainBadContentType() {
     Map<String, String[]> headers = ImmutableMap.of("Content-Type",
         new String[] { "application/x-fancy-new-data-format" });
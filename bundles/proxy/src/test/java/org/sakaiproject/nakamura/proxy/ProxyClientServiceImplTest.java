@@ -222,6 +222,7 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
 
     expect(node.hasProperty(ProxyClientService.SAKAI_REQUEST_PROXY_METHOD)).andReturn(
         true);
+    expectDefaultEndpointSettings(node);
 
     expect(node.getProperty(ProxyClientService.SAKAI_REQUEST_PROXY_METHOD)).andReturn(
         requestMethodProperty);
@@ -305,6 +306,7 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
 
     expect(node.hasProperty(ProxyClientService.SAKAI_REQUEST_PROXY_METHOD)).andReturn(
         true);
+    expectDefaultEndpointSettings(node);
 
     expect(node.getProperty(ProxyClientService.SAKAI_REQUEST_PROXY_METHOD)).andReturn(
         requestMethodProperty);
@@ -416,6 +418,7 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
 
     expect(node.hasProperty(ProxyClientService.SAKAI_REQUEST_PROXY_METHOD)).andReturn(
         true);
+    expectDefaultEndpointSettings(node);
 
     expect(node.getProperty(ProxyClientService.SAKAI_REQUEST_PROXY_METHOD)).andReturn(
         requestMethodProperty);
@@ -448,4 +451,15 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
     verify();
   }
 
+  private void expectDefaultEndpointSettings(Node node) throws RepositoryException {
+    expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_CONNECT_TIMEOUT)).andReturn(
+        false).anyTimes();
+    expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_READ_TIMEOUT)).andReturn(false)
+        .anyTimes();
+    expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_MAX_CONNECTIONS)).andReturn(
+        false).anyTimes();
+    expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_CACHE)).andReturn(false)
+        .anyTimes();
+  }
+
 }
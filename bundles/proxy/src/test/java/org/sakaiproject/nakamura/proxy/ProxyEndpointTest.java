@@ -0,0 +1,215 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs two endpoints against a local stub server, one of which is slow, and checks that
+ * the slow one cannot starve the other.
+ */
+public class ProxyEndpointTest {
+
+  private static final long SLOW_DELAY = 1000;
+
+  private Server server;
+  private int port;
+
+  @Before
+  public void before() throws Exception {
+    ServerSocket socket = new ServerSocket(0);
+    port = socket.getLocalPort();
+    socket.close();
+    server = new Server(port);
+    server.setHandler(new AbstractHandler() {
+      public void handle(String target, HttpServletRequest request,
+          HttpServletResponse response, int dispatch) throws IOException,
+          ServletException {
+        if (target.startsWith("/slow")) {
+          try {
+            Thread.sleep(SLOW_DELAY);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        response.setContentType("text/plain");
+        response.setStatus(200);
+        response.getWriter().print("OK");
+        ((Request) request).setHandled(true);
+      }
+    });
+    server.start();
+  }
+
+  @After
+  public void after() throws Exception {
+    server.stop();
+    server.destroy();
+  }
+
+  @Test
+  public void testSlowEndpointDoesNotStarveOthers() throws Exception {
+    final ProxyEndpoint slow = new ProxyEndpoint("/var/proxy/slow", 1000, 5000, 2, 5,
+        60000);
+    ProxyEndpoint fast = new ProxyEndpoint("/var/proxy/fast", 1000, 5000, 2, 5, 60000);
+    try {
+      // tie up every connection of the slow endpoint.
+      final CountDownLatch started = new CountDownLatch(2);
+      Thread[] callers = new Thread[2];
+      for (int i = 0; i < callers.length; i++) {
+        callers[i] = new Thread() {
+          @Override
+          public void run() {
+            assertEquals(ProxyEndpoint.Admission.ACCEPTED, slow.admit());
+            started.countDown();
+            GetMethod method = new GetMethod(url("/slow"));
+            try {
+              slow.execute(method);
+            } catch (IOException e) {
+              // reported through the error count.
+            } finally {
+              method.releaseConnection();
+              slow.release();
+            }
+          }
+        };
+        callers[i].start();
+      }
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      assertEquals(2, slow.getActiveConnections());
+
+      // further calls to the slow endpoint are rejected immediately.
+      assertEquals(ProxyEndpoint.Admission.SATURATED, slow.admit());
+      assertEquals(1, slow.getRejectedCount());
+
+      // while the fast endpoint is unaffected.
+      assertEquals(ProxyEndpoint.Admission.ACCEPTED, fast.admit());
+      long start = System.currentTimeMillis();
+      GetMethod method = new GetMethod(url("/fast"));
+      try {
+        assertEquals(200, fast.execute(method));
+        assertEquals("OK", method.getResponseBodyAsString());
+      } finally {
+        method.releaseConnection();
+        fast.release();
+      }
+      assertTrue(System.currentTimeMillis() - start < SLOW_DELAY);
+
+      for (Thread caller : callers) {
+        caller.join();
+      }
+      assertEquals(0, slow.getActiveConnections());
+      assertEquals(2, slow.getRequestCount());
+      assertEquals(0, slow.getErrorCount());
+      assertTrue(slow.getMaxLatency() >= SLOW_DELAY);
+    } finally {
+      slow.shutdown();
+      fast.shutdown();
+    }
+  }
+
+  @Test
+  public void testTimeoutsOpenTheCircuit() throws Exception {
+    ProxyEndpoint slow = new ProxyEndpoint("/var/proxy/slow", 1000, 200, 2, 2, 60000);
+    ProxyEndpoint fast = new ProxyEndpoint("/var/proxy/fast", 1000, 5000, 2, 2, 60000);
+    try {
+      for (int i = 0; i < 2; i++) {
+        assertEquals(ProxyEndpoint.Admission.ACCEPTED, slow.admit());
+        GetMethod method = new GetMethod(url("/slow"));
+        try {
+          slow.execute(method);
+          fail("The read timeout should have been hit");
+        } catch (SocketTimeoutException e) {
+          // expected
+        } finally {
+          method.releaseConnection();
+          slow.release();
+        }
+      }
+      assertEquals(2, slow.getErrorCount());
+      assertTrue(slow.isCircuitOpen());
+
+      // the open circuit fails fast without touching the upstream server.
+      long start = System.currentTimeMillis();
+      assertEquals(ProxyEndpoint.Admission.OPEN, slow.admit());
+      assertTrue(System.currentTimeMillis() - start < 100);
+      assertEquals(1, slow.getShortCircuitedCount());
+      assertEquals(0, slow.getActiveConnections());
+
+      assertEquals(ProxyEndpoint.Admission.ACCEPTED, fast.admit());
+      GetMethod method = new GetMethod(url("/fast"));
+      try {
+        assertEquals(200, fast.execute(method));
+      } finally {
+        method.releaseConnection();
+        fast.release();
+      }
+      assertTrue(!fast.isCircuitOpen());
+    } finally {
+      slow.shutdown();
+      fast.shutdown();
+    }
+  }
+
+  @Test
+  public void testRetiredEndpointShutsDownAfterLastCall() throws Exception {
+    ProxyEndpoint endpoint = new ProxyEndpoint("/var/proxy/fast", 1000, 5000, 2, 5, 60000);
+    try {
+      assertEquals(ProxyEndpoint.Admission.ACCEPTED, endpoint.admit());
+      endpoint.retire();
+      // the call in flight still has its pool.
+      assertFalse(endpoint.isShutdown());
+      GetMethod method = new GetMethod(url("/fast"));
+      try {
+        assertEquals(200, endpoint.execute(method));
+      } finally {
+        method.releaseConnection();
+        endpoint.release();
+      }
+      assertTrue(endpoint.isShutdown());
+      assertEquals(ProxyEndpoint.Admission.SATURATED, endpoint.admit());
+    } finally {
+      endpoint.shutdown();
+    }
+  }
+
+  private String url(String path) {
+    return "http://localhost:" + port + path;
+  }
+}
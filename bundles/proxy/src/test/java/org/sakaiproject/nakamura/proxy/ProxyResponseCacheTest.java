@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.sakaiproject.nakamura.proxy.ProxyResponseCache.CachedProxyResponse;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ */
+public class ProxyResponseCacheTest {
+
+  @Test
+  public void testCacheability() {
+    assertTrue(ProxyResponseCache.isCacheable(200, headers("Cache-Control", "max-age=60")));
+    assertTrue(ProxyResponseCache.isCacheable(200, headers("ETag", "\"abc\"")));
+    assertFalse(ProxyResponseCache.isCacheable(404, headers("Cache-Control", "max-age=60")));
+    assertFalse(ProxyResponseCache.isCacheable(200, headers("Cache-Control",
+        "private, max-age=60")));
+    assertFalse(ProxyResponseCache.isCacheable(200, headers("Cache-Control", "no-store")));
+    assertFalse(ProxyResponseCache.isCacheable(200, headers()));
+
+    Map<String, String[]> withCookie = headers("Cache-Control", "max-age=60");
+    withCookie.put("Set-Cookie", new String[] { "a=b" });
+    assertFalse(ProxyResponseCache.isCacheable(200, withCookie));
+  }
+
+  @Test
+  public void testRequestCacheability() {
+    Map<String, String> requestHeaders = new HashMap<String, String>();
+    requestHeaders.put("Accept", "*/*");
+    assertTrue(ProxyResponseCache.isCacheableRequest(requestHeaders));
+    requestHeaders.put("cookie", "JSESSIONID=abc");
+    assertFalse(ProxyResponseCache.isCacheableRequest(requestHeaders));
+    requestHeaders.remove("cookie");
+    requestHeaders.put(TrustedLoginTokenProxyPreProcessor.SECURE_TOKEN_HEADER_NAME, "t");
+    assertFalse(ProxyResponseCache.isCacheableRequest(requestHeaders));
+  }
+
+  @Test
+  public void testVary() throws Exception {
+    Map<String, String> english = new HashMap<String, String>();
+    english.put("Accept-Language", "en");
+    Map<String, String> french = new HashMap<String, String>();
+    french.put("accept-language", "fr");
+    CachedProxyResponse response = new CachedProxyResponse("http://localhost/", 200,
+        headers("Vary", "Accept-Language"), new byte[0],
+        System.currentTimeMillis() + 60000, english);
+    assertTrue(response.matches(english));
+    assertFalse(response.matches(french));
+    assertFalse(response.matches(new HashMap<String, String>()));
+  }
+
+  @Test
+  public void testExpiry() {
+    long now = System.currentTimeMillis();
+    assertEquals(now + 60000,
+        ProxyResponseCache.getExpiry(headers("cache-control", "public, max-age=60"), now));
+    assertEquals(now + 10000, ProxyResponseCache.getExpiry(headers("Cache-Control",
+        "max-age=60, s-maxage=10"), now));
+    assertEquals(0, ProxyResponseCache.getExpiry(headers("Cache-Control", "max-age=0"), now));
+    assertEquals(0, ProxyResponseCache.getExpiry(headers("Expires",
+        "Thu, 01 Dec 1994 16:00:00 GMT"), now));
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    ProxyResponseCache cache = new ProxyResponseCache(2, 1024);
+    cache.put("a", response("a"));
+    cache.put("b", response("b"));
+    assertNotNull(cache.get("a"));
+    cache.put("c", response("c"));
+    // b was the least recently used.
+    assertNull(cache.get("b"));
+    assertEquals("a", cache.get("a").getResponseBodyAsString());
+    assertEquals("c", cache.get("c").getResponseBodyAsString());
+  }
+
+  @Test
+  public void testRevalidation() {
+    Map<String, String[]> headers = headers("ETag", "\"v1\"");
+    CachedProxyResponse response = new CachedProxyResponse("http://localhost/", 200,
+        headers, new byte[0], 0);
+    long now = System.currentTimeMillis();
+    assertFalse(response.isFresh(now));
+    assertEquals("\"v1\"", response.getETag());
+    response.revalidated(now + 1000);
+    assertTrue(response.isFresh(now));
+  }
+
+  @Test
+  public void testProcessedKeyOnlyForSharedResponses() throws Exception {
+    Map<String, String[]> headers = headers("ETag", "\"v1\"");
+    CachedProxyResponse shared = new CachedProxyResponse("http://localhost/feed", 200,
+        headers, new byte[0], 0);
+    assertEquals("rss http://localhost/feed \"v1\" null",
+        ProcessedResponseCache.getKey(shared, "rss"));
+
+    ProxyResponse perUser = mock(ProxyResponse.class);
+    when(perUser.getRequestURL()).thenReturn("http://localhost/feed");
+    when(perUser.getResponseHeaders()).thenReturn(headers);
+    when(perUser.getResultCode()).thenReturn(200);
+    assertNull(ProcessedResponseCache.getKey(perUser, "rss"));
+  }
+
+  private CachedProxyResponse response(String body) throws Exception {
+    return new CachedProxyResponse("http://localhost/" + body, 200, headers("Content-Type",
+        "text/plain; charset=UTF-8"), body.getBytes("UTF-8"),
+        System.currentTimeMillis() + 60000);
+  }
+
+  private Map<String, String[]> headers(String... nameValues) {
+    Map<String, String[]> headers = new HashMap<String, String[]>();
+    for (int i = 0; i < nameValues.length; i += 2) {
+      headers.put(nameValues[i], new String[] { nameValues[i + 1] });
+    }
+    return headers;
+  }
+}
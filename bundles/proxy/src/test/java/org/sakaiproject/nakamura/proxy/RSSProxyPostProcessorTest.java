@@ -17,9 +17,14 @@
  */
 package org.sakaiproject.nakamura.proxy;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -31,6 +36,8 @@ import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -139,6 +146,66 @@ public class RSSProxyPostProcessorTest {
     verify(response).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), anyString());
   }
 
+  @Test
+  public void streamsValidFeedLargerThanTheBuffer() throws Exception {
+    //given
+    Map<String, String[]> headers = new HashMap<String, String[]>();
+    headers.put("Content-Type", new String[] { "application/rss+xml" });
+    headers.put("Content-Length", new String[] { "8000" });
+    when(proxyResponse.getResponseHeaders()).thenReturn(headers);
+    proxyResponseHasSampleRss();
+    ByteArrayOutputStream written = responseWritesTo();
+
+    //when
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(RSSProxyPostProcessor.BUFFER_SIZE, 1024);
+    proxyPostProcessor.activate(props);
+    proxyPostProcessor.process(null, response, proxyResponse);
+
+    //then
+    verify(response).setStatus(200);
+    verify(response, never()).setHeader(eq("Content-Length"), anyString());
+    verify(response, never()).sendError(anyInt(), anyString());
+    String feed = written.toString("UTF-8");
+    assertTrue(feed.length() > 1024);
+    assertTrue(feed.trim().endsWith("</rss>"));
+  }
+
+  @Test
+  public void reusesProcessedFeedWhileUpstreamIsUnchanged() throws Exception {
+    //given
+    Map<String, String[]> headers = new HashMap<String, String[]>();
+    headers.put("Content-Type", new String[] { "application/rss+xml" });
+    headers.put("ETag", new String[] { "\"v1\"" });
+    when(proxyResponse.getResponseHeaders()).thenReturn(headers);
+    when(proxyResponse.getResultCode()).thenReturn(200);
+    when(proxyResponse.getRequestURL()).thenReturn("http://example.com/feed.xml");
+    proxyResponseHasSampleRss();
+    proxyPostProcessor.activate(new HashMap<String, Object>());
+
+    //when
+    ByteArrayOutputStream first = responseWritesTo();
+    proxyPostProcessor.process(null, response, proxyResponse);
+    ByteArrayOutputStream second = responseWritesTo();
+    proxyPostProcessor.process(null, response, proxyResponse);
+
+    //then
+    verify(proxyResponse, times(1)).getResponseBodyAsInputStream();
+    assertTrue(first.size() > 0);
+    assertArrayEquals(first.toByteArray(), second.toByteArray());
+  }
+
+  private ByteArrayOutputStream responseWritesTo() throws IOException {
+    final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        written.write(b);
+      }
+    });
+    return written;
+  }
+
   private void proxyResponseHeaderContainsUnsupportedContentType() {
     when(proxyResponseHeaders.get("Content-Type")).thenReturn(new String[]{"application/foo"});
   }
@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.smtp;
+
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.subethamail.smtp.TooMuchDataException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+
+/**
+ * Holds the data of one incoming message, in memory if it is small and in a temporary
+ * file otherwise, so it can be read as often as needed without holding large messages in
+ * memory. The streams handed out are shared streams, so MIME parts are read from the
+ * spool rather than copied.
+ */
+class MessageSpool {
+
+  private final File file;
+  private final DeferredFileOutputStream out;
+
+  /**
+   * @param threshold
+   *          messages bigger than this many bytes are spooled to disk.
+   */
+  MessageSpool(int threshold) throws IOException {
+    file = File.createTempFile("smtp", ".msg");
+    out = new DeferredFileOutputStream(threshold, file);
+  }
+
+  /**
+   * Copy the message data into the spool.
+   *
+   * @throws TooMuchDataException
+   *           if the message is bigger than maxSize bytes.
+   */
+  void spool(InputStream data, long maxSize) throws IOException, TooMuchDataException {
+    try {
+      byte[] buffer = new byte[8192];
+      long size = 0;
+      int n;
+      while ((n = data.read(buffer)) != -1) {
+        size += n;
+        if (size > maxSize) {
+          throw new TooMuchDataException("Message is larger than the limit of " + maxSize
+              + " bytes");
+        }
+        out.write(buffer, 0, n);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * @return a new stream over the spooled data, the caller must close it.
+   */
+  InputStream getInputStream() throws IOException {
+    if (out.isInMemory()) {
+      return new SharedByteArrayInputStream(out.getData());
+    }
+    return new SharedFileInputStream(file);
+  }
+
+  void dispose() {
+    if (!file.delete() && file.exists()) {
+      file.deleteOnExit();
+    }
+  }
+}
@@ -38,21 +38,24 @@ import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.RejectException;
 import org.subethamail.smtp.TooMuchDataException;
-import org.subethamail.smtp.helper.SimpleMessageListener;
-import org.subethamail.smtp.helper.SimpleMessageListenerAdapter;
 import org.subethamail.smtp.server.SMTPServer;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 
 import javax.mail.BodyPart;
 import javax.mail.Header;
@@ -60,12 +63,20 @@ import javax.mail.MessagingException;
 import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeMultipart;
 
+/**
+ * Accepts mail for local users. Each message is handled as a whole rather than once per
+ * recipient: the data is spooled once and parsed into the first mailbox once. Every other
+ * mailbox gets a full copy of that message, made in the content store.
+ */
 @Component(immediate = true, metatype = true)
-public class SakaiSmtpServer implements SimpleMessageListener {
+public class SakaiSmtpServer implements MessageHandlerFactory {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SakaiSmtpServer.class);
   private static final int MAX_PROPERTY_SIZE = 32 * 1024;
-  private static final Map<String, Object> EMPTY_MAP = Collections.emptyMap();
+  /**
+   * Messages up to this size are spooled in memory, larger ones to a temporary file.
+   */
+  private static final int SPOOL_THRESHOLD = 256 * 1024;
 
   private SMTPServer server;
 
@@ -81,16 +92,24 @@ public class SakaiSmtpServer implements SimpleMessageListener {
   @Property(intValue=8025)
   private static String SMTP_SERVER_PORT = "smtp.port";
 
+  private static final int DEFAULT_MAX_MESSAGE_SIZE = 20 * 1024 * 1024;
+  @Property(intValue = DEFAULT_MAX_MESSAGE_SIZE, label = "Maximum message size", description = "The largest message in bytes the server will accept.")
+  static final String MAX_MESSAGE_SIZE = "smtp.maxmessagesize";
+
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
 
   private Set<String> domains = new HashSet<String>();
 
+  private long maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+
   @Activate
   protected void activate(ComponentContext context) throws Exception {
     Integer port = PropertiesUtil.toInteger(context.getProperties().get(SMTP_SERVER_PORT), 8025);
+    maxMessageSize = PropertiesUtil.toInteger(context.getProperties().get(MAX_MESSAGE_SIZE),
+        DEFAULT_MAX_MESSAGE_SIZE);
     LOGGER.info("Starting SMTP server on port {}", port);
-    server = new SMTPServer(new SimpleMessageListenerAdapter(this));
+    server = new SMTPServer(this);
     server.setPort(port);
     server.start();
     String localDomains = PropertiesUtil.toString(context.getProperties().get(LOCAL_DOMAINS), "localhost");
@@ -107,30 +126,74 @@ public class SakaiSmtpServer implements SimpleMessageListener {
   }
 
   /**
-   *
    * {@inheritDoc}
    *
-   * @see org.subethamail.smtp.helper.SimpleMessageListener#accept(java.lang.String,
-   *      java.lang.String)
+   * @see org.subethamail.smtp.MessageHandlerFactory#create(org.subethamail.smtp.MessageContext)
    */
-  public boolean accept(String from, String recipient) {
-    Session session = null;
-    try {
-      session = contentRepository.loginAdministrative();
-      List<String> paths = getLocalPath(session, recipient);
-      return paths.size() > 0;
-    } catch (Exception e) {
-      LOGGER.error("Develier message with this handler ", e);
-    } finally {
+  public MessageHandler create(MessageContext ctx) {
+    return new SakaiMessageHandler();
+  }
+
+  /**
+   * Handles one SMTP transaction. The admin session is opened with the first recipient
+   * and used for the whole transaction.
+   */
+  class SakaiMessageHandler implements MessageHandler {
+
+    private String from;
+    private Session session;
+    private final Set<String> stores = new LinkedHashSet<String>();
+
+    public void from(String from) throws RejectException {
+      this.from = from;
+    }
+
+    public void recipient(String recipient) throws RejectException {
+      List<String> paths;
+      try {
+        if (session == null) {
+          session = contentRepository.loginAdministrative();
+        }
+        paths = getLocalPath(session, recipient);
+      } catch (ClientPoolException e) {
+        LOGGER.error("Unable to check recipient " + recipient, e);
+        throw new RejectException(451, "Temporary failure, please try again later");
+      } catch (StorageClientException e) {
+        LOGGER.error("Unable to check recipient " + recipient, e);
+        throw new RejectException(451, "Temporary failure, please try again later");
+      } catch (AccessDeniedException e) {
+        LOGGER.error("Unable to check recipient " + recipient, e);
+        throw new RejectException(451, "Temporary failure, please try again later");
+      }
+      if (paths.isEmpty()) {
+        throw new RejectException(553, "<" + recipient + "> No such user here");
+      }
+      // a mailbox reached through several aliases only gets the message once.
+      stores.addAll(paths);
+    }
+
+    public void data(InputStream data) throws RejectException, TooMuchDataException,
+        IOException {
+      LOGGER.info("Got message FROM: {} TO: {} ", from, stores);
+      MessageSpool spool = new MessageSpool(SPOOL_THRESHOLD);
+      try {
+        spool.spool(data, maxMessageSize);
+        deliver(session, from, new ArrayList<String>(stores), spool);
+      } finally {
+        spool.dispose();
+      }
+    }
+
+    public void done() {
       if (session != null) {
         try {
           session.logout();
         } catch (ClientPoolException e) {
-          throw new RuntimeException("Failed to logout session.", e);
+          LOGGER.error(e.getLocalizedMessage(), e);
         }
+        session = null;
       }
     }
-    return false;
   }
 
   /**
@@ -141,7 +204,7 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     // assume recipient is a fully qualified email address of the form xxx@foo.com
     String[] parts = StringUtils.split(recipient, '@');
     List<String> localPaths = new ArrayList<String>();
-    if (domains.contains(parts[1])) {
+    if (parts.length == 2 && domains.contains(parts[1])) {
       List<String> recipients = messagingService.expandAliases(parts[0]);
       for (String localRecipient : recipients) {
         try {
@@ -157,58 +220,74 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     return localPaths;
   }
 
-  public void deliver(String from, String recipient, InputStream data)
-      throws TooMuchDataException, IOException {
-    LOGGER.info("Got message FROM: " + from + " TO: " + recipient);
-    Session session = null;
+  /**
+   * Store a full copy of a message in each of the given mailboxes. The message is parsed
+   * from the spool into the first mailbox and copied from there to the others.
+   *
+   * @throws RejectException
+   *           with a temporary failure if the message could not be stored, so the client
+   *           tries again later.
+   */
+  protected void deliver(Session session, String from, List<String> stores,
+      MessageSpool spool) throws IOException, RejectException {
+    if (stores.isEmpty()) {
+      return;
+    }
     try {
-      session = contentRepository.loginAdministrative();
-
-      List<String> paths = getLocalPath(session, recipient);
-      if (paths.size() > 0) {
-        Map<String, Object> mapProperties = new HashMap<String, Object>();
-        mapProperties.put(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
-            MessageConstants.SAKAI_MESSAGE_RT);
-        mapProperties.put(MessageConstants.PROP_SAKAI_READ, false);
-        mapProperties.put(MessageConstants.PROP_SAKAI_FROM, from);
-        mapProperties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX,
-            MessageConstants.BOX_INBOX);
-        Content createdMessage = writeMessage(session, mapProperties, data, paths.get(0));
-        if (createdMessage != null) {
-          String messagePath = createdMessage.getPath();
-          String messageId = (String) createdMessage.getProperty("message-id");
-          LOGGER.info("Created message {} at: {} ", messageId, messagePath);
-
-          // we might want alias expansion
-          for (int i = 1; i < paths.size(); i++) {
-            String targetPath = paths.get(i);
-            messagingService.copyMessageNode(createdMessage, targetPath, session);
-          }
-        }
+      Map<String, Object> mapProperties = new HashMap<String, Object>();
+      mapProperties.put(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+          MessageConstants.SAKAI_MESSAGE_RT);
+      mapProperties.put(MessageConstants.PROP_SAKAI_READ, false);
+      mapProperties.put(MessageConstants.PROP_SAKAI_FROM, from);
+      mapProperties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX,
+          MessageConstants.BOX_INBOX);
+      InputStream headers = spool.getInputStream();
+      try {
+        readHeaders(headers, mapProperties);
+      } finally {
+        headers.close();
+      }
+      String messageId = (String) mapProperties.get("sakai:message-id");
+      if (messageId == null) {
+        messageId = UUID.randomUUID().toString();
+      }
 
+      Content message;
+      InputStream data = spool.getInputStream();
+      try {
+        // leaves data at the start of the body.
+        InternetHeaders internetHeaders = new InternetHeaders(data);
+        message = messagingService.create(session, mapProperties, messageId, stores.get(0));
+        writeContent(session, message, internetHeaders, data);
+        LOGGER.info("Created message {} at: {} ", messageId, message.getPath());
+      } finally {
+        data.close();
+      }
+      for (String store : stores.subList(1, stores.size())) {
+        messagingService.copyMessageNode(message, store, session);
+        LOGGER.info("Copied message {} to: {} ", messageId, store);
       }
     } catch (MessagingException e) {
       LOGGER.error("Unable to write message", e);
       throw new IOException("Message can not be written to repository");
+    } catch (org.sakaiproject.nakamura.api.message.MessagingException e) {
+      LOGGER.error("Unable to write message", e);
+      throw new RejectException(451, "Temporary failure, please try again later");
     } catch (StorageClientException e) {
       LOGGER.error("Unable to write message", e);
+      throw new RejectException(451, "Temporary failure, please try again later");
     } catch (AccessDeniedException e) {
       LOGGER.error("Unable to write message", e);
-    } finally {
-      if (session != null) {
-        try {
-          session.logout();
-        } catch (ClientPoolException e) {
-          LOGGER.error(e.getLocalizedMessage(), e);
-          throw new RuntimeException("Failed to logout session.", e);
-        }
-      }
+      throw new RejectException(451, "Temporary failure, please try again later");
     }
   }
 
+  /**
+   * Read the headers into the message properties.
+   */
   @SuppressWarnings("unchecked")
-  private Content writeMessage(Session session, Map<String, Object> mapProperties,
-      InputStream data, String storePath) throws MessagingException, AccessDeniedException, StorageClientException, IOException {
+  private void readHeaders(InputStream data, Map<String, Object> mapProperties)
+      throws MessagingException {
     InternetHeaders internetHeaders = new InternetHeaders(data);
     // process the headers into a map.
     for ( Enumeration<Header> e = internetHeaders.getAllHeaders(); e.hasMoreElements(); ) {
@@ -223,20 +302,20 @@ public class SakaiSmtpServer implements SimpleMessageListener {
         }
       }
     }
+  }
+
+  private void writeContent(Session session, Content message,
+      InternetHeaders internetHeaders, InputStream data) throws MessagingException,
+      AccessDeniedException, StorageClientException, IOException {
     String[] contentType = internetHeaders.getHeader("content-type");
     if (contentType != null && contentType.length > 0
         && contentType[0].contains("boundary") && contentType[0].contains("multipart/")) {
-        MimeMultipart multipart = new MimeMultipart(new SMTPDataSource(contentType[0],
-            data));
-        Content message = messagingService.create(session, mapProperties,
-            (String) mapProperties.get("sakai:message-id"), storePath);
-        writeMultipartToNode(session, message, multipart);
-        return message;
+      MimeMultipart multipart = new MimeMultipart(new SMTPDataSource(contentType[0],
+          data));
+      writeMultipartToNode(session, message, multipart);
     } else {
-      Content node = messagingService.create(session, mapProperties);
       // set up to stream the body.
-      session.getContentManager().writeBody(node.getPath(), data);
-      return node;
+      session.getContentManager().writeBody(message.getPath(), data);
     }
   }
 
@@ -260,9 +339,7 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     String childPath = message.getPath() + "/" + childName;
     // multipart message
     if (part.getContentType().toLowerCase().startsWith("multipart/")) {
-      contentManager.update(new Content(childPath, EMPTY_MAP));
-      Content childNode = contentManager.get(childPath);
-      writePartPropertiesToNode(part, childNode);
+      Content childNode = new Content(childPath, getPartProperties(part));
       contentManager.update(childNode);
       MimeMultipart multi = new MimeMultipart(new SMTPDataSource(part.getContentType(),
           part.getInputStream()));
@@ -277,12 +354,8 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     }
 
     // not multipart; not text
-    contentManager.update(new Content(childPath, EMPTY_MAP));
-    Content childNode = contentManager.get(childPath);
-    writePartPropertiesToNode(part, childNode);
-    contentManager.update(childNode);
-    // childNode.setProperty(MessageConstants.PROP_SAKAI_BODY, part.getInputStream());
-    contentManager.writeBody(childNode.getPath(), part.getInputStream());
+    contentManager.update(new Content(childPath, getPartProperties(part)));
+    contentManager.writeBody(childPath, part.getInputStream());
   }
 
   private void writePartAsFile(Session session, BodyPart part, String nodeName,
@@ -315,14 +388,18 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     session.getContentManager().writeBody(parentNode.getPath(), part.getInputStream());
   }
 
+  /**
+   * The headers of a part, so the part can be created with a single update.
+   */
   @SuppressWarnings("unchecked")
-  private void writePartPropertiesToNode(BodyPart part, Content childNode)
-      throws MessagingException {
+  private Map<String, Object> getPartProperties(BodyPart part) throws MessagingException {
+    Map<String, Object> properties = new HashMap<String, Object>();
     Enumeration<Header> headers = part.getAllHeaders();
     while (headers.hasMoreElements()) {
       Header header = headers.nextElement();
-      childNode.setProperty(header.getName(), header.getValue());
+      properties.put(header.getName(), header.getValue());
     }
+    return properties;
   }
 
 }
@@ -21,8 +21,11 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -46,6 +49,9 @@ import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.TooMuchDataException;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -159,7 +165,8 @@ public class SakaiSmtpServerTest {
     assertNotNull(dataStream);
 
     when(
-        messagingService.create(any(Session.class), any(Map.class))).thenReturn(myMessageNode);
+        messagingService.create(any(Session.class), any(Map.class), any(String.class),
+            any(String.class))).thenReturn(myMessageNode);
 
     SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
     sakaiSmtpServer.contentRepository = slingRepository;
@@ -167,14 +174,14 @@ public class SakaiSmtpServerTest {
 
     sakaiSmtpServer.activate(componentContext);
 
-    sakaiSmtpServer.accept("bob@localhost", "alice@localhost");
-    sakaiSmtpServer.deliver("bob@localhost", "alice@localhost", dataStream);
+    send(sakaiSmtpServer, "bob@localhost", dataStream, "alice@localhost");
 
     // call to messageService.create
-    verify(messagingService).create(any(Session.class), mapProperties.capture());
-    verify(contentManager).writeBody(eq("a:bob/message/messagenode"), eq(dataStream));
-    verify(myMessageNode, times(2)).getPath();
-    verify(myMessageNode).getProperty("message-id");
+    verify(messagingService).create(eq(adminSession), mapProperties.capture(),
+        any(String.class), eq("a:alice/message"));
+    verify(contentManager).writeBody(eq("a:bob/message/messagenode"),
+        any(InputStream.class));
+    verify(adminSession).logout();
     
     Map<String,Object> headers = mapProperties.getValue();
     // check multi line parsing of headers
@@ -270,8 +277,9 @@ public class SakaiSmtpServerTest {
         TESTMESSAGE_GOOD.getBytes("UTF-8"));
     assertNotNull(dataStream);
 
-    when(messagingService.create(any(Session.class), any(Map.class))).thenReturn(
-        myMessageNode);
+    when(
+        messagingService.create(any(Session.class), any(Map.class), any(String.class),
+            any(String.class))).thenReturn(myMessageNode);
 
     SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
     sakaiSmtpServer.contentRepository = slingRepository;
@@ -279,14 +287,14 @@ public class SakaiSmtpServerTest {
 
     sakaiSmtpServer.activate(componentContext);
 
-    assertTrue(sakaiSmtpServer.accept("bob@localhost", "alice@localhost"));
-    sakaiSmtpServer.deliver("bob@localhost", "alice@localhost", dataStream);
+    send(sakaiSmtpServer, "bob@localhost", dataStream, "alice@localhost");
 
     // call to messageService.create
-    verify(messagingService).create(any(Session.class), mapProperties.capture());
-    verify(contentManager).writeBody(eq("a:bob/message/messagenode"), eq(dataStream));
-    verify(myMessageNode, times(2)).getPath();
-    verify(myMessageNode).getProperty("message-id");
+    verify(messagingService).create(eq(adminSession), mapProperties.capture(),
+        any(String.class), eq("a:alice/message"));
+    verify(contentManager).writeBody(eq("a:bob/message/messagenode"),
+        any(InputStream.class));
+    verify(adminSession).logout();
     
     Map<String,Object> headers = mapProperties.getValue();
     // check multi line parsing of headers
@@ -317,8 +325,7 @@ public class SakaiSmtpServerTest {
 
     sakaiSmtpServer.activate(componentContext);
 
-    sakaiSmtpServer.accept("bob@localhost", "alice@localhost");
-    sakaiSmtpServer.deliver("bob@localhost", "alice@localhost", dataStream);
+    send(sakaiSmtpServer, "bob@localhost", dataStream, "alice@localhost");
 
 
     // call to messageService.create
@@ -354,8 +361,7 @@ public class SakaiSmtpServerTest {
 
     sakaiSmtpServer.activate(componentContext);
 
-    sakaiSmtpServer.accept("bob@localhost", "alice@localhost");
-    sakaiSmtpServer.deliver("bob@localhost", "alice@localhost", dataStream);
+    send(sakaiSmtpServer, "bob@localhost", dataStream, "alice@localhost");
 
 
     // call to messageService.create
@@ -373,4 +379,141 @@ public class SakaiSmtpServerTest {
     sakaiSmtpServer.deactivate(componentContext);
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testOtherRecipientsGetCopies() throws Exception {
+    List<String> carol = new ArrayList<String>();
+    carol.add("carol");
+    when(messagingService.expandAliases("carol")).thenReturn(carol);
+    when(messagingService.getFullPathToStore(eq("carol"), any(Session.class))).thenReturn(
+        "a:carol/message");
+    // a list alias that includes alice again should not deliver twice.
+    List<String> list = new ArrayList<String>();
+    list.add("alice");
+    list.add("carol");
+    when(messagingService.expandAliases("list")).thenReturn(list);
+    when(
+        messagingService.create(any(Session.class), any(Map.class), any(String.class),
+            any(String.class))).thenReturn(myMessageNode);
+
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.contentRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+
+    sakaiSmtpServer.activate(componentContext);
+
+    InputStream dataStream = new ByteArrayInputStream(TESTMESSAGE_GOOD.getBytes("UTF-8"));
+    send(sakaiSmtpServer, "bob@localhost", dataStream, "alice@localhost",
+        "list@localhost");
+
+    // the message is parsed into the first mailbox once and copied to the others.
+    verify(messagingService).create(eq(adminSession), mapProperties.capture(),
+        any(String.class), eq("a:alice/message"));
+    verify(messagingService, times(1)).create(any(Session.class), any(Map.class),
+        any(String.class), any(String.class));
+    verify(contentManager, times(1)).writeBody(eq("a:bob/message/messagenode"),
+        any(InputStream.class));
+    verify(messagingService).copyMessageNode(myMessageNode, "a:carol/message", adminSession);
+    verify(messagingService, never()).copyMessageNode(myMessageNode, "a:alice/message",
+        adminSession);
+    assertEquals(SUBJECT_TEST, mapProperties.getValue().get("sakai:subject"));
+    verify(slingRepository, times(1)).loginAdministrative();
+
+    sakaiSmtpServer.deactivate(componentContext);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testUnknownRecipientIsRejected() throws Exception {
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.contentRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+
+    sakaiSmtpServer.activate(componentContext);
+
+    MessageHandler handler = sakaiSmtpServer.create(null);
+    handler.from("bob@localhost");
+    try {
+      handler.recipient("alice@example.com");
+      fail("Mail for other domains should be rejected");
+    } catch (RejectException e) {
+      assertEquals(553, e.getCode());
+    } finally {
+      handler.done();
+    }
+    verify(messagingService, never()).create(any(Session.class), any(Map.class),
+        any(String.class), any(String.class));
+
+    sakaiSmtpServer.deactivate(componentContext);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testStorageFailureIsTemporary() throws Exception {
+    when(
+        messagingService.create(any(Session.class), any(Map.class), any(String.class),
+            any(String.class))).thenReturn(myMessageNode);
+    doThrow(new StorageClientException("down")).when(contentManager).writeBody(
+        any(String.class), any(InputStream.class));
+
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.contentRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+
+    sakaiSmtpServer.activate(componentContext);
+
+    InputStream dataStream = new ByteArrayInputStream(TESTMESSAGE_GOOD.getBytes("UTF-8"));
+    try {
+      send(sakaiSmtpServer, "bob@localhost", dataStream, "alice@localhost");
+      fail("A message that could not be stored should be refused for now");
+    } catch (RejectException e) {
+      assertEquals(451, e.getCode());
+    }
+    verify(adminSession).logout();
+
+    sakaiSmtpServer.deactivate(componentContext);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testOversizedMessageIsRejected() throws Exception {
+    componentContext.getProperties().put("smtp.maxmessagesize", 10);
+
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.contentRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+
+    sakaiSmtpServer.activate(componentContext);
+
+    InputStream dataStream = new ByteArrayInputStream(TESTMESSAGE_GOOD.getBytes("UTF-8"));
+    try {
+      send(sakaiSmtpServer, "bob@localhost", dataStream, "alice@localhost");
+      fail("Message larger than the limit should be rejected");
+    } catch (TooMuchDataException e) {
+      // expected
+    }
+    verify(messagingService, never()).create(any(Session.class), any(Map.class),
+        any(String.class), any(String.class));
+    verify(adminSession).logout();
+
+    sakaiSmtpServer.deactivate(componentContext);
+  }
+
+  /**
+   * Run one SMTP transaction through the server's message handler.
+   */
+  private void send(SakaiSmtpServer sakaiSmtpServer, String from, InputStream data,
+      String... recipients) throws Exception {
+    MessageHandler handler = sakaiSmtpServer.create(null);
+    try {
+      handler.from(from);
+      for (String recipient : recipients) {
+        handler.recipient(recipient);
+      }
+      handler.data(data);
+    } finally {
+      handler.done();
+    }
+  }
+
 }
@@ -36,8 +36,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class AuthorizableUtil {
@@ -139,6 +143,42 @@ public class AuthorizableUtil {
     return retval;
   }
 
+  /**
+   * Look up a batch of authorizables, fetching each distinct id once however many times it
+   * appears. Ids that are null, empty, can't be found or can't be read by the manager's
+   * session are left out rather than failing the whole batch. Sparse has no multi-key read,
+   * so this is still one {@link AuthorizableManager#findAuthorizable(String)} per distinct
+   * id; callers that can stop early once they have enough should look ids up one by one.
+   *
+   * @param authorizableManager
+   * @param ids the ids to look up, in the order the caller wants them back
+   * @return the authorizables found, keyed by id in the order the ids were first given
+   * @throws StorageClientException
+   */
+  public static Map<String, Authorizable> findAuthorizables(
+      AuthorizableManager authorizableManager, Collection<String> ids)
+      throws StorageClientException {
+    Map<String, Authorizable> found = new LinkedHashMap<String, Authorizable>();
+    if (ids == null || ids.isEmpty()) {
+      return found;
+    }
+    Set<String> distinctIds = new LinkedHashSet<String>(ids);
+    for (String id : distinctIds) {
+      if (StringUtils.isEmpty(id)) {
+        continue;
+      }
+      try {
+        Authorizable authorizable = authorizableManager.findAuthorizable(id);
+        if (authorizable != null) {
+          found.put(id, authorizable);
+        }
+      } catch (AccessDeniedException e) {
+        LOGGER.debug("Unable to read authorizable {}: {}", id, e.getMessage());
+      }
+    }
+    return found;
+  }
+
   /**
    * @return true if the authz group is joinable
    */
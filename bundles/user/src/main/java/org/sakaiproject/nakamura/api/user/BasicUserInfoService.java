@@ -19,6 +19,7 @@ package org.sakaiproject.nakamura.api.user;
 
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 
+import java.util.Collection;
 import java.util.Map;
 
 
@@ -26,6 +27,16 @@ public interface BasicUserInfoService {
 
   Map<String, Object> getProperties(Authorizable au);
 
+  /**
+   * Get the basic info for a number of authorizables in one go.
+   *
+   * @param authorizables
+   *          the authorizables to describe, null entries are ignored.
+   * @return the basic info for each authorizable keyed by authorizable id, in the order
+   *         the authorizables were given.
+   */
+  Map<String, Map<String, Object>> getProperties(Collection<Authorizable> authorizables);
+
   String[] getBasicProfileElements();
 
 }
@@ -44,10 +44,13 @@ import static org.sakaiproject.nakamura.api.user.UserConstants.USER_TAGS;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -59,8 +62,12 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.user.counts.CountProvider;
@@ -68,8 +75,19 @@ import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 @Component(immediate=true, metatype=true)
 @Service(value=BasicUserInfoService.class)
@@ -87,6 +105,18 @@ public class BasicUserInfoServiceImpl implements BasicUserInfoService {
 
   private static String[] basicUserInfoElements = DEFAULT_BASIC_USER_INFO_ELEMENTS;
 
+  private static final int DEFAULT_COUNTS_QUEUE_SIZE = 1000;
+
+  @Property(intValue = DEFAULT_COUNTS_QUEUE_SIZE, label = "Count update queue size",
+      description = "How many background count updates may wait before further requests are dropped (read on activation).")
+  public final static String COUNTS_QUEUE_SIZE = "basicUserInfo.countsQueueSize";
+
+  /**
+   * Name of the request scoped cache that holds the basic info already built during the
+   * current request.
+   */
+  private static final String REQUEST_CACHE_NAME = BasicUserInfoServiceImpl.class.getName() + "-request";
+
   private static final Logger LOGGER = LoggerFactory.getLogger(BasicUserInfoServiceImpl.class);
 
   @Reference
@@ -95,9 +125,43 @@ public class BasicUserInfoServiceImpl implements BasicUserInfoService {
   @Reference
   protected Repository repository;
 
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
+  /**
+   * Computes count properties that were missing when an authorizable was looked up, so
+   * that the request doing the lookup does not have to wait for them.
+   */
+  private volatile ExecutorService countsExecutor;
+
+  /**
+   * Ids of authorizables that already have a count update queued.
+   */
+  private final Set<String> pendingCountUpdates = Collections
+      .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
   @Activate
   protected void activated(Map<String, Object> properties ) {
     modified(properties);
+    int queueSize = PropertiesUtil.toInteger(properties.get(COUNTS_QUEUE_SIZE),
+        DEFAULT_COUNTS_QUEUE_SIZE);
+    countsExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "BasicUserInfo count updates");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (countsExecutor != null) {
+      countsExecutor.shutdownNow();
+      countsExecutor = null;
+    }
+    pendingCountUpdates.clear();
   }
 
   @Modified
@@ -105,18 +169,57 @@ public class BasicUserInfoServiceImpl implements BasicUserInfoService {
     basicUserInfoElements = PropertiesUtil.toStringArray(properties.get(BASIC_PROFILE_ELEMENTS), DEFAULT_BASIC_USER_INFO_ELEMENTS);
   }
 
-  
-
-  
-  
   public Map<String, Object> getProperties(Authorizable authorizable) {
+    Set<String> missingCounts = Sets.newHashSet();
+    Map<String, Object> basicUserInfo = lookupProperties(authorizable, getRequestCache(),
+        missingCounts);
+    scheduleCountUpdates(missingCounts);
+    return basicUserInfo;
+  }
+
+  public Map<String, Map<String, Object>> getProperties(Collection<Authorizable> authorizables) {
+    Map<String, Map<String, Object>> basicUserInfos = Maps.newLinkedHashMap();
+    Cache<Map<String, Object>> requestCache = getRequestCache();
+    Set<String> missingCounts = Sets.newLinkedHashSet();
+    for (Authorizable authorizable : authorizables) {
+      if (authorizable != null && !basicUserInfos.containsKey(authorizable.getId())) {
+        basicUserInfos.put(authorizable.getId(),
+            lookupProperties(authorizable, requestCache, missingCounts));
+      }
+    }
+    scheduleCountUpdates(missingCounts);
+    return basicUserInfos;
+  }
+
+  /**
+   * Get the basic info for an authorizable, reusing what was built earlier in the same
+   * request if the authorizable has not been modified since. The caller gets its own copy
+   * of the map as many callers decorate it.
+   */
+  private Map<String, Object> lookupProperties(Authorizable authorizable,
+      Cache<Map<String, Object>> requestCache, Set<String> missingCounts) {
     if (authorizable == null || User.ANON_USER.equals(authorizable.getId())) {
       return anonymousBasicInfo();
     }
-    
+    String cacheKey = authorizable.getId() + ":"
+        + authorizable.getProperty(Authorizable.LASTMODIFIED_FIELD);
+    Map<String, Object> basicUserInfo = null;
+    if (requestCache != null) {
+      basicUserInfo = requestCache.get(cacheKey);
+    }
+    if (basicUserInfo == null) {
+      basicUserInfo = buildProperties(authorizable, missingCounts);
+      if (requestCache != null) {
+        requestCache.put(cacheKey, basicUserInfo);
+      }
+    }
+    return Maps.newHashMap(basicUserInfo);
+  }
+
+  private Map<String, Object> buildProperties(Authorizable authorizable, Set<String> missingCounts) {
     Map<String, Object> basicUserInfo = Maps.newHashMap();
     basicUserInfo.put(USER_BASIC, basicProfileMapForAuthorizable(authorizable));
-    basicUserInfo.put(COUNTS_PROP, countsMapforAuthorizable(authorizable));
+    basicUserInfo.put(COUNTS_PROP, countsMapforAuthorizable(authorizable, missingCounts));
     basicUserInfo.put(USER_HOME_PATH, LitePersonalUtils.getHomeResourcePath(authorizable.getId()));
     if ( authorizable.hasProperty(UserConstants.SAKAI_EXCLUDE)) {
       basicUserInfo.put(UserConstants.SAKAI_EXCLUDE, authorizable.getProperty(UserConstants.SAKAI_EXCLUDE));
@@ -131,28 +234,114 @@ public class BasicUserInfoServiceImpl implements BasicUserInfoService {
     }
     return basicUserInfo;
   }
-  
-  
 
-  private Map<String, Object> countsMapforAuthorizable(Authorizable authorizable) {
+  /**
+   * @return the request cache, or null when the thread is not serving a request as
+   *         nothing would ever clear the cache.
+   */
+  private Cache<Map<String, Object>> getRequestCache() {
+    if (cacheManagerService == null || !cacheManagerService.isBound(CacheScope.REQUEST)) {
+      return null;
+    }
+    return cacheManagerService.getCache(REQUEST_CACHE_NAME, CacheScope.REQUEST);
+  }
+
+  /**
+   * Build the counts map from the count properties the authorizable already has. The ids
+   * of authorizables missing any count property are added to missingCounts so the counts
+   * can be computed in the background rather than in the request.
+   */
+  private Map<String, Object> countsMapforAuthorizable(Authorizable authorizable,
+      Set<String> missingCounts) {
     Builder<String, Object> propertyBuilder = ImmutableMap.builder();
+    for (String countPropName : countProperties(authorizable)) {
+      Object count = authorizable.getProperty(countPropName);
+      if (count != null) {
+        propertyBuilder.put(countPropName, count);
+      } else {
+        missingCounts.add(authorizable.getId());
+      }
+    }
+
+    Map<String, Object> allCounts = propertyBuilder.build();
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug("counts map: {} for authorizableId: {}", new Object[]{allCounts, authorizable.getId()});
+    }
+    return allCounts;
+  }
+
+  private List<String> countProperties(Authorizable authorizable) {
+    List<String> countProperties = Lists.newArrayList(AUTHZ_COUNTS_PROPS);
+    if (authorizable instanceof User) {
+      Collections.addAll(countProperties, USER_COUNTS_PROPS);
+    }
+    if (authorizable instanceof Group) {
+      Collections.addAll(countProperties, GROUP_COUNTS_PROPS);
+    }
+    return countProperties;
+  }
+
+  /**
+   * Queue one background update, on one admin session, for all the authorizables that are
+   * missing counts and are not already queued.
+   */
+  private void scheduleCountUpdates(Collection<String> authorizableIds) {
+    ExecutorService executor = countsExecutor;
+    if (executor == null || authorizableIds.isEmpty()) {
+      return;
+    }
+    final List<String> toUpdate = Lists.newArrayList();
+    for (String authorizableId : authorizableIds) {
+      if (pendingCountUpdates.add(authorizableId)) {
+        toUpdate.add(authorizableId);
+      }
+    }
+    if (toUpdate.isEmpty()) {
+      return;
+    }
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          updateCounts(toUpdate);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // the next lookup of these authorizables will try again.
+      pendingCountUpdates.removeAll(toUpdate);
+      LOGGER.debug("Count update queue is full, not updating counts for {} ", toUpdate);
+    }
+  }
+
+  protected void updateCounts(List<String> authorizableIds) {
     Session adminSession = null;
     try {
       adminSession = this.repository.loginAdministrative();
-      buildCountsMap(AUTHZ_COUNTS_PROPS, authorizable, propertyBuilder, adminSession);
-      if (authorizable instanceof User) {
-        buildCountsMap(USER_COUNTS_PROPS, authorizable, propertyBuilder, adminSession);
-      }
-      if (authorizable instanceof Group) {
-        buildCountsMap(GROUP_COUNTS_PROPS, authorizable, propertyBuilder, adminSession);
+      AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
+      for (String authorizableId : authorizableIds) {
+        try {
+          Authorizable authorizable = authorizableManager.findAuthorizable(authorizableId);
+          if (authorizable == null) {
+            continue;
+          }
+          for (String countPropName : countProperties(authorizable)) {
+            if (!authorizable.hasProperty(countPropName)) {
+              countProvider.updateCountProperty(authorizable, countPropName, adminSession);
+            }
+          }
+        } catch (AccessDeniedException e) {
+          LOGGER.error("Error updating counts of " + authorizableId, e);
+        } catch (StorageClientException e) {
+          LOGGER.error("Error updating counts of " + authorizableId, e);
+        }
       }
-    } catch (AccessDeniedException e) {
-      LOGGER.error("Error getting map of authorizable's counts", e);
     } catch (ClientPoolException e) {
-      LOGGER.error("Error getting map of authorizable's counts", e);
+      LOGGER.error("Error updating authorizable counts", e);
     } catch (StorageClientException e) {
-      LOGGER.error("Error getting map of authorizable's counts", e);
+      LOGGER.error("Error updating authorizable counts", e);
+    } catch (AccessDeniedException e) {
+      LOGGER.error("Error updating authorizable counts", e);
     } finally {
+      pendingCountUpdates.removeAll(authorizableIds);
       if ( adminSession != null ) {
         try {
           adminSession.logout();
@@ -161,24 +350,6 @@ public class BasicUserInfoServiceImpl implements BasicUserInfoService {
         }
       }
     }
-
-    Map<String, Object> allCounts = propertyBuilder.build();
-    if (LOGGER.isDebugEnabled()) {
-      LOGGER.debug("counts map: {} for authorizableId: {}", new Object[]{allCounts, authorizable.getId()});
-    }
-    return allCounts;
-  }
-
-  private void buildCountsMap(String[] properties, Authorizable authorizable, Builder<String,
-      Object> propertyBuilder, Session session) throws StorageClientException, AccessDeniedException {
-    for (String countPropName : properties) {
-      if (!authorizable.hasProperty(countPropName)) {
-        countProvider.updateCountProperty(authorizable, countPropName, session);
-      }
-      if ( authorizable.getProperty(countPropName) != null ) {
-        propertyBuilder.put(countPropName, authorizable.getProperty(countPropName));
-      }
-    }
   }
 
   private void addUserProperties(Authorizable user, Map<String, Object> basicInfo) {
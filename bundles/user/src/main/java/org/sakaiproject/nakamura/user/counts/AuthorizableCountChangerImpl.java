@@ -21,28 +21,22 @@ package org.sakaiproject.nakamura.user.counts;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
-import org.sakaiproject.nakamura.api.lite.ClientPoolException;
-import org.sakaiproject.nakamura.api.lite.Repository;
-import org.sakaiproject.nakamura.api.lite.Session;
-import org.sakaiproject.nakamura.api.lite.StorageClientException;
-import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
-import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.user.AuthorizableCountChanger;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
 import java.util.Collection;
 
+/**
+ * Hands count changes to the {@link CountAggregator}, so the stale counts of a request that
+ * touches many authorizables are dropped in one batch, together with those of other
+ * requests.
+ */
 @Component(metatype = true)
 @Service
 public class AuthorizableCountChangerImpl implements AuthorizableCountChanger {
 
-  private static final Logger LOGGER = LoggerFactory.getLogger(AuthorizableCountChangerImpl.class);
-
   @Reference
-  private Repository repository;
+  protected CountAggregator countAggregator;
 
   @SuppressWarnings("unchecked")
   @Override
@@ -52,38 +46,9 @@ public class AuthorizableCountChangerImpl implements AuthorizableCountChanger {
 
   @Override
   public void notify(String propertyName, Collection<String>... authorizableIDs) {
-    Session adminSession = null;
-    try {
-      adminSession = this.repository.loginAdministrative();
-      AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
-      for (Collection<String> list : authorizableIDs) {
-        for (String id : list) {
-          Authorizable authz = authorizableManager.findAuthorizable(id);
-          if (authz == null || CountProvider.IGNORE_AUTHIDS.contains(authz.getId())) {
-            continue; // skip the immutable system authzs
-          }
-          if (authz.hasProperty(propertyName)) {
-            authz.removeProperty(propertyName);
-            authorizableManager.updateAuthorizable(authz, false);
-            if (LOGGER.isDebugEnabled()) {
-              LOGGER.debug("Removed {} prop from authorizable {}", new String[]{propertyName, id});
-            }
-          }
-        }
-      }
-    } catch (AccessDeniedException e) {
-      LOGGER.error("Error removing count property from authorizable", e);
-    } catch (ClientPoolException e) {
-      LOGGER.error("Error removing count property from authorizable", e);
-    } catch (StorageClientException e) {
-      LOGGER.error("Error removing count property from authorizable", e);
-    } finally {
-      if (adminSession != null) {
-        try {
-          adminSession.logout();
-        } catch (ClientPoolException e) {
-          LOGGER.error("Error logging out of admin session", e);
-        }
+    for (Collection<String> list : authorizableIDs) {
+      for (String id : list) {
+        countAggregator.changed(id, propertyName);
       }
     }
   }
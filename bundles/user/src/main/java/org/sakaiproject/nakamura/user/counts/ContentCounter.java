@@ -17,10 +17,16 @@
  */
 package org.sakaiproject.nakamura.user.counts;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest.METHOD;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
@@ -40,51 +46,131 @@ import com.google.common.collect.Lists;
 public class ContentCounter {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ContentCounter.class);
-  private static final String QUERY_TMPL = "(resourceType:sakai/pooled-content OR category:collection) AND ((manager:(%1$s) OR viewer:(%1$s))";
+  private static final String CONTENT_QUERY = "resourceType:sakai/pooled-content OR category:collection";
+  private static final String MEMBER_TMPL = "(manager:(%1$s) OR viewer:(%1$s))";
   private static final String USER_TMPL = " OR (showalways:true AND (manager:(%1$s) OR viewer:(%1$s)))";
 
+  /**
+   * The number of authorizables counted by one Solr request in
+   * {@link #countExact(Collection, AuthorizableManager, SolrServerService)}.
+   */
+  static final int FACET_BATCH_SIZE = 50;
+
   public int countExact(Authorizable au, AuthorizableManager authorizableManager,
       SolrServerService solrSearchService) throws StorageClientException,
       AccessDeniedException {
     if (au != null && !CountProvider.IGNORE_AUTHIDS.contains(au.getId())) {
+      String qs = "(" + CONTENT_QUERY + ") AND (" + getMemberQuery(au) + ")";
+      int count = getCount(qs, solrSearchService);
+      return count + countCollectionMemberships(au, authorizableManager);
+    }
+    return 0;
+  }
 
-      // find docs where the authz is a direct viewer or manager
-      String userID = ClientUtils.escapeQueryChars(au.getId());
-      String qs = String.format(QUERY_TMPL, userID);
-
-      // for users, include indirectly managed or viewed documents whose showalways field is true
-      if (!au.isGroup()) {
-        // pooled-content-manager, pooled-content-viewer
-        List<String> principals = Lists.newArrayList(userID);
-        if (au.getPrincipals() != null) {
-          for (String principal : au.getPrincipals()) {
-            principals.add(ClientUtils.escapeQueryChars(principal));
-          }
-        }
-        principals.remove(Group.EVERYONE);
-        String readers = StringUtils.join(principals, " OR ");
-        qs += String.format(USER_TMPL, readers);
+  /**
+   * Counts the content of several authorizables with one faceted Solr request per
+   * {@link #FACET_BATCH_SIZE} authorizables, rather than a request each.
+   *
+   * @param authorizables
+   * @param authorizableManager
+   * @param solrSearchService
+   * @return the count for each authorizable id, ignored authorizables are left out.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public Map<String, Integer> countExact(Collection<Authorizable> authorizables,
+      AuthorizableManager authorizableManager, SolrServerService solrSearchService)
+      throws StorageClientException, AccessDeniedException {
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    Map<String, String> queries = new LinkedHashMap<String, String>();
+    for (Authorizable au : authorizables) {
+      if (au == null || CountProvider.IGNORE_AUTHIDS.contains(au.getId())) {
+        continue;
+      }
+      queries.put(au.getId(), getMemberQuery(au));
+      counts.put(au.getId(), countCollectionMemberships(au, authorizableManager));
+      if (queries.size() == FACET_BATCH_SIZE) {
+        addFacetCounts(queries, counts, solrSearchService);
+        queries.clear();
       }
+    }
+    if (!queries.isEmpty()) {
+      addFacetCounts(queries, counts, solrSearchService);
+    }
+    return counts;
+  }
 
-      qs += ")";
-      int count = getCount(qs, solrSearchService);
+  /**
+   * @return the query for docs where the authorizable is a direct viewer or manager, and
+   *         for users, indirectly managed or viewed documents whose showalways field is
+   *         true.
+   */
+  private String getMemberQuery(Authorizable au) {
+    String userID = ClientUtils.escapeQueryChars(au.getId());
+    String qs = String.format(MEMBER_TMPL, userID);
 
-      // for top level content collections, look up direct memberships
-      // for each direct membership that is to a collection, add 1 to the count.
-      if (AuthorizableUtil.isCollection(au, true)) {
+    if (!au.isGroup()) {
+      // pooled-content-manager, pooled-content-viewer
+      List<String> principals = Lists.newArrayList(userID);
+      if (au.getPrincipals() != null) {
         for (String principal : au.getPrincipals()) {
-          if (!Group.EVERYONE.equals(principal)) {
-            Authorizable memberAuth = authorizableManager.findAuthorizable(principal);
-            if (AuthorizableUtil.isCollection(memberAuth, false)) {
-              count += 1;
-            }
+          principals.add(ClientUtils.escapeQueryChars(principal));
+        }
+      }
+      principals.remove(Group.EVERYONE);
+      String readers = StringUtils.join(principals, " OR ");
+      qs += String.format(USER_TMPL, readers);
+    }
+    return qs;
+  }
+
+  /**
+   * for top level content collections, look up direct memberships for each direct
+   * membership that is to a collection, add 1 to the count.
+   */
+  private int countCollectionMemberships(Authorizable au,
+      AuthorizableManager authorizableManager) throws StorageClientException,
+      AccessDeniedException {
+    int count = 0;
+    if (AuthorizableUtil.isCollection(au, true)) {
+      for (String principal : au.getPrincipals()) {
+        if (!Group.EVERYONE.equals(principal)) {
+          Authorizable memberAuth = authorizableManager.findAuthorizable(principal);
+          if (AuthorizableUtil.isCollection(memberAuth, false)) {
+            count += 1;
           }
         }
       }
+    }
+    return count;
+  }
 
-      return count;
+  /**
+   * Adds the Solr count for each id, using one facet query per id. The queries are posted
+   * as the combined length of many principal lists can be too long for a URL.
+   */
+  private void addFacetCounts(Map<String, String> queries, Map<String, Integer> counts,
+      SolrServerService solrSearchService) {
+    SolrServer solrServer = solrSearchService.getServer();
+    SolrQuery solrQuery = new SolrQuery(CONTENT_QUERY).setRows(0).setFacet(true);
+    for (String query : queries.values()) {
+      solrQuery.addFacetQuery(query);
+    }
+    try {
+      QueryResponse response = solrServer.query(solrQuery, METHOD.POST);
+      Map<String, Integer> facetCounts = response.getFacetQuery();
+      if (facetCounts == null) {
+        return;
+      }
+      for (Entry<String, String> query : queries.entrySet()) {
+        Integer count = facetCounts.get(query.getValue());
+        if (count != null) {
+          counts.put(query.getKey(), counts.get(query.getKey()) + count);
+        }
+      }
+    } catch (SolrServerException e) {
+      LOGGER.warn(e.getMessage(), e);
     }
-    return 0;
   }
 
   /**
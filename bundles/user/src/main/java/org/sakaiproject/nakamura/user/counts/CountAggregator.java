@@ -0,0 +1,233 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.counts;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Buffers changes to the count properties of authorizables and writes them in batches.
+ * A change drops the stale count property, so the count is recalculated by the
+ * {@link CountProvider} the next time it is read. Changes are coalesced by authorizable
+ * and property, so a burst of events against the same authorizable (eg: a bulk enrolment
+ * into a group) becomes a single read-modify-write of its record. The buffer is written
+ * every flush interval, or as soon as it holds changes for the maximum number of
+ * authorizables.
+ * <p>
+ * Dropping a count is idempotent, so a change written after the {@link CountsRefreshJob}
+ * has recounted an authorizable only causes one more recount; it can never be counted
+ * twice.
+ */
+@Component(label = "Nakamura :: CountAggregator",
+    description = "Buffers changes to authorizable counts and writes them in batches",
+    immediate = true, metatype = true)
+@Service(value = CountAggregator.class)
+public class CountAggregator {
+  private static final Logger LOGGER = LoggerFactory.getLogger(CountAggregator.class);
+
+  @Reference
+  protected Repository repository;
+
+  @Reference
+  protected Scheduler scheduler;
+
+  @Property(longValue = 5, label = "Flush Interval Seconds",
+      description = "How often buffered count changes are written")
+  protected static final String PROP_FLUSH_INTERVAL_SECONDS = "countaggregator.flushinterval";
+
+  @Property(intValue = 1000, label = "Maximum Pending Authorizables",
+      description = "Buffered count changes are written as soon as this many authorizables have changes")
+  protected static final String PROP_MAX_PENDING = "countaggregator.maxpending";
+
+  protected final static String JOB_NAME = "flushCountsJob";
+
+  private final Object pendingLock = new Object();
+
+  /**
+   * Serializes the writes, so two flushes never update the same record at the same time.
+   */
+  private final Object flushLock = new Object();
+
+  private Map<String, Set<String>> pending = new HashMap<String, Set<String>>();
+
+  private int maxPending = 1000;
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    long flushInterval = PropertiesUtil.toLong(properties.get(PROP_FLUSH_INTERVAL_SECONDS), 5);
+    maxPending = PropertiesUtil.toInteger(properties.get(PROP_MAX_PENDING), 1000);
+    try {
+      scheduler.addPeriodicJob(JOB_NAME, new Runnable() {
+        public void run() {
+          flush();
+        }
+      }, new HashMap<String, Serializable>(), flushInterval, false);
+    } catch (Exception e) {
+      LOGGER.error("Failed to add periodic job for CountAggregator", e);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    scheduler.removeJob(JOB_NAME);
+    flush();
+  }
+
+  /**
+   * Buffer a change to a count property.
+   *
+   * @param id
+   *          the id of the authorizable.
+   * @param key
+   *          the name of the count property that is no longer accurate.
+   */
+  public void changed(String id, String key) {
+    if (id == null || CountProvider.IGNORE_AUTHIDS.contains(id)) {
+      return;
+    }
+    boolean full;
+    synchronized (pendingLock) {
+      Set<String> keys = pending.get(id);
+      if (keys == null) {
+        keys = new HashSet<String>();
+        pending.put(id, keys);
+      }
+      keys.add(key);
+      full = pending.size() >= maxPending;
+    }
+    if (full) {
+      flush();
+    }
+  }
+
+  /**
+   * @return the number of authorizables with buffered changes.
+   */
+  public int getPendingCount() {
+    synchronized (pendingLock) {
+      return pending.size();
+    }
+  }
+
+  /**
+   * Write all buffered changes, one update per authorizable.
+   */
+  public void flush() {
+    Map<String, Set<String>> batch;
+    synchronized (pendingLock) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      batch = pending;
+      pending = new HashMap<String, Set<String>>();
+    }
+    synchronized (flushLock) {
+      Session session = null;
+      try {
+        session = repository.loginAdministrative();
+        AuthorizableManager authorizableManager = session.getAuthorizableManager();
+        long startTicks = System.currentTimeMillis();
+        for (Entry<String, Set<String>> e : batch.entrySet()) {
+          apply(authorizableManager, e.getKey(), e.getValue());
+        }
+        LOGGER.debug("updated counts on {} authorizables in {} ms", batch.size(),
+            System.currentTimeMillis() - startTicks);
+      } catch (ClientPoolException e) {
+        LOGGER.warn("Unable to write counts, will retry: " + e.getMessage(), e);
+        requeue(batch);
+      } catch (StorageClientException e) {
+        LOGGER.warn("Unable to write counts, will retry: " + e.getMessage(), e);
+        requeue(batch);
+      } catch (AccessDeniedException e) {
+        LOGGER.warn("Unable to write counts, will retry: " + e.getMessage(), e);
+        requeue(batch);
+      } finally {
+        if (session != null) {
+          try {
+            session.logout();
+          } catch (ClientPoolException e) {
+            LOGGER.warn(e.getMessage(), e);
+          }
+        }
+      }
+    }
+  }
+
+  private void apply(AuthorizableManager authorizableManager, String id, Set<String> keys) {
+    try {
+      Authorizable au = authorizableManager.findAuthorizable(id);
+      if (au == null) {
+        return;
+      }
+      boolean changed = false;
+      for (String key : keys) {
+        if (au.hasProperty(key)) {
+          au.removeProperty(key);
+          changed = true;
+        }
+      }
+      if (changed) {
+        authorizableManager.updateAuthorizable(au, false);
+        LOGGER.debug("Removed {} from authorizable {}", keys, id);
+      }
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Unable to update counts of {}: {}", id, e.getMessage());
+    } catch (StorageClientException e) {
+      LOGGER.warn("Unable to update counts of {}: {}", id, e.getMessage());
+    }
+  }
+
+  /**
+   * Put a batch that could not be written back with the changes that arrived since.
+   */
+  private void requeue(Map<String, Set<String>> batch) {
+    synchronized (pendingLock) {
+      for (Entry<String, Set<String>> e : pending.entrySet()) {
+        Set<String> keys = batch.get(e.getKey());
+        if (keys == null) {
+          batch.put(e.getKey(), e.getValue());
+        } else {
+          keys.addAll(e.getValue());
+        }
+      }
+      pending = batch;
+    }
+  }
+}
@@ -26,6 +26,7 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 
+import java.util.Collection;
 import java.util.Set;
 
 
@@ -48,6 +49,16 @@ public interface CountProvider {
    * @throws StorageClientException
    */
   public void update(Authorizable authorizable, Session session) throws AccessDeniedException, StorageClientException;
+
+  /**
+   * recount and save all counts of a batch of authorizables, sharing lookups and Solr
+   * requests between them.
+   * @param authorizables
+   * @param session
+   * @throws AccessDeniedException
+   * @throws StorageClientException
+   */
+  public void update(Collection<Authorizable> authorizables, Session session) throws AccessDeniedException, StorageClientException;
   
  /**
   * 
@@ -36,6 +36,8 @@ import org.sakaiproject.nakamura.api.solr.SolrServerService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 
 import static org.sakaiproject.nakamura.api.user.UserConstants.*;
@@ -81,6 +83,31 @@ public class CountProviderImpl implements CountProvider {
 
   }
 
+  public void update(Collection<Authorizable> authorizables, Session session)
+      throws AccessDeniedException, StorageClientException {
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+    Map<String, Integer> contentCounts = contentCounter.countExact(authorizables,
+        authorizableManager, solrSearchService);
+    // members shared between the groups of the batch are looked up once.
+    Map<String, Authorizable> resolvedMembers = new HashMap<String, Authorizable>();
+    for (Authorizable authorizable : authorizables) {
+      if (authorizable == null || IGNORE_AUTHIDS.contains(authorizable.getId())) {
+        continue;
+      }
+      Integer contentCount = contentCounts.get(authorizable.getId());
+      authorizable.setProperty(CONTENT_ITEMS_PROP, contentCount == null ? 0 : contentCount);
+      if (authorizable instanceof User) {
+        authorizable.setProperty(CONTACTS_PROP, getContactsCount(authorizable, authorizableManager));
+        authorizable.setProperty(GROUP_MEMBERSHIPS_PROP, getGroupsCount(authorizable, authorizableManager));
+      } else if (authorizable instanceof Group) {
+        authorizable.setProperty(GROUP_MEMBERS_PROP, groupMembersCounter.count(
+            (Group) authorizable, authorizableManager, resolvedMembers));
+      }
+      authorizable.setProperty(COUNTS_LAST_UPDATE_PROP, System.currentTimeMillis());
+      authorizableManager.updateAuthorizable(authorizable, false);
+    }
+  }
+
   @Override
   public void updateCountProperty(Authorizable authorizable, String propertyName, Session session)
       throws AccessDeniedException, StorageClientException {
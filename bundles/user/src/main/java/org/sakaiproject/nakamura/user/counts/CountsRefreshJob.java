@@ -33,9 +33,16 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.sakaiproject.nakamura.api.user.AuthorizableUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 public class CountsRefreshJob implements Job {
   private static final Logger LOGGER = LoggerFactory.getLogger(CountsRefreshJob.class);
 
@@ -73,7 +80,8 @@ public class CountsRefreshJob implements Job {
       StringBuilder querySB = new StringBuilder("+resourceType:authorizable AND -countLastUpdate:[")
                               .append(updateTicks).append(" TO * ]");
       String queryString = querySB.toString();
-      SolrQuery solrQuery = new SolrQuery(queryString).setStart(0).setRows(batchSize);
+      SolrQuery solrQuery = new SolrQuery(queryString).setStart(0).setRows(batchSize)
+          .setFields("id");
       QueryResponse response;
       try {
         response = solrServer.query(solrQuery);
@@ -88,14 +96,18 @@ public class CountsRefreshJob implements Job {
           LOGGER.info("will update counts on max of {} authorizables",
               new Object[] { batchSize });
           long startTicks = System.currentTimeMillis();
-          int count = 0;
+          Set<String> authorizableIds = new LinkedHashSet<String>(results.size());
           for (SolrDocument solrDocument : results) {
-            String authorizableId = (String) solrDocument.getFieldValue("id");
-            Authorizable authorizable = authManager.findAuthorizable(authorizableId);
+            authorizableIds.add((String) solrDocument.getFieldValue("id"));
+          }
+          Map<String, Authorizable> found = AuthorizableUtil.findAuthorizables(authManager,
+              authorizableIds);
+          List<Authorizable> authorizables = new ArrayList<Authorizable>(found.size());
+          for (String authorizableId : authorizableIds) {
+            Authorizable authorizable = found.get(authorizableId);
             if (authorizable != null) {
               if (authorizable.getId() != null) {
-                this.countProvider.update(authorizable, adminSession);
-                count++;              
+                authorizables.add(authorizable);
               } else {
                 LOGGER.debug(
                     "found authorizable with id {} in Solr index but with NULL id in Sparse, not updating", 
@@ -107,6 +119,10 @@ public class CountsRefreshJob implements Job {
                       new Object[] { authorizableId });
             }
           }
+          // recount the whole batch together, content counts come from faceted Solr
+          // requests and group members are looked up once for the batch.
+          this.countProvider.update(authorizables, adminSession);
+          int count = authorizables.size();
           long endTicks = System.currentTimeMillis();
           LOGGER.info("updated {} authorizables in {} seconds", new Object[] { count,
               (endTicks - startTicks) / 1000 });
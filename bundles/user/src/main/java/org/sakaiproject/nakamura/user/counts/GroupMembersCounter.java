@@ -26,7 +26,9 @@ import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 public class GroupMembersCounter {
@@ -39,24 +41,39 @@ public class GroupMembersCounter {
    * @return the number of members in this group.
    */
   public int count(Group group, AuthorizableManager authMgr) {
+    return count(group, authMgr, new HashMap<String, Authorizable>());
+  }
+
+  /**
+   * @param group
+   * @param authMgr
+   * @param resolved
+   *          members already looked up, shared when counting several groups so a user
+   *          that is a member of many of them is only loaded once. Members that don't
+   *          exist are held as null.
+   * @return the number of members in this group.
+   */
+  public int count(Group group, AuthorizableManager authMgr,
+      Map<String, Authorizable> resolved) {
     if ( group != null && !CountProvider.IGNORE_AUTHIDS.contains(group.getId())) {
-      return countMembers(group.getMembers(), authMgr);
+      return countMembers(group.getMembers(), authMgr, new HashSet<String>(), resolved);
     }
     return 0;
   }
-
-  private int countMembers(String[] members, AuthorizableManager authMgr) {
-    return countMembers(members, authMgr, new HashSet<String>());
-  }
-  
   
   private int countMembers(String[] members, AuthorizableManager authMgr,
-      Set<String> groupsAlreadyProcessed) {
+      Set<String> groupsAlreadyProcessed, Map<String, Authorizable> resolved) {
     int count = 0;
     for (String member : members) {
       LOGGER.debug("Checking member: " + member);
       try {
-        Authorizable auth = authMgr.findAuthorizable(member);
+        Authorizable auth;
+        if (resolved.containsKey(member)) {
+          auth = resolved.get(member);
+        } else {
+          auth = authMgr.findAuthorizable(member);
+          resolved.put(member, auth);
+        }
         // only count the members in a pseudogroup; not the group itself
 		if (auth instanceof Group && Boolean.parseBoolean(String.valueOf(auth.getProperty(UserConstants.PROP_PSEUDO_GROUP)))) {
           Group group = (Group) auth;
@@ -64,7 +81,8 @@ public class GroupMembersCounter {
           if (!groupsAlreadyProcessed.contains(group.getId())) {
             LOGGER.debug("pseudoGroup: " + group.getId() + "not already processed, counting..");
             groupsAlreadyProcessed.add(group.getId());
-            count += countMembers(group.getMembers(), authMgr, groupsAlreadyProcessed);
+            count += countMembers(group.getMembers(), authMgr, groupsAlreadyProcessed,
+                resolved);
           } else {
             LOGGER.debug("pseudoGroup: " + group.getId() + "already processed, not counted again");
           }
@@ -0,0 +1,93 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+public class AuthorizableUtilTest {
+
+  private Session session;
+  private AuthorizableManager authorizableManager;
+
+  @Before
+  public void before() throws Exception {
+    Repository repository = new BaseMemoryRepository().getRepository();
+    session = repository.loginAdministrative();
+    AuthorizableManager adminManager = session.getAuthorizableManager();
+    assertTrue(adminManager.createUser("ieb", "Ian Boston", "password", null));
+    assertTrue(adminManager.createUser("zach", "Zach Thomas", "password", null));
+    assertTrue(adminManager.createGroup("g-course", "Course", null));
+    // counts the lookups made through the manager
+    authorizableManager = Mockito.spy(adminManager);
+  }
+
+  @After
+  public void after() throws Exception {
+    session.logout();
+  }
+
+  @Test
+  public void testFindsEachDistinctIdOnce() throws Exception {
+    Map<String, Authorizable> found = AuthorizableUtil.findAuthorizables(
+        authorizableManager, Arrays.asList("zach", "g-course", "ieb", "zach", "ieb", "zach",
+            "g-course"));
+
+    assertEquals(Arrays.asList("zach", "g-course", "ieb"),
+        new ArrayList<String>(found.keySet()));
+    assertEquals("zach", found.get("zach").getId());
+    verify(authorizableManager, times(3)).findAuthorizable(anyString());
+  }
+
+  @Test
+  public void testLeavesOutMissingAndEmptyIds() throws Exception {
+    Map<String, Authorizable> found = AuthorizableUtil.findAuthorizables(
+        authorizableManager, Arrays.asList("ieb", null, "", "nobody", "nobody"));
+
+    assertEquals(Arrays.asList("ieb"), new ArrayList<String>(found.keySet()));
+    verify(authorizableManager, times(1)).findAuthorizable("nobody");
+    verify(authorizableManager, times(2)).findAuthorizable(anyString());
+  }
+
+  @Test
+  public void testEmptyBatchNeverTouchesStorage() throws Exception {
+    assertTrue(AuthorizableUtil.findAuthorizables(authorizableManager,
+        Collections.<String> emptyList()).isEmpty());
+    assertTrue(AuthorizableUtil.findAuthorizables(authorizableManager, null).isEmpty());
+    verify(authorizableManager, never()).findAuthorizable(anyString());
+  }
+}
@@ -18,9 +18,12 @@
 package org.sakaiproject.nakamura.user;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertTrue;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
@@ -31,6 +34,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentMatcher;
 import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
@@ -40,9 +44,13 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.solr.SolrServerService;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+import org.sakaiproject.nakamura.user.counts.CountProvider;
 import org.sakaiproject.nakamura.user.counts.CountProviderImpl;
 
 import java.io.IOException;
@@ -68,6 +76,7 @@ public class BasicUserInfoServiceTest {
     userProps.put("lastName", "Boston");
     userProps.put("email", "ieb@gmail.com");
     assertTrue(aam.createUser("ieb", "Ian Boston", "password", userProps));
+    assertTrue(aam.createUser("zach", "Zach Thomas", "password", ImmutableMap.of("firstName", (Object) "Zach")));
     adminSession.logout();
     session = repository.loginAdministrative("ieb");
     basicUserInfoService = new BasicUserInfoServiceImpl();
@@ -97,6 +106,7 @@ public class BasicUserInfoServiceTest {
   
   @After
   public void after() {
+    basicUserInfoService.deactivate();
   }
   
   @Test
@@ -117,4 +127,84 @@ public class BasicUserInfoServiceTest {
     assertEquals("ieb@gmail.com", String.valueOf(emailProp.get("value")));
     return;
   }
+
+  @Test
+  public void testGetUserInfoInBulk() throws Exception {
+    AuthorizableManager am = session.getAuthorizableManager();
+    Authorizable ieb = am.findAuthorizable("ieb");
+    Authorizable zach = am.findAuthorizable("zach");
+    Map<String, Map<String, Object>> basicUserInfos = basicUserInfoService
+        .getProperties(Lists.newArrayList(zach, ieb, null, zach));
+    assertEquals(Lists.newArrayList("zach", "ieb"),
+        Lists.newArrayList(basicUserInfos.keySet()));
+    assertEquals("ieb", basicUserInfos.get("ieb").get("userid"));
+    assertEquals("zach", basicUserInfos.get("zach").get("userid"));
+  }
+
+  @Test
+  public void testInfoIsReusedWithinARequest() throws Exception {
+    MapCacheImpl<Map<String, Object>> requestCache = new MapCacheImpl<Map<String, Object>>(
+        "test", CacheScope.REQUEST);
+    CacheManagerService cacheManagerService = Mockito.mock(CacheManagerService.class);
+    Mockito.when(
+        cacheManagerService.<Map<String, Object>> getCache(Mockito.anyString(),
+            Mockito.eq(CacheScope.REQUEST))).thenReturn(requestCache);
+    Mockito.when(cacheManagerService.isBound(CacheScope.REQUEST)).thenReturn(true);
+    basicUserInfoService.cacheManagerService = cacheManagerService;
+
+    Authorizable ieb = session.getAuthorizableManager().findAuthorizable("ieb");
+    Map<String, Object> first = basicUserInfoService.getProperties(ieb);
+    first.put("decorated", true);
+    Map<String, Object> second = basicUserInfoService.getProperties(ieb);
+
+    assertEquals(1, requestCache.size());
+    assertNotSame(first, second);
+    assertFalse(second.containsKey("decorated"));
+    assertEquals(first.get(UserConstants.USER_BASIC), second.get(UserConstants.USER_BASIC));
+  }
+
+  @Test
+  public void testInfoIsNotCachedOutsideARequest() throws Exception {
+    CacheManagerService cacheManagerService = Mockito.mock(CacheManagerService.class);
+    Mockito.when(cacheManagerService.isBound(CacheScope.REQUEST)).thenReturn(false);
+    basicUserInfoService.cacheManagerService = cacheManagerService;
+
+    Authorizable ieb = session.getAuthorizableManager().findAuthorizable("ieb");
+    assertEquals("ieb", basicUserInfoService.getProperties(ieb).get("userid"));
+    // nothing would clear a request cache on this thread.
+    Mockito.verify(cacheManagerService, Mockito.never()).getCache(Mockito.anyString(),
+        Mockito.eq(CacheScope.REQUEST));
+  }
+
+  @Test
+  public void testMissingCountsAreComputedInTheBackground() throws Exception {
+    CountProvider countProvider = Mockito.mock(CountProvider.class);
+    basicUserInfoService.countProvider = countProvider;
+    Map<String, Object> m = ImmutableMap.of();
+    basicUserInfoService.activated(m);
+
+    AuthorizableManager am = session.getAuthorizableManager();
+    basicUserInfoService.getProperties(Lists.newArrayList(am.findAuthorizable("ieb"),
+        am.findAuthorizable("zach")));
+
+    Mockito.verify(countProvider, Mockito.timeout(5000).atLeastOnce()).updateCountProperty(
+        Mockito.argThat(new AuthorizableWithId("zach")),
+        Mockito.eq(UserConstants.CONTACTS_PROP), Mockito.any(Session.class));
+    Mockito.verify(countProvider, Mockito.timeout(5000).atLeastOnce()).updateCountProperty(
+        Mockito.argThat(new AuthorizableWithId("ieb")),
+        Mockito.eq(UserConstants.CONTACTS_PROP), Mockito.any(Session.class));
+  }
+
+  private static class AuthorizableWithId extends ArgumentMatcher<Authorizable> {
+    private final String id;
+
+    AuthorizableWithId(String id) {
+      this.id = id;
+    }
+
+    @Override
+    public boolean matches(Object argument) {
+      return argument instanceof Authorizable && id.equals(((Authorizable) argument).getId());
+    }
+  }
 }
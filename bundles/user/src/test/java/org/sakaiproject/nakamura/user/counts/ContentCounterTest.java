@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.counts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest.METHOD;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ContentCounterTest {
+
+  private SolrServer solrServer;
+  private SolrServerService solrServerService;
+  private AuthorizableManager authorizableManager;
+
+  @Before
+  public void before() throws Exception {
+    solrServer = mock(SolrServer.class);
+    solrServerService = mock(SolrServerService.class);
+    when(solrServerService.getServer()).thenReturn(solrServer);
+    authorizableManager = mock(AuthorizableManager.class);
+
+    // every facet query of a request counts as many docs as the digits in it, so each
+    // authorizable gets a count that can only have come from its own facet.
+    when(solrServer.query(any(SolrQuery.class), eq(METHOD.POST))).thenAnswer(
+        new Answer<QueryResponse>() {
+          public QueryResponse answer(InvocationOnMock invocation) throws Throwable {
+            SolrQuery query = (SolrQuery) invocation.getArguments()[0];
+            Map<String, Integer> facetCounts = new HashMap<String, Integer>();
+            for (String facetQuery : query.getFacetQuery()) {
+              facetCounts.put(facetQuery, countFor(facetQuery));
+            }
+            QueryResponse response = mock(QueryResponse.class);
+            when(response.getFacetQuery()).thenReturn(facetCounts);
+            return response;
+          }
+        });
+  }
+
+  @Test
+  public void testBatchCountsFromOneFacetQuery() throws Exception {
+    List<Authorizable> authorizables = new ArrayList<Authorizable>();
+    authorizables.add(user("user1", "group1"));
+    authorizables.add(group("group22"));
+    authorizables.add(user("user333"));
+    authorizables.add(user("admin"));
+
+    Map<String, Integer> counts = new ContentCounter().countExact(authorizables,
+        authorizableManager, solrServerService);
+
+    verify(solrServer, times(1)).query(any(SolrQuery.class), eq(METHOD.POST));
+    assertEquals(3, counts.size());
+    assertEquals(countFor(memberQuery(authorizables, 0)), (int) counts.get("user1"));
+    assertEquals(countFor(memberQuery(authorizables, 1)), (int) counts.get("group22"));
+    assertEquals(countFor(memberQuery(authorizables, 2)), (int) counts.get("user333"));
+    // ignored authorizables are not counted.
+    assertFalse(counts.containsKey("admin"));
+  }
+
+  @Test
+  public void testLargeBatchIsSplit() throws Exception {
+    List<Authorizable> authorizables = new ArrayList<Authorizable>();
+    for (int i = 0; i < ContentCounter.FACET_BATCH_SIZE + 1; i++) {
+      authorizables.add(user("user" + i));
+    }
+
+    Map<String, Integer> counts = new ContentCounter().countExact(authorizables,
+        authorizableManager, solrServerService);
+
+    verify(solrServer, times(2)).query(any(SolrQuery.class), eq(METHOD.POST));
+    assertEquals(ContentCounter.FACET_BATCH_SIZE + 1, counts.size());
+  }
+
+  /**
+   * @return the facet query sent for the authorizable at the index, by asking the counter
+   *         for that authorizable alone.
+   */
+  private String memberQuery(List<Authorizable> authorizables, int index)
+      throws Exception {
+    SolrServer single = mock(SolrServer.class);
+    SolrServerService singleService = mock(SolrServerService.class);
+    when(singleService.getServer()).thenReturn(single);
+    final String[] facet = new String[1];
+    when(single.query(any(SolrQuery.class), eq(METHOD.POST))).thenAnswer(
+        new Answer<QueryResponse>() {
+          public QueryResponse answer(InvocationOnMock invocation) throws Throwable {
+            facet[0] = ((SolrQuery) invocation.getArguments()[0]).getFacetQuery()[0];
+            return mock(QueryResponse.class);
+          }
+        });
+    List<Authorizable> one = new ArrayList<Authorizable>();
+    one.add(authorizables.get(index));
+    new ContentCounter().countExact(one, authorizableManager, singleService);
+    return facet[0];
+  }
+
+  private static int countFor(String facetQuery) {
+    return facetQuery.replaceAll("[^0-9]", "").length();
+  }
+
+  private Authorizable user(String id, String... principals) {
+    Authorizable user = mock(Authorizable.class);
+    when(user.getId()).thenReturn(id);
+    when(user.isGroup()).thenReturn(false);
+    when(user.getPrincipals()).thenReturn(principals);
+    return user;
+  }
+
+  private Authorizable group(String id) {
+    Authorizable group = mock(Authorizable.class);
+    when(group.getId()).thenReturn(id);
+    when(group.isGroup()).thenReturn(true);
+    when(group.getPrincipals()).thenReturn(new String[0]);
+    return group;
+  }
+}
@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.counts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+public class CountAggregatorTest {
+
+  private Repository memoryRepository;
+  private Repository repository;
+  private CountAggregator countAggregator;
+
+  @Before
+  public void before() throws Exception {
+    memoryRepository = new BaseMemoryRepository().getRepository();
+    Session session = memoryRepository.loginAdministrative();
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+    authorizableManager.createGroup("g-course", "Course", null);
+    authorizableManager.createUser("ieb", "Ian Boston", "password", null);
+    session.logout();
+    setCount("g-course", UserConstants.GROUP_MEMBERS_PROP, 3);
+    setCount("ieb", UserConstants.GROUP_MEMBERSHIPS_PROP, 1);
+    setCount("ieb", UserConstants.CONTACTS_PROP, 2);
+    repository = Mockito.spy(memoryRepository);
+
+    countAggregator = new CountAggregator();
+    countAggregator.repository = repository;
+    countAggregator.scheduler = Mockito.mock(Scheduler.class);
+    countAggregator.activate(new HashMap<String, Object>());
+  }
+
+  @Test
+  public void testCoalescesChangesIntoOneUpdate() throws Exception {
+    for (int i = 0; i < 5000; i++) {
+      countAggregator.changed("g-course", UserConstants.GROUP_MEMBERS_PROP);
+    }
+    countAggregator.changed("ieb", UserConstants.GROUP_MEMBERSHIPS_PROP);
+    assertEquals(2, countAggregator.getPendingCount());
+    assertTrue(hasCount("g-course", UserConstants.GROUP_MEMBERS_PROP));
+
+    countAggregator.flush();
+
+    verify(repository, times(1)).loginAdministrative();
+    assertEquals(0, countAggregator.getPendingCount());
+    assertFalse(hasCount("g-course", UserConstants.GROUP_MEMBERS_PROP));
+    assertFalse(hasCount("ieb", UserConstants.GROUP_MEMBERSHIPS_PROP));
+    // only the changed count is dropped
+    assertTrue(hasCount("ieb", UserConstants.CONTACTS_PROP));
+  }
+
+  @Test
+  public void testChangeAfterRecountIsNotAppliedTwice() throws Exception {
+    countAggregator.changed("g-course", UserConstants.GROUP_MEMBERS_PROP);
+    // the refresh job recounts the group while the change is still buffered
+    setCount("g-course", UserConstants.GROUP_MEMBERS_PROP, 4);
+    countAggregator.flush();
+    // the count is recalculated on the next read, rather than adjusted again
+    assertFalse(hasCount("g-course", UserConstants.GROUP_MEMBERS_PROP));
+    countAggregator.flush();
+    assertFalse(hasCount("g-course", UserConstants.GROUP_MEMBERS_PROP));
+  }
+
+  @Test
+  public void testFlushesWhenTooManyAuthorizablesArePending() throws Exception {
+    countAggregator.activate(ImmutableMap.of(CountAggregator.PROP_MAX_PENDING,
+        (Object) 2));
+    countAggregator.changed("ieb", UserConstants.CONTACTS_PROP);
+    assertEquals(1, countAggregator.getPendingCount());
+    countAggregator.changed("g-course", UserConstants.GROUP_MEMBERS_PROP);
+    assertEquals(0, countAggregator.getPendingCount());
+    assertFalse(hasCount("ieb", UserConstants.CONTACTS_PROP));
+  }
+
+  @Test
+  public void testIgnoresSystemAuthorizables() throws Exception {
+    countAggregator.changed(Group.EVERYONE, UserConstants.GROUP_MEMBERS_PROP);
+    assertEquals(0, countAggregator.getPendingCount());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testCountChangerIsBuffered() throws Exception {
+    AuthorizableCountChangerImpl countChanger = new AuthorizableCountChangerImpl();
+    countChanger.countAggregator = countAggregator;
+    List<String> managers = Arrays.asList("ieb");
+    List<String> viewers = new ArrayList<String>();
+    for (int i = 0; i < 100; i++) {
+      viewers.add("g-course");
+    }
+    countChanger.notify(UserConstants.CONTENT_ITEMS_PROP, viewers, managers);
+    countChanger.notify(UserConstants.CONTACTS_PROP, "ieb");
+    assertEquals(2, countAggregator.getPendingCount());
+    verify(repository, times(0)).loginAdministrative();
+
+    countAggregator.flush();
+    verify(repository, times(1)).loginAdministrative();
+    assertFalse(hasCount("ieb", UserConstants.CONTACTS_PROP));
+  }
+
+  private void setCount(String id, String key, int count)
+      throws Exception {
+    Session session = memoryRepository.loginAdministrative();
+    try {
+      AuthorizableManager authorizableManager = session.getAuthorizableManager();
+      Authorizable au = authorizableManager.findAuthorizable(id);
+      au.setProperty(key, count);
+      authorizableManager.updateAuthorizable(au, false);
+    } finally {
+      session.logout();
+    }
+  }
+
+  private boolean hasCount(String id, String key) throws Exception {
+    Session session = memoryRepository.loginAdministrative();
+    try {
+      Authorizable au = session.getAuthorizableManager().findAuthorizable(id);
+      return au.hasProperty(key);
+    } finally {
+      session.logout();
+    }
+  }
+}
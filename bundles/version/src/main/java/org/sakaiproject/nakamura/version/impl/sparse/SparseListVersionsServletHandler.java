@@ -28,6 +28,7 @@ import org.apache.sling.commons.json.JSONException;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
@@ -40,13 +41,18 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Gets a version
+ * Lists a page of the version history of a content item. The editor of each version is
+ * looked up once per request however many of the versions on the page they saved. With
+ * the <code>summary</code> selector only the version id, editor and timestamps of each
+ * version are written rather than all its properties.
  */
 
 @Component(metatype=true, immediate=true)
@@ -77,6 +83,12 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
   */
   public static final String PARAMS_PAGE = "page";
 
+  /**
+   * The properties written for each version with the summary selector.
+   */
+  private static final String[] SUMMARY_FIELDS = { Content.CREATED_FIELD,
+      Content.CREATED_BY_FIELD, Content.LASTMODIFIED_FIELD, Content.LASTMODIFIED_BY_FIELD };
+
   private static final Logger LOGGER = LoggerFactory.getLogger(SparseListVersionsServletHandler.class);
 
   public void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
@@ -94,9 +106,11 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
         return;
       }
       path = content.getPath();
-      int nitems = intRequestParameter(request, PARAMS_ITEMS_PER_PAGE, 25);
-      int offset = intRequestParameter(request, PARAMS_PAGE, 0) * nitems;
+      int nitems = Math.max(0, intRequestParameter(request, PARAMS_ITEMS_PER_PAGE, 25));
+      int offset = Math.max(0, intRequestParameter(request, PARAMS_PAGE, 0)) * nitems;
 
+      // the history is a single row of version ids, only the versions on the page are
+      // loaded.
       List<String> versionList = contentManager.getVersionHistory(path);
       int total = versionList.size();
       int start = Math.min(offset, total);
@@ -107,11 +121,13 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
       response.setCharacterEncoding("UTF-8");
 
       boolean tidy = false;
+      boolean summary = false;
       String[] selectors = request.getRequestPathInfo().getSelectors();
       for (String selector : selectors) {
         if ("tidy".equals(selector)) {
           tidy = true;
-          break;
+        } else if ("summary".equals(selector)) {
+          summary = true;
         }
       }
 
@@ -128,6 +144,7 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
       write.key(JSON_VERSIONS);
       write.object();
       
+      Map<String, Map<String, Object>> editors = new HashMap<String, Map<String, Object>>();
       for (int j = start; j < end ; j++) {
         write.key("1."+(versionList.size()-j-1));
         write.object();
@@ -135,8 +152,14 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
         String versionId = versionList.get(j);
         write.value(versionId);
         Content vContent = contentManager.getVersion(path, versionId);
-        writeEditorDetails(vContent, write, authorizableManager);
-        ExtendedJSONWriter.writeNodeContentsToWriter(write, vContent);
+        if (vContent != null) {
+          writeEditorDetails(vContent, write, authorizableManager, editors);
+          if (summary) {
+            writeSummary(vContent, write);
+          } else {
+            ExtendedJSONWriter.writeNodeContentsToWriter(write, vContent);
+          }
+        }
         write.endObject();
       }
       write.endObject();
@@ -159,7 +182,13 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
     }
   }
 
-  private void writeEditorDetails(Content content, ExtendedJSONWriter write, AuthorizableManager authorizableManager)
+  /**
+   * @param editors
+   *          the properties of the editors already looked up in this request, null for
+   *          editors that no longer exist.
+   */
+  private void writeEditorDetails(Content content, ExtendedJSONWriter write,
+      AuthorizableManager authorizableManager, Map<String, Map<String, Object>> editors)
       throws JSONException, AccessDeniedException, StorageClientException {
     String user = null;
     if (content.hasProperty(Content.VERSION_SAVEDBY_FIELD)) {
@@ -168,9 +197,28 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
     
 
     if (user != null) {
-      org.sakaiproject.nakamura.api.lite.authorizable.Authorizable authorizable = authorizableManager.findAuthorizable(user);
-      write.key(Content.VERSION_SAVEDBY_FIELD);
-      write.valueMap(authorizable.getSafeProperties());
+      Map<String, Object> editor;
+      if (editors.containsKey(user)) {
+        editor = editors.get(user);
+      } else {
+        Authorizable authorizable = authorizableManager.findAuthorizable(user);
+        editor = authorizable == null ? null : authorizable.getSafeProperties();
+        editors.put(user, editor);
+      }
+      if (editor != null) {
+        write.key(Content.VERSION_SAVEDBY_FIELD);
+        write.valueMap(editor);
+      }
+    }
+  }
+
+  private void writeSummary(Content content, ExtendedJSONWriter write)
+      throws JSONException {
+    for (String field : SUMMARY_FIELDS) {
+      if (content.hasProperty(field)) {
+        write.key(field);
+        write.value(content.getProperty(field));
+      }
     }
   }
 
@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.version.impl.sparse;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class SparseListVersionsServletHandlerTest {
+
+  @Test
+  public void testEditorIsLookedUpOncePerRequest() throws Exception {
+    Content content = new Content("/p/doc", new HashMap<String, Object>());
+    ContentManager contentManager = createMock(ContentManager.class);
+    expect(contentManager.getVersionHistory("/p/doc")).andReturn(
+        Arrays.asList("v4", "v3", "v2", "v1"));
+    for (String versionId : new String[] { "v2", "v1" }) {
+      Map<String, Object> properties = new HashMap<String, Object>();
+      properties.put(Content.VERSION_SAVEDBY_FIELD, "alice");
+      properties.put(Content.LASTMODIFIED_FIELD, 1000L);
+      properties.put("sakai:pagecontent", "a large body");
+      expect(contentManager.getVersion("/p/doc", versionId)).andReturn(
+          new Content("/p/doc", properties));
+    }
+
+    Map<String, Object> aliceProperties = new HashMap<String, Object>();
+    aliceProperties.put(User.ID_FIELD, "alice");
+    AuthorizableManager authorizableManager = createMock(AuthorizableManager.class);
+    expect(authorizableManager.findAuthorizable("alice")).andReturn(
+        new User(aliceProperties)).once();
+    Session session = createMock(Session.class);
+    expect(session.getAuthorizableManager()).andReturn(authorizableManager);
+
+    Resource resource = createMock(Resource.class);
+    expect(resource.adaptTo(Content.class)).andReturn(content);
+    expect(resource.adaptTo(ContentManager.class)).andReturn(contentManager);
+    expect(resource.adaptTo(Session.class)).andReturn(session);
+
+    RequestPathInfo pathInfo = createMock(RequestPathInfo.class);
+    expect(pathInfo.getSelectors()).andReturn(new String[] { "summary" });
+    SlingHttpServletRequest request = createNiceMock(SlingHttpServletRequest.class);
+    expect(request.getResource()).andReturn(resource).anyTimes();
+    expect(request.getRequestPathInfo()).andReturn(pathInfo);
+    // the second page of two versions.
+    RequestParameter items = createMock(RequestParameter.class);
+    expect(items.getString()).andReturn("2");
+    RequestParameter page = createMock(RequestParameter.class);
+    expect(page.getString()).andReturn("1");
+    expect(request.getRequestParameter("items")).andReturn(items);
+    expect(request.getRequestParameter("page")).andReturn(page);
+
+    StringWriter output = new StringWriter();
+    SlingHttpServletResponse response = createNiceMock(SlingHttpServletResponse.class);
+    expect(response.getWriter()).andReturn(new PrintWriter(output));
+
+    replay(contentManager, authorizableManager, session, resource, pathInfo, items, page,
+        request, response);
+    new SparseListVersionsServletHandler().doGet(request, response);
+    verify(contentManager, authorizableManager);
+
+    JSONObject json = new JSONObject(output.toString());
+    assertEquals(2, json.getInt("items"));
+    assertEquals(4, json.getInt("total"));
+    JSONObject versions = json.getJSONObject("versions");
+    assertEquals("v2", versions.getJSONObject("1.1").getString("versionId"));
+    assertEquals("v1", versions.getJSONObject("1.0").getString("versionId"));
+    JSONObject version = versions.getJSONObject("1.0");
+    assertEquals("alice", version.getJSONObject(Content.VERSION_SAVEDBY_FIELD).getString(
+        User.ID_FIELD));
+    assertEquals(1000L, version.getLong(Content.LASTMODIFIED_FIELD));
+    assertEquals(false, version.has("sakai:pagecontent"));
+  }
+}
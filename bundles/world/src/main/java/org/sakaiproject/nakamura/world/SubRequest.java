@@ -71,6 +71,14 @@ public class SubRequest {
   public void doForward() throws IOException, ServletException, JSONException {
     this.request.getRequestDispatcher(this.requestInfo.getUrl()).forward(this.requestWrapper, this.responseWrapper);
     writeResponse(this.write, this.responseWrapper, this.requestInfo);
+    if (!isSuccess()) {
+      throw new ServletException(this.requestInfo.getMethod() + " " + this.requestInfo.getUrl()
+          + " failed with status " + this.responseWrapper.getResponseStatus());
+    }
+  }
+
+  public boolean isSuccess() {
+    return this.responseWrapper.getResponseStatus() < 400;
   }
 
   public String getBody() throws UnsupportedEncodingException {
@@ -85,7 +93,7 @@ public class SubRequest {
       write.key("url");
       write.value(requestData.getUrl());
       write.key("success");
-      write.value(true);
+      write.value(isSuccess());
       write.key("status");
       write.value(responseWrapper.getResponseStatus());
       if (this.includeFullResponse) {
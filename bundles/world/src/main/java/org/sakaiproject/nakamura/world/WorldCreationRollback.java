@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.sakaiproject.nakamura.world;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Records how to undo each piece of a world as it is created, so that a world which fails
+ * halfway through can be taken back down again. Compensations run in the reverse of the
+ * order they were recorded in. Steps running on other threads may record concurrently.
+ */
+public class WorldCreationRollback {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WorldCreationRollback.class);
+
+  public interface Compensation {
+    void undo() throws Exception;
+  }
+
+  private final Deque<String> descriptions = new ArrayDeque<String>();
+
+  private final Deque<Compensation> compensations = new ArrayDeque<Compensation>();
+
+  public synchronized void record(String description, Compensation compensation) {
+    descriptions.push(description);
+    compensations.push(compensation);
+  }
+
+  /**
+   * Runs every recorded compensation, most recent first. A compensation that fails is
+   * logged and skipped so the rest still get their chance.
+   *
+   * @return descriptions of the compensations that could not be applied
+   */
+  public synchronized List<String> rollback() {
+    List<String> failed = new ArrayList<String>();
+    while (!compensations.isEmpty()) {
+      String description = descriptions.pop();
+      Compensation compensation = compensations.pop();
+      try {
+        LOGGER.debug("Rolling back {}", description);
+        compensation.undo();
+      } catch (Exception e) {
+        LOGGER.warn("Failed to roll back " + description, e);
+        failed.add(description);
+      }
+    }
+    return failed;
+  }
+
+}
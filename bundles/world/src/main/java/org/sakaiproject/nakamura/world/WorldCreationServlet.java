@@ -18,22 +18,30 @@
 
 package org.sakaiproject.nakamura.world;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.sling.commons.json.jcr.JsonItemWriter;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.message.LiteMessagingService;
+import org.sakaiproject.nakamura.api.user.AuthorizableCountChanger;
 import org.sakaiproject.nakamura.util.JSONUtils;
 import org.sakaiproject.nakamura.util.PathUtils;
 import org.sakaiproject.nakamura.util.StringUtils;
@@ -51,10 +59,13 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -86,12 +97,46 @@ public class WorldCreationServlet extends SlingAllMethodsServlet {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(WorldCreationServlet.class);
 
+  @Property(intValue = 4, label = "Step Threads",
+      description = "Number of threads that fill in the content of a new world's docs in parallel.")
+  public static final String STEP_THREADS = "world.create.step.threads";
+
+  @Property(intValue = 50, label = "Step Queue Size",
+      description = "Steps queued beyond this run on the request thread instead.")
+  public static final String STEP_QUEUE_SIZE = "world.create.step.queueSize";
+
   @Reference
   protected transient Repository repository;
 
   @Reference
   protected transient SlingRepository slingRepository;
 
+  @Reference
+  protected transient LiteMessagingService messagingService;
+
+  @Reference
+  protected transient AuthorizableCountChanger authorizableCountChanger;
+
+  private transient ThreadPoolExecutor stepExecutor;
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    int threads = PropertiesUtil.toInteger(properties.get(STEP_THREADS), 4);
+    int queueSize = PropertiesUtil.toInteger(properties.get(STEP_QUEUE_SIZE), 50);
+    stepExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+        new ThreadPoolExecutor.CallerRunsPolicy());
+    stepExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (stepExecutor != null) {
+      stepExecutor.shutdown();
+      stepExecutor = null;
+    }
+  }
+
   @Override
   protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response) throws ServletException, IOException {
 
@@ -125,14 +170,31 @@ public class WorldCreationServlet extends SlingAllMethodsServlet {
         write.endObject();
       } else {
         // validated successfully, go ahead and run thru all the steps
-        List<AbstractWorldCreationStep> steps = getSteps(request, response, data, write);
-        for (AbstractWorldCreationStep step : steps) {
-          step.handle();
+        WorldCreationRollback rollback = new WorldCreationRollback();
+        try {
+          runSteps(request, response, data, write, rollback);
+          write.object();
+          write.key("created");
+          write.value(true);
+          write.endObject();
+        } catch (Exception e) {
+          LOGGER.warn("World creation failed, rolling back what was created so far", e);
+          List<String> notRolledBack = rollback.rollback();
+          write.object();
+          write.key("error");
+          write.value(String.valueOf(e.getMessage()));
+          write.endObject();
+          if (!notRolledBack.isEmpty()) {
+            write.object();
+            write.key("rollbackFailed");
+            write.value(new JSONArray(notRolledBack));
+            write.endObject();
+          }
+          write.object();
+          write.key("created");
+          write.value(false);
+          write.endObject();
         }
-        write.object();
-        write.key("created");
-        write.value(true);
-        write.endObject();
       }
 
       write.endArray();
@@ -145,18 +207,12 @@ public class WorldCreationServlet extends SlingAllMethodsServlet {
     } catch (JSONException e) {
       LOGGER.error("Got a JSONException reading world data", e);
       response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Could not parse json for world");
-    } catch (URISyntaxException e) {
-      LOGGER.error("Should never happen since we construct URIs ourselves");
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
     } catch (AccessDeniedException e) {
       LOGGER.error("AccessDeniedException checking whether group exists", e);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
     } catch (StorageClientException e) {
       LOGGER.error("StorageClientException checking whether group exists", e);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-    } catch (RepositoryException e) {
-      LOGGER.error("RepositoryException from Sling looking up world template", e);
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
     } catch (Exception e) {
       LOGGER.error("Unhandled exception ", e);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
@@ -195,16 +251,28 @@ public class WorldCreationServlet extends SlingAllMethodsServlet {
     return authz != null;
   }
 
-  private List<AbstractWorldCreationStep> getSteps(SlingHttpServletRequest request, SlingHttpServletResponse response, JSONObject data, JSONWriter write) throws RepositoryException, JSONException {
+  /**
+   * Runs the steps with one shared session. The groups have to exist before anything else,
+   * then the docs are created, with their content filled in on the step executor. The
+   * invitations go out last, once nothing else can fail, because they cannot be taken back.
+   */
+  private void runSteps(SlingHttpServletRequest request, SlingHttpServletResponse response, JSONObject data,
+                        JSONWriter write, WorldCreationRollback rollback) throws Exception {
     JSONObject worldTemplate = getWorldTemplate(data);
+    Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
+
     List<AbstractWorldCreationStep> steps = new ArrayList<AbstractWorldCreationStep>();
-    steps.add(new MainGroupStep(data, worldTemplate, request, response, write));
-    steps.add(new TagStep(data, worldTemplate, request, response, write));
-    steps.add(new RoleStep(data, worldTemplate, request, response, write));
-    steps.add(new DocStep(data, worldTemplate, request, response, write));
-    steps.add(new SendMessageStep(data, worldTemplate, request, response, write));
-    steps.add(new RemoveCreatorAsExplicitManagerStep(data, worldTemplate, request, response, write));
-    return steps;
+    steps.add(new MainGroupStep(data, worldTemplate, request, response, write, session, rollback));
+    steps.add(new TagStep(data, worldTemplate, request, response, write, session, rollback));
+    steps.add(new RoleStep(data, worldTemplate, request, response, write, session, rollback));
+    steps.add(new DocStep(data, worldTemplate, request, response, write, session, rollback, repository,
+        stepExecutor, authorizableCountChanger));
+    steps.add(new RemoveCreatorAsExplicitManagerStep(data, worldTemplate, request, response, write, session, rollback));
+    steps.add(new SendMessageStep(data, worldTemplate, request, response, write, session, rollback,
+        repository, messagingService));
+    for (AbstractWorldCreationStep step : steps) {
+      step.handle();
+    }
   }
 
   private JSONObject getWorldTemplate(JSONObject data) throws JSONException, RepositoryException {
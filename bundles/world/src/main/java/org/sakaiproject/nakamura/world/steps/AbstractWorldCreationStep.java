@@ -22,6 +22,9 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.world.SubRequest;
+import org.sakaiproject.nakamura.world.WorldCreationRollback;
 
 public abstract class AbstractWorldCreationStep {
 
@@ -35,14 +38,40 @@ public abstract class AbstractWorldCreationStep {
 
   protected JSONObject worldTemplate;
 
-  protected AbstractWorldCreationStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request, SlingHttpServletResponse response, JSONWriter write) {
+  /**
+   * The requesting user's session, shared by every step that runs on the request thread.
+   */
+  protected Session session;
+
+  protected String creatorID;
+
+  protected WorldCreationRollback rollback;
+
+  protected AbstractWorldCreationStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request, SlingHttpServletResponse response, JSONWriter write,
+                                      Session session, WorldCreationRollback rollback) {
     this.data = data;
     this.request = request;
     this.response = response;
     this.write = write;
     this.worldTemplate = worldTemplate;
+    this.session = session;
+    this.creatorID = session.getUserId();
+    this.rollback = rollback;
   }
 
   public abstract void handle() throws Exception;
 
+  /**
+   * Records that a freshly created group should be deleted again if the world fails. The
+   * delete goes through the user manager so the group's post processors clean up after it.
+   */
+  protected void recordGroupDeletion(final String groupID) {
+    rollback.record("group " + groupID, new WorldCreationRollback.Compensation() {
+      public void undo() throws Exception {
+        new SubRequest("/system/userManager/group/" + groupID + ".delete.json", "POST",
+                new JSONObject(), request, response, write).doForward();
+      }
+    });
+  }
+
 }
@@ -18,24 +18,50 @@
 
 package org.sakaiproject.nakamura.world.steps;
 
+import com.google.common.collect.Lists;
+
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.sakaiproject.nakamura.api.files.ContentMemberUtils;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.resource.lite.LiteJsonImporter;
+import org.sakaiproject.nakamura.api.user.AuthorizableCountChanger;
 import org.sakaiproject.nakamura.util.JSONUtils;
 import org.sakaiproject.nakamura.world.SubRequest;
+import org.sakaiproject.nakamura.world.WorldCreationRollback;
 import org.sakaiproject.nakamura.world.WorldCreationServlet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 import javax.servlet.ServletException;
 
+/**
+ * Creates the world's docs. Each doc is created through the pool servlet so it is set up
+ * like any other pooled content item. The docs are then filled in in parallel on the step
+ * executor, each fill on a session of its own, since sparse sessions are not thread safe
+ * and a doc that fails to fill is removed again by its recorded deletion. Members, ACLs and
+ * the group's docstructure are written directly with the shared session.
+ */
 public class DocStep extends AbstractWorldCreationStep {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(DocStep.class);
@@ -46,17 +72,57 @@ public class DocStep extends AbstractWorldCreationStep {
 
   JSONArray pooledContentIDs = new JSONArray();
 
-  public DocStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request, SlingHttpServletResponse response, JSONWriter write) {
-    super(data, worldTemplate, request, response, write);
+  private Repository repository;
+
+  private ExecutorService executor;
+
+  private AuthorizableCountChanger authorizableCountChanger;
+
+  public DocStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request, SlingHttpServletResponse response, JSONWriter write,
+                  Session session, WorldCreationRollback rollback, Repository repository, ExecutorService executor,
+                  AuthorizableCountChanger authorizableCountChanger) {
+    super(data, worldTemplate, request, response, write, session, rollback);
+    this.repository = repository;
+    this.executor = executor;
+    this.authorizableCountChanger = authorizableCountChanger;
   }
 
   @Override
   public void handle() throws Exception {
     substituteTokens();
-    createPooledContent();
+    List<PooledDoc> docs = createPooledContent();
+    fillContent(docs);
+    for (PooledDoc doc : docs) {
+      setPermissions(doc);
+    }
+    if (!docs.isEmpty()) {
+      this.write.object();
+      this.write.key("pooledContentIDs");
+      this.write.value(this.pooledContentIDs);
+      this.write.endObject();
+    }
     addDocStructureToGroup();
   }
 
+  /**
+   * A doc that has been created in the pool and still needs its content and members.
+   */
+  private static class PooledDoc {
+    private final String poolID;
+    private final JSONObject content;
+    private final String permission;
+    private final JSONArray viewers;
+    private final JSONArray editors;
+
+    private PooledDoc(String poolID, JSONObject content, String permission, JSONArray viewers, JSONArray editors) {
+      this.poolID = poolID;
+      this.content = content;
+      this.permission = permission;
+      this.viewers = viewers;
+      this.editors = editors;
+    }
+  }
+
   private void substituteTokens() throws JSONException {
     String processedTemplate = PATTERN_REFID.matcher(this.worldTemplate.toString()).replaceAll(generateWidgetID());
     String mainGroupID = this.data.getString(WorldCreationServlet.PARAMS.id.toString());
@@ -68,19 +134,16 @@ public class DocStep extends AbstractWorldCreationStep {
     return "id" + Math.round(Math.random() * 10000000);
   }
 
-  private void createPooledContent() throws JSONException, IOException, URISyntaxException, ServletException {
+  private List<PooledDoc> createPooledContent() throws JSONException, IOException, URISyntaxException, ServletException {
+    List<PooledDoc> docs = new ArrayList<PooledDoc>();
     JSONObject structure;
     try {
       structure = this.worldTemplate.getJSONObject(WorldCreationServlet.PARAMS.structure.toString());
     } catch (JSONException ignored) {
       // no structure, so bail out
-      return;
+      return docs;
     }
 
-    // Grab the creatorID from the jcrSession
-    javax.jcr.Session jcrSession = request.getResourceResolver().adaptTo(javax.jcr.Session.class);
-    String creatorID = jcrSession.getUserID();
-
     Iterator<String> keys = structure.keys();
     while (keys.hasNext()) {
       JSONObject docDefinition;
@@ -124,85 +187,122 @@ public class DocStep extends AbstractWorldCreationStep {
       LOGGER.debug("Created pooled content item " + poolID);
       docDefinition.put("_pid", poolID);
       this.pooledContentIDs.put(poolID);
+      recordPooledContentDeletion(poolID);
 
-      // now fill in the actual doc content
-      fillContent(docContent, poolID);
-
-      // now set ACLs on the file
-      setPermissions(permission, poolID, viewers, editors, creatorID);
-
+      docContent.remove("structure0");
+      docs.add(new PooledDoc(poolID, docContent, permission, viewers, editors));
     }
+    return docs;
+  }
 
-    this.write.object();
-    this.write.key("pooledContentIDs");
-    this.write.value(this.pooledContentIDs);
-    this.write.endObject();
-
+  /**
+   * The creator is dropped as an explicit manager of each doc further down, so the undo
+   * needs an administrative session to be sure it can still remove the item.
+   */
+  private void recordPooledContentDeletion(final String poolID) {
+    rollback.record("pooled content " + poolID, new WorldCreationRollback.Compensation() {
+      public void undo() throws Exception {
+        Session adminSession = repository.loginAdministrative();
+        try {
+          StorageClientUtils.deleteTree(adminSession.getContentManager(), poolID);
+        } finally {
+          adminSession.logout();
+        }
+      }
+    });
   }
 
-  private void fillContent(JSONObject docContent, String poolID) throws JSONException, URISyntaxException, IOException, ServletException {
-    docContent.remove("structure0");
-    JSONObject fillContentData = new JSONObject();
-    fillContentData.put(":operation", "import");
-    fillContentData.put(":contentType", "json");
-    fillContentData.put(":replace", true);
-    fillContentData.put(":replaceProperties", true);
-    fillContentData.put(":content", docContent.toString());
-
-    LOGGER.debug("Filling in pooled content data = " + fillContentData.toString(2));
-    SubRequest fillContentRequest = new SubRequest("/p/" + poolID, "POST", fillContentData, request, response, write);
-    fillContentRequest.doForward();
+  /**
+   * Fills in every doc at once. All the fills are waited for, even after one has failed, so
+   * that none is still writing when the docs are rolled back.
+   */
+  private void fillContent(List<PooledDoc> docs) throws Exception {
+    List<Future<Void>> fills = new ArrayList<Future<Void>>(docs.size());
+    for (final PooledDoc doc : docs) {
+      fills.add(executor.submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          Session fillSession = repository.loginAdministrative(creatorID);
+          try {
+            LOGGER.debug("Filling in pooled content {} with {} ", doc.poolID, doc.content);
+            new LiteJsonImporter().importContent(fillSession.getContentManager(), doc.content, doc.poolID,
+                true, true, false, fillSession.getAccessControlManager());
+          } finally {
+            fillSession.logout();
+          }
+          return null;
+        }
+      }));
+    }
+    Exception failure = null;
+    for (Future<Void> fill : fills) {
+      try {
+        fill.get();
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
   }
 
-  private void setPermissions(String permission, String poolID, JSONArray viewers, JSONArray editors, String creatorUserID)
-          throws JSONException, IOException, URISyntaxException, ServletException {
+  /**
+   * Sets the members of a doc and the ACLs that go with them, through the same update the
+   * pool's members servlet makes for the equivalent request.
+   */
+  private void setPermissions(PooledDoc doc) throws JSONException, StorageClientException, AccessDeniedException {
     // this logic duplicates the client-side code in sakai.api.content.setFilePermissions
-    String path = "/p/" + poolID;
     String groupID = data.getString(WorldCreationServlet.PARAMS.id.toString());
-    JSONObject membersData = new JSONObject();
+    List<String> addViewers = Lists.newArrayList();
+    List<String> removeViewers = Lists.newArrayList();
+    List<String> addManagers = Lists.newArrayList();
+    List<String> removeManagers = Lists.newArrayList();
 
-    if (permission.equals("everyone")) {
+    if (doc.permission.equals("everyone")) {
       // everyone = all logged in users
-      membersData.accumulate(":viewer", "everyone").accumulate(":viewer@Delete", "anonymous");
-    } else if (permission.equals("public")) {
+      addViewers.add("everyone");
+      removeViewers.add("anonymous");
+    } else if (doc.permission.equals("public")) {
       // public = anonymous and logged-in
-      membersData.accumulate(":viewer", "everyone").accumulate(":viewer", "anonymous");
-    } else if (permission.equals("private")) {
+      addViewers.add("everyone");
+      addViewers.add("anonymous");
+    } else if (doc.permission.equals("private")) {
       // managers and members only
-      membersData.accumulate(":viewer@Delete", "everyone").accumulate(":viewer@Delete", "anonymous");
-    } else if (permission.equals("group")) {
+      removeViewers.add("everyone");
+      removeViewers.add("anonymous");
+    } else if (doc.permission.equals("group")) {
       // group members only
-      membersData.accumulate(":viewer", groupID).accumulate(":viewer@Delete", "everyone").accumulate(":viewer@Delete", "anonymous");
+      addViewers.add(groupID);
+      removeViewers.add("everyone");
+      removeViewers.add("anonymous");
     }
 
     // Always remove the creator as an explicit manager
-    membersData.accumulate(":manager@Delete", creatorUserID);
+    removeManagers.add(creatorID);
 
     // set memberships for the group members and managers
-    for (int i = 0; i < viewers.length(); i++) {
-      String principal = viewers.getString(i);
+    for (int i = 0; i < doc.viewers.length(); i++) {
+      String principal = doc.viewers.getString(i);
       if (principal.startsWith("-")) {
-        membersData.accumulate(":viewer", groupID + principal);
+        addViewers.add(groupID + principal);
       }
     }
-    for (int i = 0; i < editors.length(); i++) {
-      String principal = editors.getString(i);
+    for (int i = 0; i < doc.editors.length(); i++) {
+      String principal = doc.editors.getString(i);
       if (principal.startsWith("-")) {
-        membersData.accumulate(":manager", groupID + principal);
+        addManagers.add(groupID + principal);
       }
     }
-    setACL(path + ".members.html", membersData);
 
+    Content content = session.getContentManager().get(doc.poolID);
+    ContentMemberUtils.updateMembers(session, content, addManagers, removeManagers,
+        Collections.<String> emptyList(), Collections.<String> emptyList(), addViewers,
+        removeViewers, authorizableCountChanger);
   }
 
-  private void setACL(String path, JSONObject params) throws JSONException, URISyntaxException, IOException, ServletException {
-    LOGGER.debug("Setting ACL on " + path + " with data = " + params.toString(2));
-    SubRequest aclRequest = new SubRequest(path, "POST",
-            params, request, response, write);
-    aclRequest.doForward();
-  }
-
-  private void addDocStructureToGroup() throws JSONException, IOException, URISyntaxException, ServletException {
+  private void addDocStructureToGroup() throws JSONException, StorageClientException, AccessDeniedException {
     JSONObject structure;
     try {
       structure = this.worldTemplate.getJSONObject(WorldCreationServlet.PARAMS.structure.toString());
@@ -229,18 +329,11 @@ public class DocStep extends AbstractWorldCreationStep {
 
     JSONObject structure0 = new JSONObject();
     structure0.put("structure0", structure.toString());
-    JSONObject groupData = new JSONObject();
-    groupData.put(":operation", "import");
-    groupData.put(":contentType", "json");
-    groupData.put(":replace", true);
-    groupData.put(":replaceProperties", true);
-    groupData.put(":content", structure0.toString());
     String groupID = data.getString(WorldCreationServlet.PARAMS.id.toString());
 
-    LOGGER.debug("Adding docstructure to group " + groupID + " with data = " + groupData.toString(2));
-    SubRequest groupRequest = new SubRequest("/~" + groupID + "/docstructure", "POST", groupData, request, response, write);
-    groupRequest.doForward();
+    LOGGER.debug("Adding docstructure to group " + groupID + " with data = " + structure0.toString(2));
+    new LiteJsonImporter().importContent(session.getContentManager(), structure0, "a:" + groupID + "/docstructure",
+        true, true, false, session.getAccessControlManager());
   }
 
 }
-
@@ -24,7 +24,9 @@ import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.world.SubRequest;
+import org.sakaiproject.nakamura.world.WorldCreationRollback;
 import org.sakaiproject.nakamura.world.WorldCreationServlet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,8 +35,9 @@ public class MainGroupStep extends AbstractWorldCreationStep {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(MainGroupStep.class);
 
-  public MainGroupStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request, SlingHttpServletResponse response, JSONWriter write) {
-    super(data, worldTemplate, request, response, write);
+  public MainGroupStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request, SlingHttpServletResponse response, JSONWriter write,
+                  Session session, WorldCreationRollback rollback) {
+    super(data, worldTemplate, request, response, write, session, rollback);
   }
 
   @Override
@@ -71,6 +74,7 @@ public class MainGroupStep extends AbstractWorldCreationStep {
     SubRequest mainGroupRequest = new SubRequest("/system/userManager/group.create.json", "POST",
             groupJSON, request, response, write);
     mainGroupRequest.doForward();
+    recordGroupDeletion(groupID);
   }
 
 }
@@ -24,7 +24,9 @@ import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.world.SubRequest;
+import org.sakaiproject.nakamura.world.WorldCreationRollback;
 import org.sakaiproject.nakamura.world.WorldCreationServlet;
 
 import java.io.IOException;
@@ -35,8 +37,9 @@ import javax.servlet.ServletException;
 
 public class RemoveCreatorAsExplicitManagerStep extends AbstractWorldCreationStep {
 
-  public RemoveCreatorAsExplicitManagerStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request, SlingHttpServletResponse response, JSONWriter write) {
-    super(data, worldTemplate, request, response, write);
+  public RemoveCreatorAsExplicitManagerStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request, SlingHttpServletResponse response, JSONWriter write,
+                  Session session, WorldCreationRollback rollback) {
+    super(data, worldTemplate, request, response, write, session, rollback);
   }
 
   @Override
@@ -45,17 +48,28 @@ public class RemoveCreatorAsExplicitManagerStep extends AbstractWorldCreationSte
   }
 
   private void removeCreatorAsExplicitManager() throws JSONException, IOException, ServletException, URISyntaxException {
-    javax.jcr.Session jcrSession = request.getResourceResolver().adaptTo(javax.jcr.Session.class);
-    String creatorID = jcrSession.getUserID();
-
     // remove creator as mgr from main group and the subgroups
     for (String group : getGroups()) {
       SubRequest deleteRequest = new SubRequest("/system/userManager/group/" + group + ".update.json", "POST",
               new JSONObject().put(":manager@Delete", creatorID), request, response, write);
       deleteRequest.doForward();
+      recordManagerRestore(group);
     }
   }
 
+  /**
+   * Put the creator back as a manager on rollback, so they can still delete the groups
+   * that were created for them.
+   */
+  private void recordManagerRestore(final String group) {
+    rollback.record("manager " + creatorID + " of " + group, new WorldCreationRollback.Compensation() {
+      public void undo() throws Exception {
+        new SubRequest("/system/userManager/group/" + group + ".update.json", "POST",
+                new JSONObject().put(":manager", creatorID), request, response, write).doForward();
+      }
+    });
+  }
+
   private List<String> getGroups() throws JSONException {
     List<String> groups = new ArrayList<String>();
     String mainGroupID = this.data.getString(WorldCreationServlet.PARAMS.id.toString());
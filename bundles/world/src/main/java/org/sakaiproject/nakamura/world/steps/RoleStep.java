@@ -24,7 +24,9 @@ import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.world.SubRequest;
+import org.sakaiproject.nakamura.world.WorldCreationRollback;
 import org.sakaiproject.nakamura.world.WorldCreationServlet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,8 +46,9 @@ public class RoleStep extends AbstractWorldCreationStep {
   private JSONObject mainGroupUpdateData = new JSONObject();
 
   public RoleStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request,
-                  SlingHttpServletResponse response, JSONWriter write) {
-    super(data, worldTemplate, request, response, write);
+                  SlingHttpServletResponse response, JSONWriter write,
+                  Session session, WorldCreationRollback rollback) {
+    super(data, worldTemplate, request, response, write, session, rollback);
   }
 
   @Override
@@ -176,6 +179,7 @@ public class RoleStep extends AbstractWorldCreationStep {
       SubRequest subgroupRequest = new SubRequest("/system/userManager/group.create.json", "POST",
               subgroup, request, response, write);
       subgroupRequest.doForward();
+      recordGroupDeletion(subgroup.getString(":name"));
     }
   }
 
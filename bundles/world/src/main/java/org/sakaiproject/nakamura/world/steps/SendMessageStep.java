@@ -24,15 +24,24 @@ import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
-import org.sakaiproject.nakamura.world.SubRequest;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.message.LiteMessagingService;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.world.WorldCreationRollback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.regex.Pattern;
-import javax.servlet.ServletException;
 
+/**
+ * Sends the world's invitation messages straight through the messaging service rather than
+ * through the message create servlet. Once an invitation has been read or mailed it cannot
+ * be taken back, so this is the last step to run, after everything else has succeeded.
+ */
 public class SendMessageStep extends AbstractWorldCreationStep {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SendMessageStep.class);
@@ -49,8 +58,19 @@ public class SendMessageStep extends AbstractWorldCreationStep {
 
   private static final String MESSAGE_MODE = "messageMode";
 
-  public SendMessageStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request, SlingHttpServletResponse response, JSONWriter write) {
-    super(data, worldTemplate, request, response, write);
+  private static final String SLING_RESOURCE_TYPE = "sling:resourceType";
+
+  private Repository repository;
+
+  private LiteMessagingService messagingService;
+
+  private JSONArray sentMessages = new JSONArray();
+
+  public SendMessageStep(JSONObject data, JSONObject worldTemplate, SlingHttpServletRequest request, SlingHttpServletResponse response, JSONWriter write,
+                  Session session, WorldCreationRollback rollback, Repository repository, LiteMessagingService messagingService) {
+    super(data, worldTemplate, request, response, write, session, rollback);
+    this.repository = repository;
+    this.messagingService = messagingService;
   }
 
   @Override
@@ -64,55 +84,75 @@ public class SendMessageStep extends AbstractWorldCreationStep {
     }
 
     sendMessage(message);
-  }
 
-  private void sendMessage(JSONObject message) throws JSONException, IOException, ServletException, URISyntaxException {
-    javax.jcr.Session jcrSession = request.getResourceResolver().adaptTo(javax.jcr.Session.class);
-    String creatorID = jcrSession.getUserID();
+    if (this.sentMessages.length() > 0) {
+      this.write.object();
+      this.write.key("sentMessages");
+      this.write.value(this.sentMessages);
+      this.write.endObject();
+    }
+  }
 
+  private void sendMessage(JSONObject message) throws JSONException {
     JSONArray toSend = message.getJSONArray("toSend");
     for (int i = 0; i < toSend.length(); i++) {
       JSONObject recipient = toSend.getJSONObject(i);
-      JSONObject messageJSON = new JSONObject();
+      Map<String, Object> messageProperties = new HashMap<String, Object>();
       String body = replaceTokens(message.getString("body"), message, recipient);
-      messageJSON.put("sakai:type", "internal");
-      messageJSON.put("sakai:sendstate", "pending");
-      messageJSON.put("sakai:messagebox", "outbox");
-      messageJSON.put("sakai:to", "internal:" + recipient.getString("userid"));
-      messageJSON.put("sakai:from", creatorID);
-      messageJSON.put("sakai:subject", replaceTokens(message.getString("subject"), message, recipient));
-      messageJSON.put("sakai:body", body);
-      messageJSON.put("sakai:category", "message");
+      messageProperties.put(SLING_RESOURCE_TYPE, MessageConstants.SAKAI_MESSAGE_RT);
+      messageProperties.put(MessageConstants.PROP_SAKAI_READ, true);
+      messageProperties.put(MessageConstants.PROP_SAKAI_TYPE, "internal");
+      messageProperties.put(MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_PENDING);
+      messageProperties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_OUTBOX);
+      messageProperties.put(MessageConstants.PROP_SAKAI_TO, "internal:" + recipient.getString("userid"));
+      messageProperties.put(MessageConstants.PROP_SAKAI_FROM, creatorID);
+      messageProperties.put(MessageConstants.PROP_SAKAI_SUBJECT, replaceTokens(message.getString("subject"), message, recipient));
+      messageProperties.put(MessageConstants.PROP_SAKAI_BODY, body);
+      messageProperties.put("sakai:category", "message");
 
       if (wantsInternalMessage(recipient)) {
-        LOGGER.debug("Sending group creation internal message with data " + messageJSON.toString(2));
-        SubRequest internalMessageRequest = new SubRequest("/~" + creatorID + "/message.create.html", "POST",
-                messageJSON, request, response, write);
-        internalMessageRequest.doForward();
+        LOGGER.debug("Sending group creation internal message with data {}", messageProperties);
+        send(new HashMap<String, Object>(messageProperties));
       }
 
       if (wantsExternalMessage(recipient)) {
         // send an smtp aka external message
-        messageJSON.put("sakai:type", "smtp");
-        messageJSON.put("sakai:messagebox", "pending");
-        messageJSON.put("sakai:templatePath", "/var/templates/email/group_invitation");
-        messageJSON.put("sakai:templateParams",
+        messageProperties.put(MessageConstants.PROP_SAKAI_TYPE, "smtp");
+        messageProperties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_PENDING);
+        messageProperties.put(MessageConstants.PROP_TEMPLATE_PATH, "/var/templates/email/group_invitation");
+        messageProperties.put(MessageConstants.PROP_TEMPLATE_PARAMS,
                 "sender=" + message.getString("creatorName")
                         + "|system=" + message.getString("system")
                         + "|name=" + message.getString("groupName")
                         + "|body=" + body
                         + "|link=" + message.getString("link"));
 
-        LOGGER.debug("Sending group creation smtp message with data " + messageJSON.toString(2));
-        SubRequest smtpMessageRequest = new SubRequest("/~" + creatorID + "/message.create.html", "POST",
-                messageJSON, request, response, write);
-        smtpMessageRequest.doForward();
+        LOGGER.debug("Sending group creation smtp message with data {}", messageProperties);
+        send(messageProperties);
       }
 
     }
 
   }
 
+  private void send(Map<String, Object> messageProperties) {
+    Content sent = messagingService.create(session, messageProperties);
+    final String path = sent.getPath();
+    this.sentMessages.put(path);
+    // Internal deliveries may already have been made by the time a rollback runs, but an
+    // smtp message still sitting in the pending box is removed before it goes out.
+    rollback.record("message " + path, new WorldCreationRollback.Compensation() {
+      public void undo() throws Exception {
+        Session adminSession = repository.loginAdministrative();
+        try {
+          adminSession.getContentManager().delete(path);
+        } finally {
+          adminSession.logout();
+        }
+      }
+    });
+  }
+
   private String replaceTokens(String input, JSONObject message, JSONObject recipient) throws JSONException {
     String s = PATTERN_CREATOR.matcher(input).replaceAll(message.getString("creatorName"));
     s = PATTERN_GROUPNAME.matcher(s).replaceAll(message.getString("groupName"));
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.world;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class WorldCreationRollbackTest {
+
+  private final List<String> undone = new ArrayList<String>();
+
+  private WorldCreationRollback.Compensation undo(final String name) {
+    return new WorldCreationRollback.Compensation() {
+      public void undo() throws Exception {
+        undone.add(name);
+      }
+    };
+  }
+
+  @Test
+  public void testCompensationsRunInReverseOrder() {
+    WorldCreationRollback rollback = new WorldCreationRollback();
+    rollback.record("group", undo("group"));
+    rollback.record("doc", undo("doc"));
+    rollback.record("message", undo("message"));
+
+    assertTrue(rollback.rollback().isEmpty());
+    assertEquals(ImmutableList.of("message", "doc", "group"), undone);
+  }
+
+  @Test
+  public void testFailedCompensationDoesNotStopTheRest() {
+    WorldCreationRollback rollback = new WorldCreationRollback();
+    rollback.record("group", undo("group"));
+    rollback.record("doc", new WorldCreationRollback.Compensation() {
+      public void undo() throws Exception {
+        throw new IllegalStateException("doc is locked");
+      }
+    });
+    rollback.record("message", undo("message"));
+
+    assertEquals(ImmutableList.of("doc"), rollback.rollback());
+    assertEquals(ImmutableList.of("message", "group"), undone);
+  }
+
+  @Test
+  public void testCompensationsOnlyRunOnce() {
+    WorldCreationRollback rollback = new WorldCreationRollback();
+    rollback.record("group", undo("group"));
+    rollback.rollback();
+    rollback.rollback();
+
+    assertEquals(ImmutableList.of("group"), undone);
+  }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.world.steps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.user.AuthorizableCountChanger;
+import org.sakaiproject.nakamura.world.WorldCreationRollback;
+
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletResponse;
+
+public class DocStepTest {
+
+  private Session session;
+  private Repository repository;
+  private SlingHttpServletRequest request;
+  private ExecutorService executor;
+  private WorldCreationRollback rollback;
+  private StringWriter output;
+
+  @Before
+  public void setUp() throws Exception {
+    session = mock(Session.class);
+    when(session.getUserId()).thenReturn("creator");
+    repository = mock(Repository.class);
+    request = mock(SlingHttpServletRequest.class);
+    executor = Executors.newFixedThreadPool(3);
+    rollback = new WorldCreationRollback();
+    output = new StringWriter();
+
+    // every doc created in the pool gets the next pool id
+    final AtomicInteger created = new AtomicInteger();
+    RequestDispatcher createFile = mock(RequestDispatcher.class);
+    when(request.getRequestDispatcher("/system/pool/createfile")).thenReturn(createFile);
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        String poolId = "pool" + created.getAndIncrement();
+        ((ServletResponse) invocation.getArguments()[1]).getWriter().write(
+            "{\"_contentItem\":{\"poolId\":\"" + poolId + "\"}}");
+        return null;
+      }
+    }).when(createFile).forward(any(SlingHttpServletRequest.class),
+        any(SlingHttpServletResponse.class));
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private DocStep newStep(JSONObject worldTemplate) throws Exception {
+    JSONObject data = new JSONObject().put("id", "world").put("visibility", "public");
+    return new DocStep(data, worldTemplate, request, mock(SlingHttpServletResponse.class),
+        new JSONWriter(output).array(), session, rollback, repository, executor,
+        mock(AuthorizableCountChanger.class));
+  }
+
+  private JSONObject template(int docs) throws Exception {
+    JSONObject structure = new JSONObject();
+    JSONObject docContents = new JSONObject();
+    for (int i = 0; i < docs; i++) {
+      structure.put("doc" + i, new JSONObject().put("_docref", "ref" + i)
+          .put("_title", "Doc " + i).put("_view", new JSONArray().put("-member"))
+          .put("_edit", new JSONArray().put("-manager")));
+      docContents.put("ref" + i, new JSONObject().put("structure0", new JSONObject())
+          .put("page" + i, new JSONObject().put("page", "Page " + i)));
+    }
+    return new JSONObject().put("structure", structure).put("docs", docContents);
+  }
+
+  @Test
+  public void testFailedFillWaitsForTheOthersAndRollsBackEveryDoc() throws Exception {
+    // pool0 fails to fill straight away, the other fills are still running when it does
+    final CountDownLatch failed = new CountDownLatch(1);
+    final AtomicInteger filled = new AtomicInteger();
+    Session fillSession = mock(Session.class);
+    ContentManager fillContentManager = mock(ContentManager.class);
+    when(repository.loginAdministrative("creator")).thenReturn(fillSession);
+    when(fillSession.getContentManager()).thenReturn(fillContentManager);
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        String path = ((Content) invocation.getArguments()[0]).getPath();
+        if (path.startsWith("pool0")) {
+          failed.countDown();
+          throw new StorageClientException("pool0 could not be filled");
+        }
+        if (path.indexOf('/') < 0) {
+          failed.await(5, TimeUnit.SECONDS);
+          Thread.sleep(100);
+          filled.incrementAndGet();
+        }
+        return null;
+      }
+    }).when(fillContentManager).update(any(Content.class));
+
+    Session adminSession = mock(Session.class);
+    ContentManager adminContentManager = mock(ContentManager.class);
+    when(repository.loginAdministrative()).thenReturn(adminSession);
+    when(adminSession.getContentManager()).thenReturn(adminContentManager);
+
+    try {
+      newStep(template(3)).handle();
+      fail("The failed fill should have failed the step");
+    } catch (StorageClientException e) {
+      assertEquals("pool0 could not be filled", e.getMessage());
+    }
+
+    // every fill had finished by the time the step gave up
+    assertEquals(2, filled.get());
+    verify(fillSession, times(3)).logout();
+    // and no members were set on half filled docs
+    verify(session, never()).getContentManager();
+
+    assertTrue(rollback.rollback().isEmpty());
+    verify(adminContentManager).delete("pool0");
+    verify(adminContentManager).delete("pool1");
+    verify(adminContentManager).delete("pool2");
+  }
+
+}
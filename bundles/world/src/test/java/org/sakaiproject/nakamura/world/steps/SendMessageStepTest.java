@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.world.steps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.message.LiteMessagingService;
+import org.sakaiproject.nakamura.api.message.MessagingException;
+import org.sakaiproject.nakamura.world.WorldCreationRollback;
+
+import java.io.StringWriter;
+import java.util.List;
+
+public class SendMessageStepTest {
+
+  private Session session;
+  private Repository repository;
+  private LiteMessagingService messagingService;
+  private WorldCreationRollback rollback;
+  private StringWriter output;
+
+  @Before
+  public void setUp() throws Exception {
+    session = mock(Session.class);
+    when(session.getUserId()).thenReturn("creator");
+    repository = mock(Repository.class);
+    messagingService = mock(LiteMessagingService.class);
+    rollback = new WorldCreationRollback();
+    output = new StringWriter();
+  }
+
+  private SendMessageStep newStep(JSONObject data) {
+    return new SendMessageStep(data, new JSONObject(), mock(SlingHttpServletRequest.class),
+        mock(SlingHttpServletResponse.class), new JSONWriter(output), session, rollback,
+        repository, messagingService);
+  }
+
+  private JSONObject invite(String... userids) throws Exception {
+    JSONArray toSend = new JSONArray();
+    for (String userid : userids) {
+      toSend.put(new JSONObject().put("userid", userid).put("role", "member")
+          .put("firstName", userid).put("messageMode", "internal"));
+    }
+    JSONObject message = new JSONObject().put("toSend", toSend)
+        .put("subject", "Join ${groupName}").put("body", "Hi ${firstName}")
+        .put("creatorName", "Creator").put("groupName", "World").put("link", "/~world")
+        .put("system", "Sakai");
+    return new JSONObject().put("message", message);
+  }
+
+  private Content message(String path) {
+    Content content = mock(Content.class);
+    when(content.getPath()).thenReturn(path);
+    return content;
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testInvitationsAreSentWithTheSharedSession() throws Exception {
+    Content first = message("a:alice/message/1");
+    Content second = message("a:bob/message/2");
+    when(messagingService.create(eq(session), anyMap())).thenReturn(first, second);
+
+    newStep(invite("alice", "bob")).handle();
+
+    JSONObject result = new JSONObject(output.toString());
+    assertEquals(2, result.getJSONArray("sentMessages").length());
+    assertEquals("a:bob/message/2", result.getJSONArray("sentMessages").getString(1));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testFailedInvitationRollsBackTheOnesSent() throws Exception {
+    Content first = message("a:alice/message/1");
+    when(messagingService.create(eq(session), anyMap())).thenReturn(first)
+        .thenThrow(new MessagingException("outbox is full"));
+    Session adminSession = mock(Session.class);
+    ContentManager contentManager = mock(ContentManager.class);
+    when(repository.loginAdministrative()).thenReturn(adminSession);
+    when(adminSession.getContentManager()).thenReturn(contentManager);
+
+    try {
+      newStep(invite("alice", "bob")).handle();
+      fail("The failed invitation should have failed the step");
+    } catch (MessagingException e) {
+      // expected
+    }
+    assertEquals("", output.toString());
+
+    List<String> notRolledBack = rollback.rollback();
+    assertTrue(notRolledBack.isEmpty());
+    verify(contentManager).delete("a:alice/message/1");
+    verify(adminSession).logout();
+  }
+
+}
@@ -30,6 +30,7 @@ import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.sakaiproject.nakamura.api.lite.Repository;
@@ -47,6 +48,7 @@ import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.migratejcr.MigrationReport.Outcome;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,6 +59,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Dictionary;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -64,7 +68,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.jcr.Binary;
 import javax.jcr.ImportUUIDBehavior;
@@ -78,7 +87,6 @@ import javax.jcr.Value;
 import javax.jcr.ValueFormatException;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
-import javax.jcr.query.QueryResult;
 
 /**
  *
@@ -111,6 +119,11 @@ public class MigrateJcr {
   private Repository sparseRepository;
   
   private Map<String, Set<String>> groupMemberRetries = new ConcurrentHashMap<String, Set<String>>();
+
+  private boolean memberRetriesChanged;
+
+  private static final String MEMBER_RETRIES_PATH = MigrationCheckpoint.CHECKPOINT_ROOT
+      + "/memberretries";
   
   /**
    * This will contain Sling repositories.
@@ -121,7 +134,24 @@ public class MigrateJcr {
   private Set<String> ignoreProps = ImmutableSet.copyOf("jcr:content", "jcr:data",
       "jcr:mixinTypes", "rep:policy", "jcr:created", "jcr:primaryType");
   private Object visibilityPreference;
-  private boolean shouldAbort = false;
+  private volatile boolean shouldAbort = false;
+
+  @org.apache.felix.scr.annotations.Property(intValue = MigrateJcr.DEFAULT_THREADS, description = "The number of partitions migrated concurrently.")
+  static final String MIGRATION_THREADS = "migration.threads";
+  static final int DEFAULT_THREADS = 4;
+
+  @org.apache.felix.scr.annotations.Property(intValue = MigrateJcr.DEFAULT_PARTITIONS, description = "The number of partitions each kind of node is split into by name. Changing this starts the migration checkpoints afresh.")
+  static final String MIGRATION_PARTITIONS = "migration.partitions";
+  static final int DEFAULT_PARTITIONS = 32;
+
+  @org.apache.felix.scr.annotations.Property(intValue = MigrateJcr.DEFAULT_BATCH_SIZE, description = "The number of nodes migrated between saves of a partition checkpoint.")
+  static final String MIGRATION_BATCH_SIZE = "migration.batchSize";
+  static final int DEFAULT_BATCH_SIZE = 100;
+
+  private int partitionCount = DEFAULT_PARTITIONS;
+  private int batchSize = DEFAULT_BATCH_SIZE;
+  private ExecutorService executor;
+  private MigrationReport report;
   
   private static final String VISIBILITY_PRIVATE = "private";
   private static final String VISIBILITY_LOGGED_IN = "logged_in";
@@ -132,8 +162,24 @@ public class MigrateJcr {
       @PropertyOption(name = VISIBILITY_PUBLIC, value = "The home is completely public.") })
   static final String VISIBILITY_PREFERENCE = "visibility.preference";
 
+  /**
+   * Implemented for each kind of node a partitioned phase migrates.
+   */
+  private interface NodeMigrator {
+    Outcome migrate(Node node, javax.jcr.Session jcrSession, Session sparseSession)
+        throws Exception;
+  }
+
   @Activate
   protected void activate(ComponentContext componentContext) {
+    Dictionary<?, ?> props = componentContext.getProperties();
+    int threads = PropertiesUtil.toInteger(props.get(MIGRATION_THREADS), DEFAULT_THREADS);
+    partitionCount = Math.max(1,
+        PropertiesUtil.toInteger(props.get(MIGRATION_PARTITIONS), DEFAULT_PARTITIONS));
+    batchSize = Math.max(1,
+        PropertiesUtil.toInteger(props.get(MIGRATION_BATCH_SIZE), DEFAULT_BATCH_SIZE));
+    executor = Executors.newFixedThreadPool(Math.max(1, threads));
+    report = new MigrationReport();
     try {
       for (Entry<SlingRepository, SlingRepository> repo : repositories.entrySet()) {
         if (!repo.equals(slingRepository)) {
@@ -147,21 +193,165 @@ public class MigrateJcr {
       cleanup();
     } catch (Exception e) {
       LOGGER.error("Failed data migration from JCR to Sparse.", e);
+    } finally {
+      executor.shutdownNow();
+      report.log();
+      if (!report.isReconciled()) {
+        LOGGER.warn("JCR to Sparse migration is incomplete. Reactivate this component to resume it from the checkpoints under {}",
+            MigrationCheckpoint.CHECKPOINT_ROOT);
+      }
+    }
+  }
+
+  /**
+   * Splits the nodes at the given JCR paths into partitions by node name and migrates the
+   * partitions on the worker pool, each with its own JCR and sparse sessions. Returns once
+   * every partition has finished.
+   */
+  private void migratePartitioned(final String phase, List<String> jcrPaths,
+      final NodeMigrator migrator) throws Exception {
+    List<List<String>> partitions = new ArrayList<List<String>>(partitionCount);
+    for (int i = 0; i < partitionCount; i++) {
+      partitions.add(new ArrayList<String>());
+    }
+    for (String jcrPath : jcrPaths) {
+      String name = jcrPath.substring(jcrPath.lastIndexOf('/') + 1);
+      partitions.get((name.hashCode() & Integer.MAX_VALUE) % partitionCount).add(jcrPath);
+    }
+    report.found(phase, jcrPaths.size());
+    List<Future<?>> futures = new ArrayList<Future<?>>(partitionCount);
+    for (int i = 0; i < partitionCount; i++) {
+      final String partition = partitionCount + "-" + i;
+      final List<String> partitionPaths = partitions.get(i);
+      if (partitionPaths.isEmpty()) {
+        continue;
+      }
+      Collections.sort(partitionPaths);
+      futures.add(executor.submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          migratePartition(phase, partition, partitionPaths, migrator);
+          return null;
+        }
+      }));
+    }
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        LOGGER.error("Failed migrating a partition of " + phase, e.getCause());
+      }
+    }
+  }
+
+  @SuppressWarnings("deprecation")
+  private void migratePartition(String phase, String partition, List<String> jcrPaths,
+      NodeMigrator migrator) throws Exception {
+    javax.jcr.Session jcrSession = null;
+    Session sparseSession = null;
+    MigrationCheckpoint checkpoint = null;
+    try {
+      jcrSession = slingRepository.loginAdministrative("default");
+      sparseSession = sparseRepository.loginAdministrative();
+      ContentManager contentManager = sparseSession.getContentManager();
+      checkpoint = MigrationCheckpoint.load(contentManager, phase, partition);
+      if (checkpoint.isDone()) {
+        LOGGER.info("Partition {} of {} was migrated by an earlier run. Skipping it.",
+            partition, phase);
+        return;
+      }
+      int sinceSave = 0;
+      for (String jcrPath : jcrPaths) {
+        if (shouldAbort) {
+          break;
+        }
+        if (!checkpoint.shouldMigrate(jcrPath)) {
+          continue;
+        }
+        Outcome outcome;
+        try {
+          outcome = migrator.migrate(jcrSession.getNode(jcrPath), jcrSession,
+              sparseSession);
+        } catch (Exception e) {
+          LOGGER.error("Failed migrating {} to sparse.", jcrPath, e);
+          outcome = Outcome.FAILED;
+        }
+        checkpoint.record(jcrPath, outcome);
+        if (++sinceSave >= batchSize) {
+          saveMemberRetries(contentManager);
+          checkpoint.save(contentManager, false);
+          sinceSave = 0;
+        }
+      }
+      // the retries go first: a checkpoint must never get ahead of the memberships that
+      // still need adding for the nodes it covers
+      saveMemberRetries(contentManager);
+      checkpoint.save(contentManager, !shouldAbort);
+      LOGGER.info("Migrated partition {} of {}: {} migrated, {} already present, {} failed.",
+          new Object[] { partition, phase, checkpoint.getMigrated(),
+              checkpoint.getExisting(), checkpoint.getFailed() });
+    } finally {
+      if (checkpoint != null) {
+        report.add(phase, checkpoint);
+      }
+      if (jcrSession != null) {
+        jcrSession.logout();
+      }
+      if (sparseSession != null) {
+        sparseSession.logout();
+      }
+    }
+  }
+
+  /**
+   * @return the paths of the nodes matching an XPath query, in no particular order.
+   */
+  @SuppressWarnings("deprecation")
+  private List<String> findPaths(String xpath, String description) throws Exception {
+    javax.jcr.Session jcrSession = null;
+    try {
+      jcrSession = slingRepository.loginAdministrative("default");
+      QueryManager qm = jcrSession.getWorkspace().getQueryManager();
+      NodeIterator resultNodes = qm.createQuery(xpath, Query.XPATH).execute().getNodes();
+      List<String> paths = new ArrayList<String>();
+      while (resultNodes.hasNext()) {
+        paths.add(resultNodes.nextNode().getPath());
+      }
+      LOGGER.info("found {} {} in Jackrabbit.", paths.size(), description);
+      return paths;
+    } finally {
+      if (jcrSession != null) {
+        jcrSession.logout();
+      }
     }
   }
 
   private void migrateTags() throws Exception {
     javax.jcr.Session preSparseSession = null;
     javax.jcr.Session newJackrabbitSession = null;
+    Session sparseSession = null;
     final ByteArrayOutputStream output = new ByteArrayOutputStream();
     try {
-      preSparseSession = slingRepository.loginAdministrative("default");
-      newJackrabbitSession = newSlingRepository.loginAdministrative("default");
-      LOGGER.info("Exporting /tags from jackrabbit.");
-      preSparseSession.exportSystemView("/tags", output, false, false);
-      LOGGER.info("Importing /tags to nakamura");
-      newJackrabbitSession.importXML("/tags", new ByteArrayInputStream(output.toByteArray()), ImportUUIDBehavior.IMPORT_UUID_COLLISION_REPLACE_EXISTING);
+      sparseSession = sparseRepository.loginAdministrative();
+      ContentManager contentManager = sparseSession.getContentManager();
+      MigrationCheckpoint checkpoint = MigrationCheckpoint.load(contentManager, "tags", "all");
+      report.found("tags", 1);
+      if (!checkpoint.isDone()) {
+        preSparseSession = slingRepository.loginAdministrative("default");
+        newJackrabbitSession = newSlingRepository.loginAdministrative("default");
+        LOGGER.info("Exporting /tags from jackrabbit.");
+        preSparseSession.exportSystemView("/tags", output, false, false);
+        LOGGER.info("Importing /tags to nakamura");
+        newJackrabbitSession.importXML("/tags", new ByteArrayInputStream(output.toByteArray()), ImportUUIDBehavior.IMPORT_UUID_COLLISION_REPLACE_EXISTING);
+        checkpoint.record("/tags", Outcome.MIGRATED);
+        checkpoint.save(contentManager, true);
+      } else {
+        LOGGER.info("/tags was migrated by an earlier run. Skipping it.");
+      }
+      report.add("tags", checkpoint);
     } finally {
+      if (sparseSession != null) {
+        sparseSession.logout();
+      }
       if (preSparseSession != null) {
         preSparseSession.logout();
       }
@@ -178,41 +368,21 @@ public class MigrateJcr {
 
   }
 
-  @SuppressWarnings("deprecation")
   private void migrateContentPool() throws Exception {
-    LOGGER.info("beginning users and groups migration.");
-    String contentPoolQuery = "//element(*, sakai:pooled-content) order by @jcr:score descending";
-    javax.jcr.Session jcrSession = null;
-    Session sparseSession = null;
-    javax.jcr.security.AccessControlManager accessManager = null;
-    try {
-      jcrSession = slingRepository.loginAdministrative("default");
-      sparseSession = sparseRepository.loginAdministrative();
-      accessManager = AccessControlUtil.getAccessControlManager(jcrSession);
-      QueryManager qm = jcrSession.getWorkspace().getQueryManager();
-      Query q = qm.createQuery(contentPoolQuery, Query.XPATH);
-      QueryResult result = q.execute();
-      NodeIterator resultNodes = result.getNodes();
-      String nodeWord = resultNodes.getSize() == 1 ? "node" : "nodes";
-      LOGGER.info("found {} pooled content {} in Jackrabbit.", resultNodes.getSize(),
-          nodeWord);
-      while (resultNodes.hasNext() && !shouldAbort) {
-        Node contentNode = resultNodes.nextNode();
+    LOGGER.info("beginning content pool migration.");
+    List<String> poolPaths = findPaths("//element(*, sakai:pooled-content)",
+        "pooled content nodes");
+    migratePartitioned("pool", poolPaths, new NodeMigrator() {
+      public Outcome migrate(Node contentNode, javax.jcr.Session jcrSession,
+          Session sparseSession) throws Exception {
         LOGGER.info(contentNode.getPath());
-        copyNodeToSparse(contentNode, contentNode.getName(), sparseSession, accessManager, true, false);
+        return copyNodeToSparse(contentNode, contentNode.getName(), sparseSession,
+            AccessControlUtil.getAccessControlManager(jcrSession), true, false);
       }
-    } finally {
-      if (jcrSession != null) {
-        jcrSession.logout();
-      }
-      if (sparseSession != null) {
-        sparseSession.logout();
-      }
-    }
-
+    });
   }
 
-  private void copyNodeToSparse(Node contentNode, String path, Session session, 
+  private Outcome copyNodeToSparse(Node contentNode, String path, Session session, 
       javax.jcr.security.AccessControlManager accessManager, 
       boolean shouldProcessACLs, boolean shouldProcessChildren)
       throws Exception {
@@ -221,7 +391,7 @@ public class MigrateJcr {
       LOGGER
           .warn("Ignoring migration of content at path which already exists in sparsemap: "
               + path);
-      return;
+      return Outcome.EXISTING;
     }
     PropertyIterator propIter = contentNode.getProperties();
     Builder<String, Object> propBuilder = ImmutableMap.builder();
@@ -306,7 +476,7 @@ public class MigrateJcr {
         contentManager.delete(sparseContent.getPath());
         LOGGER.error("Unable to write binary content from JCR path {} to sparse path {}"
             + fileContentNode.getPath(), sparseContent.getPath(), e);
-        return;
+        return Outcome.FAILED;
       }
     } else {
       contentManager.update(sparseContent);
@@ -402,7 +572,7 @@ public class MigrateJcr {
         LOGGER.error("Failed to set sparse access control on {}", path, e);
         contentManager.delete(sparseContent.getPath());
         shouldAbort  = true;
-        return;
+        return Outcome.FAILED;
       }
     }
     if (shouldProcessChildren) {
@@ -418,7 +588,7 @@ public class MigrateJcr {
             accessManager, shouldProcessACLs, shouldProcessChildren);
       }
     }
-
+    return Outcome.MIGRATED;
   }
 
   private String applyAdditionalProperties(Builder<String, Object> propBuilder,
@@ -511,44 +681,29 @@ public class MigrateJcr {
     return contentPath;
   }
 
-  @SuppressWarnings("deprecation")
   private void migrateAuthorizables() throws Exception {
     LOGGER.info("beginning users and groups migration.");
-    javax.jcr.Session jcrSession = null;
-    Session sparseSession = null;
-    try {
-      sparseSession = sparseRepository.loginAdministrative();
-      jcrSession = slingRepository.loginAdministrative("default");
-      String usersQuery = "//*[@sling:resourceType='sakai/user-home'] order by @jcr:score descending";
-      QueryManager qm = jcrSession.getWorkspace().getQueryManager();
-      Query q = qm.createQuery(usersQuery, Query.XPATH);
-      QueryResult result = q.execute();
-      NodeIterator resultNodes = result.getNodes();
-      String folderWord = resultNodes.getSize() == 1 ? "folder" : "folders";
-      LOGGER.info("found {} user home {} in Jackrabbit.", resultNodes.getSize(),
-          folderWord);
-      while (resultNodes.hasNext()) {
-        Node authHomeNode = resultNodes.nextNode();
+    NodeMigrator authorizableMigrator = new NodeMigrator() {
+      public Outcome migrate(Node authHomeNode, javax.jcr.Session jcrSession,
+          Session sparseSession) throws Exception {
         LOGGER.debug(authHomeNode.getPath());
-        moveAuthorizableToSparse(authHomeNode,
-            AccessControlUtil.getUserManager(jcrSession));
+        return moveAuthorizableToSparse(authHomeNode,
+            AccessControlUtil.getUserManager(jcrSession), sparseSession);
       }
-      
+    };
+    loadMemberRetries();
+    // groups go after every user so that memberships can be copied straight away
+    migratePartitioned("users", findPaths(
+        "//*[@sling:resourceType='sakai/user-home']", "user home folders"),
+        authorizableMigrator);
+    migratePartitioned("groups", findPaths(
+        "//*[@sling:resourceType='sakai/group-home']", "group home folders"),
+        authorizableMigrator);
 
-      String groupsQuery = "//*[@sling:resourceType='sakai/group-home'] order by @jcr:score descending";
-      q = qm.createQuery(groupsQuery, Query.XPATH);
-      result = q.execute();
-      resultNodes = result.getNodes();
-      folderWord = resultNodes.getSize() == 1 ? "folder" : "folders";
-      LOGGER.info("found {} group home {} in Jackrabbit.", resultNodes.getSize(),
-          folderWord);
-      while (resultNodes.hasNext()) {
-        Node groupHomeNode = resultNodes.nextNode();
-        LOGGER.debug(groupHomeNode.getPath());
-        moveAuthorizableToSparse(groupHomeNode,
-            AccessControlUtil.getUserManager(jcrSession));
-      }
-      
+    Session sparseSession = null;
+    try {
+      sparseSession = sparseRepository.loginAdministrative();
+      ContentManager contentManager = sparseSession.getContentManager();
       AuthorizableManager sparseAuthManager = sparseSession.getAuthorizableManager();
       for (String sparseGroupId : groupMemberRetries.keySet()) {
         Authorizable group = sparseAuthManager.findAuthorizable(sparseGroupId);
@@ -558,6 +713,8 @@ public class MigrateJcr {
             Authorizable member = sparseAuthManager.findAuthorizable(memberId);
             if (member != null) {
               ((org.sakaiproject.nakamura.api.lite.authorizable.Group)group).addMember(memberId);
+              it.remove();
+              memberRetriesChanged = true;
               LOGGER.info("Succeeded upon retry adding member {} to group {}", memberId, sparseGroupId);
             } else {
               LOGGER.warn("Tried again to add member {} to group {}, but member still couldn't be found in sparsemap.", memberId, sparseGroupId);
@@ -566,10 +723,8 @@ public class MigrateJcr {
           sparseAuthManager.updateAuthorizable(group);
         }
       }
+      saveMemberRetries(contentManager);
     } finally {
-      if (jcrSession != null) {
-        jcrSession.logout();
-      }
       if (sparseSession != null) {
         sparseSession.logout();
       }
@@ -577,12 +732,66 @@ public class MigrateJcr {
 
   }
 
-  private void moveAuthorizableToSparse(Node authHomeNode, UserManager userManager)
-      throws Exception {
+  /**
+   * Memberships that failed before a restart are only known to the checkpoint, and the
+   * partitions save the retries they add alongside their own checkpoints, so the saved ones
+   * have to be read back before any partition runs.
+   */
+  private void loadMemberRetries() throws Exception {
     Session sparseSession = null;
-    javax.jcr.security.AccessControlManager accessManager = null;
     try {
       sparseSession = sparseRepository.loginAdministrative();
+      Content savedRetries = sparseSession.getContentManager().get(MEMBER_RETRIES_PATH);
+      if (savedRetries != null) {
+        for (Entry<String, Object> saved : savedRetries.getProperties().entrySet()) {
+          if (saved.getValue() instanceof String[]) {
+            for (String memberId : (String[]) saved.getValue()) {
+              addMemberRetry(saved.getKey(), memberId);
+            }
+          }
+        }
+      }
+    } finally {
+      if (sparseSession != null) {
+        sparseSession.logout();
+      }
+    }
+  }
+
+  private synchronized void addMemberRetry(String groupId, String memberId) {
+    Set<String> members = groupMemberRetries.get(groupId);
+    if (members == null) {
+      members = new HashSet<String>();
+      groupMemberRetries.put(groupId, members);
+    }
+    if (members.add(memberId)) {
+      memberRetriesChanged = true;
+    }
+  }
+
+  private synchronized void saveMemberRetries(ContentManager contentManager)
+      throws StorageClientException, AccessDeniedException {
+    if (!memberRetriesChanged) {
+      return;
+    }
+    Builder<String, Object> propBuilder = ImmutableMap.builder();
+    for (Entry<String, Set<String>> retry : groupMemberRetries.entrySet()) {
+      if (!retry.getValue().isEmpty()) {
+        propBuilder.put(retry.getKey(),
+            retry.getValue().toArray(new String[retry.getValue().size()]));
+      }
+    }
+    if (contentManager.exists(MEMBER_RETRIES_PATH)) {
+      contentManager.delete(MEMBER_RETRIES_PATH);
+    }
+    contentManager.update(new Content(MEMBER_RETRIES_PATH, propBuilder.build()));
+    memberRetriesChanged = false;
+  }
+
+  private Outcome moveAuthorizableToSparse(Node authHomeNode, UserManager userManager,
+      Session sparseSession) throws Exception {
+    javax.jcr.security.AccessControlManager accessManager = null;
+    try {
       AuthorizableManager authManager = sparseSession.getAuthorizableManager();
       accessManager = AccessControlUtil
       .getAccessControlManager(authHomeNode.getSession());
@@ -618,7 +827,7 @@ public class MigrateJcr {
           }
         } catch (Exception e) {
           LOGGER.error("Failed getting basic profile information for profile {}. Won't create this user.", authHomeNode.getPath());
-          return;
+          return Outcome.FAILED;
         }
         // TODO do we care about the password?
         if (authManager.createUser(userId, userId, "testuser", ImmutableMap.of(
@@ -639,6 +848,7 @@ public class MigrateJcr {
           applyAuthorizableAccessRights(authManager.findAuthorizable(userId), sparseAccessManager);
         } else {
           LOGGER.info("User {} exists in sparse. Skipping it.", userId);
+          return Outcome.EXISTING;
         }
       } else {
         // handling a group
@@ -663,17 +873,15 @@ public class MigrateJcr {
           applyAuthorizableAccessRights(sparseGroup, sparseAccessManager);
         } else {
           LOGGER.info("Group {} exists in sparse. Skipping it.", groupId);
+          return Outcome.EXISTING;
         }
       }
     } catch (Exception e) {
       LOGGER.error("Failure moving authorizable {} to sparsemap: {}",
           authHomeNode.getPath(), e.getLocalizedMessage());
-    } finally {
-      if (sparseSession != null) {
-        sparseSession.logout();
-      }
+      return Outcome.FAILED;
     }
-
+    return Outcome.MIGRATED;
   }
 
   private void applyAuthorizableAccessRights(Authorizable authorizable,
@@ -854,10 +1062,7 @@ public class MigrateJcr {
         ((org.sakaiproject.nakamura.api.lite.authorizable.Group)sparseGroup).addMember(sparseMember.getId());
       } else {
         LOGGER.warn("Wanted to add member {} to group {} but couldn't find member in sparse.", jcrMemberId, sparseGroup.getId());
-        if (!groupMemberRetries.containsKey(sparseGroup.getId())) {
-          groupMemberRetries.put(sparseGroup.getId(), new HashSet<String>());
-        }
-        groupMemberRetries.get(sparseGroup.getId()).add(jcrMemberId);
+        addMemberRetry(sparseGroup.getId(), jcrMemberId);
       }
     }
     try {
@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.migratejcr;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.migratejcr.MigrationReport.Outcome;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Progress of one partition of a migration phase, persisted in sparse so that a restarted
+ * migration resumes after the last node it saved rather than from the beginning. Nodes are
+ * processed in path order, so the last path is enough to know what has been done; nodes that
+ * failed are remembered separately and retried on the next run. Delete the nodes under
+ * {@link #CHECKPOINT_ROOT} to force a full migration.
+ */
+public class MigrationCheckpoint {
+
+  public static final String CHECKPOINT_ROOT = "/var/migratejcr";
+
+  private static final String LAST_PATH = "lastPath";
+  private static final String COMPLETE = "complete";
+  private static final String MIGRATED = "migrated";
+  private static final String EXISTING = "existing";
+  private static final String FAILED_PATHS = "failedPaths";
+
+  private final String path;
+  private String lastPath;
+  private boolean complete;
+  private int migrated;
+  private int existing;
+  private final Set<String> failedPaths = new TreeSet<String>();
+
+  MigrationCheckpoint(String path) {
+    this.path = path;
+  }
+
+  public static String getPath(String phase, String partition) {
+    return CHECKPOINT_ROOT + "/" + phase + "/" + partition;
+  }
+
+  public static MigrationCheckpoint load(ContentManager contentManager, String phase,
+      String partition) throws StorageClientException, AccessDeniedException {
+    MigrationCheckpoint checkpoint = new MigrationCheckpoint(getPath(phase, partition));
+    Content content = contentManager.get(checkpoint.path);
+    if (content != null) {
+      checkpoint.lastPath = (String) content.getProperty(LAST_PATH);
+      checkpoint.complete = StorageClientUtils.toBoolean(content.getProperty(COMPLETE));
+      checkpoint.migrated = StorageClientUtils.toInt(content.getProperty(MIGRATED));
+      checkpoint.existing = StorageClientUtils.toInt(content.getProperty(EXISTING));
+      for (String failedPath : StorageClientUtils.nonNullStringArray((String[]) content
+          .getProperty(FAILED_PATHS))) {
+        checkpoint.failedPaths.add(failedPath);
+      }
+    }
+    return checkpoint;
+  }
+
+  /**
+   * @return true if the partition ran to the end and nothing in it needs retrying.
+   */
+  public boolean isDone() {
+    return complete && failedPaths.isEmpty();
+  }
+
+  /**
+   * @return true if the node at this JCR path has not been migrated by an earlier run, or
+   *         failed when it was.
+   */
+  public boolean shouldMigrate(String jcrPath) {
+    return lastPath == null || jcrPath.compareTo(lastPath) > 0
+        || failedPaths.contains(jcrPath);
+  }
+
+  public void record(String jcrPath, Outcome outcome) {
+    failedPaths.remove(jcrPath);
+    switch (outcome) {
+    case MIGRATED:
+      migrated++;
+      break;
+    case EXISTING:
+      existing++;
+      break;
+    default:
+      failedPaths.add(jcrPath);
+      break;
+    }
+    if (lastPath == null || jcrPath.compareTo(lastPath) > 0) {
+      lastPath = jcrPath;
+    }
+  }
+
+  public void save(ContentManager contentManager, boolean complete)
+      throws StorageClientException, AccessDeniedException {
+    this.complete = complete;
+    ImmutableMap.Builder<String, Object> props = ImmutableMap.builder();
+    props.put(COMPLETE, complete);
+    props.put(MIGRATED, migrated);
+    props.put(EXISTING, existing);
+    props.put(FAILED_PATHS, failedPaths.toArray(new String[failedPaths.size()]));
+    if (lastPath != null) {
+      props.put(LAST_PATH, lastPath);
+    }
+    contentManager.update(new Content(path, props.build()));
+  }
+
+  public int getMigrated() {
+    return migrated;
+  }
+
+  public int getExisting() {
+    return existing;
+  }
+
+  public int getFailed() {
+    return failedPaths.size();
+  }
+}
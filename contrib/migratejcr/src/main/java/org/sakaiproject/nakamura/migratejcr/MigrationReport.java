@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.migratejcr;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Reconciles what a migration found in Jackrabbit against what ended up in sparse. Counts
+ * come from the partition checkpoints so work done before a restart is included.
+ */
+public class MigrationReport {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MigrationReport.class);
+
+  /**
+   * What happened to a single node handed to a migration phase.
+   */
+  public enum Outcome {
+    MIGRATED, EXISTING, FAILED
+  }
+
+  private final Map<String, int[]> phases = new LinkedHashMap<String, int[]>();
+
+  private static final int FOUND = 0;
+  private static final int MIGRATED = 1;
+  private static final int EXISTING = 2;
+  private static final int FAILED = 3;
+
+  public synchronized void found(String phase, int count) {
+    counts(phase)[FOUND] += count;
+  }
+
+  public synchronized void add(String phase, MigrationCheckpoint checkpoint) {
+    int[] counts = counts(phase);
+    counts[MIGRATED] += checkpoint.getMigrated();
+    counts[EXISTING] += checkpoint.getExisting();
+    counts[FAILED] += checkpoint.getFailed();
+  }
+
+  /**
+   * @return true if every node found in Jackrabbit was either migrated or already present.
+   */
+  public synchronized boolean isReconciled() {
+    for (int[] counts : phases.values()) {
+      if (counts[FAILED] > 0 || unprocessed(counts) != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public synchronized void log() {
+    for (Entry<String, int[]> phase : phases.entrySet()) {
+      int[] counts = phase.getValue();
+      Object[] args = new Object[] { phase.getKey(), counts[FOUND], counts[MIGRATED],
+          counts[EXISTING], counts[FAILED], unprocessed(counts) };
+      if (counts[FAILED] > 0 || unprocessed(counts) != 0) {
+        LOGGER.warn("Migration of {}: found {}, migrated {}, already present {}, failed {}, unprocessed {}", args);
+      } else {
+        LOGGER.info("Migration of {}: found {}, migrated {}, already present {}, failed {}, unprocessed {}", args);
+      }
+    }
+  }
+
+  private int unprocessed(int[] counts) {
+    return counts[FOUND] - counts[MIGRATED] - counts[EXISTING] - counts[FAILED];
+  }
+
+  private int[] counts(String phase) {
+    int[] counts = phases.get(phase);
+    if (counts == null) {
+      counts = new int[4];
+      phases.put(phase, counts);
+    }
+    return counts;
+  }
+}
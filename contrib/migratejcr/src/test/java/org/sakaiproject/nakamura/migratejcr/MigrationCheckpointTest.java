@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.migratejcr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.migratejcr.MigrationReport.Outcome;
+
+public class MigrationCheckpointTest {
+
+  private Session session;
+
+  private ContentManager contentManager;
+
+  @Before
+  public void setUp() throws Exception {
+    session = new BaseMemoryRepository().getRepository().loginAdministrative();
+    contentManager = session.getContentManager();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    session.logout();
+  }
+
+  @Test
+  public void testNewPartitionMigratesEverything() throws Exception {
+    MigrationCheckpoint checkpoint = MigrationCheckpoint.load(contentManager, "users", "4-0");
+    assertFalse(checkpoint.isDone());
+    assertTrue(checkpoint.shouldMigrate("/_user/a/al/alice"));
+  }
+
+  @Test
+  public void testResumesAfterTheLastSavedPath() throws Exception {
+    MigrationCheckpoint checkpoint = MigrationCheckpoint.load(contentManager, "users", "4-0");
+    checkpoint.record("/_user/a/al/alice", Outcome.MIGRATED);
+    checkpoint.record("/_user/b/bo/bob", Outcome.EXISTING);
+    checkpoint.save(contentManager, false);
+
+    MigrationCheckpoint resumed = MigrationCheckpoint.load(contentManager, "users", "4-0");
+    assertFalse(resumed.isDone());
+    assertFalse(resumed.shouldMigrate("/_user/a/al/alice"));
+    assertFalse(resumed.shouldMigrate("/_user/b/bo/bob"));
+    assertTrue(resumed.shouldMigrate("/_user/c/ca/carol"));
+    assertEquals(1, resumed.getMigrated());
+    assertEquals(1, resumed.getExisting());
+    assertEquals(0, resumed.getFailed());
+  }
+
+  @Test
+  public void testFailedPathsAreRetried() throws Exception {
+    MigrationCheckpoint checkpoint = MigrationCheckpoint.load(contentManager, "groups", "4-1");
+    checkpoint.record("/_group/m/ma/math", Outcome.FAILED);
+    checkpoint.record("/_group/p/ph/physics", Outcome.MIGRATED);
+    checkpoint.save(contentManager, true);
+
+    MigrationCheckpoint resumed = MigrationCheckpoint.load(contentManager, "groups", "4-1");
+    assertFalse("A partition with failures is not done", resumed.isDone());
+    assertTrue(resumed.shouldMigrate("/_group/m/ma/math"));
+    assertFalse(resumed.shouldMigrate("/_group/p/ph/physics"));
+    assertEquals(1, resumed.getFailed());
+
+    resumed.record("/_group/m/ma/math", Outcome.MIGRATED);
+    resumed.save(contentManager, true);
+    MigrationCheckpoint finished = MigrationCheckpoint.load(contentManager, "groups", "4-1");
+    assertTrue(finished.isDone());
+    assertEquals(0, finished.getFailed());
+    assertEquals(2, finished.getMigrated());
+  }
+
+  @Test
+  public void testPartitionsAreKeptApart() throws Exception {
+    MigrationCheckpoint checkpoint = MigrationCheckpoint.load(contentManager, "users", "4-0");
+    checkpoint.record("/_user/a/al/alice", Outcome.MIGRATED);
+    checkpoint.save(contentManager, true);
+
+    assertTrue(MigrationCheckpoint.load(contentManager, "users", "4-0").isDone());
+    assertFalse(MigrationCheckpoint.load(contentManager, "users", "4-2").isDone());
+    assertFalse(MigrationCheckpoint.load(contentManager, "groups", "4-0").isDone());
+  }
+
+}
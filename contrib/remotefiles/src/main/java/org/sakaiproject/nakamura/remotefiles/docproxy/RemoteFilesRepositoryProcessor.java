@@ -36,7 +36,6 @@ import org.slf4j.LoggerFactory;
 
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -110,16 +109,28 @@ public class RemoteFilesRepositoryProcessor implements ExternalRepositoryProcess
    */
   public ExternalSearchResultSet search(Node node,
       Map<String, Object> searchProperties) throws DocProxyException {
+    return search(node, searchProperties, 0, -1);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.docproxy.ExternalRepositoryProcessor#search(javax.jcr.Node, java.util.Map, long, long)
+   */
+  public ExternalSearchResultSet search(Node node,
+      Map<String, Object> searchProperties, long offset, long limit)
+      throws DocProxyException {
     try {
       String currentUserId = node.getSession().getUserID();
-      Collection<ExternalDocumentResult> searchResults = new ArrayList<ExternalDocumentResult>();
+      List<ExternalDocumentResult> searchResults = new ArrayList<ExternalDocumentResult>();
       List<Map<String,Object>> remoteFilesSearchResults = remoteFilesRepository.doSearch(searchProperties, currentUserId);
       if (remoteFilesSearchResults != null) {
         for(Map<String,Object> doc : remoteFilesSearchResults) {
           searchResults.add(new RemoteFilesDocumentResult(doc, remoteFilesRepository));
         }
       }
-      ExternalSearchResultSet resultSet = new ExternalSearchResultSetImpl(searchResults.iterator(), (long)searchResults.size());
+      // the remote search is not paged, only wrap the requested window
+      int from = (int) Math.min(Math.max(offset, 0), searchResults.size());
+      ExternalSearchResultSet resultSet = new ExternalSearchResultSetImpl(searchResults.subList(from, searchResults.size()).iterator(), (long)searchResults.size());
       return resultSet;
     } catch (RepositoryException e) {
       throw new RuntimeException("RepositoryException: " + e.getMessage());
@@ -19,12 +19,15 @@ package org.sakaiproject.nakamura.util;
 
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.JSONString;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Writer;
+import java.util.Calendar;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -42,6 +45,12 @@ import javax.jcr.nodetype.PropertyDefinition;
 public class ExtendedJSONWriter extends JSONWriter {
   private static final Logger LOGGER = LoggerFactory.getLogger(ExtendedJSONWriter.class);
 
+  /**
+   * Strings are handed to {@link JSONWriter} already quoted, so it does not quote them
+   * again.
+   */
+  private final QuotedString quoted = new QuotedString();
+
   public ExtendedJSONWriter(Writer w) {
     super(w);
   }
@@ -82,7 +91,13 @@ public class ExtendedJSONWriter extends JSONWriter {
 
   @SuppressWarnings("unchecked")
   private static void writeValueInternal(JSONWriter writer, Object entryValue) throws JSONException {
-    if (entryValue instanceof Object[]) {
+    if (entryValue instanceof String) {
+      writer.value(entryValue);
+    } else if (entryValue instanceof Long || entryValue instanceof Integer) {
+      writer.value(((Number) entryValue).longValue());
+    } else if (entryValue instanceof Boolean) {
+      writer.value(((Boolean) entryValue).booleanValue());
+    } else if (entryValue instanceof Object[]) {
       writer.array();
       Object[] objects = (Object[]) entryValue;
       for (Object object : objects) {
@@ -173,17 +188,35 @@ public class ExtendedJSONWriter extends JSONWriter {
       if (propValue instanceof Object[]) {
         write.array();
         for (Object value : (Object[]) propValue) {
-          write.value(PathUtils.translateAuthorizablePath(value));
+          writeContentValue(write, value);
         }
         write.endArray();
-      } else if (propValue instanceof java.util.Calendar){
-        write.value(DateUtils.iso8601((java.util.Calendar)propValue));
+      } else if (propValue instanceof Calendar){
+        write.value(DateUtils.iso8601((Calendar)propValue));
       } else {
-        write.value(PathUtils.translateAuthorizablePath(propValue));
+        writeContentValue(write, propValue);
       }
     }
   }
 
+  /**
+   * Write a single content property value. Only strings can be authorizable paths, so
+   * the common scalar types are written directly without being turned into strings
+   * first.
+   */
+  private static void writeContentValue(JSONWriter write, Object value)
+      throws JSONException {
+    if (value instanceof String) {
+      write.value(PathUtils.translateAuthorizablePath(value));
+    } else if (value instanceof Long || value instanceof Integer) {
+      write.value(((Number) value).longValue());
+    } else if (value instanceof Boolean) {
+      write.value(((Boolean) value).booleanValue());
+    } else {
+      write.value(PathUtils.translateAuthorizablePath(value));
+    }
+  }
+
   @Override
   public JSONWriter value(Object object) throws JSONException {
     return value(object, true);
@@ -220,11 +253,32 @@ public class ExtendedJSONWriter extends JSONWriter {
         }
       }
       return this;
+    } else if (object instanceof String) {
+      return super.value(quoted.quote((String) object));
     } else {
       return super.value(object);
     }
   }
 
+  /**
+   * A string quoted by {@link JSONObject#quote(String)}. As a {@link JSONString} it is
+   * appended as it is, which skips the type checks {@link JSONWriter#value(Object)} makes
+   * before it gets to strings.
+   */
+  private static final class QuotedString implements JSONString {
+
+    private String value;
+
+    QuotedString quote(String s) {
+      value = JSONObject.quote(s);
+      return this;
+    }
+
+    public String toJSONString() {
+      return value;
+    }
+  }
+
   private static boolean isUserPath(String name, Object value) {
     if ("jcr:path".equals(name) || "path".equals(name) || "userProfilePath".equals(name)) {
       String s = String.valueOf(value);
@@ -26,11 +26,14 @@ import static org.junit.Assert.fail;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.content.Content;
 
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -78,6 +81,61 @@ public class ExtendedJSONWriterTest {
     }
   }
 
+  @Test
+  public void testContentValues() throws Exception {
+    Calendar created = Calendar.getInstance();
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put("count", 42L);
+    props.put("small", 7);
+    props.put("flag", true);
+    props.put("ratio", 0.5);
+    props.put("created", created);
+    props.put("path", "a:alice/public");
+    props.put("text", "say \"hi\"\n</script>");
+    props.put("members", new Object[] { "a:bob", 3L, false });
+    Content content = new Content("/path/to/content", props);
+
+    StringWriter writer = new StringWriter();
+    ExtendedJSONWriter ext = new ExtendedJSONWriter(writer);
+    ext.object();
+    ExtendedJSONWriter.writeNodeContentsToWriter(ext, content);
+    ext.endObject();
+
+    String s = writer.toString();
+    JSONObject o = new JSONObject(s);
+    assertEquals(42L, o.getLong("count"));
+    assertEquals(7, o.getInt("small"));
+    assertEquals(true, o.getBoolean("flag"));
+    assertEquals(0.5, o.getDouble("ratio"), 0);
+    assertEquals(DateUtils.iso8601(created), o.getString("created"));
+    assertEquals("/~alice/public", o.getString("path"));
+    assertEquals("say \"hi\"\n</script>", o.getString("text"));
+    assertFalse(s.contains("</script>"));
+    assertEquals("/~bob", o.getJSONArray("members").getString(0));
+    assertEquals(3L, o.getJSONArray("members").getLong(1));
+    assertEquals(false, o.getJSONArray("members").getBoolean(2));
+  }
+
+  @Test
+  public void testStringsAreWrittenAsJSONWriterWritesThem() throws Exception {
+    String[] values = { "", "plain", "say \"hi\"", "back\\slash", "</script>", "a/b <",
+        "<<//", "\b\t\n\f\r", "\u0000\u0001\u001f", "\u007f\u0080\u009f\u00a0",
+        "\u2028\u2029\u20ac", "\u00e9\u4e2d\ud83d\ude00" };
+    StringWriter expected = new StringWriter();
+    JSONWriter plain = new JSONWriter(expected);
+    StringWriter actual = new StringWriter();
+    ExtendedJSONWriter ext = new ExtendedJSONWriter(actual);
+    plain.array();
+    ext.array();
+    for (String value : values) {
+      plain.value(value);
+      ext.value(value);
+    }
+    plain.endArray();
+    ext.endArray();
+    assertEquals(expected.toString(), actual.toString());
+  }
+
   @Test
   public void testNode() {
     try {